@@ -214,6 +214,18 @@ public final class AbstractionTerm implements Term {
 	return _matrix.numberOfSymbolsAfterSubst1() + 1;
     }
 
+    public final int weightConstantPart() {
+	return _matrix.weightConstantPart() + 1;
+    }
+
+    public final int numberOfVariableOccurrences() {
+	return _matrix.numberOfVariableOccurrences();
+    }
+
+    public final long variableMask() {
+	return _matrix.variableMask();
+    }
+
     public 
 	final 
 	int 
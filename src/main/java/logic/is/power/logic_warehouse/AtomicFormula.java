@@ -38,8 +38,31 @@ public final class AtomicFormula extends Formula {
 	    pred.arity() == 1 || 
 	    (arg.isPair() &&
 	     ((TermPair)arg).dimension() == pred.arity());
+	assert pred.markUsed();
+	assert arg == null || 
+	    arg.kind() != Term.Kind.IndividualConstant ||
+	    ((IndividualConstant)arg).markUsed();
 	_predicate = pred;
 	_argument = arg;
+	if (arg == null)
+	    {
+		_numberOfSymbols = 1;
+		_depth = 0;
+		_weightConstantPart = pred.weight();
+		_numberOfVariableOccurrences = 0;
+		_containsVariables = false;
+		_variableMask = 0L;
+	    }
+	else
+	    {
+		_numberOfSymbols = 1 + arg.numberOfSymbols();
+		_depth = 1 + arg.depth();
+		_weightConstantPart = pred.weight() + arg.weightConstantPart();
+		_numberOfVariableOccurrences = 
+		    arg.numberOfVariableOccurrences();
+		_containsVariables = arg.containsVariables();
+		_variableMask = arg.variableMask();
+	    };
     }
 
     public final Predicate predicate() { return _predicate; }
@@ -198,7 +221,7 @@ public final class AtomicFormula extends Formula {
 	final 
 	boolean 
 	containsVariableAsProperSubterm(Variable var) {
-	return _argument != null &&
+	return (_variableMask & var.maskBit()) != 0 &&
 	    (_argument == (Term)var ||
 	     _argument.containsVariableAsProperSubterm(var));
     }
@@ -260,13 +283,12 @@ public final class AtomicFormula extends Formula {
 
     
     public final boolean containsFreeVariables() {
-	return _argument != null &&
+	return _numberOfVariableOccurrences != 0 &&
 	    _argument.containsFreeVariables();
     } 
 
     public final boolean containsVariables() { 
-	return _argument != null &&
-	    _argument.containsVariables();
+	return _containsVariables;
     } 
 
     public 
@@ -277,14 +299,18 @@ public final class AtomicFormula extends Formula {
 	
     }
 
-    public final int depth() {
-	return (argument() == null)? 0 : (1 + argument().depth());
-    }
+    public final int depth() { return _depth; }
+
+    public final int numberOfSymbols() { return _numberOfSymbols; }
 
-    public final int numberOfSymbols() {
-	return (argument() == null)? 1 : (1 + argument().numberOfSymbols());
+    public final int weightConstantPart() { return _weightConstantPart; }
+
+    public final int numberOfVariableOccurrences() { 
+	return _numberOfVariableOccurrences; 
     }
 
+    public final long variableMask() { return _variableMask; }
+
     public final int numberOfSymbolsAfterSubst1() {
 	return 
 	    (argument() == null)? 
@@ -373,4 +399,20 @@ public final class AtomicFormula extends Formula {
 
     private final Term _argument;
 
+    // The following are computed once since the formula is immutable:
+
+    private final int _numberOfSymbols;
+
+    private final int _depth;
+
+    /** Weights of the symbols are taken when the formula is created. */
+    private final int _weightConstantPart;
+
+    private final int _numberOfVariableOccurrences;
+
+    /** Same as <code>_argument.containsVariables()</code>, or false. */
+    private final boolean _containsVariables;
+
+    private final long _variableMask;
+
 }; // class AtomicFormula 
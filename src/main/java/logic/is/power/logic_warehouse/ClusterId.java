@@ -0,0 +1,156 @@
+/* Copyright (C) 2010 Alexandre Riazanov (Alexander Ryazanov)
+ *
+ * The copyright owner licenses this file to You under the Apache License, 
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package logic.is.power.logic_warehouse;
+
+import java.util.Arrays;
+
+import java.util.BitSet;
+
+import java.util.HashMap;
+
+/**
+ * Immutable representation of clusters for 
+ * {@link logic.is.power.logic_warehouse.ClusteredUnificationIndex}.
+ * Hash codes and packed bits are computed only once, when the object
+ * is created with {@link #valueOf(BitSet)}. Equal clusters may be 
+ * represented by different objects, but a {@link Pool} can be used 
+ * to share one object for equal clusters, which makes comparisons 
+ * faster and saves memory.
+ */
+public final class ClusterId {
+
+    /** Maps clusters to shared representatives. 
+     *  <b>IMPORTANT:</b> a pool is not thread-safe, and
+     *  its objects are only released together with the pool.
+     */
+    public static final class Pool {
+
+	public Pool() {
+	    _representatives = new HashMap<ClusterId,ClusterId>();
+	}
+
+	/** Returns the representative of the cluster equal 
+	 *  to <code>cluster</code>; <code>cluster</code> itself
+	 *  becomes the representative if there was none.
+	 */
+	public final ClusterId intern(ClusterId cluster) {
+
+	    ClusterId result = _representatives.get(cluster);
+
+	    if (result == null)
+		{
+		    _representatives.put(cluster,cluster);
+		    return cluster;
+		};
+
+	    return result;
+
+	} // intern(ClusterId cluster)
+
+	/** Same as <code>intern(ClusterId.valueOf(bits))</code>. */
+	public final ClusterId intern(BitSet bits) {
+	    return intern(valueOf(bits));
+	}
+
+	public final int size() { return _representatives.size(); }
+
+	private final HashMap<ClusterId,ClusterId> _representatives;
+
+    } // class Pool
+
+
+    /** Creates an identifier for the cluster specified
+     *  by <code>bits</code>; <code>bits</code> is copied, so it 
+     *  can be safely modified after the call.
+     */
+    public static ClusterId valueOf(BitSet bits) {
+	return new ClusterId((BitSet)bits.clone());
+    }
+
+
+    /** Checks if bit number <code>n</code> is set. */
+    public final boolean get(int n) { return _bits.get(n); }
+
+    public final boolean isEmpty() { return _bits.isEmpty(); }
+
+    public final int cardinality() { return _bits.cardinality(); }
+
+    /** Returns a modifiable copy of the bits. */
+    public final BitSet toBitSet() { return (BitSet)_bits.clone(); }
+
+    public final int hashCode() { return _hashCode; }
+
+    /** Compares the bits; fast if the objects are the same. */
+    public final boolean equals(Object obj) { 
+	if (this == obj) return true;
+	if (!(obj instanceof ClusterId)) return false;
+	ClusterId cluster = (ClusterId)obj;
+	return _hashCode == cluster._hashCode &&
+	    Arrays.equals(_words,cluster._words);
+    }
+
+    public final String toString() { return _bits.toString(); }
+
+    
+    /** The shared bits; <b>must not be modified</b>. */
+    final BitSet bits() { return _bits; }
+
+    /** The bits packed into words, so that bit number <code>n</code> 
+     *  is bit number <code>n % 64</code> in word number <code>n / 64</code>;
+     *  the last word is always nonzero;
+     *  the array is shared and <b>must not be modified</b>.
+     */
+    final long[] words() { return _words; }
+
+    /** Number of the first nonzero word in {@link #words()}, 
+     *  or 0 if the cluster is empty.
+     */
+    final int firstNonzeroWord() { return _firstNonzeroWord; }
+
+    /** Number of the last nonzero word in {@link #words()}, 
+     *  or -1 if the cluster is empty.
+     */
+    final int lastNonzeroWord() { return _words.length - 1; }
+
+
+
+    //                     Private methods:
+
+    private ClusterId(BitSet bits) {
+	_bits = bits;
+	_hashCode = bits.hashCode();
+
+	_words = new long[(bits.length() + 63) / 64];
+
+	for (int n = bits.nextSetBit(0); n >= 0; n = bits.nextSetBit(n + 1))
+	    _words[n / 64] |= 1L << (n % 64);
+
+	_firstNonzeroWord = (bits.isEmpty())? 0 : bits.nextSetBit(0) / 64;
+    }
+
+
+
+    //                     Data:
+
+    private final BitSet _bits;
+
+    private final int _hashCode;
+
+    private final long[] _words;
+
+    private final int _firstNonzeroWord;
+
+} // class ClusterId
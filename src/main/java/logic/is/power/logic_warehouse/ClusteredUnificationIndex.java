@@ -16,6 +16,8 @@
 package logic.is.power.logic_warehouse;
 
 import java.util.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
             
 import logic.is.power.cushion.*;
 
@@ -33,9 +35,21 @@ import logic.is.power.cushion.*;
  *  Uniqueness of symbol objects is not assumed, i.e., comparisons
  *  are made with {@link logic.is.power.logic_warehouse#Symbol#equals()} 
  *  rather than with "==".
- *  TODO: Lists of leaves should be replaced with a more efficient 
- *        data structure, possibly some kind of trees, possibly balanced.
- *  TODO: For multiple retrievals with incremental unifiers, useful, e.g., for 
+ *  Clusters are represented internally by 
+ *  {@link logic.is.power.logic_warehouse.ClusterId} objects;
+ *  all methods accepting clusters as {@link java.util.BitSet} objects 
+ *  convert them first, so the overloads accepting <code>ClusterId</code> 
+ *  should be preferred when the same clusters are used repeatedly.
+ *  The clusters of the indexed objects are shared via a pool private 
+ *  to the index, which is only used by the maintenance methods.
+ *  Retrieval can be done in other threads, in parallel with maintenance,
+ *  on immutable versions of the index published with {@link #publish()};
+ *  the versions share all unmodified tree nodes with each other
+ *  and with the index.
+ *  Besides unifiable terms, generalizations and instances of query
+ *  terms can be retrieved with {@link GeneralizationRetrieval}
+ *  and {@link InstanceRetrieval}.
+ *  TODO: For multiple retrievals with incremental unifiers, useful, e.g., for
  *        resolution, we have to implement retrieval with a dynamically
  *        generated variable renaming that will be applied to retrieved
  *        indexed objects.
@@ -51,9 +65,12 @@ public class ClusteredUnificationIndex<IndexedObject> {
     //     ClusteredUnificationIndex<IndexedObject>.greater(..).
     //     In particular, variable nodes preceed all other kinds
     //     of symbol nodes. This allows more efficient retrieval
-    //     and maintenance. In the future, some sort of hashing
-    //     should be considered to deal with high branching degrees
-    //     at higher levels in the tree.
+    //     and maintenance. 
+    // (3) When the number of nonvariable symbol nodes at a level
+    //     exceeds SymbolHashThreshold, the nonvariable part of 
+    //     the alternative chain is replaced with a single 
+    //     SymbolHashNode, which is always the last element 
+    //     of the chain. Variable nodes are never hashed.
 
 
     
@@ -86,21 +103,465 @@ public class ClusteredUnificationIndex<IndexedObject> {
     } //  class Retrieval 
 
 
+    /** Restrictions on the size and depth of indexed terms, 
+     *  that can be imposed on retrieval; the index keeps 
+     *  summaries of the sizes and depths of the terms in its subtrees,
+     *  so that the subtrees containing no suitable terms are skipped
+     *  completely. Since any instance of a term is at least as big
+     *  and as deep as the term itself, the bounds can also be used
+     *  to prune retrieval when we are only interested in unifiers
+     *  whose instances of indexed terms are small enough.
+     *  The sizes and depths are as computed by 
+     *  {@link Term#numberOfSymbols()} and {@link Term#depth()}.
+     */
+    public static class TermBounds {
+
+	public TermBounds(int minSymbols,
+			  int maxSymbols,
+			  int minDepth,
+			  int maxDepth) {
+	    _minSymbols = minSymbols;
+	    _maxSymbols = maxSymbols;
+	    _minDepth = minDepth;
+	    _maxDepth = maxDepth;
+	}
+
+	/** Same as <code>TermBounds(0,maxSymbols,0,maxDepth)</code>. */
+	public TermBounds(int maxSymbols,int maxDepth) {
+	    this(0,maxSymbols,0,maxDepth);
+	}
+
+	public final int minSymbols() { return _minSymbols; }
+
+	public final int maxSymbols() { return _maxSymbols; }
+
+	public final int minDepth() { return _minDepth; }
+
+	public final int maxDepth() { return _maxDepth; }
+
+	/** Checks if a term with the specified size and depth
+	 *  satisfies the bounds.
+	 */
+	public final boolean admit(int symbols,int depth) {
+	    return symbols >= _minSymbols && symbols <= _maxSymbols &&
+		depth >= _minDepth && depth <= _maxDepth;
+	}
+
+	/** Checks if the summary of the node is compatible 
+	 *  with the bounds, ie, some terms below the node
+	 *  may satisfy the bounds.
+	 */
+	private boolean admitSome(TreeNode node) {
+	    return node.maxSymbols() >= _minSymbols && 
+		node.minSymbols() <= _maxSymbols &&
+		node.maxDepth() >= _minDepth && 
+		node.minDepth() <= _maxDepth;
+	}
+
+	private final int _minSymbols;
+
+	private final int _maxSymbols;
+
+	private final int _minDepth;
+
+	private final int _maxDepth;
+
+    } // class TermBounds
+
+
+
+    /** Counters describing the shape and the approximate memory
+     *  footprint of the index or a published version, collected
+     *  by {@link #statistics()} or {@link Version#statistics()}.
+     *  A chain is a list of alternative symbol nodes at the same
+     *  level, ie, under the same node or at the top of a tree;
+     *  cluster tests between the alternatives are not counted,
+     *  and the entries of a symbol hash count as elements of its chain.
+     *  The memory estimate assumes a 64-bit JVM with compressed
+     *  object pointers, and does not include the indexed objects
+     *  and the symbols.
+     */
+    public static class Statistics {
+
+	public final int numberOfVariableNodes() { return _nodes[TreeNode.Kind.Variable]; }
+
+	public final int numberOfFunctionNodes() { return _nodes[TreeNode.Kind.Function]; }
+
+	public final int numberOfConstantNodes() { return _nodes[TreeNode.Kind.Constant]; }
+
+	public final int numberOfPredicateNodes() { return _nodes[TreeNode.Kind.Predicate]; }
+
+	public final int numberOfConnectiveNodes() { return _nodes[TreeNode.Kind.Connective]; }
+
+	public final int numberOfClusterSetBitTestNodes() {
+	    return _nodes[TreeNode.Kind.ClusterSetBitTest];
+	}
+
+	public final int numberOfClusterClearBitTestNodes() {
+	    return _nodes[TreeNode.Kind.ClusterClearBitTest];
+	}
+
+	public final int numberOfLeaves() { return _nodes[TreeNode.Kind.Leaf]; }
+
+	public final int numberOfSymbolHashNodes() { return _nodes[TreeNode.Kind.SymbolHash]; }
+
+	/** Total number of tree nodes of all kinds. */
+	public final int numberOfNodes() {
+	    int result = 0;
+	    for (int n = 0; n < _nodes.length; ++n)
+		result += _nodes[n];
+	    return result;
+	}
+
+	/** Number of nonempty index trees. */
+	public final int numberOfTrees() { return _trees; }
+
+	/** Number of levels with at least one chain; the levels are
+	 *  numbered from 0, which corresponds to the tops of the trees.
+	 */
+	public final int numberOfLevels() { return _levels; }
+
+	/** Number of chains at the level; 0 if <code>level</code>
+	 *  is outside the range <code>[0,numberOfLevels())</code>.
+	 */
+	public final int numberOfChains(int level) {
+	    if (level < 0 || level >= _levels) return 0;
+	    return _chains[level];
+	}
+
+	/** Average length of the chains at the level, or 0. */
+	public final double averageChainLength(int level) {
+	    if (numberOfChains(level) == 0) return 0;
+	    return ((double)_chainElements[level]) / _chains[level];
+	}
+
+	/** Maximal length of the chains at the level, or 0. */
+	public final int maxChainLength(int level) {
+	    if (numberOfChains(level) == 0) return 0;
+	    return _maxChainLength[level];
+	}
+
+	/** Number of nonempty groups of objects associated with
+	 *  the same term and cluster, including the indexed variables.
+	 */
+	public final int numberOfBuckets() { return _buckets; }
+
+	/** Total number of indexed objects. */
+	public final long numberOfObjects() { return _objects; }
+
+	public final double averageBucketSize() {
+	    if (_buckets == 0) return 0;
+	    return ((double)_objects) / _buckets;
+	}
+
+	public final int maxBucketSize() { return _maxBucketSize; }
+
+	/** Number of different clusters with some indexed objects. */
+	public final int numberOfClusters() { return _clusters; }
+
+	/** Number of different variable-cluster pairs in the index
+	 *  for variables.
+	 */
+	public final int numberOfIndexedVariables() { return _indexedVariables; }
+
+	/** Approximate number of bytes occupied by the index structures. */
+	public final long estimatedBytes() { return _bytes; }
+
+	public String toString() {
+
+	    String result =
+		"nodes=" + numberOfNodes() +
+		" (VAR " + numberOfVariableNodes() +
+		", FUNC " + numberOfFunctionNodes() +
+		", CONST " + numberOfConstantNodes() +
+		", PRED " + numberOfPredicateNodes() +
+		", CONN " + numberOfConnectiveNodes() +
+		", SET_BITS " + numberOfClusterSetBitTestNodes() +
+		", CLEAR_BITS " + numberOfClusterClearBitTestNodes() +
+		", LEAF " + numberOfLeaves() +
+		", SYMBOL_HASH " + numberOfSymbolHashNodes() + ")" +
+		" trees=" + _trees +
+		" buckets=" + _buckets +
+		" objects=" + _objects +
+		" maxBucket=" + _maxBucketSize +
+		" clusters=" + _clusters +
+		" indexedVariables=" + _indexedVariables +
+		" bytes=" + _bytes;
+
+	    for (int level = 0; level < _levels; ++level)
+		result +=
+		    "\n  level " + level +
+		    ": chains=" + _chains[level] +
+		    " avg=" + averageChainLength(level) +
+		    " max=" + _maxChainLength[level];
+
+	    return result;
+
+	} // toString()
+
+
+	//
+	//          Private methods:
+	//
+
+	/** Collects the statistics for the trees and the index
+	 *  for variables.
+	 */
+	private Statistics(TreeNode[] nonvariableHash,
+			   HashMap<ClusterId, TreeMap<Variable,LeafBucket>> variableIndex) {
+
+	    _nodes = new int[TreeNode.Kind.SymbolHash + 1];
+	    _chains = new int[16];
+	    _chainElements = new long[16];
+	    _maxChainLength = new int[16];
+	    _levels = 0;
+	    _distinctClusters = new HashSet<ClusterId>();
+
+	    _bytes =
+		alignedBytes(ArrayHeaderBytes +
+			     ReferenceBytes * nonvariableHash.length);
+
+	    for (TreeNode tree : nonvariableHash)
+		if (tree != null)
+		    {
+			++_trees;
+			collectChain(tree,0);
+		    };
+
+	    // The index for variables:
+
+	    _bytes += HashMapBytes + HashMapEntryBytes * variableIndex.size();
+
+	    for (Map.Entry<ClusterId, TreeMap<Variable,LeafBucket>> entry :
+		     variableIndex.entrySet())
+		{
+		    _bytes +=
+			HashMapBytes +
+			HashMapEntryBytes * entry.getValue().size();
+		    for (LeafBucket bucket : entry.getValue().values())
+			{
+			    ++_indexedVariables;
+			    collectBucket(bucket);
+			};
+		};
+
+	    _clusters = _distinctClusters.size();
+	    _distinctClusters = null;
+
+	} // Statistics(TreeNode[] nonvariableHash,..)
+
+
+	/** Collects the statistics for the chain starting
+	 *  with <code>chain</code> at the level, and all
+	 *  the trees below.
+	 */
+	private void collectChain(TreeNode chain,int level) {
+
+	    // The deeper levels are visited first, so the per-level
+	    // arrays may have to grow by more than one level at a time:
+
+	    while (level >= _chains.length)
+		{
+		    int newLength = Math.max(2 * _chains.length,level + 1);
+		    _chains = Arrays.copyOf(_chains,newLength);
+		    _chainElements = Arrays.copyOf(_chainElements,newLength);
+		    _maxChainLength = Arrays.copyOf(_maxChainLength,newLength);
+		};
+
+	    int length = 0;
+
+	    while (chain != null)
+		{
+		    ++_nodes[chain.kind()];
+
+		    switch (chain.kind())
+			{
+			case TreeNode.Kind.ClusterSetBitTest: // as below
+			case TreeNode.Kind.ClusterClearBitTest:
+			    _bytes += ClusterTestNodeBytes;
+			    chain = ((ClusterTestNode)chain).treeBelow();
+			    break;
+
+			case TreeNode.Kind.Leaf:
+			    _bytes += LeafNodeBytes;
+			    if (((LeafNode)chain)._buckets != null)
+				_bytes +=
+				    HashMapBytes +
+				    HashMapEntryBytes *
+				    ((LeafNode)chain)._buckets.size();
+			    for (LeafBucket bucket : ((LeafNode)chain).buckets())
+				collectBucket(bucket);
+			    chain = null;
+			    break;
+
+			case TreeNode.Kind.SymbolHash:
+			    {
+				SymbolHashNode hash = (SymbolHashNode)chain;
+
+				_bytes +=
+				    SymbolHashNodeBytes +
+				    alignedBytes(ArrayHeaderBytes +
+						 IntBytes * hash._keys.length) +
+				    alignedBytes(ArrayHeaderBytes +
+						 IntBytes * hash._slots.length) +
+				    alignedBytes(ArrayHeaderBytes +
+						 ReferenceBytes * hash._entries.length);
+
+				for (int n = 0; n < hash.size(); ++n)
+				    {
+					++_nodes[hash.entry(n).kind()];
+					_bytes += SymbolNodeBytes;
+					collectChain(hash.entry(n).treeBelow(),level + 1);
+				    };
+
+				length += hash.size();
+				chain = null;
+			    }
+			    break;
+
+			default:
+			    // Symbol node:
+			    _bytes += SymbolNodeBytes;
+			    ++length;
+			    collectChain(((SymbolNode)chain).treeBelow(),level + 1);
+			    chain = ((SymbolNode)chain).alternative();
+
+			}; // switch (chain.kind())
+		};
+
+	    if (length == 0) return; // just a leaf
+
+	    if (level >= _levels) _levels = level + 1;
+
+	    ++_chains[level];
+	    _chainElements[level] += length;
+	    if (length > _maxChainLength[level])
+		_maxChainLength[level] = length;
+
+	} // collectChain(TreeNode chain,int level)
+
+
+	private void collectBucket(LeafBucket bucket) {
+
+	    _bytes +=
+		LeafBucketBytes +
+		alignedBytes(ArrayHeaderBytes +
+			     ReferenceBytes * bucket._objects.length);
+
+	    if (bucket.isEmpty()) return;
+
+	    ++_buckets;
+	    _objects += bucket.size();
+	    if (bucket.size() > _maxBucketSize)
+		_maxBucketSize = bucket.size();
+	    _distinctClusters.add(bucket.cluster());
+
+	} // collectBucket(LeafBucket bucket)
+
+
+	/** Rounds up to a multiple of 8 bytes, like the JVM does
+	 *  with object sizes.
+	 */
+	private static long alignedBytes(long bytes) {
+	    return (bytes + 7) & ~7L;
+	}
+
+
+	//
+	//          Private data:
+	//
+
+	// Approximate sizes, in bytes:
+
+	private static final int ObjectHeaderBytes = 12;
+
+	private static final int ArrayHeaderBytes = 16;
+
+	private static final int ReferenceBytes = 4;
+
+	private static final int IntBytes = 4;
+
+	/** Header, kind, epoch and the size/depth summary. */
+	private static final int TreeNodeBytes = ObjectHeaderBytes + 6 * IntBytes;
+
+	private static final long SymbolNodeBytes =
+	    alignedBytes(TreeNodeBytes + 3 * ReferenceBytes);
+
+	private static final long ClusterTestNodeBytes =
+	    alignedBytes(TreeNodeBytes + 3 * ReferenceBytes + 2 * IntBytes);
+
+	/** Without the arrays. */
+	private static final long SymbolHashNodeBytes =
+	    alignedBytes(TreeNodeBytes + 4 * ReferenceBytes + IntBytes);
+
+	/** Without the map of buckets. */
+	private static final long LeafNodeBytes =
+	    alignedBytes(TreeNodeBytes + 2 * ReferenceBytes);
+
+	/** Without the array of objects. */
+	private static final long LeafBucketBytes =
+	    alignedBytes(ObjectHeaderBytes + 2 * ReferenceBytes + 2 * IntBytes);
+
+	/** Empty <code>HashMap</code> or <code>TreeMap</code>, very roughly. */
+	private static final long HashMapBytes = 64;
+
+	/** Entry of a <code>HashMap</code> or <code>TreeMap</code>
+	 *  together with its share of the table, very roughly.
+	 */
+	private static final long HashMapEntryBytes = 40;
+
+
+	/** Indexed by the {@link TreeNode.Kind} values. */
+	private int[] _nodes;
+
+	private int _trees;
+
+	private int _levels;
+
+	/** Numbers of chains per level. */
+	private int[] _chains;
+
+	/** Sums of the chain lengths per level. */
+	private long[] _chainElements;
+
+	private int[] _maxChainLength;
+
+	private int _buckets;
+
+	private long _objects;
+
+	private int _maxBucketSize;
+
+	private int _clusters;
+
+	private int _indexedVariables;
+
+	private long _bytes;
+
+	/** Only used while collecting. */
+	private HashSet<ClusterId> _distinctClusters;
+
+    } // class Statistics
+
+
+
     /** Counts the number of entries in the index corresponding
      *  to the specified term-cluster pair.
      */
-    public final int count(Term term,BitSet cluster) {
+    public final int count(Term term,ClusterId cluster) {
+
+	term = normalise(term);
 
 	if (term.isVariable())
 	    {
-		TreeMap<Variable,LeafNode> varToLeaves =
+		TreeMap<Variable,LeafBucket> varToLeaves =
 		    _variableIndex.get(cluster);
 		if (varToLeaves == null) return 0;
-		
-		LeafNode leaves = varToLeaves.get((Variable)term.topSymbol());
-		assert leaves != null;
-		
-		return countInLeaves(cluster,leaves);
+
+		LeafBucket leaves = varToLeaves.get((Variable)term.topSymbol());
+		if (leaves == null) return 0;
+
+		return leaves.size();
 	    }
 	else // nonvariable term/formula
 	    {
@@ -110,7 +571,161 @@ public class ClusteredUnificationIndex<IndexedObject> {
 
 		return countInTree(iter,cluster,_nonvariableHash[hashCode]);
 	    }
-    } // count(Term term,BitSet cluster)
+    } // count(Term term,ClusterId cluster)
+
+
+    /** Same as <code>count(term,ClusterId.valueOf(cluster))</code>. */
+    public final int count(Term term,BitSet cluster) {
+	return count(term,ClusterId.valueOf(cluster));
+    }
+
+
+    /** Finds all indexed objects from the cluster that are associated
+     *  with variants of the term, ie, terms that coincide with it 
+     *  modulo a bijective renaming of variables. Unlike retrieval,
+     *  the lookup follows only the nodes for the symbols of the term; 
+     *  branching happens only at query variables seen for the first 
+     *  time, over the index variables not used by the renaming so far.
+     *  The lookup works in scratch structures kept in the index, 
+     *  so, like maintenance operations, it must not be called 
+     *  by several threads simultaneously.
+     *  @return empty list if there are no variants in the cluster;
+     *          the list is not shared with the index
+     */
+    public final List<IndexedObject> findVariant(Term term,ClusterId cluster) {
+
+	term = normalise(term);
+
+	assert _variantBuckets.isEmpty();
+
+	if (term.isVariable())
+	    {
+		// Any indexed variable is a variant.
+
+		TreeMap<Variable,LeafBucket> varToLeaves =
+		    _variableIndex.get(cluster);
+
+		if (varToLeaves != null)
+		    _variantBuckets.addAll(varToLeaves.values());
+	    }
+	else // nonvariable term/formula
+	    {
+		int hashCode = 
+		    term.topSymbol().hashCode() % NonvariableHashSize;
+
+		if (_variantSymbols.length < term.numberOfSymbols())
+		    _variantSymbols = 
+			new Symbol[Math.max(term.numberOfSymbols(),
+					    2 * _variantSymbols.length)];
+
+		_numberOfVariantSymbols = 0;
+		_variantIterator.reset(term);
+		while (_variantIterator.hasNext())
+		    {
+			_variantSymbols[_numberOfVariantSymbols] = 
+			    _variantIterator.next().topSymbol();
+			++_numberOfVariantSymbols;
+		    };
+
+		_renamingSize = 0;
+
+		findVariantInTree(0,cluster,_nonvariableHash[hashCode]);
+	    };
+
+	if (_variantBuckets.isEmpty()) 
+	    return Collections.<IndexedObject>emptyList();
+
+	int numberOfObjects = 0;
+	for (LeafBucket bucket : _variantBuckets)
+	    numberOfObjects += bucket.size();
+
+	ArrayList<IndexedObject> result = 
+	    new ArrayList<IndexedObject>(numberOfObjects);
+
+	for (LeafBucket bucket : _variantBuckets)
+	    for (int n = 0; n < bucket.size(); ++n)
+		result.add(indexedObject(bucket,n));
+
+	_variantBuckets.clear();
+
+	// Release the symbols:
+	Arrays.fill(_variantSymbols,0,_numberOfVariantSymbols,null);
+
+	return result;
+
+    } // findVariant(Term term,ClusterId cluster)
+
+
+    /** Same as <code>findVariant(term,ClusterId.valueOf(cluster))</code>. */
+    public final List<IndexedObject> findVariant(Term term,BitSet cluster) {
+	return findVariant(term,ClusterId.valueOf(cluster));
+    }
+
+
+    /** Collects counters describing the shape and the approximate
+     *  memory footprint of the index; walks the whole index,
+     *  so it should not be called too often.
+     */
+    public final Statistics statistics() {
+	return new Statistics(_nonvariableHash,_variableIndex);
+    }
+
+
+    /** Makes the index read-only and returns a view on it
+     *  that can be used for retrieval by several threads in parallel,
+     *  see {@link SharedRetrieval}; the index remains frozen,
+     *  ie, no maintenance operations can be performed, until 
+     *  {@link FrozenView#release()} is called on all the views
+     *  obtained with this method. Normal retrievals are still allowed,
+     *  but only in the thread that owns the index. 
+     *  The view must be passed to other threads in a way that
+     *  guarantees visibility of all previous modifications
+     *  of the index, eg, via a <code>java.util.concurrent</code> queue
+     *  or executor.
+     */
+    public final FrozenView freeze() {
+	++_frozenViews;
+	return new FrozenView();
+    }
+
+    /** Checks if there are unreleased frozen views of the index. */
+    public final boolean isFrozen() { return _frozenViews != 0; }
+
+
+    /** Publishes the current state of the index as an immutable
+     *  {@link Version}, which becomes the value of {@link #latestVersion()};
+     *  unlike {@link #freeze()}, this does not block maintenance:
+     *  subsequent maintenance operations copy the tree nodes
+     *  they have to modify, if the nodes are shared with published 
+     *  versions, so that readers holding a version are never affected.
+     *  If nothing has changed since the previous call, the same
+     *  version is returned. Must be called in the thread that 
+     *  performs maintenance.
+     */
+    public final Version publish() {
+
+	if (_latestVersion != null && !_unpublishedChanges)
+	    return _latestVersion;
+
+	Version result = 
+	    new Version(_nonvariableHash.clone(),_variableIndex);
+
+	// All nodes existing now become shared with the new version:
+	_frozenEpoch = _epochClock.incrementAndGet();
+	_unpublishedChanges = false;
+
+	_latestVersion = result;
+
+	return result;
+
+    } // publish()
+
+
+    /** The version most recently published with {@link #publish()},
+     *  or null if nothing has been published yet; can be called 
+     *  in any thread.
+     */
+    public final Version latestVersion() { return _latestVersion; }
 
 
 
@@ -121,11 +736,75 @@ public class ClusteredUnificationIndex<IndexedObject> {
 
  
 
+    /** Same as <code>ClusteredUnificationIndex(false)</code>. */
     public ClusteredUnificationIndex() { 
+	this(false);
+    }
+
+    /** @param normaliseVariables if true, the index works in the
+     *  perfect discrimination mode: all terms passed to the maintenance 
+     *  methods, {@link #count(Term,ClusterId)} and 
+     *  {@link #findVariant(Term,ClusterId)} are first normalised 
+     *  by renaming their variables into the canonical variables 
+     *  {@link #canonicalVariable(int)} in the order of their first 
+     *  occurrences, so that variants share the same tree paths;
+     *  in particular, <code>count(term,cluster)</code> counts 
+     *  the entries for all variants of <code>term</code>.
+     *  The original variables of each indexed term are kept 
+     *  with its object in the leaf and can be obtained with 
+     *  <code>originalVariables()</code> after retrieval of the object
+     *  with {@link Retrieval} or {@link SharedRetrieval}. 
+     *  Note that the unifiers are then expressed in terms of 
+     *  the canonical variables. The normalised copies of the terms
+     *  are not shared and are not kept by the index.
+     */
+    public ClusteredUnificationIndex(boolean normaliseVariables) { 
 	_nonvariableHash = new NonleafTreeNode[NonvariableHashSize];
-	_variableIndex = 
-	    new HashMap<BitSet, TreeMap<Variable,LeafNode>>();
+	_variableIndex =
+	    new HashMap<ClusterId, TreeMap<Variable,LeafBucket>>();
 	_retrievalLocks = 0;
+	_frozenViews = 0;
+	_frozenEpoch = 0;
+	_variableIndexEpoch = 0;
+	_unpublishedChanges = false;
+	_latestVersion = null;
+	_clusterPool = new ClusterId.Pool();
+	_variantIterator = new Term.LeanIterator();
+	_variantSymbols = new Symbol[InitialVariantCapacity];
+	_numberOfVariantSymbols = 0;
+	_renamedVariables = new Variable[InitialVariantCapacity];
+	_renamingImages = new Variable[InitialVariantCapacity];
+	_renamingSize = 0;
+	_variantBuckets = new ArrayList<LeafBucket>();
+	_normaliseVariables = normaliseVariables;
+	if (normaliseVariables)
+	    {
+		_canonicalVariableBank = new Variable.Bank();
+		_canonicalVariables = new ArrayList<Variable>();
+		_normalisedVariables = new Variable[InitialVariantCapacity];
+		_numberOfNormalisedVariables = 0;
+	    };
+	_insertedOriginalVariables = null;
+    }
+
+
+    /** Checks if the index works in the perfect discrimination mode;
+     *  see {@link #ClusteredUnificationIndex(boolean)}.
+     */
+    public final boolean normalisesVariables() { return _normaliseVariables; }
+
+    /** Canonical variable number <code>n</code>: in normalised terms, 
+     *  it replaces the variable whose first occurrence is preceded by 
+     *  occurrences of exactly <code>n</code> other variables.
+     *  <b>pre:</b> <code>normalisesVariables()</code>.
+     */
+    public final Variable canonicalVariable(int n) {
+	assert _normaliseVariables;
+	// The bank is only used here and never reset, so every 
+	// reservation gives the next new variable:
+	while (_canonicalVariables.size() <= n)
+	    _canonicalVariables.add(_canonicalVariableBank.reserveVariable());
+	return _canonicalVariables.get(n);
     }
 
 
@@ -140,31 +819,49 @@ public class ClusteredUnificationIndex<IndexedObject> {
      *             between calls to {@link logic.is.power.logic_warehouse#ClusteredUnificationIndex#Retrieval#resetQuery(Flatterm,BitSet)}
      *             and {@link logic.is.power.logic_warehouse#ClusteredUnificationIndex#Retrieval#finishRetrieval()}.
      */
-    public final void insert(Term term,BitSet cluster,IndexedObject obj) {
+    public final void insert(Term term,ClusterId cluster,IndexedObject obj) {
 
         //System.out.println("INSERT " + term + " CL=" + cluster);
 
 	
 	assert _retrievalLocks == 0;
+	assert _frozenViews == 0;
+
+	_unpublishedChanges = true;
+
+	// Equal clusters share one object in the index:
+	cluster = _clusterPool.intern(cluster);
+
+	if (_normaliseVariables)
+	    {
+		_insertedOriginalVariables = originalVariables(term);
+		term = normalise(term);
+	    };
 	      
 
 	if (term.isVariable())
 	    {
-		TreeMap<Variable,LeafNode> varToLeaves =
+		makeVariableIndexMutable();
+
+		TreeMap<Variable,LeafBucket> varToLeaves =
 		    _variableIndex.get(cluster);
-		
+
 		if (varToLeaves == null)
 		    {
-			varToLeaves = new TreeMap<Variable,LeafNode>();
+			varToLeaves = new TreeMap<Variable,LeafBucket>();
 			_variableIndex.put(cluster,varToLeaves);
 		    };
 
-		LeafNode newLeaf = 
-		    new LeafNode(obj,
-				 cluster,
-				 varToLeaves.get((Variable)term.topSymbol()));
+		LeafBucket leaves = 
+		    mutableVariableBucket(varToLeaves,(Variable)term.topSymbol());
+
+		if (leaves == null)
+		    {
+			leaves = new LeafBucket(cluster);
+			varToLeaves.put((Variable)term.topSymbol(),leaves);
+		    };
 
-		varToLeaves.put((Variable)term.topSymbol(),newLeaf);		
+		leaves.add(obj,_insertedOriginalVariables);
 	    }
 	else // nonvariable term/formula
 	    {
@@ -173,16 +870,21 @@ public class ClusteredUnificationIndex<IndexedObject> {
 		Term.LeanIterator iter = new Term.LeanIterator(term);
 
 		BitSet setBitChecksToInsert = 
-		    (BitSet)cluster.clone();
+		    cluster.toBitSet();
 		BitSet clearBitChecksToInsert = 
-		    (BitSet)cluster.clone();
+		    cluster.toBitSet();
 		clearBitChecksToInsert.flip(0,
 					    clearBitChecksToInsert.size());
 
 		BitSet setBitChecksToPush = 
-		    new BitSet(cluster.size());
+		    new BitSet(cluster.bits().size());
 		BitSet clearBitChecksToPush = 
-		    new BitSet(cluster.size());
+		    new BitSet(cluster.bits().size());
+
+		// All new nodes and the nodes on the path are 
+		// summarised with these:
+		_insertedTermSymbols = term.numberOfSymbols();
+		_insertedTermDepth = term.depth();
 		    
 		_nonvariableHash[hashCode] = 
 		    insertIntoTree(iter,
@@ -197,9 +899,17 @@ public class ClusteredUnificationIndex<IndexedObject> {
 	    
 	//System.out.println(toString());
 
+	_insertedOriginalVariables = null;
+
 	assert count(term,cluster) != 0;
 	
-    } // insert(Term term,BitSet cluster,IndexedObject obj)
+    } // insert(Term term,ClusterId cluster,IndexedObject obj)
+
+
+    /** Same as <code>insert(term,ClusterId.valueOf(cluster),obj)</code>. */
+    public final void insert(Term term,BitSet cluster,IndexedObject obj) {
+	insert(term,ClusterId.valueOf(cluster),obj);
+    }
 
 
       
@@ -228,42 +938,40 @@ public class ClusteredUnificationIndex<IndexedObject> {
      *             and {@link logic.is.power.logic_warehouse#ClusteredUnificationIndex#Retrieval#finishRetrieval()}.
      */
     public final void erase(Term term,
-		      BitSet cluster,
+		      ClusterId cluster,
 		      UnaryPredicateObject<IndexedObject> hasToBeRemoved) {
 
 
 	//System.out.println("ERASE " + term + " CL=" + cluster);
 
 	assert _retrievalLocks == 0;
+	assert _frozenViews == 0;
+
+	_unpublishedChanges = true;
+
+	term = normalise(term);
 
 	if (term.isVariable())
 	    {
-		TreeMap<Variable,LeafNode> varToLeaves =
+		makeVariableIndexMutable();
+
+		TreeMap<Variable,LeafBucket> varToLeaves =
 		    _variableIndex.get(cluster);
 		if (varToLeaves == null) return;
-		
-		LeafNode leaves = varToLeaves.get((Variable)term.topSymbol());
-		assert leaves != null;
-		
-		try
+
+		LeafBucket leaves = 
+		    mutableVariableBucket(varToLeaves,(Variable)term.topSymbol());
+		if (leaves == null) return;
+
+		leaves.removeAll(hasToBeRemoved);
+
+		if (leaves.isEmpty())
 		    {
-			leaves = eraseLeaves(cluster,hasToBeRemoved,leaves,true);
-			
-			if (leaves == null)
-			    {
-				varToLeaves.remove((Variable)term.topSymbol());
-				
-				if (varToLeaves.isEmpty())
-				    _variableIndex.remove(cluster);
-			    }
-			else
-			    varToLeaves.put((Variable)term.topSymbol(),
-					    leaves);
-		    }
-		catch (TermClusterPairNotFoundException ex)
-		    {
-			// nothing here: varToLeaves remains unchanged
-		    }
+			varToLeaves.remove((Variable)term.topSymbol());
+
+			if (varToLeaves.isEmpty())
+			    _variableIndex.remove(cluster);
+		    };
 		
 	    }
 	else // nonvariable term/formula
@@ -292,6 +1000,14 @@ public class ClusteredUnificationIndex<IndexedObject> {
     } // erase(Term term,..)
 
 
+    /** Same as <code>erase(term,ClusterId.valueOf(cluster),hasToBeRemoved)</code>. */
+    public final void erase(Term term,
+			    BitSet cluster,
+			    UnaryPredicateObject<IndexedObject> hasToBeRemoved) {
+	erase(term,ClusterId.valueOf(cluster),hasToBeRemoved);
+    }
+
+
       /** Allows to relocate objects indexed by some term-cluster pair
        *  to a different cluster but with the same term;
        *  this method works by enumerating <em>all</em> indexed objecs associated
@@ -320,81 +1036,79 @@ public class ClusteredUnificationIndex<IndexedObject> {
        *             and {@link logic.is.power.logic_warehouse#ClusteredUnificationIndex#Retrieval#finishRetrieval()}.
        */
     public final void relocate(Term term,
-			 BitSet cluster,
-			 BitSet newCluster,
+			 ClusterId cluster,
+			 ClusterId newCluster,
 			 UnaryPredicateObject<IndexedObject> hasToBeRelocated) {
 
 	//System.out.println("RELOCATE " + term + " CL=" + cluster +
 	//" ---> " + newCluster);
 
 	assert _retrievalLocks == 0;
+	assert _frozenViews == 0;
+
+	_unpublishedChanges = true;
+
+	// Equal clusters share one object in the index:
+	newCluster = _clusterPool.intern(newCluster);
+
+	term = normalise(term);
 
 	if (term.isVariable())
 	    {
-		TreeMap<Variable,LeafNode> varToLeaves =
+		// The source and destination buckets would coincide;
+		// relocateLeaves(..) treats the same case in the trees:
+		if (cluster.equals(newCluster)) return;
+
+		makeVariableIndexMutable();
+
+		TreeMap<Variable,LeafBucket> varToLeaves =
 		    _variableIndex.get(cluster);
 		if (varToLeaves == null) return;
-		
-		TreeMap<Variable,LeafNode> newVarToLeaves =
+
+		LeafBucket leaves = 
+		    mutableVariableBucket(varToLeaves,(Variable)term.topSymbol());
+		if (leaves == null) return;
+
+		TreeMap<Variable,LeafBucket> newVarToLeaves =
 		    _variableIndex.get(newCluster);
-		
-		LeafNode newClusterLeaves = null;
 
 		if (newVarToLeaves == null)
 		    {
-			newVarToLeaves = new TreeMap<Variable,LeafNode>();
-			_variableIndex.put(newCluster,newVarToLeaves);
-		    }
-		else
-		    newClusterLeaves = 
-			newVarToLeaves.get((Variable)term.topSymbol());
+			newVarToLeaves = new TreeMap<Variable,LeafBucket>();
+			_variableIndex.put(newCluster,
+					   newVarToLeaves);
+		    };
 
+		LeafBucket newClusterLeaves =
+		    mutableVariableBucket(newVarToLeaves,
+					  (Variable)term.topSymbol());
 
-		LeafNode leaves = varToLeaves.get((Variable)term.topSymbol());
-		assert leaves != null;
-		
-		while (leaves != null && 
-		       hasToBeRelocated.evaluate((IndexedObject)leaves.indexedObject()))
-		    {
-			LeafNode tmp = leaves;
-			leaves = leaves.otherLeaves();
-			tmp.setCluster(newCluster);
-			tmp.setOtherLeaves(newClusterLeaves);
-			newClusterLeaves = tmp;
+		if (newClusterLeaves == null)
+		    {
+			newClusterLeaves = new LeafBucket(newCluster);
+			newVarToLeaves.put((Variable)term.topSymbol(),
+					   newClusterLeaves);
 		    };
 
+		leaves.moveAll(hasToBeRelocated,newClusterLeaves);
 
-
-		if (leaves == null)
+		if (leaves.isEmpty())
 		    {
 			varToLeaves.remove((Variable)term.topSymbol());
-			
+
 			if (varToLeaves.isEmpty())
 			    _variableIndex.remove(cluster);
-		    }
-		else // leaves != null
+		    };
+
+		if (newClusterLeaves.isEmpty())
 		    {
-			LeafNode prevLeaf = leaves; 
-			while (prevLeaf.otherLeaves() != null)
-			    if (hasToBeRelocated.
-				evaluate((IndexedObject)
-					 prevLeaf.otherLeaves().indexedObject()))
-				{
-				    LeafNode tmp = prevLeaf.otherLeaves();
-				    prevLeaf.setOtherLeaves(tmp.otherLeaves());
-				    tmp.setCluster(newCluster);
-				    tmp.setOtherLeaves(newClusterLeaves);
-				    newClusterLeaves = tmp;
-				}
-			    else
-				prevLeaf = prevLeaf.otherLeaves();
+			// Nothing was relocated.
+			newVarToLeaves.remove((Variable)term.topSymbol());
 
-			varToLeaves.put((Variable)term.topSymbol(),
-					leaves);
+			if (newVarToLeaves.isEmpty())
+			    _variableIndex.remove(newCluster);
 		    };
 
-		newVarToLeaves.put((Variable)term.topSymbol(),newClusterLeaves);
-
 	    }
 	else // nonvariable term/formula
 	    {
@@ -425,6 +1139,18 @@ public class ClusteredUnificationIndex<IndexedObject> {
 
 
     } // relocate(Term term,..)
+
+
+    /** Same as <code>relocate(term,ClusterId.valueOf(cluster),ClusterId.valueOf(newCluster),hasToBeRelocated)</code>. */
+    public final void relocate(Term term,
+			       BitSet cluster,
+			       BitSet newCluster,
+			       UnaryPredicateObject<IndexedObject> hasToBeRelocated) {
+	relocate(term,
+		 ClusterId.valueOf(cluster),
+		 ClusterId.valueOf(newCluster),
+		 hasToBeRelocated);
+    }
 	       
 
 
@@ -475,14 +1201,27 @@ public class ClusteredUnificationIndex<IndexedObject> {
 	    public static final int ClusterSetBitTest = 5;
 	    public static final int ClusterClearBitTest = 6;
 	    public static final int Leaf = 7;
+	    public static final int SymbolHash = 8;
 	} // class Kind
 
 	public TreeNode(int kind) {
 	    _kind = kind;
+	    _epoch = _epochClock.get();
+	    clearSummary();
 	}
 
 	public final int kind() { return _kind; }
 
+	/** Value of the epoch clock when the node was created;
+	 *  see {@link #publish()}.
+	 */
+	public final int epoch() { return _epoch; }
+
+	/** Shallow copy: the copy shares all the subtrees
+	 *  with this node, but belongs to the current epoch.
+	 */
+	public abstract TreeNode copy();
+
 	public final boolean isLeaf() { return _kind == Kind.Leaf; }
 
 	public final boolean isClusterTest() {
@@ -501,10 +1240,98 @@ public class ClusteredUnificationIndex<IndexedObject> {
 	    return _kind == Kind.Variable;
 	}
 
+	public final boolean isSymbolHash() {
+	    return _kind == Kind.SymbolHash;
+	}
+
 	public abstract String toString();
-	
+
+
+	/** Smallest number of symbols in the indexed terms reachable
+	 *  via this node (not counting its alternatives); 
+	 *  maintained only for symbol nodes, hashes and leaves.
+	 */
+	public final int minSymbols() { return _minSymbols; }
+
+	public final int maxSymbols() { return _maxSymbols; }
+
+	/** Smallest depth of the indexed terms reachable via this node. */
+	public final int minDepth() { return _minDepth; }
+
+	public final int maxDepth() { return _maxDepth; }
+
+	/** Makes the summary describe no terms at all. */
+	public final void clearSummary() {
+	    _minSymbols = Integer.MAX_VALUE;
+	    _maxSymbols = -1;
+	    _minDepth = Integer.MAX_VALUE;
+	    _maxDepth = -1;
+	}
+
+	/** Extends the summary to cover a term with the specified
+	 *  size and depth.
+	 */
+	public final void widenSummary(int symbols,int depth) {
+	    if (symbols < _minSymbols) _minSymbols = symbols;
+	    if (symbols > _maxSymbols) _maxSymbols = symbols;
+	    if (depth < _minDepth) _minDepth = depth;
+	    if (depth > _maxDepth) _maxDepth = depth;
+	}
+
+	/** Extends the summary to cover all terms covered 
+	 *  by the summary of <code>node</code>.
+	 */
+	public final void widenSummary(TreeNode node) {
+	    if (node._minSymbols < _minSymbols) _minSymbols = node._minSymbols;
+	    if (node._maxSymbols > _maxSymbols) _maxSymbols = node._maxSymbols;
+	    if (node._minDepth < _minDepth) _minDepth = node._minDepth;
+	    if (node._maxDepth > _maxDepth) _maxDepth = node._maxDepth;
+	}
+
+	/** Extends the summary to cover all terms reachable
+	 *  via the alternative chain.
+	 */
+	public final void widenSummaryWithChain(TreeNode chain) {
+
+	    while (chain != null)
+		{
+		    if (chain.isClusterTest())
+			{
+			    chain = ((ClusterTestNode)chain).treeBelow();
+			}
+		    else
+			{
+			    widenSummary(chain);
+			    if (!(chain instanceof SymbolNode)) return;
+			    chain = ((SymbolNode)chain).alternative();
+			};
+		};
+
+	} // widenSummaryWithChain(TreeNode chain)
+
+	/** Makes the summary a copy of the summary of <code>node</code>. */
+	public final void copySummary(TreeNode node) {
+	    _minSymbols = node._minSymbols;
+	    _maxSymbols = node._maxSymbols;
+	    _minDepth = node._minDepth;
+	    _maxDepth = node._maxDepth;
+	}
+
+
 	private int _kind;
 
+	private final int _epoch;
+
+	// Summary of the indexed terms reachable via the node:
+
+	private int _minSymbols;
+
+	private int _maxSymbols;
+
+	private int _minDepth;
+
+	private int _maxDepth;
+
     } // class TreeNode 
 
 
@@ -589,6 +1416,13 @@ public class ClusteredUnificationIndex<IndexedObject> {
 	} // String toString()
 	    
 
+	public final SymbolNode copy() {
+	    SymbolNode result = newSymbolNode(_symbol,treeBelow());
+	    result.setAlternative(alternative());
+	    result.copySummary(this);
+	    return result;
+	}
+
 	public final Symbol symbol() { return _symbol; }
 	
 	protected Symbol _symbol;
@@ -671,18 +1505,80 @@ public class ClusteredUnificationIndex<IndexedObject> {
 	    assert kind == TreeNode.Kind.ClusterSetBitTest ||
 		kind == TreeNode.Kind.ClusterClearBitTest;
 	    assert !mask.isEmpty();
-	    _mask = (BitSet)mask.clone();
+	    resetMask(ClusterId.valueOf(mask));
+	}
+
+	/** The returned object belongs to the mask identifier of the
+	 *  node, which is also referenced by the copies of the node made
+	 *  by {@link ClusteredUnificationIndex#mutable(TreeNode)} while a version of the index is
+	 *  published; it <b>must not be modified</b>.
+	 *  Use {@link #setMask(BitSet)}, {@link #andMask(BitSet)}, 
+	 *  {@link #andNotMask(BitSet)} or {@link #orMask(BitSet)} instead:
+	 *  they give the node a new identifier and leave the copies intact.
+	 */
+	public final BitSet mask() { return _mask.bits(); }
+
+	public final void setMask(BitSet newMask) {
+	    resetMask(ClusterId.valueOf(newMask));
+	}
+
+	/** Keeps only the checks also specified in <code>bits</code>. */
+	public final void andMask(BitSet bits) {
+	    BitSet newMask = _mask.toBitSet();
+	    newMask.and(bits);
+	    resetMask(ClusterId.valueOf(newMask));
+	}
+
+	/** Removes the checks specified in <code>bits</code>. */
+	public final void andNotMask(BitSet bits) {
+	    BitSet newMask = _mask.toBitSet();
+	    newMask.andNot(bits);
+	    resetMask(ClusterId.valueOf(newMask));
 	}
-	
-	public final BitSet mask() { return _mask; }
 
-	public final void setMask(BitSet newMask) { _mask = newMask; }
+	/** Adds the checks specified in <code>bits</code>. */
+	public final void orMask(BitSet bits) {
+	    BitSet newMask = _mask.toBitSet();
+	    newMask.or(bits);
+	    resetMask(ClusterId.valueOf(newMask));
+	}
 
-	public abstract boolean test(BitSet cluster);
+	public abstract boolean test(ClusterId cluster);
 
 	public abstract String toString();
 
-	private BitSet _mask;
+
+	/** Shares the mask with <code>original</code>. */
+	protected ClusterTestNode(ClusterTestNode original) {
+	    super(original.kind(),original.treeBelow());
+	    resetMask(original._mask);
+	}
+
+	private void resetMask(ClusterId newMask) {
+	    _mask = newMask;
+	    _maskWords = newMask.words();
+	    _firstMaskWord = newMask.firstNonzeroWord();
+	    _lastMaskWord = newMask.lastNonzeroWord();
+	}
+
+
+	/** Created by the node with <code>ClusterId.valueOf(..)</code>,
+	 *  not taken from the cluster pool of the index; copies of the
+	 *  node share it, so it is replaced rather than modified.
+	 */
+	private ClusterId _mask;
+
+	// The following are copied from _mask to avoid indirection
+	// in test(ClusterId):
+
+	/** Same as <code>_mask.words()</code>. */
+	protected long[] _maskWords;
+
+	/** Same as <code>_mask.firstNonzeroWord()</code>. */
+	protected int _firstMaskWord;
+
+	/** Same as <code>_mask.lastNonzeroWord()</code>. */
+	protected int _lastMaskWord;
 
     } // class ClusterTestNode
 
@@ -693,14 +1589,40 @@ public class ClusteredUnificationIndex<IndexedObject> {
 	public ClusterSetBitTestNode(BitSet mask,TreeNode treeBelow) {	    
 	    super(Kind.ClusterSetBitTest,mask,treeBelow);
 	}
+
+	private ClusterSetBitTestNode(ClusterSetBitTestNode original) {
+	    super(original);
+	}
+
+	public final ClusterSetBitTestNode copy() {
+	    return new ClusterSetBitTestNode(this);
+	}
 	
-	/** Checks that all the bits specified in this node 
-	 *  are set in <code>cluster</code>.
+	/** Checks that all the bits specified in this node
+	 *  are set in <code>cluster</code>; compares whole words
+	 *  and does not allocate anything.
+	 */
+	public final boolean test(ClusterId cluster) {
+	    return test(_maskWords,_firstMaskWord,_lastMaskWord,cluster);
+	}
+
+	/** Checks that all the bits of the mask with the specified
+	 *  words are set in <code>cluster</code>. 
 	 */
-	public final boolean test(BitSet cluster) {
-	    BitSet invertedCluster = (BitSet)cluster.clone();
-	    invertedCluster.flip(0,invertedCluster.size());
-	    return !mask().intersects(invertedCluster);
+	public static boolean test(long[] maskWords,
+				   int firstMaskWord,
+				   int lastMaskWord,
+				   ClusterId cluster) {
+
+	    long[] clusterWords = cluster.words();
+
+	    if (lastMaskWord >= clusterWords.length) return false;
+
+	    for (int n = firstMaskWord; n <= lastMaskWord; ++n)
+		if ((maskWords[n] & ~clusterWords[n]) != 0L)
+		    return false;
+
+	    return true;
 	}
 
 	public String toString() { return "SET_BITS " + mask(); }
@@ -716,1201 +1638,5554 @@ public class ClusteredUnificationIndex<IndexedObject> {
 	    super(Kind.ClusterClearBitTest,mask,treeBelow);
 	}
 
-	/** Checks that all the bits specified in this node 
-	 *  are clear in <code>cluster</code>.
+	private ClusterClearBitTestNode(ClusterClearBitTestNode original) {
+	    super(original);
+	}
+
+	public final ClusterClearBitTestNode copy() {
+	    return new ClusterClearBitTestNode(this);
+	}
+
+	/** Checks that all the bits specified in this node
+	 *  are clear in <code>cluster</code>; compares whole words
+	 *  and does not allocate anything.
 	 */
-	public final boolean test(BitSet cluster) {
-	    return !mask().intersects(cluster);
+	public final boolean test(ClusterId cluster) {
+	    return test(_maskWords,_firstMaskWord,_lastMaskWord,cluster);
 	}
 
-	public String toString() { return "CLEAR_BITS " + mask(); }
+	/** Checks that all the bits of the mask with the specified
+	 *  words are clear in <code>cluster</code>. 
+	 */
+	public static boolean test(long[] maskWords,
+				   int firstMaskWord,
+				   int lastMaskWord,
+				   ClusterId cluster) {
 
-    } // class ClusterClearBitTestNode
-    
+	    long[] clusterWords = cluster.words();
 
+	    int lastWord =
+		(lastMaskWord < clusterWords.length)?
+		lastMaskWord
+		:
+		clusterWords.length - 1;
 
+	    for (int n = firstMaskWord; n <= lastWord; ++n)
+		if ((maskWords[n] & clusterWords[n]) != 0L)
+		    return false;
 
-    private static class LeafNode<IndexedObject> extends TreeNode {
-	
-	public LeafNode(IndexedObject obj,
-			BitSet cluster,
-			LeafNode otherLeaves) {
-	    super(Kind.Leaf);
-	    _indexedObject = obj;
-	    _cluster = cluster;
-	    _otherLeaves = otherLeaves;
+	    return true;
 	}
-	
-	public final IndexedObject indexedObject() { return _indexedObject; }
-	
-	public final BitSet cluster() { return _cluster; }
 
-	public final LeafNode otherLeaves() { return _otherLeaves; }
-	
-	public final void setCluster(BitSet cluster) { _cluster = cluster; }
+	public String toString() { return "CLEAR_BITS " + mask(); }
+
+    } // class ClusterClearBitTestNode
+
 
-	public final void setOtherLeaves(LeafNode otherLeaves) {
-	    _otherLeaves = otherLeaves;
+    /** Replaces the nonvariable part of an alternative chain at
+     *  a symbol node level when the number of nonvariable symbol
+     *  nodes at the level exceeds {@link #SymbolHashThreshold}.
+     *  The symbol nodes are kept in an open-addressed hash table
+     *  (linear probing) keyed by
+     *  {@link logic.is.power.logic_warehouse.Symbol#numericId()}.
+     *  The entries are also linked via their
+     *  <code>alternative()</code> pointers in an arbitrary order,
+     *  so that they can still be enumerated as a normal chain of
+     *  alternatives, eg, by tree-path terms. There are never any
+     *  cluster test nodes between the entries in this chain: all
+     *  checks relevant to an entry are kept in the tree below the entry.
+     *  Variable nodes are never kept in a hash node; they always
+     *  preceed it in the alternative chain, so that a hash node
+     *  is always the last element of its chain.
+     *  The method <code>treeBelow()</code> is not used in hash nodes.
+     */
+    private static class SymbolHashNode extends NonleafTreeNode {
+
+	public SymbolHashNode() {
+	    super(Kind.SymbolHash,null);
+	    _keys = new int[InitialSymbolHashCapacity];
+	    _slots = new int[InitialSymbolHashCapacity];
+	    _entries = new SymbolNode[InitialSymbolHashCapacity];
+	    _size = 0;
 	}
 
-	public String toString() { 
-	    return 
-		"LEAF CLUSTER=" + cluster() + " " +
-		"OBJ= " + indexedObject(); 
+	/** The entries are copied too, because they are linked
+	 *  into a chain and are modified together with the hash.
+	 */
+	public final SymbolHashNode copy() {
+	    SymbolHashNode result = new SymbolHashNode();
+	    result._keys = _keys.clone();
+	    result._slots = _slots.clone();
+	    result._entries = new SymbolNode[_entries.length];
+	    result._size = _size;
+	    for (int n = 0; n < _size; ++n)
+		result._entries[n] = _entries[n].copy();
+	    for (int n = 0; n < _size; ++n)
+		result.relink(n);
+	    result.copySummary(this);
+	    return result;
 	}
 
-	private IndexedObject _indexedObject;
+	/** Number of symbol nodes in the hash. */
+	public final int size() { return _size; }
 
-	private BitSet _cluster;
+	/** <b>pre:</b> <code>0 <= n < size()</code>. */
+	public final SymbolNode entry(int n) { return _entries[n]; }
 
-	private LeafNode _otherLeaves;
+	/** Beginning of the chain linking all the entries;
+	 *  null if the hash is empty.
+	 */
+	public final SymbolNode firstEntry() {
+	    if (_size == 0) return null;
+	    return _entries[0];
+	}
 
-    } // class LeafNode
-    
+	/** @return null if there is no node with the symbol */
+	public final SymbolNode find(Symbol sym) {
 
+	    int slot = findSlot(sym.numericId());
+	    if (slot < 0) return null;
+	    return _entries[_slots[slot] - 1];
 
+	} // find(Symbol sym)
 
-    /** Implementation of {@link logic.is.power.logic_warehouse#ClusteredUnificationIndex#Retrieval}, just to separate 
-     *  the implementation from the interface.
-     */
-    private /* inner */ class RetrievalImpl {
 
-	/** @param unifier can be null, in which case a 
-	 *  <code>Substitution1</code> object will be created
-	 *  internally.
+	/** <b>pre:</b> <code>node.isNonvariableSymbolNode()</code>
+	 *  and there is no other node with the same symbol in the hash.
 	 */
-	public RetrievalImpl(Substitution1 unifier) {
-	    if (unifier == null)
-		{
-		    _unifier = new Substitution1();
-		}
-	    else
-		_unifier = unifier;
-		
-	    _currentQuery = null;
-	    _queryCursor = 
-		new FlattermInstance.BacktrackableIterator();
-	    _stackSize = 0;
-	    _backtrackPointStack = new Vector<BacktrackPoint>(128,64);
-	    // 128=initial capacity
-	    // 64=capacity increment
-	    _backtrackPointStack.setSize(128);
-	}
+	public final void add(SymbolNode node) {
 
+	    assert node.isNonvariableSymbolNode();
+	    assert find(node.symbol()) == null;
 
-	public final Flatterm currentQuery() { return _currentQuery; }
+	    if ((_size + 1) * 2 > _slots.length)
+		resize(_slots.length * 2);
 
-	public final Substitution1 unifier() { return _unifier; }
+	    node.setAlternative(null);
+	    _entries[_size] = node;
+	    ++_size;
+	    if (_size > 1) _entries[_size - 2].setAlternative(node);
 
-	/** Initiates a new cycle of retrieval with the specified query term
-	 *  and the cluster from which indexed objects must be taken.
-	 *  <b>IMPORTANT:</b> Must be always matched by a later call to {@link #finish()}.
-	 */
-	public final void resetQuery(Flatterm queryTerm,BitSet cluster) {
-	    
+	    insertSlot(node.symbol().numericId(),_size);
 
-	    //System.out.println("QUERY " + queryTerm + " : " + cluster);
-	    //System.out.println(ClusteredUnificationIndex.this.toString());
+	} // add(SymbolNode node)
 
-	    ++_retrievalLocks;
 
+	/** <b>pre:</b> there is a node with the symbol in the hash. */
+	public final void remove(Symbol sym) {
 
-	    assert _currentQuery == null;
-	    assert _unifier.empty();
+	    int slot = findSlot(sym.numericId());
+	    assert slot >= 0;
 
-      
+	    int index = _slots[slot] - 1;
 
-	    _currentQuery = queryTerm;
-	    _currentCluster = cluster;
-	    
-	    _queryIsVariable = _currentQuery.isVariable();
-	    if (_queryIsVariable &&_currentQuery.variable().isInstantiated1()) 
-		_currentQuery = _currentQuery.variable().ultimateInstance1();
-		
-	    _queryIsVariable = _currentQuery.isVariable();
+	    deleteSlot(slot);
 
-	    _queryCursor.reset(_currentQuery);
+	    --_size;
 
+	    if (index != _size)
+		{
+		    // Move the last entry into the vacated place:
+		    SymbolNode moved = _entries[_size];
+		    _entries[index] = moved;
+		    _slots[findSlot(moved.symbol().numericId())] = index + 1;
+		};
 
-	    if (_queryIsVariable)
+	    _entries[_size] = null;
+
+	    // Restore the chain:
+	    relink(index - 1);
+	    relink(index);
+	    relink(_size - 1);
+
+	} // remove(Symbol sym)
+
+
+	public String toString() { return "SYMBOL_HASH " + _size; }
+
+
+	//           Private methods:
+
+	private static int spread(int key) {
+	    int h = key * 0x9E3779B9;
+	    return h ^ (h >>> 16);
+	}
+
+	/** @return -1 if the key is not found */
+	private int findSlot(int key) {
+	    int mask = _slots.length - 1;
+	    for (int slot = spread(key) & mask;
+		 _slots[slot] != 0;
+		 slot = (slot + 1) & mask)
+		if (_keys[slot] == key) return slot;
+	    return -1;
+	}
+
+	private void insertSlot(int key,int indexPlusOne) {
+	    int mask = _slots.length - 1;
+	    int slot = spread(key) & mask;
+	    while (_slots[slot] != 0) slot = (slot + 1) & mask;
+	    _keys[slot] = key;
+	    _slots[slot] = indexPlusOne;
+	}
+
+	/** Backward-shift deletion, so that no tombstones are needed. */
+	private void deleteSlot(int slot) {
+	    int mask = _slots.length - 1;
+	    int hole = slot;
+	    int next = (hole + 1) & mask;
+	    while (_slots[next] != 0)
 		{
-		    _currentHashCode = 0;
-		    _indexCursor = _nonvariableHash[_currentHashCode];
-		    while (_indexCursor == null && _currentHashCode + 1 < NonvariableHashSize)
+		    int home = spread(_keys[next]) & mask;
+		    if (((next - home) & mask) >= ((next - hole) & mask))
 			{
-			    ++_currentHashCode;
-			    _indexCursor = _nonvariableHash[_currentHashCode];
+			    _keys[hole] = _keys[next];
+			    _slots[hole] = _slots[next];
+			    hole = next;
 			};
+		    next = (next + 1) & mask;
+		};
+	    _slots[hole] = 0;
+	}
 
+	private void resize(int newCapacity) {
+	    int[] oldKeys = _keys;
+	    int[] oldSlots = _slots;
+	    _keys = new int[newCapacity];
+	    _slots = new int[newCapacity];
+	    for (int n = 0; n < oldSlots.length; ++n)
+		if (oldSlots[n] != 0) insertSlot(oldKeys[n],oldSlots[n]);
+	    SymbolNode[] oldEntries = _entries;
+	    _entries = new SymbolNode[newCapacity];
+	    System.arraycopy(oldEntries,0,_entries,0,_size);
+	}
+
+	/** Makes the entry in position <code>n</code>, if there is
+	 *  such an entry, point to the entry in position <code>n + 1</code>.
+	 */
+	private void relink(int n) {
+	    if (n < 0 || n >= _size) return;
+	    if (n + 1 < _size)
+		{
+		    _entries[n].setAlternative(_entries[n + 1]);
 		}
 	    else
-		{
-		    int hashCode = 
-			_currentQuery.symbol().hashCode() %
-			NonvariableHashSize;
+		_entries[n].setAlternative(null);
+	}
 
-                                       assert hashCode >= 0; // because Symbol.hashCode() >= 0
-                    
-		    _indexCursor = _nonvariableHash[hashCode];
-		};
-	    
-	    _freshQuery = true;
-		    
-	    _stackSize = 0; 
 
-	    _retrievingFromVarIndex = false;
+	//           Data:
 
-	} // resetQuery(Flatterm queryTerm,BitSet cluster)
-		      
-      
-	/** Tries to retrieve another indexed object from the current 
-	 *  query cluster, that is associated with a term unifiable with
-	 *  the current query term; adjusts the global substitution
-	 *  accordingly.
-	 *  @param retrievedIndexedObject where the retrieved indexed
-	 *         object is assigned if the retrieval is successfull
-	 *  @return false if no more objects can be retrieved for 
-	 *          this query
+	private int[] _keys;
+
+	/** Positions of the entries in <code>_entries</code> plus 1;
+	 *  0 indicates a free slot.
 	 */
-	public final boolean retrieveNext(Ref<IndexedObject> retrievedIndexedObject) 
-	{
-	    assert _currentQuery != null;
-	    assert retrievedIndexedObject != null;
+	private int[] _slots;
 
-	    //System.out.println(" retrieve next?");
+	/** Dense array of the entries, in the order of the chain. */
+	private SymbolNode[] _entries;
 
-	    if (_retrievingFromVarIndex)
-		return retrieveNextFromVarIndex(retrievedIndexedObject);
+	private int _size;
 
-	    if (_freshQuery)
-		{
-		    _freshQuery = false;
+    } // class SymbolHashNode
 
-		    if (!completeSearch()) 
+
+
+
+    /** Stores all indexed objects associated with the same term,
+     *  partitioned by their clusters, so that the objects for
+     *  a given cluster can be accessed in constant time.
+     *  Most leaves contain objects for one cluster only,
+     *  so a single bucket is kept without any hash map
+     *  until a second cluster appears.
+     */
+    private static class LeafNode extends TreeNode {
+
+	public LeafNode() {
+	    super(Kind.Leaf);
+	    _onlyBucket = null;
+	    _buckets = null;
+	}
+
+	/** The buckets are copied too. */
+	public final LeafNode copy() {
+	    LeafNode result = new LeafNode();
+	    for (LeafBucket bucket : buckets())
+		result.addBucket(bucket.copy());
+	    result.copySummary(this);
+	    return result;
+	}
+
+	/** @return the bucket for the specified cluster, or null
+	 *          if there are no objects for this cluster here
+	 */
+	public final LeafBucket bucket(ClusterId cluster) {
+
+	    if (_buckets != null) return _buckets.get(cluster);
+
+	    if (_onlyBucket != null &&
+		_onlyBucket.cluster().equals(cluster))
+		return _onlyBucket;
+
+	    return null;
+
+	} // bucket(ClusterId cluster)
+
+
+	/** Finds or creates the bucket for the specified cluster. */
+	public final LeafBucket bucketForInsertion(ClusterId cluster) {
+
+	    LeafBucket result = bucket(cluster);
+
+	    if (result != null) return result;
+
+	    result = new LeafBucket(cluster);
+
+	    addBucket(result);
+
+	    return result;
+
+	} // bucketForInsertion(ClusterId cluster)
+
+
+	/** @param originalVariables can be null */
+	public final void add(ClusterId cluster,
+			      Object obj,
+			      Variable[] originalVariables) {
+	    bucketForInsertion(cluster).add(obj,originalVariables);
+	}
+
+
+	/** <b>pre:</b> <code>bucket</code> belongs to this leaf. */
+	public final void removeBucket(LeafBucket bucket) {
+
+	    if (_buckets == null)
+		{
+		    assert _onlyBucket == bucket;
+		    _onlyBucket = null;
+		    return;
+		};
+
+	    _buckets.remove(bucket.cluster());
+
+	    if (_buckets.size() == 1)
+		{
+		    _onlyBucket = _buckets.values().iterator().next();
+		    _buckets = null;
+		};
+
+	} // removeBucket(LeafBucket bucket)
+
+
+	public final boolean isEmpty() {
+	    return _buckets == null && _onlyBucket == null;
+	}
+
+	/** <b>pre:</b> there is no bucket for the same cluster here. */
+	private void addBucket(LeafBucket bucket) {
+
+	    assert bucket(bucket.cluster()) == null;
+
+	    if (_buckets != null)
+		{
+		    _buckets.put(bucket.cluster(),bucket);
+		}
+	    else if (_onlyBucket == null)
+		{
+		    _onlyBucket = bucket;
+		}
+	    else
+		{
+		    _buckets = new HashMap<ClusterId,LeafBucket>();
+		    _buckets.put(_onlyBucket.cluster(),_onlyBucket);
+		    _buckets.put(bucket.cluster(),bucket);
+		    _onlyBucket = null;
+		};
+
+	} // addBucket(LeafBucket bucket)
+
+	public final Collection<LeafBucket> buckets() {
+
+	    if (_buckets != null) return _buckets.values();
+
+	    if (_onlyBucket != null)
+		return Collections.singletonList(_onlyBucket);
+
+	    return Collections.<LeafBucket>emptyList();
+	}
+
+	public String toString() {
+	    String result = "LEAF";
+	    for (LeafBucket bucket : buckets())
+		result += " " + bucket;
+	    return result;
+	}
+
+
+	/** The only bucket if there are no objects with
+	 *  other clusters, null otherwise.
+	 */
+	private LeafBucket _onlyBucket;
+
+	/** Maps clusters to the corresponding buckets if there are
+	 *  at least two of them, null otherwise.
+	 */
+	private HashMap<ClusterId,LeafBucket> _buckets;
+
+    } // class LeafNode
+
+
+
+
+    /** Indexed objects associated with the same term and
+     *  the same cluster.
+     */
+    private static class LeafBucket {
+
+	public LeafBucket(ClusterId cluster) {
+	    _cluster = cluster;
+	    _objects = new Object[InitialLeafBucketCapacity];
+	    _size = 0;
+	    _epoch = _epochClock.get();
+	}
+
+	/** Copy belonging to the current epoch. */
+	public final LeafBucket copy() {
+	    LeafBucket result = new LeafBucket(_cluster);
+	    result._objects = Arrays.copyOf(_objects,_objects.length);
+	    if (_originalVariables != null)
+		result._originalVariables = 
+		    Arrays.copyOf(_originalVariables,_originalVariables.length);
+	    result._size = _size;
+	    return result;
+	}
+
+	/** Same as {@link TreeNode#epoch()}. */
+	public final int epoch() { return _epoch; }
+
+	public final ClusterId cluster() { return _cluster; }
+
+	public final int size() { return _size; }
+
+	public final boolean isEmpty() { return _size == 0; }
+
+	/** <b>pre:</b> <code>0 <= n < size()</code>. */
+	public final Object object(int n) {
+	    assert 0 <= n && n < _size;
+	    return _objects[n];
+	}
+
+	/** Same as {@link #object(int)}, but converted to the type 
+	 *  of indexed objects; the buckets are used by static classes,
+	 *  so they keep the objects as <code>Object</code>, but an index
+	 *  only adds objects of its <code>IndexedObject</code> type,
+	 *  which must be <code>T</code>.
+	 */
+	@SuppressWarnings("unchecked")
+	public final <T> T typedObject(int n) {
+	    return (T)object(n);
+	}
+
+	/** Original variables of the term indexed with the object 
+	 *  number <code>n</code>, if the index normalises variables, 
+	 *  or null; see {@link #ClusteredUnificationIndex(boolean)}.
+	 *  <b>pre:</b> <code>0 <= n < size()</code>.
+	 */
+	public final Variable[] originalVariables(int n) {
+	    assert 0 <= n && n < _size;
+	    if (_originalVariables == null) return null;
+	    return _originalVariables[n];
+	}
+
+	public final void add(Object obj) {
+	    add(obj,null);
+	}
+
+	/** @param originalVariables can be null */
+	public final void add(Object obj,Variable[] originalVariables) {
+
+	    if (_size == _objects.length)
+		{
+		    _objects = Arrays.copyOf(_objects,2 * _objects.length);
+		    if (_originalVariables != null)
+			_originalVariables = 
+			    Arrays.copyOf(_originalVariables,_objects.length);
+		};
+
+	    if (originalVariables != null && _originalVariables == null)
+		_originalVariables = new Variable[_objects.length][];
+
+	    _objects[_size] = obj;
+	    if (_originalVariables != null)
+		_originalVariables[_size] = originalVariables;
+	    ++_size;
+	}
+
+	/** Removes all objects satisfying <code>hasToBeRemoved</code>;
+	 *  the order of the remaining objects is preserved.
+	 *  @return the number of removed objects
+	 */
+	public final <T> int removeAll(UnaryPredicateObject<T> hasToBeRemoved) {
+
+	    int newSize = 0;
+
+	    for (int n = 0; n < _size; ++n)
+		if (!hasToBeRemoved.evaluate(this.<T>typedObject(n)))
+		    {
+			_objects[newSize] = _objects[n];
+			if (_originalVariables != null)
+			    _originalVariables[newSize] = _originalVariables[n];
+			++newSize;
+		    };
+
+	    int result = _size - newSize;
+
+	    Arrays.fill(_objects,newSize,_size,null);
+	    if (_originalVariables != null)
+		Arrays.fill(_originalVariables,newSize,_size,null);
+	    _size = newSize;
+
+	    return result;
+
+	} // removeAll(UnaryPredicateObject<T> hasToBeRemoved)
+
+
+	/** Moves all objects satisfying <code>hasToBeRelocated</code>
+	 *  to <code>destination</code>.
+	 *  @return the number of moved objects
+	 */
+	public final <T> int moveAll(UnaryPredicateObject<T> hasToBeRelocated,
+				     LeafBucket destination) {
+
+	    assert destination != this;
+
+	    int newSize = 0;
+
+	    for (int n = 0; n < _size; ++n)
+		if (hasToBeRelocated.evaluate(this.<T>typedObject(n)))
+		    {
+			destination.add(_objects[n],originalVariables(n));
+		    }
+		else
+		    {
+			_objects[newSize] = _objects[n];
+			if (_originalVariables != null)
+			    _originalVariables[newSize] = _originalVariables[n];
+			++newSize;
+		    };
+
+	    int result = _size - newSize;
+
+	    Arrays.fill(_objects,newSize,_size,null);
+	    if (_originalVariables != null)
+		Arrays.fill(_originalVariables,newSize,_size,null);
+	    _size = newSize;
+
+	    return result;
+
+	} // moveAll(UnaryPredicateObject<T> hasToBeRelocated,..)
+
+
+	public String toString() {
+	    String result = "CLUSTER=" + _cluster + " OBJS=";
+	    for (int n = 0; n < _size; ++n)
+		result += " " + _objects[n];
+	    return result;
+	}
+
+
+	private ClusterId _cluster;
+
+	private Object[] _objects;
+
+	/** Parallel to <code>_objects</code>; null if no object 
+	 *  has original variables.
+	 */
+	private Variable[][] _originalVariables;
+
+	private int _size;
+
+	private final int _epoch;
+
+    } // class LeafBucket
+
+
+    /** Term-cluster-object triple accumulated by a {@link BulkLoader};
+     *  entries are ordered by their tree numbers and then
+     *  lexicographically by their flattened terms, with the symbols
+     *  compared as in {@link #greater(Symbol,Symbol)}.
+     */
+    private class BulkEntry implements Comparable<BulkEntry> {
+
+	public BulkEntry(Term term,ClusterId cluster,IndexedObject obj) {
+	    this.term = term;
+	    this.cluster = cluster;
+	    this.obj = obj;
+	}
+
+	/** Normalises the term, if needed, and flattens it. */
+	public final void prepare() {
+
+	    if (_normaliseVariables)
+		originalVariables = 
+		    ClusteredUnificationIndex.originalVariables(term);
+
+	    Term indexed = normalise(term);
+
+	    tree = treeNumber(indexed);
+	    numberOfSymbols = indexed.numberOfSymbols();
+	    depth = indexed.depth();
+	    symbols = new Symbol[numberOfSymbols];
+
+	    int n = 0;
+	    Term.LeanIterator iter = new Term.LeanIterator(indexed);
+	    while (iter.hasNext())
+		{
+		    symbols[n] = iter.next().topSymbol();
+		    ++n;
+		};
+
+	    assert n == numberOfSymbols;
+
+	} // prepare()
+
+	public final int compareTo(BulkEntry other) {
+
+	    if (tree != other.tree) return (tree < other.tree)? -1 : 1;
+
+	    for (int n = 0; 
+		 n < symbols.length && n < other.symbols.length; 
+		 ++n)
+		if (symbols[n] != other.symbols[n])
+		    {
+			if (greater(symbols[n],other.symbols[n])) return 1;
+			if (greater(other.symbols[n],symbols[n])) return -1;
+		    };
+
+	    // Flattened terms cannot be proper prefixes of each other:
+	    assert symbols.length == other.symbols.length;
+
+	    return 0;
+
+	} // compareTo(BulkEntry other)
+
+
+	/** Original, not normalised term. */
+	public final Term term;
+
+	public final ClusterId cluster;
+
+	public final IndexedObject obj;
+
+	// Set by prepare():
+
+	public Variable[] originalVariables;
+
+	public int tree;
+
+	public Symbol[] symbols;
+
+	public int numberOfSymbols;
+
+	public int depth;
+
+    } // class BulkEntry
+    
+
+
+
+    /** Implementation of {@link logic.is.power.logic_warehouse#ClusteredUnificationIndex#Retrieval}, just to separate 
+     *  the implementation from the interface.
+     */
+    private /* inner */ class RetrievalImpl {
+
+	/** @param unifier can be null, in which case a 
+	 *  <code>Substitution1</code> object will be created
+	 *  internally.
+	 */
+	public RetrievalImpl(Substitution1 unifier) {
+	    if (unifier == null)
+		{
+		    _unifier = new Substitution1();
+		}
+	    else
+		_unifier = unifier;
+		
+	    _currentQuery = null;
+	    _queryCursor = 
+		new FlattermInstance.BacktrackableIterator();
+	    _stackSize = 0;
+	    _stackHighWater = 0;
+	    _isTreePathTermPoint = new boolean[InitialRetrievalStackCapacity];
+	    _queryCursorSavepoints = new int[InitialRetrievalStackCapacity];
+	    _unifierSavepoints = new int[InitialRetrievalStackCapacity];
+	    _indexCursors = new TreeNode[InitialRetrievalStackCapacity];
+	    _treePathTerms = 
+		new ArrayList<TreePathTerm>(InitialRetrievalStackCapacity);
+	    _termBounds = null;
+	}
+
+
+	public final Flatterm currentQuery() { return _currentQuery; }
+
+	public final Substitution1 unifier() { return _unifier; }
+
+	/** Restricts the following retrievals to the indexed terms
+	 *  satisfying the bounds; subtrees containing only unsuitable
+	 *  terms are skipped.
+	 *  @param bounds null if the terms need not be restricted
+	 */
+	public final void setTermBounds(TermBounds bounds) {
+	    assert _currentQuery == null;
+	    _termBounds = bounds;
+	}
+
+	public final TermBounds termBounds() { return _termBounds; }
+
+	/** Original variables of the term indexed with the object 
+	 *  retrieved by the last successful call to 
+	 *  {@link #retrieveNext(Ref)}: element <code>n</code> is the
+	 *  variable replaced by {@link ClusteredUnificationIndex#canonicalVariable(int)}
+	 *  with the same number; null if the index does not normalise 
+	 *  variables or the term has no variables.
+	 */
+	public final Variable[] originalVariables() {
+	    if (_retrievingFromVarIndex)
+		return _currentVarBucket.originalVariables(_currentVarObjectNumber - 1);
+	    return _currentBucket.originalVariables(_currentObjectNumber);
+	}
+
+	/** Number of index nodes the search has stopped at since 
+	 *  the creation of this object or the last call to 
+	 *  {@link #resetCounters()}; the counters are never reset 
+	 *  automatically, so they can accumulate over many queries.
+	 */
+	public final long numberOfVisitedNodes() { return _visitedNodes; }
+
+	/** Number of backtrack points popped by the search. */
+	public final long numberOfBacktracks() { return _backtracks; }
+
+	/** Number of failed unifications of query subterms with 
+	 *  index variables or tree path terms, and of symbol clashes.
+	 */
+	public final long numberOfUnificationFailures() { 
+	    return _unificationFailures; 
+	}
+
+	public final void resetCounters() {
+	    _visitedNodes = 0;
+	    _backtracks = 0;
+	    _unificationFailures = 0;
+	}
+
+	/** Initiates a new cycle of retrieval with the specified query term
+	 *  and the cluster from which indexed objects must be taken.
+	 *  <b>IMPORTANT:</b> Must be always matched by a later call to {@link #finish()}.
+	 */
+	public final void resetQuery(Flatterm queryTerm,ClusterId cluster) {
+	    
+
+	    //System.out.println("QUERY " + queryTerm + " : " + cluster);
+	    //System.out.println(ClusteredUnificationIndex.this.toString());
+
+	    ++_retrievalLocks;
+
+
+	    assert _currentQuery == null;
+	    assert _unifier.empty();
+
+      
+
+	    _currentQuery = queryTerm;
+	    _currentCluster = cluster;
+	    
+	    _queryIsVariable = _currentQuery.isVariable();
+	    if (_queryIsVariable &&_currentQuery.variable().isInstantiated1()) 
+		_currentQuery = _currentQuery.variable().ultimateInstance1();
+		
+	    _queryIsVariable = _currentQuery.isVariable();
+
+	    _queryCursor.reset(_currentQuery);
+
+
+	    if (_queryIsVariable)
+		{
+		    _currentHashCode = 0;
+		    _indexCursor = _nonvariableHash[_currentHashCode];
+		    while (_indexCursor == null && _currentHashCode + 1 < NonvariableHashSize)
+			{
+			    ++_currentHashCode;
+			    _indexCursor = _nonvariableHash[_currentHashCode];
+			};
+
+		}
+	    else
+		{
+		    int hashCode = 
+			_currentQuery.symbol().hashCode() %
+			NonvariableHashSize;
+
+                                       assert hashCode >= 0; // because Symbol.hashCode() >= 0
+                    
+		    _indexCursor = _nonvariableHash[hashCode];
+		};
+	    
+	    _freshQuery = true;
+		    
+	    _stackSize = 0; 
+
+	    _retrievingFromVarIndex = false;
+
+	} // resetQuery(Flatterm queryTerm,ClusterId cluster)
+
+
+	/** Same as <code>resetQuery(queryTerm,ClusterId.valueOf(cluster))</code>. */
+	public final void resetQuery(Flatterm queryTerm,BitSet cluster) {
+	    resetQuery(queryTerm,ClusterId.valueOf(cluster));
+	}
+		      
+      
+	/** Tries to retrieve another indexed object from the current 
+	 *  query cluster, that is associated with a term unifiable with
+	 *  the current query term; adjusts the global substitution
+	 *  accordingly.
+	 *  @param retrievedIndexedObject where the retrieved indexed
+	 *         object is assigned if the retrieval is successfull
+	 *  @return false if no more objects can be retrieved for 
+	 *          this query
+	 */
+	public final boolean retrieveNext(Ref<IndexedObject> retrievedIndexedObject) 
+	{
+	    assert _currentQuery != null;
+	    assert retrievedIndexedObject != null;
+
+	    //System.out.println(" retrieve next?");
+
+	    if (_retrievingFromVarIndex)
+		return retrieveNextFromVarIndex(retrievedIndexedObject);
+
+	    if (_freshQuery)
+		{
+		    _freshQuery = false;
+
+		    if (!completeSearch()) 
+			{
+			    if (_queryIsVariable)
+				{
+				    // Try another hash code:
+
+				    ++_currentHashCode;
+
+				    while (_currentHashCode < NonvariableHashSize)
+					{
+
+					    _indexCursor = _nonvariableHash[_currentHashCode];
+					    
+					    if (_indexCursor != null)
+						{
+						    // Try to find something in this tree:
+						    _queryCursor.reset(_currentQuery);
+						    _stackSize = 0; 
+						    if (completeSearch())
+							{
+							    retrievedIndexedObject.content =
+								indexedObject(_currentBucket,
+								              _currentObjectNumber);
+
+							    return true;
+							};
+						};
+
+					    ++_currentHashCode;
+
+					}; // while (_currentHashCode < NonvariableHashSize)
+				}; // if (_queryIsVariable)
+
+			    _retrievingFromVarIndex = true;
+			    _freshQuery = true;
+
+			    return retrieveNextFromVarIndex(retrievedIndexedObject);
+
+			}; // if (!completeSearch())
+		}
+	    else // !_freshQuery
+		{
+		    // Try another leaf:
+
+		    assert _indexCursor.isLeaf();
+
+		    ++_currentObjectNumber;
+
+		    if (_currentObjectNumber == _currentBucket.size())
+			_indexCursor = null;
+
+		    if (_indexCursor == null)
+			{
+			    // No more good leaves here, try to backtrack:
+			    if (!backtrack() || !completeSearch())
+				{
+
+				    if (_queryIsVariable)
+					{
+					    // Try another hash code:
+					    
+					    ++_currentHashCode;
+					    
+					    while (_currentHashCode < NonvariableHashSize)
+						{
+						    _indexCursor = _nonvariableHash[_currentHashCode];
+						    
+						    if (_indexCursor != null)
+							{
+							    // Try to find something in this tree:
+							    _queryCursor.reset(_currentQuery);
+							    _stackSize = 0; 
+							    if (completeSearch())
+								{
+								    retrievedIndexedObject.content =
+									indexedObject(_currentBucket,
+									              _currentObjectNumber);
+
+								    return true;
+								};
+							};
+						    
+						    ++_currentHashCode;
+
+						}; // while (_currentHashCode < NonvariableHashSize)
+					}; // if (_queryIsVariable)
+
+				    _retrievingFromVarIndex = true;
+				    _freshQuery = true;
+				    
+				    return retrieveNextFromVarIndex(retrievedIndexedObject);
+
+				}; // if (!backtrack() || !completeSearch())
+			}; // if (_indexCursor == null)
+
+		    assert _indexCursor != null;
+
+		}; // if (_freshQuery)
+
+	    assert _indexCursor != null;
+
+	    retrievedIndexedObject.content =
+		indexedObject(_currentBucket,_currentObjectNumber);
+
+	    return true;
+
+	} // retrieveNext(Ref<IndexedObject> retrievedIndexedObject)
+
+
+
+
+
+	/** Must close every retrieval cycle regardless of whether
+	 *  the last call to {@link logic.is.power.logic_warehouse#ClusteredUnificationIndex#retrieveNext()}
+	 *  succeeded or not; after a call to this method, the global
+	 *  substitution is restored to the state it was in before 
+	 *  the corresponding call to {@link logic.is.power.logic_warehouse#ClusteredUnificationIndex#resetQuery(Flatterm,BitSet)}
+	 *  (unless, of course, something else is changing the substitution).
+	 */
+	public final void finish() { 
+
+	    assert _currentQuery != null;
+	    
+	    //System.out.println("    FINISH " + _currentQuery);
+
+	    _unifier.uninstantiateAll();
+	    _currentQuery = null;
+	    _currentCluster = null;
+	    _queryCursor.clear();
+	    _indexCursor = null;
+	    _currentBucket = null;
+	    _currentVar = null;
+	    _currentVarBucket = null;
+
+	    // Release the pointers to index nodes kept in the pooled
+	    // backtrack points:
+
+	    for (int n = 0; n < _stackHighWater; ++n)
+		_indexCursors[n] = null;
+
+	    for (int n = 0; 
+		 n < _stackHighWater && n < _treePathTerms.size(); 
+		 ++n)
+		if (_treePathTerms.get(n) != null)
+		    _treePathTerms.get(n).clear();
+
+	    _stackSize = 0;
+	    _stackHighWater = 0;
+
+	    --_retrievalLocks;
+	} // finish()
+
+
+
+	//
+	//          Private classes:
+	//
+	
+	/** Represents intervals of tree paths corresponding to well-formed
+	 *  <b>individual-valued</b> terms that can instantiate specified variables.
+	 *  The objects are pooled and reused for different variables,
+	 *  together with their stacks and flatterm cells, so that 
+	 *  the enumeration of tree path terms does not allocate memory
+	 *  in the steady state.
+	 */
+	private /* inner */ class TreePathTerm {
+
+	    public TreePathTerm() {
+		_variable = null;
+		_depth = 0;
+		_depthHighWater = 0;
+		_nodeStack = new SymbolNode[InitialRetrievalStackCapacity];
+		_holeStack = new int[InitialRetrievalStackCapacity];
+		_flatterm = new FlattermAssembler();
+	    }
+
+	    /** Prepares this object for enumerating the tree path terms
+	     *  for <code>var</code> starting from the current 
+	     *  index cursor.
+	     */
+	    public final void reset(Variable var) {
+		_variable = var;
+		_depth = 0;
+	    }
+
+	    /** Releases all pointers to index nodes and the variable. */
+	    public final void clear() {
+		for (int n = 0; n < _depthHighWater; ++n)
+		    _nodeStack[n] = null;
+		_depth = 0;
+		_depthHighWater = 0;
+		_variable = null;
+	    }
+	    	    
+	    /** The value of <code>var</code> in the last call
+	     *  to {@link #reset(Variable)}.
+	     */
+	    public final Variable variable() { return _variable; }
+
+	    /** Flatterm corresponding to the tree path interval.
+	     *  <b>pre:</b> the tree path interval represents a complete
+	     *  well-formed term.
+	     */
+	    public final Flatterm flatterm() { return _flatterm.assembledTerm(); } 
+
+	    /** Checks if the collected tree path interval represents a simple
+	     *  term syntactically identical to {@link #variable()}.
+	     */
+	    public final boolean isIdenticalToVar() {
+		return _flatterm.assembledTerm().isVariable() &&
+		    (_flatterm.assembledTerm().variable() == _variable ||
+		     (_flatterm.assembledTerm().variable().isInstantiated1() &&
+		      _flatterm.assembledTerm().variable().ultimateInstance1().isVariable() &&
+		      _flatterm.assembledTerm().variable().ultimateInstance1().variable() == _variable));
+	    }
+
+
+	    public final boolean findFirst() {
+
+		_openHoles = 1;
+
+		while (true)
+		    {
+			while (smallStepForward()) {};
+			
+			// Either all holes are filled, or a dead end
+			// is reached and a backtrack is required.
+			
+			if (_indexCursor != null &&
+			    _openHoles == 0)
+			    {
+				assembleFlatterm();
+				return true;
+			    };
+
+			if (!treePathBacktrack()) return false;
+		    }
+		
+	    } // findFirst()
+	    
+
+	    public final boolean findNext() {
+
+		if (!treePathBacktrack()) return false;
+
+		while (true)
+		    {
+			while (smallStepForward()) {};
+			
+			// Either all holes are filled, or a dead end
+			// is reached and a backtrack is required.
+			
+			if (_indexCursor != null &&
+			    _openHoles == 0)
+			    {
+				assembleFlatterm();
+				return true;
+			    };
+
+			if (!treePathBacktrack()) return false;
+		    }
+
+	    } // findNext()
+
+
+
+	    public final String toString() {
+		
+		return
+		    "Tree-path term:\n" +
+		    "  Var = " + _variable + "\n" +
+		    "  Holes = " + _openHoles + "\n" +
+		    "  Node stack = " + 
+		    Arrays.asList(_nodeStack).subList(0,_depth) + "\n" +
+		    "  Hole stack = " + 
+		    Arrays.toString(Arrays.copyOf(_holeStack,_depth));
+
+	    } // toString()
+
+
+	    private boolean atTopLevel() { return _depth == 0; }
+
+	    /** Saves <code>node</code> together with the current number
+	     *  of open holes.
+	     */
+	    private void push(SymbolNode node) {
+		if (_depth == _nodeStack.length)
+		    {
+			_nodeStack = Arrays.copyOf(_nodeStack,2 * _depth);
+			_holeStack = Arrays.copyOf(_holeStack,2 * _depth);
+		    };
+		_nodeStack[_depth] = node;
+		_holeStack[_depth] = _openHoles;
+		++_depth;
+		if (_depth > _depthHighWater)
+		    _depthHighWater = _depth;
+	    }
+
+	    
+	    private boolean smallStepForward() {
+	    
+		if (_openHoles == 0) return false;
+
+		while (_indexCursor != null)
+		    {
+			if (!passClusterTests()) return false;
+
+			switch (_indexCursor.kind())
+			    {
+			    case TreeNode.Kind.Variable:
+				{
+				    Variable nodeVar = ((VariableNode)_indexCursor).variable();
+
+				    if (nodeVar == _variable ||
+					(nodeVar.isInstantiated1() && 
+					 nodeVar.ultimateInstance1().isVariable() &&
+					 nodeVar.ultimateInstance1().variable() == _variable))
+					if (atTopLevel())
+					    {
+						// The whole tree-path term is just this variable:
+						push((VariableNode)_indexCursor);
+						--_openHoles;
+						_indexCursor = 
+						    ((VariableNode)_indexCursor).treeBelow();
+						return true;
+					    }
+					else
+					    {
+						// Look among the alternatives:
+						_indexCursor = 
+						    ((VariableNode)_indexCursor).alternative();
+						return true;
+					    };
+				    
+
+				    if (nodeVar.isInstantiated1() &&
+					FlattermInstance.contains(nodeVar.ultimateInstance1(),
+								  _variable))
+					{
+					    _indexCursor = 
+						((VariableNode)_indexCursor).alternative();
+					    return true;
+					};
+
+				    push((VariableNode)_indexCursor);
+				    --_openHoles;
+				    _indexCursor = 
+					((VariableNode)_indexCursor).treeBelow();
+				    return true;
+				}
+			
+			    case TreeNode.Kind.Function:
+				push((FunctionNode)_indexCursor);
+				_openHoles += 
+				    ((FunctionNode)_indexCursor).function().arity() - 
+				    1;
+				_indexCursor = 
+				    ((FunctionNode)_indexCursor).treeBelow();
+				return true;
+
+			    case TreeNode.Kind.Constant:
+				push((ConstantNode)_indexCursor);
+				--_openHoles;
+				_indexCursor = 
+				    ((ConstantNode)_indexCursor).treeBelow();
+				return true;
+
+			    case TreeNode.Kind.SymbolHash:
+				// Enumerate the entries as a normal chain
+				// of alternatives:
+				_indexCursor =
+				    ((SymbolHashNode)_indexCursor).firstEntry();
+				break;
+
+			    case TreeNode.Kind.Predicate: // as below
+			    case TreeNode.Kind.Connective:
+				if (atTopLevel())
+				    {
+					// Assignment of boolean-valued terms to variables
+					// is not allowed.
+					_indexCursor = 
+					    ((SymbolNode)_indexCursor).alternative();
+				    }
+				else
+				    {
+					// Nested boolean-valued terms are allowed:
+					push((SymbolNode)_indexCursor);
+					_openHoles += 
+					    ((SymbolNode)_indexCursor).symbol().arity() - 1;
+					_indexCursor = 
+					    ((SymbolNode)_indexCursor).treeBelow();
+					return true;
+				    }
+
+			    } // switch (_indexCursor.kind())
+
+		    }; // while (_indexCursor != null)
+
+		return false;
+
+	    } // smallStepForward()
+
+
+
+
+	    private boolean treePathBacktrack() {
+
+		while (_depth != 0)
+		    {
+			--_depth;
+			_openHoles = _holeStack[_depth];
+			_indexCursor = _nodeStack[_depth].alternative();
+			if (_indexCursor != null) return true;
+		    };
+
+		return false;
+
+	    } // treePathBacktrack()
+
+
+
+	    private void assembleFlatterm() {
+
+		// The previous flatterm cannot be referenced by the unifier
+		// any more, so its cells can be reused.
+		_flatterm.recycle();
+		
+		for (int n = 0; n < _depth; ++n)
+		    _flatterm.pushSymbol(_nodeStack[n].symbol());
+		
+		_flatterm.wrapUp();
+
+	    } // assembleFlatterm()
+
+
+
+
+	    //
+	    //       Private data:
+	    //  
+	    
+
+	    private Variable _variable;
+
+	    private int _openHoles;
+
+	    /** Current size of <code>_nodeStack</code> and <code>_holeStack</code>. */
+	    private int _depth;
+
+	    /** Maximal <code>_depth</code> since the last {@link #clear()}. */
+	    private int _depthHighWater;
+
+	    private SymbolNode[] _nodeStack;
+	    
+	    /** <code>_holeStack[n]</code> is the number of open holes 
+	     *  before <code>_nodeStack[n]</code> was pushed.
+	     */
+	    private int[] _holeStack;
+
+	    private FlattermAssembler _flatterm;
+
+	} // class TreePathTerm
+
+
+
+
+
+
+
+	//
+	//          Private methods:
+	//
+
+
+	/** Find the first tree path term whose corresponding flatterm
+	 *  can be assigned to <code>var</code> in the unifier.
+	 *  @return null if such tree path term cannot be found
+	 */
+	private TreePathTerm findFirstPathTerm(Variable var) {
+
+	    // The tree path term will be saved in the backtrack point 
+	    // at the top of the stack, so the pooled object 
+	    // for this position is used.
+
+	    ensureStackCapacity();
+	    
+	    while (_treePathTerms.size() <= _stackSize)
+		_treePathTerms.add(null);
+	    
+	    TreePathTerm result = _treePathTerms.get(_stackSize);
+	    if (result == null)
+		{
+		    result = new TreePathTerm();
+		    _treePathTerms.set(_stackSize,result);
+		};
+
+	    result.reset(var);
+
+	    if (result.findFirst()) return result;
+	    
+	    return null;
+
+	} // findFirstPathTerm(Variable var)
+
+
+	/** Makes sure that there is room for one more backtrack point. */
+	private void ensureStackCapacity() {
+	    
+	    if (_stackSize < _queryCursorSavepoints.length) return;
+
+	    int newCapacity = 2 * _queryCursorSavepoints.length;
+
+	    _isTreePathTermPoint = Arrays.copyOf(_isTreePathTermPoint,newCapacity);
+	    _queryCursorSavepoints = Arrays.copyOf(_queryCursorSavepoints,newCapacity);
+	    _unifierSavepoints = Arrays.copyOf(_unifierSavepoints,newCapacity);
+	    _indexCursors = Arrays.copyOf(_indexCursors,newCapacity);
+
+	} // ensureStackCapacity()
+
+
+	/** Saves a backtrack point for the tree path term 
+	 *  <code>_treePathTerms.get(_stackSize)</code>.
+	 */
+	private void pushBacktrackPoint(int queryCursorSavepoint) {
+	    ensureStackCapacity();
+	    _isTreePathTermPoint[_stackSize] = true;
+	    _queryCursorSavepoints[_stackSize] = queryCursorSavepoint;
+	    ++_stackSize;
+	    if (_stackSize > _stackHighWater)
+		_stackHighWater = _stackSize;
+	}
+
+	/** <b>pre:</b> <code>indexCursor</code> can be null. */
+	private void pushBacktrackPoint(int queryCursorSavepoint,
+					int unifierSavepoint,
+					TreeNode indexCursor) {
+	    ensureStackCapacity();
+	    _isTreePathTermPoint[_stackSize] = false;
+	    _queryCursorSavepoints[_stackSize] = queryCursorSavepoint;
+	    _unifierSavepoints[_stackSize] = unifierSavepoint;
+	    _indexCursors[_stackSize] = indexCursor;
+	    ++_stackSize;
+	    if (_stackSize > _stackHighWater)
+		_stackHighWater = _stackSize;
+	}
+	
+
+
+	
+      
+	/** Tries to retrieve another indexed object from the current 
+	 *  query cluster, that is associated with a variable unifiable with
+	 *  the current query term; adjusts the global substitution
+	 *  accordingly.
+	 *  @param retrievedIndexedObject where the retrieved indexed
+	 *         object is assigned if the retrieval is successfull
+	 *  @return false if no more objects can be retrieved for 
+	 *          this query
+	 */
+	public 
+	    final 
+	    boolean 
+	    retrieveNextFromVarIndex(Ref<IndexedObject> retrievedIndexedObject) {
+
+	    if (_freshQuery)
+		{
+		    _freshQuery = false;
+		    
+		    TreeMap<Variable,LeafBucket> varToLeavesMap =
+			_variableIndex.get(_currentCluster);
+		    
+		    if (varToLeavesMap == null) return false;
+
+		    // Indexed variables consist of one symbol and have depth 0:
+		    if (_termBounds != null && !_termBounds.admit(1,0))
+			return false;
+
+		    _currentVar = varToLeavesMap.entrySet().iterator();
+		    
+		    _unifierSavepointBeforeRetrievalFromVarIndex = 
+			_unifier.savepoint();
+
+		}
+	    else // !_freshQuery
+		{
+		    // Try another leave for the same index variable:
+		    
+		    if (_currentVarBucket != null &&
+			_currentVarObjectNumber < _currentVarBucket.size())
+			{
+			    retrievedIndexedObject.content =
+				indexedObject(_currentVarBucket,_currentVarObjectNumber);
+
+			    ++_currentVarObjectNumber;
+
+			    return true;
+			};
+
+		    _unifier.backtrackTo(_unifierSavepointBeforeRetrievalFromVarIndex);
+
+
+
+
+		}; // if (_freshQuery)
+
+
+		    
+	    while (_currentVar.hasNext())
+		{
+		    Map.Entry<Variable,LeafBucket> varAndLeaves = _currentVar.next();
+
+		    if (Unification.unify(varAndLeaves.getKey(),_currentQuery,_unifier))
+			{
+			    _currentVarBucket = varAndLeaves.getValue();
+
+			    assert !_currentVarBucket.isEmpty();
+
+			    retrievedIndexedObject.content =
+				indexedObject(_currentVarBucket,0);
+
+			    _currentVarObjectNumber = 1;
+
+			    return true;
+			};
+
+		    ++_unificationFailures;
+		    
+		};
+	    
+	    return false;
+
+	} // retrieveNextFromVarIndex(Ref<IndexedObject> retrievedIndexedObject)
+	
+
+
+
+	private boolean completeSearch() {
+	    // NOTE THAT WE CANNOT AFFORD RECURSION
+	    // ALONG BACKTRACKING HERE: THIS WOULD CAUSE
+	    // STACK OVERFLOWS.
+
+	    while (true)
+		{
+		    while (stepForward()) 
+			{
+			    // empty
+			};
+
+		    // Either found a good leaf or backtrack
+		    // is required.
+		    
+		    if (_indexCursor != null &&
+			_indexCursor.isLeaf())
+			return true;
+		    
+
+	    
+		    ///System.out.println("REACHED " + _indexCursor);
+			
+		    if (!backtrack()) return false;
+
+		}
+
+	} // completeSearch()
+
+
+
+
+	private boolean stepForward() {
+
+	    assert GlobalEventCounter.inc();
+
+	    if (_indexCursor == null) 
+		{
+		    
+	    
+		    //System.out.println("INDEX CURSOR NULL");
+		    
+		    return false;
+		};
+
+	    if (!passClusterTests())
+		{
+
+	    
+		    //System.out.println("CLUSTER TEST FAILURE");
+
+		    return false;
+		};
+
+	    if (!_queryCursor.hasNext())
+		{
+		    // end of query
+			
+	    
+		    //System.out.println("QUERY END");
+
+		    assert _indexCursor.isLeaf();
+
+	    
+		    //System.out.println("   FIRST CANDIDATE LEAF " + _indexCursor);
+		    
+
+		    // Get to the right bucket:
+
+		    _currentBucket =
+			((LeafNode)_indexCursor).bucket(_currentCluster);
+
+		    if (_currentBucket == null)
+			{
+			    _indexCursor = null;
+			}
+		    else
+			{
+			    assert !_currentBucket.isEmpty();
+			    _currentObjectNumber = 0;
+			};
+
+
+		    return false; 
+		    // indicates that this was the last step.
+		};
+
+	    
+	    int queryCursorSavepoint = _queryCursor.savepoint();
+	    
+	    Flatterm querySubterm = _queryCursor.next();
+
+
+	    
+	    //System.out.println("Q= " + querySubterm + "   I= " + _indexCursor + "   U= " + _unifier);
+
+	    switch (querySubterm.kind())
+		{
+		   
+		case Term.Kind.Variable:
+		    {
+			Variable var = querySubterm.variable();
+
+			assert !var.isInstantiated1(); 
+			// because FlattermInstance.BacktrackableIterator
+			// works in this manner.
+
+
+			// A tree path interval corresponding to a term
+			// to be assigned to the variable in the unifier.
+			TreePathTerm treePathTerm = findFirstPathTerm(var);
+			if (treePathTerm == null)
+			    {
+				_queryCursor.backtrackTo(queryCursorSavepoint);
+
+				//System.out.println("tree-path not found");
+
+				return false;
+			    };
+
+			// Instantiate the variable, if necessary:
+			
+			if (!treePathTerm.isIdenticalToVar())
+			    _unifier.instantiate(var,treePathTerm.flatterm());
+
+
+			// Save data for backtracking:
+			//    treePathTerm (it is already in _treePathTerms.get(_stackSize))
+			//    _queryCursor.savepoint() (NOT queryCursorSavepoint!)
+			
+			pushBacktrackPoint(_queryCursor.savepoint());
+
+			return true;
+		    } // case Variable:
+
+
+
+		case Term.Kind.CompoundTerm: // as below 
+		case Term.Kind.IndividualConstant: // as below (can be slightly optimised)
+		case Term.Kind.AtomicFormula: // as below
+		case Term.Kind.ConnectiveApplication:
+		    if (_indexCursor.kind() == TreeNode.Kind.Variable)
+			{
+			    int unifierSavepoint = _unifier.savepoint();
+			    
+			    do
+				{
+				    if (Unification.unify(((VariableNode)_indexCursor).
+							  variable(),
+							  querySubterm,
+							  _unifier))
+					{
+					    // Save data for backtracking:
+					    //    queryCursorSavepoint
+					    //    unifierSavepoint
+					    //    ((VariableNode)_indexCursor).alternative()
+					    
+					    pushBacktrackPoint(queryCursorSavepoint,
+							       unifierSavepoint,
+							       ((VariableNode)_indexCursor).
+							       alternative());
+
+					    _queryCursor.skipArguments();
+					    _indexCursor = 
+						((VariableNode)_indexCursor).treeBelow();
+
+
+					    //System.out.println("UNIFIABLE: " + _unifier);
+
+					    return true;
+					}; // if (Unification.unify(((VariableNode)_indexCursor).
+
+				    
+				    //System.out.println("NONUNIFIABLE: " + _unifier);
+
+				    ++_unificationFailures;
+
+				    _indexCursor = 
+					((VariableNode)_indexCursor).alternative(); 
+
+				    if (_indexCursor == null || !passClusterTests())
+					{
+					    _queryCursor.backtrackTo(queryCursorSavepoint);
+					    return false;
+					};
+				}
+			    while (_indexCursor.kind() == TreeNode.Kind.Variable);
+
+			}; // if (_indexCursor.kind() == TreeNode.Kind.Variable)
+
+		    
+
+		    assert
+			_indexCursor.kind() == TreeNode.Kind.Constant ||
+			_indexCursor.kind() == TreeNode.Kind.Function ||
+			_indexCursor.kind() == TreeNode.Kind.Predicate ||
+			_indexCursor.kind() == TreeNode.Kind.Connective ||
+			_indexCursor.kind() == TreeNode.Kind.SymbolHash;
+
+
+		    if (_indexCursor.isSymbolHash())
+			{
+			    // No need to walk the alternatives:
+			    // look the symbol up directly.
+
+			    SymbolNode entry =
+				((SymbolHashNode)_indexCursor).
+				find(querySubterm.symbol());
+
+			    if (entry == null)
+				{
+				    // Symbol clash.
+				    ++_unificationFailures;
+				    _queryCursor.backtrackTo(queryCursorSavepoint);
+				    return false;
+				};
+
+			    // This point is not backtrackable either.
+
+			    _indexCursor = entry.treeBelow();
+			    return true;
+			};
+
+
+		    // Skip alternatives with smaller symbols:
+
+
+		    while (greater(querySubterm.symbol(),
+				   ((SymbolNode)_indexCursor).symbol()))
+			{
+			    _indexCursor = 
+				((SymbolNode)_indexCursor).alternative();
+			    if (_indexCursor == null || !passClusterTests()) 
+				{
+				    _queryCursor.backtrackTo(queryCursorSavepoint);
+				    return false;
+				};
+
+
+			    assert 
+				_indexCursor.kind() == TreeNode.Kind.Constant ||
+				_indexCursor.kind() == TreeNode.Kind.Function ||
+				_indexCursor.kind() == TreeNode.Kind.Predicate ||
+				_indexCursor.kind() == TreeNode.Kind.Connective;
+
+			}; // while (greater(querySubterm.symbol(),
+
+
+
+		    if (((SymbolNode)_indexCursor).symbol().
+			equals(querySubterm.symbol()))
+			{
+
+			    // This point is not backtrackable, so
+			    // we are not saving it.
+
+			    _indexCursor = 
+				((SymbolNode)_indexCursor).treeBelow();
+			    return true;
+			};
+			    
+		    // Symbol clash: the constant was not found
+		    // among the alternatives.
+
+		    ++_unificationFailures;
+
+		    _queryCursor.backtrackTo(queryCursorSavepoint);
+		    return false;
+
+		}; // switch (querySubterm.kind())
+
+	    // Note that neither quantifiers nor abstractions
+	    // are allowed in queries or indexed terms.
+
+	    assert false;
+	    return false;
+
+	} // stepForward()
+
+
+
+
+	private boolean backtrack() {
+
+	    assert GlobalEventCounter.inc();
+
+	    
+	    //System.out.println("   backtrack");
+
+	    while (_stackSize != 0)
+		{
+		    --_stackSize;
+		    ++_backtracks;
+		    
+		    if (!_isTreePathTermPoint[_stackSize])
+			{
+			    // Restore the "registers":
+			    _queryCursor.backtrackTo(_queryCursorSavepoints[_stackSize]);
+			    _unifier.backtrackTo(_unifierSavepoints[_stackSize]);
+			    _indexCursor = _indexCursors[_stackSize];
+			    _indexCursors[_stackSize] = null;
+
+			    if (_indexCursor != null) return true;
+			}
+		    else
+			{
+			    TreePathTerm treePathTerm = _treePathTerms.get(_stackSize);
+
+			    _queryCursor.backtrackTo(_queryCursorSavepoints[_stackSize]);
+
+			    assert 
+				treePathTerm.variable().isInstantiated1() !=
+				treePathTerm.isIdenticalToVar();
+
+			    if (treePathTerm.variable().isInstantiated1())
+				_unifier.backtrack();
+
+			    assert !treePathTerm.variable().isInstantiated1();
+
+			    if (treePathTerm.findNext())
+				{
+				    // New instantiation for the variable, if necessary:
+				    if (!treePathTerm.isIdenticalToVar())
+					_unifier.instantiate(treePathTerm.variable(),
+							     treePathTerm.flatterm());
+
+				    ++_stackSize;
+
+				    return true;
+				};	
+			};
+		}; // while (_stackSize != 0)
+
+	    return false;
+
+	} // backtrack()
+
+
+	private boolean passClusterTests() {
+	    
+	    //System.out.println("   test cluster");
+
+	    assert _indexCursor != null;
+
+	    ++_visitedNodes;
+
+	    if (_indexCursor.isClusterTest())
+		{
+		    if (!((ClusterTestNode)_indexCursor).test(_currentCluster))
+			{
+
+			    //System.out.println("/1/CLUSTER " + _currentCluster + " DOES NOT PASS " + ((ClusterTestNode)_indexCursor));
+
+			    return false;
+			};
+		    
+		    _indexCursor = 
+			((ClusterTestNode)_indexCursor).treeBelow();
+		    
+		    if (_indexCursor.isClusterTest())
+			{
+			    if (!((ClusterTestNode)_indexCursor).test(_currentCluster))
+				{
+				    
+				    //System.out.println("/2/CLUSTER " + _currentCluster + " DOES NOT PASS " + ((ClusterTestNode)_indexCursor));
+				    
+				    return false;
+				};
+
+			    _indexCursor = 
+				((ClusterTestNode)_indexCursor).
+				treeBelow();
+			    assert _indexCursor != null;
+			    assert !_indexCursor.isClusterTest();
+			};
+		};
+
+	    if (_termBounds != null &&
+		!_termBounds.admitSome(_indexCursor))
+		{
+		    // Nothing reachable via the node satisfies 
+		    // the term bounds, so the node can be ignored.
+
+		    if (!(_indexCursor instanceof SymbolNode))
+			{
+			    _indexCursor = null;
+			    return false;
+			};
+
+		    _indexCursor = ((SymbolNode)_indexCursor).alternative();
+
+		    return _indexCursor != null && passClusterTests();
+		};
+
+	    return true;
+
+	} // passClusterTests()
+
+
+
+
+	//
+	//          Private data:
+	//
+
+
+	private Substitution1 _unifier;
+
+	/** Restrictions on the indexed terms to be retrieved,
+	 *  or null. 
+	 */
+	private TermBounds _termBounds;
+
+	private boolean _queryIsVariable;
+
+	private Flatterm _currentQuery;
+
+	private ClusterId _currentCluster;
+
+	/** Indicates if the query has just been reset, i.e., 
+	 *  there were no calls to {@link logic.is.power.logic_warehouse#ClusteredUnificationIndex#retrieveNext(retrievedIndexedObject)}.
+	 */
+	private boolean _freshQuery;
+
+	private 
+	    FlattermInstance.BacktrackableIterator
+	    _queryCursor;
+	
+	private TreeNode _indexCursor;
+
+	/** The bucket of objects with the current cluster
+	 *  in the leaf pointed to by <code>_indexCursor</code>.
+	 */
+	private LeafBucket _currentBucket;
+
+	/** Position of the current object in <code>_currentBucket</code>. */
+	private int _currentObjectNumber;
+
+	/** Identifies the index tree being used currently. */
+	private int _currentHashCode;
+
+	/** Identifies, together with <code>_currentVarBucket</code>
+	 *  and <code>_currentVarObjectNumber</code>,
+	 *  the current position in the variable index.
+	 */
+	private Iterator<Map.Entry<Variable,LeafBucket>> _currentVar;
+
+	/** Identifies, together with <code>_currentVar</code>;
+	 *  the current position in the variable index.
+	 */
+	private LeafBucket _currentVarBucket;
+
+	/** Position of the next object to be retrieved
+	 *  from <code>_currentVarBucket</code>.
+	 */
+	private int _currentVarObjectNumber;
+	
+	private int _unifierSavepointBeforeRetrievalFromVarIndex;
+
+
+	//     Stack of backtrack points, kept in parallel arrays
+	//     that are reused by all retrieval cycles:
+
+	private int _stackSize; 
+
+	/** Maximal <code>_stackSize</code> since the last {@link #finish()}. */
+	private int _stackHighWater;
+
+	/** Indicates if the backtrack point is for the tree path term
+	 *  in <code>_treePathTerms</code>, or for the alternatives 
+	 *  in <code>_indexCursors</code>.
+	 */
+	private boolean[] _isTreePathTermPoint;
+
+	private int[] _queryCursorSavepoints;
+
+	/** Meaningful only for non-tree-path-term points. */
+	private int[] _unifierSavepoints;
+
+	/** Meaningful only for non-tree-path-term points; can contain nulls. */
+	private TreeNode[] _indexCursors;
+
+	/** Pool of tree path terms: <code>_treePathTerms.get(n)</code> is 
+	 *  used by all tree-path-term backtrack points at depth <code>n</code>.
+	 */
+	private ArrayList<TreePathTerm> _treePathTerms;
+
+	/** Indicates whether currently we are retrieving from the index
+	 *  for variables.
+	 */
+	private boolean _retrievingFromVarIndex;
+
+	//     Counters:
+
+	private long _visitedNodes;
+
+	private long _backtracks;
+
+	private long _unificationFailures;
+
+    } // class RetrievalImpl
+
+
+
+    /** Common implementation of the retrieval states that keep 
+     *  their unifiers in {@link LocalSubstitution} objects, 
+     *  ie, {@link SharedRetrieval}, {@link GeneralizationRetrieval},
+     *  {@link InstanceRetrieval} and {@link CompactRetrieval}:
+     *  selects the index trees to be searched, enumerates the objects
+     *  from the leaves reached, and searches the indexed variables;
+     *  the subclasses define how the trees are represented and 
+     *  descended, and how the query is matched against them.
+     *  <b>IMPORTANT:</b> global instantiations of variables, both
+     *             in the query and in the index, are ignored.
+     */
+    private abstract /* inner */ class LocalRetrievalImpl {
+
+	protected LocalRetrievalImpl() {
+	    _unifier = new LocalSubstitution();
+	    _currentQuery = null;
+	    _termBounds = null;
+	}
+
+
+	public final Flatterm currentQuery() { return _currentQuery; }
+
+	/** Unifier, or matcher in the case of one-way retrieval, 
+	 *  for the last retrieved object; valid until the next
+	 *  call to {@link #retrieveNext(Ref)} or {@link #finish()}.
+	 */
+	public final LocalSubstitution unifier() { return _unifier; }
+
+	/** Original variables of the term indexed with the object 
+	 *  retrieved by the last successful call to 
+	 *  {@link #retrieveNext(Ref)}: element <code>n</code> is the
+	 *  variable replaced by {@link ClusteredUnificationIndex#canonicalVariable(int)}
+	 *  with the same number; null if the index does not normalise 
+	 *  variables or the term has no variables.
+	 */
+	public final Variable[] originalVariables() {
+	    if (_retrievingFromVarIndex)
+		return _currentVarBucket.originalVariables(_currentVarObjectNumber - 1);
+	    return _currentBucket.originalVariables(_currentObjectNumber);
+	}
+
+
+	/** Initiates a new cycle of retrieval with the specified query term
+	 *  and the cluster from which indexed objects must be taken.
+	 *  <b>IMPORTANT:</b> Must be always matched by a later call to {@link #finish()}.
+	 */
+	public final void resetQuery(Flatterm queryTerm,ClusterId cluster) {
+
+	    assert _currentQuery == null;
+	    assert _unifier.empty();
+
+	    startCycle();
+
+	    _currentQuery = queryTerm;
+	    _queryEnd = queryTerm.after();
+	    _currentCluster = cluster;
+	    _queryIsVariable = queryTerm.isVariable();
+
+	    if (_queryIsVariable)
+		{
+		    // All the trees may have to be tried.
+		    _currentHashCode = -1;
+		}
+	    else
+		{
+		    _currentHashCode =
+			_currentQuery.symbol().hashCode() %
+			NonvariableHashSize;
+		    assert _currentHashCode >= 0;
+		};
+
+	    _queryCursor = null;
+	    _freshQuery = true;
+	    _retrievingFromVarIndex = false;
+
+	} // resetQuery(Flatterm queryTerm,ClusterId cluster)
+
+
+	/** Same as <code>resetQuery(queryTerm,ClusterId.valueOf(cluster))</code>. */
+	public final void resetQuery(Flatterm queryTerm,BitSet cluster) {
+	    resetQuery(queryTerm,ClusterId.valueOf(cluster));
+	}
+
+
+	/** Tries to retrieve another indexed object from the current 
+	 *  query cluster, that is associated with a term unifiable with,
+	 *  or matching, the current query term; the unifier is available
+	 *  via {@link #unifier()}.
+	 *  @param retrievedIndexedObject where the retrieved indexed
+	 *         object is assigned if the retrieval is successfull
+	 *  @return false if no more objects can be retrieved for 
+	 *          this query
+	 */
+	public final boolean retrieveNext(Ref<IndexedObject> retrievedIndexedObject) {
+
+	    assert _currentQuery != null;
+	    assert retrievedIndexedObject != null;
+
+	    if (_retrievingFromVarIndex)
+		return retrieveNextFromVarIndex(retrievedIndexedObject);
+
+	    if (_freshQuery)
+		{
+		    _freshQuery = false;
+
+		    if (!_queryIsVariable)
+			{
+			    enterTree(_currentHashCode);
+			    _queryCursor = _currentQuery;
+
+			    if (completeSearch())
+				{
+				    retrievedIndexedObject.content =
+					indexedObject(_currentBucket,
+						      _currentObjectNumber);
+				    return true;
+				};
+			};
+		}
+	    else // !_freshQuery
+		{
+		    // Try another object from the same leaf:
+
+		    ++_currentObjectNumber;
+
+		    if (_currentObjectNumber < _currentBucket.size() ||
+			(backtrack() && completeSearch()))
+			{
+			    retrievedIndexedObject.content =
+				indexedObject(_currentBucket,
+					      _currentObjectNumber);
+			    return true;
+			};
+		};
+
+	    while (nextTree())
+		if (completeSearch())
+		    {
+			retrievedIndexedObject.content =
+			    indexedObject(_currentBucket,_currentObjectNumber);
+			return true;
+		    };
+
+	    _retrievingFromVarIndex = true;
+	    _freshQuery = true;
+
+	    return retrieveNextFromVarIndex(retrievedIndexedObject);
+
+	} // retrieveNext(Ref<IndexedObject> retrievedIndexedObject)
+
+
+	/** Must close every retrieval cycle regardless of whether
+	 *  the last call to {@link #retrieveNext(Ref)}
+	 *  succeeded or not.
+	 */
+	public final void finish() {
+
+	    assert _currentQuery != null;
+
+	    _unifier.uninstantiateAll();
+	    clearSearchState();
+	    endCycle();
+	    _currentQuery = null;
+	    _queryEnd = null;
+	    _currentCluster = null;
+	    _queryCursor = null;
+	    _currentBucket = null;
+	    _currentVar = null;
+	    _currentVarBucket = null;
+
+	} // finish()
+
+
+
+	//
+	//          Methods defining the search:
+	//
+
+	/** Called by {@link #resetQuery(Flatterm,ClusterId)} before 
+	 *  anything else is done; does nothing by default. 
+	 */
+	protected void startCycle() {}
+
+	/** Called by {@link #finish()}; does nothing by default. */
+	protected void endCycle() {}
+
+	/** Indicates that a variable query has to be tried
+	 *  against all the index trees; true by default.
+	 */
+	protected boolean searchesAllTrees() { return true; }
+
+	/** Indicates that the current query has to be tried
+	 *  against the indexed variables; true by default.
+	 */
+	protected boolean searchesVariableIndex() { return true; }
+
+	/** Tries to unify, or match, the current query with the indexed
+	 *  variable; <code>_unifier</code> is empty at the moment 
+	 *  of the call. By default, unifies the query with the variable.
+	 */
+	protected boolean matchesIndexVariable(Variable var) {
+	    return _unifier.unify(var,_currentQuery);
+	}
+
+	/** The indexed variables to be searched in the current cycle. */
+	protected abstract 
+	    HashMap<ClusterId, TreeMap<Variable,LeafBucket>> variableIndex();
+
+	/** Moves the index cursor to the root of the tree 
+	 *  number <code>hashCode</code>.
+	 *  @return false if the tree is empty
+	 */
+	protected abstract boolean enterTree(int hashCode);
+
+	/** Makes one step of the tree traversal; 
+	 *  {@link #enterLeaf(LeafNode)} must be called when the end
+	 *  of the query is reached.
+	 *  @return false if this was the last step, ie, either a leaf
+	 *          is reached or a backtrack is required
+	 */
+	protected abstract boolean stepForward();
+
+	/** Indicates that the index cursor is at a leaf
+	 *  with some objects from the current cluster.
+	 */
+	protected abstract boolean atLeaf();
+
+	/** Restores the state saved in the last backtrack point
+	 *  that still has alternatives to try.
+	 *  @return false if there are no such points
+	 */
+	protected abstract boolean backtrack();
+
+	/** Releases the index cursor and empties the stack 
+	 *  of backtrack points. 
+	 */
+	protected abstract void clearSearchState();
+
+
+
+	//
+	//          Methods for the subclasses:
+	//
+
+	/** Makes the bucket of <code>leaf</code> for the current
+	 *  cluster the source of retrieved objects.
+	 *  @return false if the leaf has no objects from the cluster
+	 */
+	protected final boolean enterLeaf(LeafNode leaf) {
+
+	    _currentBucket = leaf.bucket(_currentCluster);
+
+	    if (_currentBucket == null) return false;
+
+	    _currentObjectNumber = 0;
+	    return true;
+
+	} // enterLeaf(LeafNode leaf)
+
+
+
+	//
+	//          Private methods:
+	//
+
+	/** Proceeds to the next index tree, if the query is a variable
+	 *  and all trees have to be searched.
+	 *  @return false if there are no more trees to try
+	 */
+	private boolean nextTree() {
+
+	    if (!_queryIsVariable || !searchesAllTrees()) return false;
+
+	    _unifier.backtrackTo(0);
+	    clearSearchState();
+
+	    ++_currentHashCode;
+
+	    while (_currentHashCode < NonvariableHashSize)
+		{
+		    if (enterTree(_currentHashCode))
+			{
+			    _queryCursor = _currentQuery;
+			    return true;
+			};
+
+		    ++_currentHashCode;
+		};
+
+	    return false;
+
+	} // nextTree()
+
+
+	private boolean retrieveNextFromVarIndex(Ref<IndexedObject> retrievedIndexedObject) {
+
+	    if (_freshQuery)
+		{
+		    _freshQuery = false;
+
+		    if (!searchesVariableIndex()) return false;
+
+		    TreeMap<Variable,LeafBucket> varToLeavesMap =
+			variableIndex().get(_currentCluster);
+
+		    if (varToLeavesMap == null) return false;
+
+		    // Indexed variables consist of one symbol and have depth 0:
+		    if (_termBounds != null && !_termBounds.admit(1,0))
+			return false;
+
+		    _currentVar = varToLeavesMap.entrySet().iterator();
+		    _currentVarBucket = null;
+		}
+	    else // !_freshQuery
+		{
+		    // Try another object for the same index variable:
+
+		    if (_currentVarBucket != null &&
+			_currentVarObjectNumber < _currentVarBucket.size())
+			{
+			    retrievedIndexedObject.content =
+				indexedObject(_currentVarBucket,
+					      _currentVarObjectNumber);
+
+			    ++_currentVarObjectNumber;
+
+			    return true;
+			};
+
+		    if (_currentVar == null) return false;
+
+		}; // if (_freshQuery)
+
+	    while (_currentVar.hasNext())
+		{
+		    Map.Entry<Variable,LeafBucket> varAndLeaves = _currentVar.next();
+
+		    _unifier.backtrackTo(0);
+
+		    if (matchesIndexVariable(varAndLeaves.getKey()))
+			{
+			    _currentVarBucket = varAndLeaves.getValue();
+
+			    retrievedIndexedObject.content =
+				indexedObject(_currentVarBucket,0);
+
+			    _currentVarObjectNumber = 1;
+
+			    return true;
+			};
+		};
+
+	    return false;
+
+	} // retrieveNextFromVarIndex(Ref<IndexedObject> retrievedIndexedObject)
+
+
+	private boolean completeSearch() {
+
+	    while (true)
+		{
+		    while (stepForward())
+			{
+			    // empty
+			};
+
+		    // Either found a good leaf or backtrack
+		    // is required.
+
+		    if (atLeaf()) return true;
+
+		    if (!backtrack()) return false;
+		}
+
+	} // completeSearch()
+
+
+
+	//
+	//          Data:
+	//
+
+	protected final LocalSubstitution _unifier;
+
+	/** Restrictions on the indexed terms to be retrieved,
+	 *  or null. 
+	 */
+	protected TermBounds _termBounds;
+
+	protected Flatterm _currentQuery;
+
+	/** <code>_currentQuery.after()</code>. */
+	protected Flatterm _queryEnd;
+
+	protected boolean _queryIsVariable;
+
+	protected ClusterId _currentCluster;
+
+	/** Next query subterm to be unified or matched; does not
+	 *  descend into instances of variables.
+	 */
+	protected Flatterm _queryCursor;
+
+	/** Indicates that nothing has been retrieved yet from 
+	 *  the current tree or the variable index. 
+	 */
+	private boolean _freshQuery;
+
+	private boolean _retrievingFromVarIndex;
+
+	/** Identifies the index tree being used currently. */
+	private int _currentHashCode;
+
+	private LeafBucket _currentBucket;
+
+	private int _currentObjectNumber;
+
+	private Iterator<Map.Entry<Variable,LeafBucket>> _currentVar;
+
+	private LeafBucket _currentVarBucket;
+
+	private int _currentVarObjectNumber;
+
+    } // class LocalRetrievalImpl
+
+
+
+    /** Common implementation of {@link SharedRetrieval} and
+     *  {@link OneWayRetrievalImpl}: descends the trees of 
+     *  {@link TreeNode} objects, either in the index itself
+     *  or in a published version.
+     */
+    private abstract /* inner */ class TreeRetrievalImpl 
+	extends LocalRetrievalImpl {
+
+	/** @param nonvariableHash roots of the trees to search; 
+	 *         can be null if the subclass sets them in 
+	 *         <code>startCycle()</code>
+	 *  @param variableIndex indexed variables to search; 
+	 *         same as above
+	 */
+	protected TreeRetrievalImpl(TreeNode[] nonvariableHash,
+				    HashMap<ClusterId, TreeMap<Variable,LeafBucket>> variableIndex) {
+	    _nonvariableHash = nonvariableHash;
+	    _variableIndex = variableIndex;
+	    _indexCursor = null;
+	    _literalCursor = null;
+	    _literalEnd = null;
+	    _backtrackPoints = new ArrayList<BacktrackPoint>(128);
+	    _stackSize = 0;
+	    _treePathTerms = new ArrayList<LocalTreePathTerm>();
+	    _treePathTermHighWater = 0;
+	}
+
+	/** Restricts the following retrievals to the indexed terms
+	 *  satisfying the bounds; subtrees containing only unsuitable
+	 *  terms are skipped.
+	 *  @param bounds null if the terms need not be restricted
+	 */
+	public final void setTermBounds(TermBounds bounds) {
+	    assert _currentQuery == null;
+	    _termBounds = bounds;
+	}
+
+	public final TermBounds termBounds() { return _termBounds; }
+
+
+
+	//
+	//          Implementation of the search:
+	//
+
+	protected final 
+	    HashMap<ClusterId, TreeMap<Variable,LeafBucket>> variableIndex() {
+	    return _variableIndex;
+	}
+
+	protected final boolean enterTree(int hashCode) {
+	    _indexCursor = _nonvariableHash[hashCode];
+	    return _indexCursor != null;
+	}
+
+	protected final boolean atLeaf() {
+	    return _indexCursor != null && _indexCursor.isLeaf();
+	}
+
+	protected final boolean backtrack() {
+
+	    while (_stackSize != 0)
+		{
+		    --_stackSize;
+		    ++_backtracks;
+		    BacktrackPoint point = _backtrackPoints.get(_stackSize);
+
+		    _unifier.backtrackTo(point.unifierSavepoint);
+		    _queryCursor = point.querySubterm;
+		    _literalCursor = point.literalCursor;
+		    _literalEnd = point.literalEnd;
+
+		    if (point.treePathTerm == null)
+			{
+			    _indexCursor = point.indexCursor;
+			    point.clear();
+			    if (_indexCursor != null) return true;
+			}
+		    else
+			{
+			    LocalTreePathTerm treePathTerm = point.treePathTerm;
+			    point.clear();
+
+			    if (treePathTerm.findNext() &&
+				bindTreePathTerm(_queryCursor,treePathTerm))
+				return true;
+			};
+		}; // while (_stackSize != 0)
+
+	    return false;
+
+	} // backtrack()
+
+
+	protected final void clearSearchState() {
+
+	    _indexCursor = null;
+	    _literalCursor = null;
+	    _literalEnd = null;
+
+	    while (_stackSize != 0)
+		{
+		    --_stackSize;
+		    _backtrackPoints.get(_stackSize).clear();
+		};
+
+	    // Release the pointers to index nodes kept in the pooled
+	    // tree path terms:
+
+	    for (int n = 0; n < _treePathTermHighWater; ++n)
+		if (_treePathTerms.get(n) != null)
+		    _treePathTerms.get(n).clear();
+
+	    _treePathTermHighWater = 0;
+
+	} // clearSearchState()
+
+
+	/** Tries to bind the query variable <code>querySubterm</code>
+	 *  to the term represented by <code>treePathTerm</code>,
+	 *  or the following ones, until success; pushes a backtrack
+	 *  point for <code>treePathTerm</code> and moves the query 
+	 *  cursor after the variable if succeeds.
+	 *  <b>pre:</b> <code>treePathTerm</code> represents a complete term.
+	 */
+	protected abstract 
+	    boolean bindTreePathTerm(Flatterm querySubterm,
+				     LocalTreePathTerm treePathTerm);
+
+
+
+	//
+	//          Methods for the subclasses:
+	//
+
+	/** Finds the bucket for the current cluster in the leaf
+	 *  <code>_indexCursor</code>, or sets <code>_indexCursor</code>
+	 *  to null if there is no such bucket.
+	 */
+	protected final void reachLeaf() {
+
+	    assert _indexCursor.isLeaf();
+	    assert _literalCursor == null;
+
+	    if (!enterLeaf((LeafNode)_indexCursor)) _indexCursor = null;
+
+	} // reachLeaf()
+
+
+	/** Searches the rest of the alternative chain starting with
+	 *  <code>_indexCursor</code> for the node with the symbol. 
+	 *  @return null if there is no such node or some cluster test 
+	 *          fails
+	 */
+	protected final SymbolNode findSymbolNode(Symbol sym) {
+
+	    while (true)
+		{
+		    if (!passClusterTests()) return null;
+
+		    if (_indexCursor.isSymbolHash())
+			{
+			    // Variables are never hashed.
+			    if (sym.isVariable()) return null;
+			    return ((SymbolHashNode)_indexCursor).find(sym);
+			};
+
+		    SymbolNode node = (SymbolNode)_indexCursor;
+
+		    if (!greater(sym,node.symbol()))
+			{
+			    if (node.symbol().equals(sym)) return node;
+			    return null;
+			};
+
+		    _indexCursor = node.alternative();
+		    if (_indexCursor == null) return null;
+		}
+
+	} // findSymbolNode(Symbol sym)
+
+
+	/** The tree path term for the backtrack point
+	 *  at <code>_stackSize</code>, which is pushed by
+	 *  <code>bindTreePathTerm(..)</code>.
+	 */
+	protected final LocalTreePathTerm pooledTreePathTerm() {
+
+	    while (_treePathTerms.size() <= _stackSize)
+		_treePathTerms.add(null);
+
+	    LocalTreePathTerm result = _treePathTerms.get(_stackSize);
+	    if (result == null)
+		{
+		    result = new LocalTreePathTerm();
+		    _treePathTerms.set(_stackSize,result);
+		};
+
+	    if (_stackSize >= _treePathTermHighWater)
+		_treePathTermHighWater = _stackSize + 1;
+
+	    return result;
+
+	} // pooledTreePathTerm()
+
+
+	protected final void pushBacktrackPoint(Flatterm querySubterm,
+						Flatterm literalCursor,
+						int unifierSavepoint,
+						TreeNode indexCursor,
+						LocalTreePathTerm treePathTerm) {
+
+	    if (_stackSize == _backtrackPoints.size())
+		_backtrackPoints.add(new BacktrackPoint());
+
+	    _backtrackPoints.get(_stackSize).set(querySubterm,
+						 literalCursor,
+						 unifierSavepoint,
+						 indexCursor,
+						 treePathTerm);
+	    ++_stackSize;
+
+	} // pushBacktrackPoint(Flatterm querySubterm,..)
+
+
+	/** Same as <code>RetrievalImpl.passClusterTests()</code>. */
+	protected final boolean passClusterTests() {
+
+	    assert _indexCursor != null;
+
+	    ++_visitedNodes;
+
+	    while (_indexCursor.isClusterTest())
+		{
+		    if (!((ClusterTestNode)_indexCursor).test(_currentCluster))
+			return false;
+
+		    _indexCursor =
+			((ClusterTestNode)_indexCursor).treeBelow();
+		};
+
+	    if (_termBounds != null &&
+		!_termBounds.admitSome(_indexCursor))
+		{
+		    // Nothing reachable via the node satisfies 
+		    // the term bounds, so the node can be ignored.
+
+		    if (!(_indexCursor instanceof SymbolNode))
+			{
+			    _indexCursor = null;
+			    return false;
+			};
+
+		    _indexCursor = ((SymbolNode)_indexCursor).alternative();
+
+		    return _indexCursor != null && passClusterTests();
+		};
+
+	    return true;
+
+	} // passClusterTests()
+
+
+
+	//
+	//          Classes for the subclasses:
+	//
+
+	/** Similar to <code>RetrievalImpl.TreePathTerm</code>: represents 
+	 *  intervals of tree paths corresponding to well-formed
+	 *  <b>individual-valued</b> terms.
+	 */
+	protected /* inner */ class LocalTreePathTerm {
+
+	    public LocalTreePathTerm() {
+		_depth = 0;
+		_nodeStack = new SymbolNode[InitialTreePathTermCapacity];
+		_holeStack = new int[InitialTreePathTermCapacity];
+		_flatterm = new FlattermAssembler();
+	    }
+
+	    /** Flatterm corresponding to the tree path interval.
+	     *  <b>pre:</b> the tree path interval represents a complete
+	     *  well-formed term.
+	     */
+	    public final Flatterm flatterm() { return _flatterm.assembledTerm(); }
+
+	    public final boolean findFirst() {
+		_depth = 0;
+		_openHoles = 1;
+		return search();
+	    }
+
+	    public final boolean findNext() {
+		if (!treePathBacktrack()) return false;
+		return search();
+	    }
+
+	    /** Releases the pointers to index nodes. */
+	    public final void clear() {
+		for (int n = 0; n < _depth; ++n)
+		    _nodeStack[n] = null;
+		_depth = 0;
+	    }
+
+
+	    private boolean search() {
+
+		while (true)
+		    {
+			while (smallStepForward()) {};
+
+			// Either all holes are filled, or a dead end
+			// is reached and a backtrack is required.
+
+			if (_indexCursor != null &&
+			    _openHoles == 0)
+			    {
+				// The previous flatterm is not referenced
+				// by the unifier any more.
+				_flatterm.recycle();
+				for (int n = 0; n < _depth; ++n)
+				    _flatterm.pushSymbol(_nodeStack[n].symbol());
+				_flatterm.wrapUp();
+				return true;
+			    };
+
+			if (!treePathBacktrack()) return false;
+		    }
+
+	    } // search()
+
+
+	    private boolean smallStepForward() {
+
+		if (_openHoles == 0) return false;
+
+		while (_indexCursor != null)
+		    {
+			if (!passClusterTests()) return false;
+
+			switch (_indexCursor.kind())
+			    {
+			    case TreeNode.Kind.Variable: // as below
+			    case TreeNode.Kind.Function: // as below
+			    case TreeNode.Kind.Constant:
+				push();
+				return true;
+
+			    case TreeNode.Kind.SymbolHash:
+				// Enumerate the entries as a normal chain
+				// of alternatives:
+				_indexCursor =
+				    ((SymbolHashNode)_indexCursor).firstEntry();
+				break;
+
+			    case TreeNode.Kind.Predicate: // as below
+			    case TreeNode.Kind.Connective:
+				if (_depth == 0)
+				    {
+					// Assignment of boolean-valued terms 
+					// to variables is not allowed.
+					_indexCursor =
+					    ((SymbolNode)_indexCursor).alternative();
+				    }
+				else
+				    {
+					// Nested boolean-valued terms are allowed:
+					push();
+					return true;
+				    };
+				break;
+
+			    } // switch (_indexCursor.kind())
+
+		    }; // while (_indexCursor != null)
+
+		return false;
+
+	    } // smallStepForward()
+
+
+	    /** Saves the current symbol node and descends below it. */
+	    private void push() {
+
+		if (_depth == _nodeStack.length)
+		    {
+			_nodeStack = Arrays.copyOf(_nodeStack,2 * _depth);
+			_holeStack = Arrays.copyOf(_holeStack,2 * _depth);
+		    };
+
+		SymbolNode node = (SymbolNode)_indexCursor;
+		_nodeStack[_depth] = node;
+		_holeStack[_depth] = _openHoles;
+		++_depth;
+
+		_openHoles += node.symbol().arity() - 1;
+		_indexCursor = node.treeBelow();
+
+	    } // push()
+
+
+	    private boolean treePathBacktrack() {
+
+		while (_depth != 0)
+		    {
+			--_depth;
+			_openHoles = _holeStack[_depth];
+			_indexCursor = _nodeStack[_depth].alternative();
+			_nodeStack[_depth] = null;
+			if (_indexCursor != null) return true;
+		    };
+
+		return false;
+
+	    } // treePathBacktrack()
+
+
+	    private int _openHoles;
+
+	    /** Current size of <code>_nodeStack</code> and <code>_holeStack</code>. */
+	    private int _depth;
+
+	    private SymbolNode[] _nodeStack;
+
+	    private int[] _holeStack;
+
+	    private FlattermAssembler _flatterm;
+
+	} // class LocalTreePathTerm
+
+
+
+	//
+	//          Private classes:
+	//
+
+	private /* inner */ class BacktrackPoint {
+
+	    public final void set(Flatterm querySubt,
+				  Flatterm literalCurs,
+				  int unifSavepoint,
+				  TreeNode indexCurs,
+				  LocalTreePathTerm treePath) {
+		querySubterm = querySubt;
+		literalCursor = literalCurs;
+		literalEnd = (literalCurs == null)? null : _literalEnd;
+		unifierSavepoint = unifSavepoint;
+		indexCursor = indexCurs;
+		treePathTerm = treePath;
+	    }
+
+	    /** Releases all external pointers. */
+	    public final void clear() {
+		querySubterm = null;
+		literalCursor = null;
+		literalEnd = null;
+		indexCursor = null;
+		treePathTerm = null;
+	    }
+
+	    /** The query subterm being unified or matched at this point. */
+	    public Flatterm querySubterm;
+
+	    /** Saved <code>_literalCursor</code>. */
+	    public Flatterm literalCursor;
+
+	    /** Saved <code>_literalEnd</code>. */
+	    public Flatterm literalEnd;
+
+	    public int unifierSavepoint;
+
+	    /** Alternative to try next, if <code>treePathTerm</code>
+	     *  is null.
+	     */
+	    public TreeNode indexCursor;
+
+	    /** Tree path interval bound to the query variable 
+	     *  <code>querySubterm</code>, or null.
+	     */
+	    public LocalTreePathTerm treePathTerm;
+
+	} // class BacktrackPoint
+
+
+
+	//
+	//          Data:
+	//
+
+	/** Shadows <code>ClusteredUnificationIndex._nonvariableHash</code>,
+	 *  so that published versions can be searched.
+	 */
+	protected TreeNode[] _nonvariableHash;
+
+	/** Shadows <code>ClusteredUnificationIndex._variableIndex</code>. */
+	protected HashMap<ClusterId, TreeMap<Variable,LeafBucket>> _variableIndex;
+
+	protected TreeNode _indexCursor;
+
+	/** Next cell of an instance of a query variable, 
+	 *  that must coincide with the index term at this point,
+	 *  or null; used only by instance retrieval.
+	 */
+	protected Flatterm _literalCursor;
+
+	/** <code>after()</code> of the instance containing 
+	 *  <code>_literalCursor</code>.
+	 */
+	protected Flatterm _literalEnd;
+
+	private ArrayList<BacktrackPoint> _backtrackPoints;
+
+	private int _stackSize;
+
+	/** Pool of tree path terms: <code>_treePathTerms.get(n)</code> is 
+	 *  used by all tree-path-term backtrack points at depth <code>n</code>;
+	 *  can contain nulls.
+	 */
+	private ArrayList<LocalTreePathTerm> _treePathTerms;
+
+	/** Number of pooled tree path terms that may have been used
+	 *  since the last <code>clearSearchState()</code>.
+	 */
+	private int _treePathTermHighWater;
+
+	//     Counters:
+
+	protected long _visitedNodes;
+
+	protected long _backtracks;
+
+	protected long _unificationFailures;
+
+    } // class TreeRetrievalImpl
+
+
+
+    /** Retrieval state for {@link FrozenView}s and published 
+     *  {@link Version}s: enumerates all 
+     *  successful unifications between a query term and all indexed
+     *  terms from a specified cluster, like 
+     *  {@link logic.is.power.logic_warehouse#ClusteredUnificationIndex#Retrieval},
+     *  but keeps the unifiers in its own {@link LocalSubstitution}
+     *  instead of the global substitution 1, so that different
+     *  threads can use their own retrieval objects on the same
+     *  frozen index or version in parallel without any locking.
+     *  <b>IMPORTANT:</b> global instantiations of variables, both
+     *             in the query and in the index, are ignored.
+     */
+    public /* inner */ class SharedRetrieval extends TreeRetrievalImpl {
+
+	/** @param nonvariableHash roots of the trees to search
+	 *  @param variableIndex indexed variables to search
+	 */
+	private SharedRetrieval(TreeNode[] nonvariableHash,
+				HashMap<ClusterId, TreeMap<Variable,LeafBucket>> variableIndex) {
+	    super(nonvariableHash,variableIndex);
+	}
+
+
+	/** Number of index nodes the search has stopped at since 
+	 *  the creation of this object or the last call to 
+	 *  {@link #resetCounters()}; the counters are never reset 
+	 *  automatically, so they can accumulate over many queries.
+	 */
+	public final long numberOfVisitedNodes() { return _visitedNodes; }
+
+	/** Number of backtrack points popped by the search. */
+	public final long numberOfBacktracks() { return _backtracks; }
+
+	/** Number of failed unifications of query subterms with 
+	 *  index variables or tree path terms, and of symbol clashes.
+	 */
+	public final long numberOfUnificationFailures() { 
+	    return _unificationFailures; 
+	}
+
+	public final void resetCounters() {
+	    _visitedNodes = 0;
+	    _backtracks = 0;
+	    _unificationFailures = 0;
+	}
+
+
+
+	//
+	//          Implementation of the search:
+	//
+
+	protected final boolean matchesIndexVariable(Variable var) {
+
+	    if (_unifier.unify(var,_currentQuery)) return true;
+
+	    ++_unificationFailures;
+	    return false;
+
+	} // matchesIndexVariable(Variable var)
+
+
+	protected final boolean stepForward() {
+
+	    if (_indexCursor == null) return false;
+
+	    if (!passClusterTests()) return false;
+
+	    if (_queryCursor == _queryEnd)
+		{
+		    reachLeaf();
+		    return false;
+		    // indicates that this was the last step.
+		};
+
+	    Flatterm querySubterm = _queryCursor;
+
+	    if (querySubterm.isVariable())
+		{
+		    // Try all the tree path terms corresponding to
+		    // complete index terms:
+
+		    LocalTreePathTerm treePathTerm = pooledTreePathTerm();
+
+		    return
+			treePathTerm.findFirst() &&
+			bindTreePathTerm(querySubterm,treePathTerm);
+		};
+
+
+	    while (_indexCursor.kind() == TreeNode.Kind.Variable)
+		{
+		    int unifierSavepoint = _unifier.savepoint();
+
+		    if (_unifier.unify(((VariableNode)_indexCursor).variable(),
+				       querySubterm))
+			{
+			    pushBacktrackPoint(querySubterm,
+					       null,
+					       unifierSavepoint,
+					       ((VariableNode)_indexCursor).
+					       alternative(),
+					       null);
+			    _queryCursor = querySubterm.after();
+			    _indexCursor =
+				((VariableNode)_indexCursor).treeBelow();
+			    return true;
+			};
+
+		    ++_unificationFailures;
+
+		    _indexCursor = ((VariableNode)_indexCursor).alternative();
+
+		    if (_indexCursor == null || !passClusterTests())
+			return false;
+		};
+
+	    if (_indexCursor.isSymbolHash())
+		{
+		    SymbolNode entry =
+			((SymbolHashNode)_indexCursor).
+			find(querySubterm.symbol());
+
+		    if (entry == null)
+			{
+			    // Symbol clash.
+			    ++_unificationFailures;
+			    return false;
+			};
+
+		    _queryCursor = querySubterm.nextCell();
+		    _indexCursor = entry.treeBelow();
+		    return true;
+		};
+
+	    // Skip alternatives with smaller symbols:
+
+	    while (greater(querySubterm.symbol(),
+			   ((SymbolNode)_indexCursor).symbol()))
+		{
+		    _indexCursor =
+			((SymbolNode)_indexCursor).alternative();
+		    if (_indexCursor == null || !passClusterTests())
+			return false;
+		};
+
+	    if (((SymbolNode)_indexCursor).symbol().
+		equals(querySubterm.symbol()))
+		{
+		    _queryCursor = querySubterm.nextCell();
+		    _indexCursor =
+			((SymbolNode)_indexCursor).treeBelow();
+		    return true;
+		};
+
+	    // Symbol clash.
+
+	    ++_unificationFailures;
+	    return false;
+
+	} // stepForward()
+
+
+	/** Unifies the query variable with the tree path terms. */
+	protected final boolean bindTreePathTerm(Flatterm querySubterm,
+						 LocalTreePathTerm treePathTerm) {
+	    do
+		{
+		    int unifierSavepoint = _unifier.savepoint();
+
+		    if (_unifier.unify(querySubterm,treePathTerm.flatterm()))
+			{
+			    pushBacktrackPoint(querySubterm,
+					       null,
+					       unifierSavepoint,
+					       null,
+					       treePathTerm);
+			    _queryCursor = querySubterm.after();
+			    return true;
+			};
+
+		    ++_unificationFailures;
+		}
+	    while (treePathTerm.findNext());
+
+	    return false;
+
+	} // bindTreePathTerm(Flatterm querySubterm,..)
+
+    } // class SharedRetrieval
+
+
+
+    /** Retrieval state for batches of queries: enumerates all 
+     *  successful unifications between several query terms and
+     *  indexed terms from the clusters specified for the queries,
+     *  like a {@link SharedRetrieval} object per query, but
+     *  descends every index tree only once for the whole batch;
+     *  at every symbol node, the batch is split into the queries
+     *  that can follow the node. The unifiers are kept in 
+     *  separate {@link LocalSubstitution} objects for different 
+     *  queries, and global instantiations of variables, both 
+     *  in the queries and in the index, are ignored.
+     *  Usage: add all the queries with {@link #addQuery(Flatterm,ClusterId)},
+     *  call {@link #retrieveNext(Ref)} until it returns false, 
+     *  and close the cycle with {@link #finish()}.
+     *  Objects created with the public constructor work on the index 
+     *  itself, so retrieval cannot be interrupted with maintenance
+     *  operations; objects created with {@link Version#newBatchRetrieval()}
+     *  can be used like {@link SharedRetrieval} objects on the version.
+     */
+    public /* inner */ class BatchRetrieval {
+
+	/** Creates a retrieval object working on the index itself. */
+	public BatchRetrieval() {
+	    this(null);
+	}
+
+	/** @param version null if the index itself is searched */
+	private BatchRetrieval(Version version) {
+	    _version = version;
+	    _numberOfQueries = 0;
+	    _queries = new Flatterm[InitialBatchCapacity];
+	    _clusters = new ClusterId[InitialBatchCapacity];
+	    _unifiers = new ArrayList<LocalSubstitution>(InitialBatchCapacity);
+	    _cursors = new Flatterm[InitialBatchCapacity];
+	    _skips = new int[InitialBatchCapacity];
+	    _skipStarts = new int[InitialBatchCapacity];
+	    _skipVariables = new Flatterm[InitialBatchCapacity];
+	    _active = new int[InitialBatchCapacity];
+	    _activeSize = 0;
+	    _levels = new ArrayList<BatchLevel>(32);
+	    _numberOfLevels = 0;
+	    _started = false;
+	}
+
+
+	/** Adds another query to the batch; cannot be called 
+	 *  after the first call to {@link #retrieveNext(Ref)}
+	 *  in the current retrieval cycle.
+	 *  @return the number of the query in the batch, 
+	 *          see {@link #queryNumber()}
+	 */
+	public final int addQuery(Flatterm queryTerm,ClusterId cluster) {
+
+	    assert !_started;
+
+	    if (_numberOfQueries == _queries.length)
+		{
+		    int newCapacity = 2 * _queries.length;
+		    _queries = Arrays.copyOf(_queries,newCapacity);
+		    _clusters = Arrays.copyOf(_clusters,newCapacity);
+		    _cursors = Arrays.copyOf(_cursors,newCapacity);
+		    _skips = Arrays.copyOf(_skips,newCapacity);
+		    _skipStarts = Arrays.copyOf(_skipStarts,newCapacity);
+		    _skipVariables = Arrays.copyOf(_skipVariables,newCapacity);
+		    _active = Arrays.copyOf(_active,newCapacity);
+		};
+
+	    if (_numberOfQueries == _unifiers.size())
+		_unifiers.add(new LocalSubstitution());
+
+	    assert _unifiers.get(_numberOfQueries).empty();
+
+	    _queries[_numberOfQueries] = queryTerm;
+	    _clusters[_numberOfQueries] = cluster;
+
+	    return _numberOfQueries++;
+
+	} // addQuery(Flatterm queryTerm,ClusterId cluster)
+
+
+	/** Same as <code>addQuery(queryTerm,ClusterId.valueOf(cluster))</code>. */
+	public final int addQuery(Flatterm queryTerm,BitSet cluster) {
+	    return addQuery(queryTerm,ClusterId.valueOf(cluster));
+	}
+
+
+	public final int numberOfQueries() { return _numberOfQueries; }
+
+
+	/** Tries to retrieve another indexed object unifiable with
+	 *  one of the queries; the number of the query and the unifier
+	 *  are available via {@link #queryNumber()} and {@link #unifier()}.
+	 *  @param retrievedIndexedObject where the retrieved indexed
+	 *         object is assigned if the retrieval is successfull
+	 *  @return false if no more objects can be retrieved for 
+	 *          the batch
+	 */
+	public final boolean retrieveNext(Ref<IndexedObject> retrievedIndexedObject) {
+
+	    assert retrievedIndexedObject != null;
+
+	    if (!_started) start();
+
+	    while (true)
+		{
+		    if (_currentBucket != null &&
+			_currentObjectNumber < _currentBucket.size())
+			{
+			    retrievedIndexedObject.content =
+				indexedObject(_currentBucket,_currentObjectNumber);
+			    ++_currentObjectNumber;
+			    return true;
+			};
+
+		    _currentBucket = null;
+
+		    if (_retrievingFromVarIndex)
+			{
+			    if (!nextVariableBucket()) return false;
+			}
+		    else if (_currentLeaf == null || !nextLeafBucket())
+			{
+			    _currentLeaf = null;
+
+			    if (!nextLeaf())
+				{
+				    _retrievingFromVarIndex = true;
+				    _currentQueryNumber = -1;
+				    _currentVar = null;
+				};
+			};
+		}
+
+	} // retrieveNext(Ref<IndexedObject> retrievedIndexedObject)
+
+
+	/** Number of the query for which the last object was retrieved. */
+	public final int queryNumber() { return _currentQueryNumber; }
+
+	/** Unifier for the last retrieved object; valid until the next
+	 *  call to {@link #retrieveNext(Ref)} or {@link #finish()}.
+	 */
+	public final LocalSubstitution unifier() { 
+	    return _unifiers.get(_currentQueryNumber); 
+	}
+
+
+	/** Must close every retrieval cycle regardless of whether
+	 *  the last call to {@link #retrieveNext(Ref)}
+	 *  succeeded or not; removes all the queries.
+	 */
+	public final void finish() {
+
+	    if (_started && _version == null) --_retrievalLocks;
+
+	    for (int n = 0; n < _numberOfQueries; ++n)
+		{
+		    _unifiers.get(n).uninstantiateAll();
+		    _queries[n] = null;
+		    _clusters[n] = null;
+		    _cursors[n] = null;
+		    _skipVariables[n] = null;
+		};
+
+	    while (_numberOfLevels != 0)
+		{
+		    --_numberOfLevels;
+		    _levels.get(_numberOfLevels).clear();
+		};
+
+	    _numberOfQueries = 0;
+	    _activeSize = 0;
+	    _started = false;
+	    _trees = null;
+	    _variableIndex = null;
+	    _indexCursor = null;
+	    _currentLeaf = null;
+	    _currentBucket = null;
+	    _currentVar = null;
+
+	} // finish()
+
+
+
+	//
+	//          Private classes:
+	//
+
+	/** Keeps the state of the queries that reached
+	 *  a symbol node level, so that all the alternatives
+	 *  at the level can be tried with them.
+	 */
+	private /* inner */ class BatchLevel {
+
+	    public BatchLevel() {
+		queries = new int[InitialBatchCapacity];
+		cursors = new Flatterm[InitialBatchCapacity];
+		skips = new int[InitialBatchCapacity];
+		skipStarts = new int[InitialBatchCapacity];
+		skipVariables = new Flatterm[InitialBatchCapacity];
+		unifierSavepoints = new int[InitialBatchCapacity];
+		hashEntries = new SymbolNode[InitialBatchCapacity];
+	    }
+
+	    /** Saves the state of the active queries. */
+	    public final void set(TreeNode level) {
+
+		if (queries.length < _activeSize)
+		    {
+			int newCapacity = _queries.length;
+			queries = new int[newCapacity];
+			cursors = new Flatterm[newCapacity];
+			skips = new int[newCapacity];
+			skipStarts = new int[newCapacity];
+			skipVariables = new Flatterm[newCapacity];
+			unifierSavepoints = new int[newCapacity];
+			hashEntries = new SymbolNode[newCapacity];
+		    };
+
+		size = _activeSize;
+
+		for (int n = 0; n < size; ++n)
+		    {
+			int query = _active[n];
+			queries[n] = query;
+			cursors[n] = _cursors[query];
+			skips[n] = _skips[query];
+			skipStarts[n] = _skipStarts[query];
+			skipVariables[n] = _skipVariables[query];
+			unifierSavepoints[n] = _unifiers.get(query).savepoint();
+		    };
+
+		nextAlternative = level;
+		hash = null;
+		currentNode = null;
+		pathTerm = null;
+
+	    } // set(TreeNode level)
+
+
+	    /** Restores the saved state of the query in position 
+	     *  <code>n</code>.
+	     */
+	    public final void restore(int n) {
+		int query = queries[n];
+		_cursors[query] = cursors[n];
+		_skips[query] = skips[n];
+		_skipStarts[query] = skipStarts[n];
+		_skipVariables[query] = skipVariables[n];
+		_unifiers.get(query).backtrackTo(unifierSavepoints[n]);
+	    }
+
+	    /** Forgets the queries whose clusters do not pass
+	     *  the test.
+	     */
+	    public final void filter(ClusterTestNode test) {
+		int newSize = 0;
+		for (int n = 0; n < size; ++n)
+		    if (test.test(_clusters[queries[n]]))
+			{
+			    queries[newSize] = queries[n];
+			    cursors[newSize] = cursors[n];
+			    skips[newSize] = skips[n];
+			    skipStarts[newSize] = skipStarts[n];
+			    skipVariables[newSize] = skipVariables[n];
+			    unifierSavepoints[newSize] = unifierSavepoints[n];
+			    ++newSize;
+			};
+		size = newSize;
+	    }
+
+	    /** Releases all external pointers. */
+	    public final void clear() {
+		Arrays.fill(cursors,0,size,null);
+		Arrays.fill(skipVariables,0,size,null);
+		Arrays.fill(hashEntries,0,size,null);
+		size = 0;
+		nextAlternative = null;
+		hash = null;
+		currentNode = null;
+		pathTerm = null;
+	    }
+
+
+	    public int size;
+
+	    /** Numbers of the queries that reached the level. */
+	    public int[] queries;
+
+	    // Saved states of the queries:
+
+	    public Flatterm[] cursors;
+
+	    public int[] skips;
+
+	    public int[] skipStarts;
+
+	    public Flatterm[] skipVariables;
+
+	    public int[] unifierSavepoints;
+
+	    /** Next node to try in the alternative chain. */
+	    public TreeNode nextAlternative;
+
+	    /** Hash node whose entries are being tried, or null. */
+	    public SymbolHashNode hash;
+
+	    /** Indicates that the entries of <code>hash</code> are 
+	     *  looked up with the symbols of the queries rather than
+	     *  enumerated.
+	     */
+	    public boolean hashLookup;
+
+	    /** Entries for the queries if <code>hashLookup</code>. */
+	    public SymbolNode[] hashEntries;
+
+	    /** Next entry or position in <code>hashEntries</code> to try. */
+	    public int nextHashEntry;
+
+	    /** The symbol node being tried. */
+	    public SymbolNode currentNode;
+
+	    /** Last term built by <code>pathTerm(int,int)</code> 
+	     *  for <code>currentNode</code>, or null.
+	     */
+	    public Flatterm pathTerm;
+
+	    /** Start of <code>pathTerm</code>. */
+	    public int pathTermStart;
+
+	} // class BatchLevel
+
+
+
+	//
+	//          Private methods:
+	//
+
+	private void start() {
+
+	    _started = true;
+
+	    if (_version == null)
+		{
+		    ++_retrievalLocks;
+		    _trees = ClusteredUnificationIndex.this._nonvariableHash;
+		    _variableIndex = ClusteredUnificationIndex.this._variableIndex;
+		}
+	    else
+		{
+		    _trees = _version._nonvariableHash;
+		    _variableIndex = _version._variableIndex;
+		};
+
+	    // Order the queries by the trees they have to search,
+	    // variables first:
+
+	    long[] keys = new long[_numberOfQueries];
+	    _numberOfVariableQueries = 0;
+
+	    for (int n = 0; n < _numberOfQueries; ++n)
+		{
+		    int tree;
+		    if (_queries[n].isVariable())
+			{
+			    tree = -1;
+			    ++_numberOfVariableQueries;
+			}
+		    else
+			tree = _queries[n].symbol().hashCode() % NonvariableHashSize;
+		    keys[n] = (((long)(tree + 1)) << 32) | n;
+		};
+
+	    Arrays.sort(keys);
+
+	    _order = new int[_numberOfQueries];
+	    _orderTrees = new int[_numberOfQueries];
+	    for (int n = 0; n < _numberOfQueries; ++n)
+		{
+		    _order[n] = (int)keys[n];
+		    _orderTrees[n] = (int)(keys[n] >>> 32) - 1;
+		};
+
+	    _nextInOrder = _numberOfVariableQueries;
+	    _currentTree = -1;
+	    _currentQueryNumber = -1;
+	    _currentLeaf = null;
+	    _currentBucket = null;
+	    _retrievingFromVarIndex = false;
+	    _freshTree = false;
+
+	} // start()
+
+
+	/** Makes the queries for the next tree to be searched active.
+	 *  @return false if there are no more trees to search
+	 */
+	private boolean nextTree() {
+
+	    while (true)
+		{
+		    int nextGroupTree =
+			(_nextInOrder < _numberOfQueries)?
+			_orderTrees[_nextInOrder]
+			:
+			NonvariableHashSize;
+
+		    if (_numberOfVariableQueries == 0)
+			{
+			    _currentTree = nextGroupTree;
+			}
+		    else
+			++_currentTree;
+
+		    if (_currentTree >= NonvariableHashSize) return false;
+
+		    _activeSize = 0;
+
+		    if (_trees[_currentTree] != null)
+			for (int n = 0; n < _numberOfVariableQueries; ++n)
+			    activateQuery(_order[n]);
+
+		    while (_nextInOrder < _numberOfQueries &&
+			   _orderTrees[_nextInOrder] == _currentTree)
+			{
+			    if (_trees[_currentTree] != null)
+				activateQuery(_order[_nextInOrder]);
+			    ++_nextInOrder;
+			};
+
+		    if (_activeSize != 0)
+			{
+			    _indexCursor = _trees[_currentTree];
+			    return true;
+			};
+		}
+
+	} // nextTree()
+
+
+	private void activateQuery(int query) {
+	    _unifiers.get(query).backtrackTo(0);
+	    _cursors[query] = _queries[query];
+	    _skips[query] = 0;
+	    _skipVariables[query] = null;
+	    _active[_activeSize] = query;
+	    ++_activeSize;
+	}
+
+
+	/** Finds the next leaf reachable by some of the queries.
+	 *  @return false if there are no more leaves in the trees
+	 */
+	private boolean nextLeaf() {
+
+	    while (true)
+		{
+		    if (_freshTree)
+			{
+			    _freshTree = false;
+			    if (descend()) return true;
+			};
+
+		    while (_numberOfLevels != 0)
+			{
+			    BatchLevel level = _levels.get(_numberOfLevels - 1);
+
+			    if (nextAlternative(level))
+				{
+				    if (descend()) return true;
+				}
+			    else
+				{
+				    level.clear();
+				    --_numberOfLevels;
+				};
+			};
+
+		    if (!nextTree()) return false;
+
+		    _freshTree = true;
+		}
+
+	} // nextLeaf()
+
+
+	/** Follows <code>_indexCursor</code> with the active queries
+	 *  down to a leaf, always taking the first suitable alternative.
+	 *  @return false if a dead end is reached
+	 */
+	private boolean descend() {
+
+	    while (true)
+		{
+		    while (_indexCursor.isClusterTest())
+			{
+			    ClusterTestNode test = (ClusterTestNode)_indexCursor;
+			    int newSize = 0;
+			    for (int n = 0; n < _activeSize; ++n)
+				if (test.test(_clusters[_active[n]]))
+				    {
+					_active[newSize] = _active[n];
+					++newSize;
+				    };
+			    _activeSize = newSize;
+			    if (_activeSize == 0) return false;
+			    _indexCursor = test.treeBelow();
+			};
+
+		    if (_indexCursor.isLeaf())
+			{
+			    _currentLeaf = (LeafNode)_indexCursor;
+			    _currentLeafPosition = -1;
+			    return true;
+			};
+
+		    if (_numberOfLevels == _levels.size())
+			_levels.add(new BatchLevel());
+
+		    BatchLevel level = _levels.get(_numberOfLevels);
+		    ++_numberOfLevels;
+		    level.set(_indexCursor);
+
+		    if (!nextAlternative(level))
+			{
+			    level.clear();
+			    --_numberOfLevels;
+			    return false;
+			};
+		}
+
+	} // descend()
+
+
+	/** Tries the remaining alternatives at the level, 
+	 *  which must be the last one, until one of them can be
+	 *  followed by some of the queries; the queries 
+	 *  become active and <code>_indexCursor</code> is set to
+	 *  the tree below the alternative.
+	 *  @return false if there are no more alternatives 
+	 */
+	private boolean nextAlternative(BatchLevel level) {
+
+	    if (level.hash != null) return nextHashEntry(level);
+
+	    while (level.nextAlternative != null)
+		{
+		    TreeNode node = level.nextAlternative;
+
+		    if (node.isClusterTest())
+			{
+			    // The test guards the rest of the chain.
+			    level.filter((ClusterTestNode)node);
+			    if (level.size == 0) return false;
+			    level.nextAlternative = 
+				((ClusterTestNode)node).treeBelow();
+			}
+		    else if (node.isSymbolHash())
+			{
+			    level.nextAlternative = null;
+			    startHash(level,(SymbolHashNode)node);
+			    return nextHashEntry(level);
+			}
+		    else
+			{
+			    level.nextAlternative = 
+				((SymbolNode)node).alternative();
+			    if (follow(level,(SymbolNode)node)) return true;
+			};
+		};
+
+	    return false;
+
+	} // nextAlternative(BatchLevel level)
+
+
+	/** Decides how the entries of the hash have to be tried. */
+	private void startHash(BatchLevel level,SymbolHashNode hash) {
+
+	    level.hash = hash;
+	    level.nextHashEntry = 0;
+
+	    // The entries can be looked up if no query needs
+	    // a whole index subterm here:
+
+	    level.hashLookup = true;
+
+	    for (int n = 0; n < level.size; ++n)
+		if (level.skips[n] != 0 || level.cursors[n].isVariable())
+		    {
+			level.hashLookup = false;
+			return;
+		    };
+
+	    for (int n = 0; n < level.size; ++n)
+		level.hashEntries[n] = hash.find(level.cursors[n].symbol());
+
+	} // startHash(BatchLevel level,SymbolHashNode hash)
+
+
+	private boolean nextHashEntry(BatchLevel level) {
+
+	    if (!level.hashLookup)
+		{
+		    // Enumerate the entries as a normal chain
+		    // of alternatives:
+
+		    while (level.nextHashEntry < level.hash.size())
+			{
+			    SymbolNode entry = level.hash.entry(level.nextHashEntry);
+			    ++level.nextHashEntry;
+			    if (follow(level,entry)) return true;
+			};
+
+		    return false;
+		};
+
+	    while (level.nextHashEntry < level.size)
+		{
+		    int n = level.nextHashEntry;
+		    ++level.nextHashEntry;
+
+		    SymbolNode entry = level.hashEntries[n];
+
+		    if (entry == null) continue;
+
+		    boolean triedBefore = false;
+		    for (int m = 0; m < n && !triedBefore; ++m)
+			triedBefore = (level.hashEntries[m] == entry);
+		    if (triedBefore) continue;
+
+		    // All the queries looking for the same entry
+		    // follow it together:
+
+		    level.currentNode = entry;
+		    _activeSize = 0;
+
+		    for (int m = n; m < level.size; ++m)
+			if (level.hashEntries[m] == entry)
+			    {
+				level.restore(m);
+				int query = level.queries[m];
+				_cursors[query] = level.cursors[m].nextCell();
+				_active[_activeSize] = query;
+				++_activeSize;
+			    };
+
+		    _indexCursor = entry.treeBelow();
+		    return true;
+		};
+
+	    return false;
+
+	} // nextHashEntry(BatchLevel level)
+
+
+	/** Tries the symbol node with all the queries at the level;
+	 *  those that succeed become active.
+	 *  @return false if no query can follow the node
+	 */
+	private boolean follow(BatchLevel level,SymbolNode node) {
+
+	    level.currentNode = node;
+	    level.pathTerm = null;
+	    _activeSize = 0;
+
+	    for (int n = 0; n < level.size; ++n)
+		{
+		    level.restore(n);
+		    if (step(level.queries[n],node))
+			{
+			    _active[_activeSize] = level.queries[n];
+			    ++_activeSize;
+			};
+		};
+
+	    if (_activeSize == 0) return false;
+
+	    _indexCursor = node.treeBelow();
+	    return true;
+
+	} // follow(BatchLevel level,SymbolNode node)
+
+
+	/** Advances the query over the symbol node, which must be 
+	 *  <code>currentNode</code> in the last level.
+	 *  @return false if the query cannot follow the node
+	 */
+	private boolean step(int query,SymbolNode node) {
+
+	    int skip = _skips[query];
+
+	    if (skip == 0)
+		{
+		    Flatterm querySubterm = _cursors[query];
+
+		    if (querySubterm.isVariable())
+			{
+			    // A whole index subterm has to be skipped
+			    // and then unified with the variable.
+
+			    if (node.kind() == TreeNode.Kind.Predicate ||
+				node.kind() == TreeNode.Kind.Connective)
+				// Assignment of boolean-valued terms 
+				// to variables is not allowed.
+				return false;
+
+			    _skipVariables[query] = querySubterm;
+			    _skipStarts[query] = _numberOfLevels - 1;
+			    _cursors[query] = querySubterm.after();
+			    skip = 1;
+			}
+		    else if (node.isVariableNode())
+			{
+			    if (!_unifiers.get(query).
+				unify(((VariableNode)node).variable(),
+				      querySubterm))
+				return false;
+
+			    _cursors[query] = querySubterm.after();
+			    return true;
+			}
+		    else
+			{
+			    if (!node.symbol().equals(querySubterm.symbol()))
+				return false;
+
+			    _cursors[query] = querySubterm.nextCell();
+			    return true;
+			};
+		};
+
+	    // The query is skipping an index subterm:
+
+	    skip += node.symbol().arity() - 1;
+	    _skips[query] = skip;
+
+	    if (skip != 0) return true;
+
+	    // The whole index subterm is passed:
+
+	    return 
+		_unifiers.get(query).
+		unify(_skipVariables[query],
+		      pathTerm(_skipStarts[query]));
+
+	} // step(int query,SymbolNode node)
+
+
+	/** Term made of the symbols of the current nodes at the levels
+	 *  from <code>start</code> to the last one.
+	 */
+	private Flatterm pathTerm(int start) {
+
+	    BatchLevel last = _levels.get(_numberOfLevels - 1);
+
+	    if (last.pathTerm != null && last.pathTermStart == start)
+		return last.pathTerm;
+
+	    FlattermAssembler assembler = new FlattermAssembler();
+	    assembler.reset();
+	    for (int n = start; n < _numberOfLevels; ++n)
+		assembler.pushSymbol(_levels.get(n).currentNode.symbol());
+	    assembler.wrapUp();
+
+	    last.pathTerm = assembler.assembledTerm();
+	    last.pathTermStart = start;
+
+	    return last.pathTerm;
+
+	} // pathTerm(int start)
+
+
+	/** Finds the next query having objects in the current leaf. */
+	private boolean nextLeafBucket() {
+
+	    while (++_currentLeafPosition < _activeSize)
+		{
+		    int query = _active[_currentLeafPosition];
+
+		    LeafBucket bucket = 
+			_currentLeaf.bucket(_clusters[query]);
+
+		    if (bucket != null)
+			{
+			    _currentQueryNumber = query;
+			    _currentBucket = bucket;
+			    _currentObjectNumber = 0;
+			    return true;
+			};
+		};
+
+	    return false;
+
+	} // nextLeafBucket()
+
+
+	/** Finds the next indexed variable unifiable with one
+	 *  of the queries.
+	 */
+	private boolean nextVariableBucket() {
+
+	    while (true)
+		{
+		    if (_currentVar == null)
+			{
+			    ++_currentQueryNumber;
+
+			    if (_currentQueryNumber >= _numberOfQueries)
+				{
+				    _currentQueryNumber = -1;
+				    return false;
+				};
+
+			    TreeMap<Variable,LeafBucket> varToLeavesMap =
+				_variableIndex.get(_clusters[_currentQueryNumber]);
+
+			    if (varToLeavesMap == null) continue;
+
+			    _currentVar = varToLeavesMap.entrySet().iterator();
+			};
+
+		    LocalSubstitution unifier = 
+			_unifiers.get(_currentQueryNumber);
+
+		    while (_currentVar.hasNext())
+			{
+			    Map.Entry<Variable,LeafBucket> varAndLeaves = 
+				_currentVar.next();
+
+			    unifier.backtrackTo(0);
+
+			    if (unifier.unify(varAndLeaves.getKey(),
+					      _queries[_currentQueryNumber]))
+				{
+				    _currentBucket = varAndLeaves.getValue();
+				    _currentObjectNumber = 0;
+				    return true;
+				};
+			};
+
+		    _currentVar = null;
+		}
+
+	} // nextVariableBucket()
+
+
+
+	//
+	//          Private data:
+	//
+
+	/** The version being searched, or null if the index itself
+	 *  is searched.
+	 */
+	private final Version _version;
+
+	/** The index trees being searched in the current cycle. */
+	private TreeNode[] _trees;
+
+	/** The indexed variables being searched in the current cycle. */
+	private HashMap<ClusterId, TreeMap<Variable,LeafBucket>> _variableIndex;
+
+	private boolean _started;
+
+	private int _numberOfQueries;
+
+	private Flatterm[] _queries;
+
+	private ClusterId[] _clusters;
+
+	/** One unifier per query. */
+	private ArrayList<LocalSubstitution> _unifiers;
+
+	// Current states of the queries:
+
+	/** Next query subterm to be unified. */
+	private Flatterm[] _cursors;
+
+	/** Number of index subterms that remain to be passed
+	 *  before the query variable in <code>_skipVariables</code>
+	 *  can be unified with the passed index subterm; 
+	 *  0 if the query is not passing an index subterm.
+	 */
+	private int[] _skips;
+
+	/** Levels where the index subterms being passed begin. */
+	private int[] _skipStarts;
+
+	/** Query variables to be unified with the index subterms 
+	 *  being passed.
+	 */
+	private Flatterm[] _skipVariables;
+
+	/** Numbers of the queries following <code>_indexCursor</code>. */
+	private int[] _active;
+
+	private int _activeSize;
+
+	private TreeNode _indexCursor;
+
+	/** Levels of the current tree path. */
+	private ArrayList<BatchLevel> _levels;
+
+	private int _numberOfLevels;
+
+	/** Query numbers ordered by the trees the queries
+	 *  have to search; variables come first.
+	 */
+	private int[] _order;
+
+	/** The trees for the queries in <code>_order</code>,
+	 *  -1 for variables.
+	 */
+	private int[] _orderTrees;
+
+	private int _numberOfVariableQueries;
+
+	/** Position of the first query in <code>_order</code> 
+	 *  for the trees after <code>_currentTree</code>.
+	 */
+	private int _nextInOrder;
+
+	/** Identifies the index tree being used currently. */
+	private int _currentTree;
+
+	/** Indicates that nothing has been tried in the current tree yet. */
+	private boolean _freshTree;
+
+	private boolean _retrievingFromVarIndex;
+
+	private LeafNode _currentLeaf;
+
+	/** Position in <code>_active</code> of the query
+	 *  whose objects are being retrieved from <code>_currentLeaf</code>.
+	 */
+	private int _currentLeafPosition;
+
+	private int _currentQueryNumber;
+
+	private LeafBucket _currentBucket;
+
+	private int _currentObjectNumber;
+
+	private Iterator<Map.Entry<Variable,LeafBucket>> _currentVar;
+
+    } // class BatchRetrieval
+
+
+
+    /** Retrieval state for enumerating indexed terms from a specified
+     *  cluster that are generalizations of a query term, ie, 
+     *  terms that can be made equal to the query by instantiating
+     *  their variables only; variables of the query are treated 
+     *  as constants. The matchers are kept in {@link LocalSubstitution}
+     *  objects and bind only index variables; global instantiations
+     *  of variables are ignored.
+     *  Objects created with the public constructor work on the index 
+     *  itself, so retrieval cannot be interrupted with maintenance
+     *  operations; objects created with 
+     *  {@link Version#newGeneralizationRetrieval()} can be used 
+     *  like {@link SharedRetrieval} objects on the version.
+     */
+    public /* inner */ class GeneralizationRetrieval 
+	extends OneWayRetrievalImpl {
+
+	/** Creates a retrieval object working on the index itself. */
+	public GeneralizationRetrieval() {
+	    super(null);
+	}
+
+	private GeneralizationRetrieval(Version version) {
+	    super(version);
+	}
+
+
+	protected final boolean searchesAllTrees() { return false; }
+
+	protected final boolean searchesVariableIndex() { 
+	    return !_currentQuery.isFormula(); 
+	}
+
+	protected final boolean matchesIndexVariable(Variable var) {
+	    return bindIndexVariable(var,_currentQuery);
+	}
+
+
+	protected final boolean stepForward() {
+
+	    if (_indexCursor == null) return false;
+
+	    if (!passClusterTests()) return false;
+
+	    if (_queryCursor == _queryEnd)
+		{
+		    reachLeaf();
+		    return false;
+		};
+
+	    Flatterm querySubterm = _queryCursor;
+
+	    // Index variables can match any query subterm:
+
+	    while (_indexCursor.kind() == TreeNode.Kind.Variable)
+		{
+		    int unifierSavepoint = _unifier.savepoint();
+
+		    if (bindIndexVariable(((VariableNode)_indexCursor).variable(),
+					  querySubterm))
+			{
+			    pushBacktrackPoint(querySubterm,
+					       null,
+					       unifierSavepoint,
+					       ((VariableNode)_indexCursor).
+					       alternative(),
+					       null);
+			    _queryCursor = querySubterm.after();
+			    _indexCursor =
+				((VariableNode)_indexCursor).treeBelow();
+			    return true;
+			};
+
+		    _indexCursor = ((VariableNode)_indexCursor).alternative();
+
+		    if (_indexCursor == null || !passClusterTests())
+			return false;
+		};
+
+	    if (querySubterm.isVariable())
+		{
+		    // Query variables can only be matched by 
+		    // index variables.
+		    _indexCursor = null;
+		    return false;
+		};
+
+	    SymbolNode node = findSymbolNode(querySubterm.symbol());
+
+	    if (node == null)
+		{
+		    _indexCursor = null;
+		    return false;
+		};
+
+	    _queryCursor = querySubterm.nextCell();
+	    _indexCursor = node.treeBelow();
+	    return true;
+
+	} // stepForward()
+
+
+	/** Tries to extend the matcher with <code>var</code> mapped to
+	 *  <code>querySubterm</code>.
+	 */
+	private boolean bindIndexVariable(Variable var,Flatterm querySubterm) {
+
+	    Flatterm inst = _unifier.instance(var);
+
+	    if (inst != null) return inst.wholeTermEquals(querySubterm);
+
+	    // Formulas can never be assigned to variables.
+	    if (querySubterm.isFormula()) return false;
+
+	    _unifier.instantiate(var,querySubterm);
+	    return true;
+
+	} // bindIndexVariable(Variable var,Flatterm querySubterm)
+
+    } // class GeneralizationRetrieval
+
+
+
+    /** Retrieval state for enumerating indexed terms from a specified
+     *  cluster that are instances of a query term, ie, 
+     *  terms that can be obtained from the query by instantiating
+     *  its variables only; variables of the indexed terms are treated 
+     *  as constants. The matchers are kept in {@link LocalSubstitution}
+     *  objects and bind only query variables; global instantiations
+     *  of variables are ignored.
+     *  Objects created with the public constructor work on the index 
+     *  itself, so retrieval cannot be interrupted with maintenance
+     *  operations; objects created with 
+     *  {@link Version#newInstanceRetrieval()} can be used 
+     *  like {@link SharedRetrieval} objects on the version.
+     */
+    public /* inner */ class InstanceRetrieval 
+	extends OneWayRetrievalImpl {
+
+	/** Creates a retrieval object working on the index itself. */
+	public InstanceRetrieval() {
+	    super(null);
+	}
+
+	private InstanceRetrieval(Version version) {
+	    super(version);
+	}
+
+
+	protected final boolean searchesAllTrees() { return true; }
+
+	protected final boolean searchesVariableIndex() { 
+	    return _queryIsVariable; 
+	}
+
+	protected final boolean matchesIndexVariable(Variable var) {
+	    _unifier.instantiate(_currentQuery.variable(),
+				 Flatterm.newVariableCell(var));
+	    return true;
+	}
+
+
+	protected final boolean stepForward() {
+
+	    if (_indexCursor == null) return false;
+
+	    if (!passClusterTests()) return false;
+
+	    if (_literalCursor != null)
+		{
+		    // The index term must coincide with the instance
+		    // of a query variable seen before:
+
+		    SymbolNode node = findSymbolNode(_literalCursor.symbol());
+
+		    if (node == null)
+			{
+			    _indexCursor = null;
+			    return false;
+			};
+
+		    _literalCursor = _literalCursor.nextCell();
+		    if (_literalCursor == _literalEnd) _literalCursor = null;
+		    _indexCursor = node.treeBelow();
+		    return true;
+		};
+
+	    if (_queryCursor == _queryEnd)
+		{
+		    reachLeaf();
+		    return false;
+		};
+
+	    Flatterm querySubterm = _queryCursor;
+
+	    if (querySubterm.isVariable())
+		{
+		    Flatterm inst = _unifier.instance(querySubterm.variable());
+
+		    if (inst != null)
 			{
-			    if (_queryIsVariable)
-				{
-				    // Try another hash code:
+			    _literalCursor = inst;
+			    _literalEnd = inst.after();
+			    _queryCursor = querySubterm.after();
+			    return true;
+			};
 
-				    ++_currentHashCode;
+		    // Try all the tree path terms corresponding to
+		    // complete index terms:
 
-				    while (_currentHashCode < NonvariableHashSize)
-					{
+		    LocalTreePathTerm treePathTerm = pooledTreePathTerm();
 
-					    _indexCursor = _nonvariableHash[_currentHashCode];
-					    
-					    if (_indexCursor != null)
-						{
-						    // Try to find something in this tree:
-						    _queryCursor.reset(_currentQuery);
-						    _stackSize = 0; 
-						    if (completeSearch())
-							{
-							    retrievedIndexedObject.content = 
-								(IndexedObject)
-								((LeafNode)_indexCursor).
-								indexedObject();
-							    
-							    return true;
-							};
-						};
+		    return
+			treePathTerm.findFirst() &&
+			bindTreePathTerm(querySubterm,treePathTerm);
+		};
 
-					    ++_currentHashCode;
+	    // Index variables cannot be instantiated, so only the node
+	    // with the same symbol can be followed:
 
-					}; // while (_currentHashCode < NonvariableHashSize)
-				}; // if (_queryIsVariable)
+	    SymbolNode node = findSymbolNode(querySubterm.symbol());
 
-			    _retrievingFromVarIndex = true;
-			    _freshQuery = true;
+	    if (node == null)
+		{
+		    _indexCursor = null;
+		    return false;
+		};
 
-			    return retrieveNextFromVarIndex(retrievedIndexedObject);
+	    _queryCursor = querySubterm.nextCell();
+	    _indexCursor = node.treeBelow();
+	    return true;
 
-			}; // if (!completeSearch())
+	} // stepForward()
+
+    } // class InstanceRetrieval
+
+
+
+    /** Common implementation of {@link GeneralizationRetrieval}
+     *  and {@link InstanceRetrieval}; the subclasses define how 
+     *  the query and index symbols are matched.
+     */
+    private abstract /* inner */ class OneWayRetrievalImpl 
+	extends TreeRetrievalImpl {
+
+	/** @param version null if the index itself is searched */
+	public OneWayRetrievalImpl(Version version) {
+	    super(null,null);
+	    _version = version;
+	}
+
+
+
+	//
+	//          Implementation of the search:
+	//
+
+	/** Selects the trees of the index or the version. */
+	protected final void startCycle() {
+
+	    if (_version == null)
+		{
+		    ++_retrievalLocks;
+		    _nonvariableHash = 
+			ClusteredUnificationIndex.this._nonvariableHash;
+		    _variableIndex = 
+			ClusteredUnificationIndex.this._variableIndex;
 		}
-	    else // !_freshQuery
+	    else
 		{
-		    // Try another leaf:
+		    _nonvariableHash = _version._nonvariableHash;
+		    _variableIndex = _version._variableIndex;
+		};
 
-		    assert _indexCursor.isLeaf();
-		    
-		    do
-			{
-			    _indexCursor = ((LeafNode)_indexCursor).otherLeaves();
-			}
-		    while (_indexCursor != null &&
-			   !((LeafNode)_indexCursor).cluster().equals(_currentCluster));
-		    
-		    if (_indexCursor == null)
-			{
-			    // No more good leaves here, try to backtrack:
-			    if (!backtrack() || !completeSearch())
-				{
+	} // startCycle()
 
-				    if (_queryIsVariable)
-					{
-					    // Try another hash code:
-					    
-					    ++_currentHashCode;
-					    
-					    while (_currentHashCode < NonvariableHashSize)
-						{
-						    _indexCursor = _nonvariableHash[_currentHashCode];
-						    
-						    if (_indexCursor != null)
-							{
-							    // Try to find something in this tree:
-							    _queryCursor.reset(_currentQuery);
-							    _stackSize = 0; 
-							    if (completeSearch())
-								{
-								    retrievedIndexedObject.content = 
-									(IndexedObject)
-									((LeafNode)_indexCursor).
-									indexedObject();
-								    
-								    return true;
-								};
-							};
-						    
-						    ++_currentHashCode;
 
-						}; // while (_currentHashCode < NonvariableHashSize)
-					}; // if (_queryIsVariable)
+	protected final void endCycle() {
 
-				    _retrievingFromVarIndex = true;
-				    _freshQuery = true;
-				    
-				    return retrieveNextFromVarIndex(retrievedIndexedObject);
+	    if (_version == null) --_retrievalLocks;
 
-				}; // if (!backtrack() || !completeSearch())
-			}; // if (_indexCursor == null)
+	    _nonvariableHash = null;
+	    _variableIndex = null;
 
-		    assert _indexCursor != null;
+	} // endCycle()
 
-		}; // if (_freshQuery)
 
-	    assert _indexCursor != null;
+	/** Assigns the term represented by <code>treePathTerm</code>
+	 *  to the query variable <code>querySubterm</code>, so that
+	 *  the following terms can be tried on backtracking; always
+	 *  succeeds since the variable is not instantiated.
+	 */
+	protected final boolean bindTreePathTerm(Flatterm querySubterm,
+						 LocalTreePathTerm treePathTerm) {
+
+	    int unifierSavepoint = _unifier.savepoint();
 
-	    retrievedIndexedObject.content = 
-		(IndexedObject)((LeafNode)_indexCursor).indexedObject();
+	    pushBacktrackPoint(querySubterm,
+			       null,
+			       unifierSavepoint,
+			       null,
+			       treePathTerm);
 
+	    _unifier.instantiate(querySubterm.variable(),
+				 treePathTerm.flatterm());
+	    _queryCursor = querySubterm.after();
 	    return true;
 
-	} // retrieveNext(Ref<IndexedObject> retrievedIndexedObject)
+	} // bindTreePathTerm(Flatterm querySubterm,..)
 
 
 
+	//
+	//          Data:
+	//
 
+	/** The version being searched, or null if the index itself
+	 *  is searched.
+	 */
+	private final Version _version;
 
-	/** Must close every retrieval cycle regardless of whether
-	 *  the last call to {@link logic.is.power.logic_warehouse#ClusteredUnificationIndex#retrieveNext()}
-	 *  succeeded or not; after a call to this method, the global
-	 *  substitution is restored to the state it was in before 
-	 *  the corresponding call to {@link logic.is.power.logic_warehouse#ClusteredUnificationIndex#resetQuery(Flatterm,BitSet)}
-	 *  (unless, of course, something else is changing the substitution).
+    } // class OneWayRetrievalImpl
+
+
+
+    /** Read-only view of the index that can be shared by several
+     *  threads; see {@link #freeze()}.
+     */
+    public /* inner */ class FrozenView {
+
+	private FrozenView() { _released = false; }
+
+	/** Creates a new retrieval state working on this view;
+	 *  retrieval objects must not be shared by threads,
+	 *  but any number of them can be used in parallel.
 	 */
-	public final void finish() { 
+	public final SharedRetrieval newRetrieval() {
+	    assert !_released;
+	    return new SharedRetrieval(_nonvariableHash,_variableIndex);
+	}
 
-	    assert _currentQuery != null;
-	    
-	    //System.out.println("    FINISH " + _currentQuery);
+	/** Must be called when the view is not going to be used any more,
+	 *  in the thread that called {@link #freeze()}; no retrievals 
+	 *  on the view may be in progress at that moment.
+	 */
+	public final void release() {
+	    assert !_released;
+	    _released = true;
+	    --_frozenViews;
+	}
 
-	    _unifier.uninstantiateAll();
-	    _currentQuery = null;
-	    _currentCluster = null;
-	    _queryCursor.clear();
-	    _indexCursor = null;
-	    _currentVar = null; 
-	    _currentVarLeaf = null;
+	private boolean _released;
 
-	    while (_stackSize != 0)
+    } // class FrozenView
+
+
+
+    /** Immutable state of the index published with {@link #publish()};
+     *  can be shared by several threads, which may retrieve from it
+     *  in parallel with each other and with maintenance of the index.
+     *  A version is passed to other threads safely by
+     *  {@link #latestVersion()}; if it is passed in some other way,
+     *  the visibility of its content must be guaranteed, eg, with
+     *  a <code>java.util.concurrent</code> queue or executor.
+     */
+    public /* inner */ class Version {
+
+	private Version(TreeNode[] nonvariableHash,
+			HashMap<ClusterId, TreeMap<Variable,LeafBucket>> variableIndex) {
+	    _nonvariableHash = nonvariableHash;
+	    _variableIndex = variableIndex;
+	}
+
+	/** Creates a new retrieval state working on this version;
+	 *  retrieval objects must not be shared by threads,
+	 *  but any number of them can be used in parallel.
+	 */
+	public final SharedRetrieval newRetrieval() {
+	    return new SharedRetrieval(_nonvariableHash,_variableIndex);
+	}
+
+	/** Creates a new batch retrieval state working on this version;
+	 *  the same restrictions as for {@link #newRetrieval()} apply.
+	 */
+	public final BatchRetrieval newBatchRetrieval() {
+	    return new BatchRetrieval(this);
+	}
+
+	/** Creates a new generalization retrieval state working on 
+	 *  this version; the same restrictions as for 
+	 *  {@link #newRetrieval()} apply.
+	 */
+	public final GeneralizationRetrieval newGeneralizationRetrieval() {
+	    return new GeneralizationRetrieval(this);
+	}
+
+	/** Creates a new instance retrieval state working on 
+	 *  this version; the same restrictions as for 
+	 *  {@link #newRetrieval()} apply.
+	 */
+	public final InstanceRetrieval newInstanceRetrieval() {
+	    return new InstanceRetrieval(this);
+	}
+
+	/** Same as {@link ClusteredUnificationIndex#statistics()},
+	 *  but for this version.
+	 */
+	public final Statistics statistics() {
+	    return new Statistics(_nonvariableHash,_variableIndex);
+	}
+
+	/** Encodes this version compactly; the result is not affected
+	 *  by later modifications of the index.
+	 */
+	public final CompactVersion compact() {
+	    return new CompactVersion(this);
+	}
+
+	/** Copy of <code>ClusteredUnificationIndex._nonvariableHash</code>
+	 *  at the moment of publication; the trees are never modified.
+	 */
+	private final TreeNode[] _nonvariableHash;
+
+	/** <code>ClusteredUnificationIndex._variableIndex</code>
+	 *  at the moment of publication; never modified.
+	 */
+	private final 
+	    HashMap<ClusterId, TreeMap<Variable,LeafBucket>> _variableIndex;
+
+    } // class Version
+
+
+
+    /** Compact read-only image of a published {@link Version},
+     *  created with {@link Version#compact()}. The index trees are
+     *  encoded as records of {@link #CompactRecordSize} ints in one
+     *  array instead of node objects, which saves the object headers
+     *  and pointers of the nodes and keeps the trees in contiguous
+     *  memory. Each record consists of the node kind, the number
+     *  of the symbol, cluster mask or leaf of the node, and the
+     *  positions of the records for the tree below the node and for
+     *  the next alternative. The tree below a node immediately
+     *  follows its record. The entries of a symbol hash are stored
+     *  contiguously and sorted by their symbols, so that they can be
+     *  looked up by binary search. Leaves are kept as they are.
+     *  Like the version, the image can be shared by several threads,
+     *  that search it with their own {@link CompactRetrieval}s.
+     */
+    public /* inner */ class CompactVersion {
+
+	private CompactVersion(Version version) {
+
+	    _variableIndex = version._variableIndex;
+
+	    _records = new int[CompactRecordSize * InitialCompactCapacity];
+	    _size = 0;
+	    _symbolList = new ArrayList<Symbol>();
+	    _symbolNumbers = new IdentityHashMap<Symbol,Integer>();
+	    _maskList = new ArrayList<ClusterId>();
+	    _maskNumbers = new HashMap<ClusterId,Integer>();
+	    _leafList = new ArrayList<LeafNode>();
+
+	    _roots = new int[NonvariableHashSize];
+	    for (int n = 0; n < NonvariableHashSize; ++n)
+		_roots[n] = encode(version._nonvariableHash[n]);
+
+	    _records = Arrays.copyOf(_records,_size);
+	    _symbols = _symbolList.toArray(new Symbol[_symbolList.size()]);
+	    _masks = _maskList.toArray(new ClusterId[_maskList.size()]);
+	    _leaves = new LeafNode[_leafList.size()];
+	    for (int n = 0; n < _leaves.length; ++n)
+		_leaves[n] = _leafList.get(n);
+
+	    // Only needed for encoding:
+	    _symbolList = null;
+	    _symbolNumbers = null;
+	    _maskList = null;
+	    _maskNumbers = null;
+	    _leafList = null;
+
+	} // CompactVersion(Version version)
+
+
+	/** Creates a new retrieval state working on this image;
+	 *  retrieval objects must not be shared by threads,
+	 *  but any number of them can be used in parallel.
+	 */
+	public final CompactRetrieval newRetrieval() {
+	    return new CompactRetrieval(this);
+	}
+
+	/** Number of nodes in the encoded trees. */
+	public final int numberOfRecords() {
+	    return _records.length / CompactRecordSize;
+	}
+
+	/** Number of distinct symbols in the encoded trees. */
+	public final int numberOfSymbols() { return _symbols.length; }
+
+	/** Number of leaves in the encoded trees. */
+	public final int numberOfLeaves() { return _leaves.length; }
+
+
+	//
+	//          Private methods:
+	//
+
+	/** Appends the records for <code>node</code> and everything
+	 *  reachable from it.
+	 *  @return position of the record for <code>node</code>, or
+	 *          {@link #NoRecord} if <code>node</code> is null
+	 */
+	private int encode(TreeNode node) {
+
+	    if (node == null) return NoRecord;
+
+	    int record;
+	    int below;
+
+	    // Note that the records may be reallocated by the recursive
+	    // calls, so that the positions are saved in local variables
+	    // before the records are modified.
+
+	    switch (node.kind())
 		{
-		    --_stackSize;
-		    _backtrackPointStack.get(_stackSize).clear();
+		case TreeNode.Kind.Variable: // as below
+		case TreeNode.Kind.Function: // as below
+		case TreeNode.Kind.Constant: // as below
+		case TreeNode.Kind.Predicate: // as below
+		case TreeNode.Kind.Connective:
+		    {
+			record =
+			    newRecords(1,
+				       node.kind(),
+				       symbolNumber(((SymbolNode)node).symbol()));
+			below = encode(((SymbolNode)node).treeBelow());
+			_records[record + CompactBelowField] = below;
+			int alternative = encode(((SymbolNode)node).alternative());
+			_records[record + CompactAlternativeField] = alternative;
+			return record;
+		    }
+
+		case TreeNode.Kind.ClusterSetBitTest: // as below
+		case TreeNode.Kind.ClusterClearBitTest:
+		    record =
+			newRecords(1,
+				   node.kind(),
+				   maskNumber(((ClusterTestNode)node)._mask));
+		    below = encode(((ClusterTestNode)node).treeBelow());
+		    _records[record + CompactBelowField] = below;
+		    return record;
+
+		case TreeNode.Kind.Leaf:
+		    _leafList.add((LeafNode)node);
+		    return newRecords(1,node.kind(),_leafList.size() - 1);
+
+		case TreeNode.Kind.SymbolHash:
+		    {
+			SymbolHashNode hash = (SymbolHashNode)node;
+			SymbolNode[] entries = new SymbolNode[hash.size()];
+			for (int n = 0; n < entries.length; ++n)
+			    entries[n] = hash.entry(n);
+
+			Arrays.sort(entries,
+				    new Comparator<SymbolNode>() {
+					public int compare(SymbolNode node1,
+							   SymbolNode node2) {
+					    return
+						node1.symbol().compareTo(node2.symbol());
+					}
+				    });
+
+			record = newRecords(1,node.kind(),entries.length);
+
+			// The entries are allocated together:
+			int firstEntry = newRecords(entries.length,0,0);
+			_records[record + CompactBelowField] =
+			    (entries.length == 0)? NoRecord : firstEntry;
+
+			for (int n = 0; n < entries.length; ++n)
+			    {
+				int entry = firstEntry + n * CompactRecordSize;
+				_records[entry + CompactKindField] =
+				    entries[n].kind();
+				_records[entry + CompactDataField] =
+				    symbolNumber(entries[n].symbol());
+				_records[entry + CompactAlternativeField] =
+				    (n + 1 < entries.length)?
+				    entry + CompactRecordSize
+				    :
+				    NoRecord;
+				below = encode(entries[n].treeBelow());
+				_records[entry + CompactBelowField] = below;
+			    };
+
+			return record;
+		    }
+
+		}; // switch (node.kind())
+
+	    assert false;
+	    return NoRecord;
+
+	} // encode(TreeNode node)
+
+
+	/** Appends <code>number</code> records with the specified kind
+	 *  and data, and no tree below or alternative.
+	 *  @return position of the first of the records
+	 */
+	private int newRecords(int number,int kind,int data) {
+
+	    int result = _size;
+
+	    _size += number * CompactRecordSize;
+
+	    if (_size > _records.length)
+		_records =
+		    Arrays.copyOf(_records,
+				  Math.max(2 * _records.length,_size));
+
+	    for (int record = result; record < _size; record += CompactRecordSize)
+		{
+		    _records[record + CompactKindField] = kind;
+		    _records[record + CompactDataField] = data;
+		    _records[record + CompactBelowField] = NoRecord;
+		    _records[record + CompactAlternativeField] = NoRecord;
 		};
 
-	    --_retrievalLocks;
-	} // finish()
+	    return result;
+
+	} // newRecords(int number,int kind,int data)
+
+
+	private int symbolNumber(Symbol sym) {
+	    Integer result = _symbolNumbers.get(sym);
+	    if (result == null)
+		{
+		    result = Integer.valueOf(_symbolList.size());
+		    _symbolList.add(sym);
+		    _symbolNumbers.put(sym,result);
+		};
+	    return result.intValue();
+	}
+
+	private int maskNumber(ClusterId mask) {
+	    Integer result = _maskNumbers.get(mask);
+	    if (result == null)
+		{
+		    result = Integer.valueOf(_maskList.size());
+		    _maskList.add(mask);
+		    _maskNumbers.put(mask,result);
+		};
+	    return result.intValue();
+	}
 
 
 
 	//
-	//          Private classes:
+	//          Private data:
 	//
-	
-	/** Represents intervals of tree paths corresponding to well-formed
-	 *  <b>individual-valued</b> terms that can instantiate specified variables.
+
+	/** Node records; see {@link #CompactRecordSize}. */
+	private int[] _records;
+
+	/** Number of used elements in <code>_records</code>,
+	 *  during encoding.
+	 */
+	private int _size;
+
+	/** Positions of the records for the roots of the trees
+	 *  corresponding to <code>Version._nonvariableHash</code>,
+	 *  or {@link #NoRecord}.
+	 */
+	private final int[] _roots;
+
+	/** Symbols of the symbol nodes, indexed by the data fields. */
+	private final Symbol[] _symbols;
+
+	/** Masks of the cluster test nodes, indexed by the data fields. */
+	private final ClusterId[] _masks;
+
+	/** Leaves, indexed by the data fields. */
+	private final LeafNode[] _leaves;
+
+	/** <code>Version._variableIndex</code> of the compacted version. */
+	private final
+	    HashMap<ClusterId, TreeMap<Variable,LeafBucket>> _variableIndex;
+
+	// Only used during encoding:
+
+	private ArrayList<Symbol> _symbolList;
+
+	private IdentityHashMap<Symbol,Integer> _symbolNumbers;
+
+	private ArrayList<ClusterId> _maskList;
+
+	/** Equal masks get the same number. */
+	private HashMap<ClusterId,Integer> _maskNumbers;
+
+	private ArrayList<LeafNode> _leafList;
+
+    } // class CompactVersion
+
+
+
+    /** Retrieval state for {@link CompactVersion}s: enumerates all
+     *  successful unifications between a query term and all indexed
+     *  terms from a specified cluster, exactly like
+     *  {@link SharedRetrieval}, but reads the encoded trees.
+     *  All the state is kept in reusable arrays, so that a
+     *  steady-state retrieval does not allocate memory.
+     *  <b>IMPORTANT:</b> global instantiations of variables, both
+     *             in the query and in the index, are ignored.
+     */
+    public /* inner */ class CompactRetrieval extends LocalRetrievalImpl {
+
+	private CompactRetrieval(CompactVersion image) {
+	    _image = image;
+	    _records = image._records;
+	    _symbols = image._symbols;
+	    _indexCursor = NoRecord;
+	    _stackSize = 0;
+	    _stackHighWater = 0;
+	    _querySubterms = new Flatterm[InitialRetrievalStackCapacity];
+	    _unifierSavepoints = new int[InitialRetrievalStackCapacity];
+	    _indexCursors = new int[InitialRetrievalStackCapacity];
+	    _treePathTerms =
+		new ArrayList<CompactTreePathTerm>(InitialRetrievalStackCapacity);
+	}
+
+
+
+	//
+	//          Private classes:
+	//
+
+	/** Similar to <code>RetrievalImpl.TreePathTerm</code>: represents
+	 *  intervals of tree paths corresponding to well-formed
+	 *  <b>individual-valued</b> terms; the objects are pooled
+	 *  and reused.
 	 */
-	private /* inner */ class TreePathTerm {
+	private /* inner */ class CompactTreePathTerm {
 
-	    public TreePathTerm(Variable var) {
-		_variable = var;
-		_nodeStack = new LinkedList<SymbolNode>();
-		_holeStack = new LinkedList<Integer>();
+	    public CompactTreePathTerm() {
+		_depth = 0;
+		_nodeStack = new int[InitialRetrievalStackCapacity];
+		_holeStack = new int[InitialRetrievalStackCapacity];
 		_flatterm = new FlattermAssembler();
 	    }
-	    	    
-	    /** The value of <code>var</code> in the constructor call 
-	     *  that created this object.
-	     */
-	    public final Variable variable() { return _variable; }
 
 	    /** Flatterm corresponding to the tree path interval.
 	     *  <b>pre:</b> the tree path interval represents a complete
 	     *  well-formed term.
 	     */
-	    public final Flatterm flatterm() { return _flatterm.assembledTerm(); } 
-
-	    /** Checks if the collected tree path interval represents a simple
-	     *  term syntactically identical to {@link #variable()}.
-	     */
-	    public final boolean isIdenticalToVar() {
-		return _flatterm.assembledTerm().isVariable() &&
-		    (_flatterm.assembledTerm().variable() == _variable ||
-		     (_flatterm.assembledTerm().variable().isInstantiated1() &&
-		      _flatterm.assembledTerm().variable().ultimateInstance1().isVariable() &&
-		      _flatterm.assembledTerm().variable().ultimateInstance1().variable() == _variable));
-	    }
-
+	    public final Flatterm flatterm() { return _flatterm.assembledTerm(); }
 
 	    public final boolean findFirst() {
-
+		_depth = 0;
 		_openHoles = 1;
-
-		while (true)
-		    {
-			while (smallStepForward()) {};
-			
-			// Either all holes are filled, or a dead end
-			// is reached and a backtrack is required.
-			
-			if (_indexCursor != null &&
-			    _openHoles == 0)
-			    {
-				assembleFlatterm();
-				return true;
-			    };
-
-			if (!treePathBacktrack()) return false;
-		    }
-		
-	    } // findFirst()
-	    
+		return search();
+	    }
 
 	    public final boolean findNext() {
-
 		if (!treePathBacktrack()) return false;
+		return search();
+	    }
+
+
+	    private boolean search() {
 
 		while (true)
 		    {
 			while (smallStepForward()) {};
-			
+
 			// Either all holes are filled, or a dead end
 			// is reached and a backtrack is required.
-			
-			if (_indexCursor != null &&
+
+			if (_indexCursor != NoRecord &&
 			    _openHoles == 0)
 			    {
-				assembleFlatterm();
+				// The previous flatterm is not referenced
+				// by the unifier any more.
+				_flatterm.recycle();
+				for (int n = 0; n < _depth; ++n)
+				    _flatterm.
+					pushSymbol(_symbols[_records[_nodeStack[n] +
+								     CompactDataField]]);
+				_flatterm.wrapUp();
 				return true;
 			    };
 
 			if (!treePathBacktrack()) return false;
 		    }
 
-	    } // findNext()
-
-
-
-	    public final String toString() {
-		
-		return
-		    "Tree-path term:\n" +
-		    "  Var = " + _variable + "\n" +
-		    "  Holes = " + _openHoles + "\n" +
-		    "  Node stack = " + _nodeStack + "\n" +
-		    "  Hole stack = " + _holeStack;
-
-	    } // toString()
-
+	    } // search()
 
-	    private boolean atTopLevel() { return _nodeStack.isEmpty(); }
 
-	    
 	    private boolean smallStepForward() {
-	    
+
 		if (_openHoles == 0) return false;
 
-		while (_indexCursor != null)
+		while (_indexCursor != NoRecord)
 		    {
 			if (!passClusterTests()) return false;
 
-			switch (_indexCursor.kind())
+			switch (_records[_indexCursor + CompactKindField])
 			    {
-			    case TreeNode.Kind.Variable:
-				{
-				    Variable nodeVar = ((VariableNode)_indexCursor).variable();
-
-				    if (nodeVar == _variable ||
-					(nodeVar.isInstantiated1() && 
-					 nodeVar.ultimateInstance1().isVariable() &&
-					 nodeVar.ultimateInstance1().variable() == _variable))
-					if (_nodeStack.isEmpty())
-					    {
-						// The whole tree-path term is just this variable:
-						_nodeStack.addLast((VariableNode)_indexCursor);
-						_holeStack.addLast(new Integer(_openHoles));
-						--_openHoles;
-						_indexCursor = 
-						    ((VariableNode)_indexCursor).treeBelow();
-						return true;
-					    }
-					else
-					    {
-						// Look among the alternatives:
-						_indexCursor = 
-						    ((VariableNode)_indexCursor).alternative();
-						return true;
-					    };
-				    
-
-				    if (nodeVar.isInstantiated1() &&
-					FlattermInstance.contains(nodeVar.ultimateInstance1(),
-								  _variable))
-					{
-					    _indexCursor = 
-						((VariableNode)_indexCursor).alternative();
-					    return true;
-					};
-
-				    _nodeStack.addLast((VariableNode)_indexCursor);
-				    _holeStack.addLast(new Integer(_openHoles));
-				    --_openHoles;
-				    _indexCursor = 
-					((VariableNode)_indexCursor).treeBelow();
-				    return true;
-				}
-			
-			    case TreeNode.Kind.Function:
-				_nodeStack.addLast((FunctionNode)_indexCursor);
-				_holeStack.addLast(new Integer(_openHoles));
-				_openHoles += 
-				    ((FunctionNode)_indexCursor).function().arity() - 
-				    1;
-				_indexCursor = 
-				    ((FunctionNode)_indexCursor).treeBelow();
-				return true;
-
+			    case TreeNode.Kind.Variable: // as below
+			    case TreeNode.Kind.Function: // as below
 			    case TreeNode.Kind.Constant:
-				_nodeStack.addLast((ConstantNode)_indexCursor);
-				_holeStack.addLast(new Integer(_openHoles));
-				--_openHoles;
-				_indexCursor = 
-				    ((ConstantNode)_indexCursor).treeBelow();
+				push();
 				return true;
 
+			    case TreeNode.Kind.SymbolHash:
+				// Enumerate the entries as a normal chain
+				// of alternatives:
+				_indexCursor =
+				    _records[_indexCursor + CompactBelowField];
+				break;
+
 			    case TreeNode.Kind.Predicate: // as below
 			    case TreeNode.Kind.Connective:
-				if (atTopLevel())
+				if (_depth == 0)
 				    {
-					// Assignment of boolean-valued terms to variables
-					// is not allowed.
-					_indexCursor = 
-					    ((ConstantNode)_indexCursor).alternative();
+					// Assignment of boolean-valued terms
+					// to variables is not allowed.
+					_indexCursor =
+					    _records[_indexCursor + CompactAlternativeField];
 				    }
 				else
 				    {
 					// Nested boolean-valued terms are allowed:
-					_nodeStack.addLast((SymbolNode)_indexCursor);
-					_holeStack.addLast(new Integer(_openHoles));
-					_openHoles += 
-					    ((SymbolNode)_indexCursor).symbol().arity() - 1;
-					_indexCursor = 
-					    ((SymbolNode)_indexCursor).treeBelow();
+					push();
 					return true;
-				    }
+				    };
+				break;
 
-			    } // switch (_indexCursor.kind())
+			    } // switch (_records[_indexCursor + CompactKindField])
 
-		    }; // while (_indexCursor != null)
+		    }; // while (_indexCursor != NoRecord)
 
 		return false;
 
 	    } // smallStepForward()
 
 
+	    /** Saves the current symbol node and descends below it. */
+	    private void push() {
 
-
-	    private boolean treePathBacktrack() {
-
-		while (!_nodeStack.isEmpty())
+		if (_depth == _nodeStack.length)
 		    {
-			assert !_holeStack.isEmpty();
-			_openHoles = _holeStack.removeLast().intValue();
-			_indexCursor = _nodeStack.removeLast().alternative();
-			if (_indexCursor != null) return true;
+			_nodeStack = Arrays.copyOf(_nodeStack,2 * _depth);
+			_holeStack = Arrays.copyOf(_holeStack,2 * _depth);
 		    };
 
-		return false;
-
-	    } // treePathBacktrack()
-
-
-
-	    private void assembleFlatterm() {
-
-		_flatterm.reset();
-		
-		for (SymbolNode node : _nodeStack)
-		    _flatterm.pushSymbol(node.symbol());
-		
-		_flatterm.wrapUp();
-
-	    } // assembleFlatterm()
-
-
-
-
-	    //
-	    //       Private data:
-	    //  
-	    
-
-	    private Variable _variable;
-
-	    private int _openHoles;
-
-	    private LinkedList<SymbolNode> _nodeStack;
-	    
-	    private LinkedList<Integer> _holeStack;
-
-	    private FlattermAssembler _flatterm;
-
-	} // class TreePathTerm
-
-
-	/** TODO: can be optimised by making it static */
-	private /* inner */ class BacktrackPoint {
-
-	    public BacktrackPoint(TreePathTerm treePath,
-				  int queryCursSavepoint)
-	    {
-		treePathTerm = treePath;
-		queryCursorSavepoint = queryCursSavepoint;
-		assert treePath != null;
-	    }
-
-	    /** <b>pre:</b> <code>indexCurs</code> can be null. */
-	    public BacktrackPoint(int queryCursSavepoint,
-				  int unifSavepoint,
-				  TreeNode indexCurs)
-	    {
-		treePathTerm = null;
-		queryCursorSavepoint = queryCursSavepoint;
-		unifierSavepoint = unifSavepoint;
-		indexCursor = indexCurs;
-	    }
-
-	    public final void set(TreePathTerm treePath,
-			    int queryCursSavepoint)
-	    {
-		treePathTerm = treePath;
-		queryCursorSavepoint = queryCursSavepoint;
-	    }
-
-	    /** <b>pre:</b> <code>indexCurs</code> can be null. */
-	    public final void set(int queryCursSavepoint,
-			    int unifSavepoint,
-			    TreeNode indexCurs)
-	    {
-		treePathTerm = null;
-		queryCursorSavepoint = queryCursSavepoint;
-		unifierSavepoint = unifSavepoint;
-		indexCursor = indexCurs;
-	    }
-	    
-	    /** Releases all external pointers. */
-	    public final void clear() {
-		treePathTerm = null;
-		indexCursor = null;
-	    }
-	    
-	    public TreePathTerm treePathTerm;
-
-	    public int queryCursorSavepoint;
-
-	    public int unifierSavepoint;
-	    
-	    public TreeNode indexCursor;
-	    
-	} // class BacktrackPoint
-
-
-
+		_nodeStack[_depth] = _indexCursor;
+		_holeStack[_depth] = _openHoles;
+		++_depth;
 
+		_openHoles +=
+		    _symbols[_records[_indexCursor + CompactDataField]].arity() - 1;
+		_indexCursor = _records[_indexCursor + CompactBelowField];
 
-	//
-	//          Private methods:
-	//
-
-
-	/** Find the first tree path term whose corresponding flatterm
-	 *  can be assigned to <code>var</code> in the unifier.
-	 *  @return null if such tree path term cannot be found
-	 */
-	private TreePathTerm findFirstPathTerm(Variable var) {
-
-	    TreePathTerm result = new TreePathTerm(var);
-
-	    if (result.findFirst()) return result;
-	    
-	    return null;
+	    } // push()
 
-	} // findFirstPathTerm(Variable var)
-	
 
+	    private boolean treePathBacktrack() {
 
-	
-      
-	/** Tries to retrieve another indexed object from the current 
-	 *  query cluster, that is associated with a variable unifiable with
-	 *  the current query term; adjusts the global substitution
-	 *  accordingly.
-	 *  @param retrievedIndexedObject where the retrieved indexed
-	 *         object is assigned if the retrieval is successfull
-	 *  @return false if no more objects can be retrieved for 
-	 *          this query
-	 */
-	public 
-	    final 
-	    boolean 
-	    retrieveNextFromVarIndex(Ref<IndexedObject> retrievedIndexedObject) {
+		while (_depth != 0)
+		    {
+			--_depth;
+			_openHoles = _holeStack[_depth];
+			_indexCursor =
+			    _records[_nodeStack[_depth] + CompactAlternativeField];
+			if (_indexCursor != NoRecord) return true;
+		    };
 
-	    if (_freshQuery)
-		{
-		    _freshQuery = false;
-		    
-		    TreeMap<Variable,LeafNode> varToLeavesMap = 
-			_variableIndex.get(_currentCluster);
-		    
-		    if (varToLeavesMap == null) return false;
+		return false;
 
-		    _currentVar = varToLeavesMap.entrySet().iterator();
-		    
-		    _unifierSavepointBeforeRetrievalFromVarIndex = 
-			_unifier.savepoint();
+	    } // treePathBacktrack()
 
-		}
-	    else // !_freshQuery
-		{
-		    // Try another leave for the same index variable:
-		    
-		    if (_currentVarLeaf != null)
-			{
-			    retrievedIndexedObject.content =
-				(IndexedObject)_currentVarLeaf.indexedObject();
 
-			    _currentVarLeaf = _currentVarLeaf.otherLeaves();
-		    
-			    return true;
-			};
+	    private int _openHoles;
 
-		    _unifier.backtrackTo(_unifierSavepointBeforeRetrievalFromVarIndex);
+	    /** Current size of <code>_nodeStack</code> and <code>_holeStack</code>. */
+	    private int _depth;
 
+	    /** Positions of the records of the symbol nodes on the path. */
+	    private int[] _nodeStack;
 
+	    private int[] _holeStack;
 
+	    private FlattermAssembler _flatterm;
 
-		}; // if (_freshQuery)
+	} // class CompactTreePathTerm
 
 
-		    
-	    while (_currentVar.hasNext())
-		{
-		    Map.Entry<Variable,LeafNode> varAndLeaves = _currentVar.next();
-		    
-		    if (Unification.unify(varAndLeaves.getKey(),_currentQuery,_unifier))
-			{
-			    retrievedIndexedObject.content =
-				(IndexedObject)varAndLeaves.getValue().indexedObject();
-			    
-			    _currentVarLeaf = varAndLeaves.getValue().otherLeaves();
-			    
-			    return true;
-			};
-		    
-		};
-	    
-	    return false;
 
-	} // retrieveNextFromVarIndex(Ref<IndexedObject> retrievedIndexedObject)
-	
+	//
+	//          Implementation of the search:
+	//
 
+	protected final 
+	    HashMap<ClusterId, TreeMap<Variable,LeafBucket>> variableIndex() {
+	    return _image._variableIndex;
+	}
 
+	protected final boolean enterTree(int hashCode) {
+	    _indexCursor = _image._roots[hashCode];
+	    return _indexCursor != NoRecord;
+	}
 
-	private boolean completeSearch() {
-	    // NOTE THAT WE CANNOT AFFORD RECURSION
-	    // ALONG BACKTRACKING HERE: THIS WOULD CAUSE
-	    // STACK OVERFLOWS.
+	protected final boolean atLeaf() {
+	    return
+		_indexCursor != NoRecord &&
+		_records[_indexCursor + CompactKindField] == TreeNode.Kind.Leaf;
+	}
 
-	    while (true)
-		{
-		    while (stepForward()) 
-			{
-			    // empty
-			};
+	protected final void clearSearchState() {
 
-		    // Either found a good leaf or backtrack
-		    // is required.
-		    
-		    if (_indexCursor != null &&
-			_indexCursor.isLeaf())
-			return true;
-		    
+	    _indexCursor = NoRecord;
 
-	    
-		    ///System.out.println("REACHED " + _indexCursor);
-			
-		    if (!backtrack()) return false;
+	    // Release the query terms kept in the backtrack points:
 
-		}
+	    for (int n = 0; n < _stackHighWater; ++n)
+		_querySubterms[n] = null;
 
-	} // completeSearch()
+	    _stackSize = 0;
+	    _stackHighWater = 0;
 
+	} // clearSearchState()
 
 
+	protected final boolean stepForward() {
 
-	private boolean stepForward() {
+	    if (_indexCursor == NoRecord) return false;
 
-	    assert GlobalEventCounter.inc();
+	    if (!passClusterTests()) return false;
 
-	    if (_indexCursor == null) 
+	    if (_queryCursor == _queryEnd)
 		{
-		    
-	    
-		    //System.out.println("INDEX CURSOR NULL");
-		    
+		    // end of query
+
+		    assert
+			_records[_indexCursor + CompactKindField] ==
+			TreeNode.Kind.Leaf;
+
+		    if (!enterLeaf(_image._leaves[_records[_indexCursor +
+							   CompactDataField]]))
+			_indexCursor = NoRecord;
+
 		    return false;
+		    // indicates that this was the last step.
 		};
 
-	    if (!passClusterTests())
+	    Flatterm querySubterm = _queryCursor;
+
+	    if (querySubterm.isVariable())
 		{
+		    // Try all the tree path terms corresponding to
+		    // complete index terms:
 
-	    
-		    //System.out.println("CLUSTER TEST FAILURE");
+		    CompactTreePathTerm treePathTerm = pooledTreePathTerm();
 
-		    return false;
+		    return
+			treePathTerm.findFirst() &&
+			unifyWithTreePathTerms(querySubterm,treePathTerm);
 		};
 
-	    if (!_queryCursor.hasNext())
+
+	    while (_records[_indexCursor + CompactKindField] ==
+		   TreeNode.Kind.Variable)
 		{
-		    // end of query
-			
-	    
-		    //System.out.println("QUERY END");
+		    int unifierSavepoint = _unifier.savepoint();
+		    Variable var =
+			(Variable)
+			_symbols[_records[_indexCursor + CompactDataField]];
 
-		    assert _indexCursor.isLeaf();
+		    if (_unifier.unify(var,querySubterm))
+			{
+			    pushBacktrackPoint(querySubterm,
+					       unifierSavepoint,
+					       _records[_indexCursor +
+							CompactAlternativeField],
+					       false);
+			    _queryCursor = querySubterm.after();
+			    _indexCursor =
+				_records[_indexCursor + CompactBelowField];
+			    return true;
+			};
 
-	    
-		    //System.out.println("   FIRST CANDIDATE LEAF " + _indexCursor);
-		    
+		    _indexCursor =
+			_records[_indexCursor + CompactAlternativeField];
 
-		    // Get to the right leaf:
-		    
-		    while (_indexCursor != null &&
-			   !((LeafNode)_indexCursor).cluster().
-			   equals(_currentCluster))
-			{
-			    _indexCursor = 
-				((LeafNode)_indexCursor).otherLeaves();
+		    if (_indexCursor == NoRecord || !passClusterTests())
+			return false;
+		};
 
-			    //System.out.println("   GOOD LEAF " + _indexCursor);
+	    Symbol querySymbol = querySubterm.symbol();
 
-			};
+	    if (_records[_indexCursor + CompactKindField] ==
+		TreeNode.Kind.SymbolHash)
+		{
+		    _indexCursor = findHashEntry(_indexCursor,querySymbol);
 
+		    if (_indexCursor == NoRecord) return false;
 
-		    return false; 
-		    // indicates that this was the last step.
+		    _queryCursor = querySubterm.nextCell();
+		    _indexCursor = _records[_indexCursor + CompactBelowField];
+		    return true;
 		};
 
-	    
-	    int queryCursorSavepoint = _queryCursor.savepoint();
-	    
-	    Flatterm querySubterm = _queryCursor.next();
+	    // Skip alternatives with smaller symbols:
 
+	    while (greater(querySymbol,
+			   _symbols[_records[_indexCursor + CompactDataField]]))
+		{
+		    _indexCursor =
+			_records[_indexCursor + CompactAlternativeField];
+		    if (_indexCursor == NoRecord || !passClusterTests())
+			return false;
+		};
 
-	    
-	    //System.out.println("Q= " + querySubterm + "   I= " + _indexCursor + "   U= " + _unifier);
+	    if (_symbols[_records[_indexCursor + CompactDataField]].
+		equals(querySymbol))
+		{
+		    _queryCursor = querySubterm.nextCell();
+		    _indexCursor = _records[_indexCursor + CompactBelowField];
+		    return true;
+		};
 
-	    switch (querySubterm.kind())
+	    // Symbol clash.
+
+	    return false;
+
+	} // stepForward()
+
+
+	/** Binary search among the entries of the symbol hash
+	 *  in the record <code>hash</code>.
+	 *  @return position of the entry with <code>sym</code>,
+	 *          or {@link #NoRecord}
+	 */
+	private int findHashEntry(int hash,Symbol sym) {
+
+	    int first = _records[hash + CompactBelowField];
+	    int low = 0;
+	    int high = _records[hash + CompactDataField] - 1;
+
+	    while (low <= high)
 		{
-		   
-		case Term.Kind.Variable:
-		    {
-			Variable var = querySubterm.variable();
+		    int middle = (low + high) >>> 1;
+		    int entry = first + middle * CompactRecordSize;
+		    int comparison =
+			_symbols[_records[entry + CompactDataField]].compareTo(sym);
+		    if (comparison < 0)
+			{
+			    low = middle + 1;
+			}
+		    else if (comparison > 0)
+			{
+			    high = middle - 1;
+			}
+		    else
+			return entry;
+		};
 
-			assert !var.isInstantiated1(); 
-			// because FlattermInstance.BacktrackableIterator
-			// works in this manner.
+	    return NoRecord;
 
+	} // findHashEntry(int hash,Symbol sym)
 
-			// A tree path interval corresponding to a term
-			// to be assigned to the variable in the unifier.
-			TreePathTerm treePathTerm = findFirstPathTerm(var);
-			if (treePathTerm == null)
-			    {
-				_queryCursor.backtrackTo(queryCursorSavepoint);
 
-				//System.out.println("tree-path not found");
+	/** Tries to unify the query variable <code>querySubterm</code>
+	 *  with the term represented by <code>treePathTerm</code>,
+	 *  or the following ones, until success.
+	 *  <b>pre:</b> <code>treePathTerm</code> represents a complete term
+	 *  and is pooled at <code>_stackSize</code>.
+	 */
+	private boolean unifyWithTreePathTerms(Flatterm querySubterm,
+					       CompactTreePathTerm treePathTerm) {
+	    do
+		{
+		    int unifierSavepoint = _unifier.savepoint();
 
-				return false;
-			    };
+		    if (_unifier.unify(querySubterm,treePathTerm.flatterm()))
+			{
+			    pushBacktrackPoint(querySubterm,
+					       unifierSavepoint,
+					       NoRecord,
+					       true);
+			    _queryCursor = querySubterm.after();
+			    return true;
+			};
+		}
+	    while (treePathTerm.findNext());
 
-			// Instantiate the variable, if necessary:
-			
-			if (!treePathTerm.isIdenticalToVar())
-			    _unifier.instantiate(var,treePathTerm.flatterm());
+	    return false;
 
+	} // unifyWithTreePathTerms(Flatterm querySubterm,..)
 
-			// Save data for backtracking:
-			//    treePathTerm
-			//    _queryCursor.savepoint() (NOT queryCursorSavepoint!)
-			
-			_backtrackPointStack.setSize(_stackSize + 1);
-			if (_backtrackPointStack.get(_stackSize) == null)
-			    {
-				_backtrackPointStack.set(_stackSize,
-							 new BacktrackPoint(treePathTerm,
-									    _queryCursor.savepoint()));
-				
-			    }
-			else
-			    _backtrackPointStack.get(_stackSize).set(treePathTerm,
-								     _queryCursor.savepoint());
-			
-			++_stackSize;
 
-			return true;
-		    } // case Variable:
+	protected final boolean backtrack() {
 
+	    while (_stackSize != 0)
+		{
+		    --_stackSize;
 
+		    _unifier.backtrackTo(_unifierSavepoints[_stackSize]);
+		    _queryCursor = _querySubterms[_stackSize];
 
-		case Term.Kind.CompoundTerm: // as below 
-		case Term.Kind.IndividualConstant: // as below (can be slightly optimised)
-		case Term.Kind.AtomicFormula: // as below
-		case Term.Kind.ConnectiveApplication:
-		    if (_indexCursor.kind() == TreeNode.Kind.Variable)
+		    if (_indexCursors[_stackSize] != TreePathTermPoint)
 			{
-			    int unifierSavepoint = _unifier.savepoint();
-			    
-			    do
-				{
-				    if (Unification.unify(((VariableNode)_indexCursor).
-							  variable(),
-							  querySubterm,
-							  _unifier))
-					{
-					    // Save data for backtracking:
-					    //    queryCursorSavepoint
-					    //    unifierSavepoint
-					    //    ((VariableNode)_indexCursor).alternative()
-					    
-					    _backtrackPointStack.setSize(_stackSize + 1);
-					    if (_backtrackPointStack.get(_stackSize) == null)
-						{
-						    _backtrackPointStack.
-							set(_stackSize,
-							    new BacktrackPoint(queryCursorSavepoint,
-									       unifierSavepoint,
-									       ((VariableNode)_indexCursor).
-									       alternative()));
-						}
-					    else
-						_backtrackPointStack.
-						    get(_stackSize).
-						    set(queryCursorSavepoint,
-							unifierSavepoint,
-							((VariableNode)_indexCursor).alternative());
-					    
-					    ++_stackSize;
+			    _indexCursor = _indexCursors[_stackSize];
+			    if (_indexCursor != NoRecord) return true;
+			}
+		    else
+			{
+			    CompactTreePathTerm treePathTerm =
+				_treePathTerms.get(_stackSize);
 
-					    _queryCursor.skipArguments();
-					    _indexCursor = 
-						((VariableNode)_indexCursor).treeBelow();
+			    if (treePathTerm.findNext() &&
+				unifyWithTreePathTerms(_queryCursor,treePathTerm))
+				return true;
+			};
+		}; // while (_stackSize != 0)
 
+	    return false;
 
-					    //System.out.println("UNIFIABLE: " + _unifier);
+	} // backtrack()
 
-					    return true;
-					}; // if (Unification.unify(((VariableNode)_indexCursor).
 
-				    
-				    //System.out.println("NONUNIFIABLE: " + _unifier);
+	/** The tree path term for the backtrack point
+	 *  at <code>_stackSize</code>.
+	 */
+	private CompactTreePathTerm pooledTreePathTerm() {
 
-				    _indexCursor = 
-					((VariableNode)_indexCursor).alternative(); 
+	    while (_treePathTerms.size() <= _stackSize)
+		_treePathTerms.add(null);
 
-				    if (_indexCursor == null || !passClusterTests())
-					{
-					    _queryCursor.backtrackTo(queryCursorSavepoint);
-					    return false;
-					};
-				}
-			    while (_indexCursor.kind() == TreeNode.Kind.Variable);
+	    CompactTreePathTerm result = _treePathTerms.get(_stackSize);
+	    if (result == null)
+		{
+		    result = new CompactTreePathTerm();
+		    _treePathTerms.set(_stackSize,result);
+		};
 
-			}; // if (_indexCursor.kind() == TreeNode.Kind.Variable)
+	    return result;
 
-		    
+	} // pooledTreePathTerm()
 
-		    assert 
-			_indexCursor.kind() == TreeNode.Kind.Constant ||
-			_indexCursor.kind() == TreeNode.Kind.Function ||
-			_indexCursor.kind() == TreeNode.Kind.Predicate ||
-			_indexCursor.kind() == TreeNode.Kind.Connective;
-			    
 
-		    // Skip alternatives with smaller symbols:
+	/** @param isTreePathTermPoint if true, the point is for
+	 *         the pooled tree path term at <code>_stackSize</code>
+	 *         rather than <code>indexCursor</code>
+	 */
+	private void pushBacktrackPoint(Flatterm querySubterm,
+					int unifierSavepoint,
+					int indexCursor,
+					boolean isTreePathTermPoint) {
+
+	    if (_stackSize == _querySubterms.length)
+		{
+		    int newCapacity = 2 * _stackSize;
+		    _querySubterms = Arrays.copyOf(_querySubterms,newCapacity);
+		    _unifierSavepoints = Arrays.copyOf(_unifierSavepoints,newCapacity);
+		    _indexCursors = Arrays.copyOf(_indexCursors,newCapacity);
+		};
 
+	    _querySubterms[_stackSize] = querySubterm;
+	    _unifierSavepoints[_stackSize] = unifierSavepoint;
+	    _indexCursors[_stackSize] =
+		(isTreePathTermPoint)? TreePathTermPoint : indexCursor;
+	    ++_stackSize;
+	    if (_stackSize > _stackHighWater)
+		_stackHighWater = _stackSize;
 
-		    while (greater(querySubterm.symbol(),
-				   ((SymbolNode)_indexCursor).symbol()))
+	} // pushBacktrackPoint(Flatterm querySubterm,..)
+
+
+	/** Skips the cluster test records on the way. */
+	private boolean passClusterTests() {
+
+	    assert _indexCursor != NoRecord;
+
+	    while (true)
+		{
+		    int kind = _records[_indexCursor + CompactKindField];
+
+		    if (kind == TreeNode.Kind.ClusterSetBitTest)
 			{
-			    _indexCursor = 
-				((SymbolNode)_indexCursor).alternative();
-			    if (_indexCursor == null || !passClusterTests()) 
-				{
-				    _queryCursor.backtrackTo(queryCursorSavepoint);
-				    return false;
-				};
+			    ClusterId mask =
+				_image._masks[_records[_indexCursor + CompactDataField]];
+			    if (!ClusterSetBitTestNode.test(mask.words(),
+							    mask.firstNonzeroWord(),
+							    mask.lastNonzeroWord(),
+							    _currentCluster))
+				return false;
+			}
+		    else if (kind == TreeNode.Kind.ClusterClearBitTest)
+			{
+			    ClusterId mask =
+				_image._masks[_records[_indexCursor + CompactDataField]];
+			    if (!ClusterClearBitTestNode.test(mask.words(),
+							      mask.firstNonzeroWord(),
+							      mask.lastNonzeroWord(),
+							      _currentCluster))
+				return false;
+			}
+		    else
+			return true;
+
+		    _indexCursor = _records[_indexCursor + CompactBelowField];
+		}
+
+	} // passClusterTests()
+
+
 
+	//
+	//          Private data:
+	//
 
-			    assert 
-				_indexCursor.kind() == TreeNode.Kind.Constant ||
-				_indexCursor.kind() == TreeNode.Kind.Function ||
-				_indexCursor.kind() == TreeNode.Kind.Predicate ||
-				_indexCursor.kind() == TreeNode.Kind.Connective;
+	private final CompactVersion _image;
 
-			}; // while (greater(querySubterm.symbol(),
+	/** Same as <code>_image._records</code>. */
+	private final int[] _records;
 
+	/** Same as <code>_image._symbols</code>. */
+	private final Symbol[] _symbols;
 
+	/** Position of the current record, or {@link #NoRecord}. */
+	private int _indexCursor;
 
-		    if (((SymbolNode)_indexCursor).symbol().
-			equals(querySubterm.symbol()))
-			{
 
-			    // This point is not backtrackable, so
-			    // we are not saving it.
+	//     Stack of backtrack points, kept in parallel arrays:
 
-			    _indexCursor = 
-				((SymbolNode)_indexCursor).treeBelow();
-			    return true;
-			};
-			    
-		    // Symbol clash: the constant was not found
-		    // among the alternatives.
+	private int _stackSize;
 
+	/** Maximal <code>_stackSize</code> since the last {@link #finish()}. */
+	private int _stackHighWater;
 
-		    _queryCursor.backtrackTo(queryCursorSavepoint);
-		    return false;
+	/** The query subterms being unified at the points. */
+	private Flatterm[] _querySubterms;
 
-		}; // switch (querySubterm.kind())
+	private int[] _unifierSavepoints;
 
-	    // Note that neither quantifiers nor abstractions
-	    // are allowed in queries or indexed terms.
+	/** Alternatives to try next, or {@link #TreePathTermPoint}
+	 *  if the pooled tree path term is to be tried next.
+	 */
+	private int[] _indexCursors;
 
-	    assert false;
-	    return false;
+	/** Pool of tree path terms: <code>_treePathTerms.get(n)</code> is
+	 *  used by all tree-path-term backtrack points at depth <code>n</code>.
+	 */
+	private ArrayList<CompactTreePathTerm> _treePathTerms;
+
+    } // class CompactRetrieval
+
+
+    /** Accumulates term-cluster-object triples and inserts all of
+     *  them in the index at once with {@link #load()}, which is much 
+     *  faster than calling {@link #insert(Term,ClusterId,Object)} 
+     *  for each triple: the triples are sorted by the flattened 
+     *  symbol sequences of their terms, and the trees that are empty 
+     *  in the index are built bottom-up in a single pass, with all 
+     *  chains of alternatives, symbol hashes, cluster tests and
+     *  size/depth summaries created in their final form.
+     *  Triples falling into nonempty trees, as well as the triples 
+     *  with variable terms, are inserted in the normal way.
+     *  Loading is a maintenance operation, so the same restrictions
+     *  as for {@link #insert(Term,ClusterId,Object)} apply to it.
+     */
+    public /* inner */ class BulkLoader {
 
-	} // stepForward()
+	public BulkLoader() {
+	    _entries = new ArrayList<BulkEntry>();
+	}
 
+	/** Adds the triple to be inserted by the next {@link #load()}. */
+	public final void add(Term term,ClusterId cluster,IndexedObject obj) {
+	    _entries.add(new BulkEntry(term,_clusterPool.intern(cluster),obj));
+	}
 
+	/** Same as <code>add(term,ClusterId.valueOf(cluster),obj)</code>. */
+	public final void add(Term term,BitSet cluster,IndexedObject obj) {
+	    add(term,ClusterId.valueOf(cluster),obj);
+	}
 
+	/** Number of triples accumulated since the last {@link #load()}. */
+	public final int size() { return _entries.size(); }
 
-	private boolean backtrack() {
+	/** Inserts all the accumulated triples in the index;
+	 *  the loader becomes empty and can be reused.
+	 */
+	public final void load() {
 
-	    assert GlobalEventCounter.inc();
+	    assert _retrievalLocks == 0;
+	    assert _frozenViews == 0;
 
-	    
-	    //System.out.println("   backtrack");
+	    if (_entries.isEmpty()) return;
 
-	    while (_stackSize != 0)
+	    _unpublishedChanges = true;
+
+	    ArrayList<BulkEntry> toBuild = 
+		new ArrayList<BulkEntry>(_entries.size());
+
+	    for (BulkEntry entry : _entries)
 		{
-		    --_stackSize;
-		    BacktrackPoint point = 
-			_backtrackPointStack.get(_stackSize);
-		    
-		    if (point.treePathTerm == null)
+		    if (entry.term.isVariable() ||
+			_nonvariableHash[treeNumber(entry.term)] != null)
 			{
-			    // Restore the "registers":
-			    _queryCursor.backtrackTo(point.queryCursorSavepoint);
-			    _unifier.backtrackTo(point.unifierSavepoint);
-			    _indexCursor = point.indexCursor;
-			    point.clear();
-
-			    if (_indexCursor != null) return true;
+			    // Normal insertion:
+			    insert(entry.term,
+				   entry.cluster,
+				   entry.obj);
 			}
 		    else
 			{
-			    _queryCursor.backtrackTo(point.queryCursorSavepoint);
+			    entry.prepare();
+			    toBuild.add(entry);
+			};
+		};
 
-			    assert 
-				point.treePathTerm.variable().isInstantiated1() !=
-				point.treePathTerm.isIdenticalToVar();
+	    _entries.clear();
 
-			    if (point.treePathTerm.variable().isInstantiated1())
-				_unifier.backtrack();
+	    Collections.sort(toBuild);
 
-			    assert !point.treePathTerm.variable().isInstantiated1();
+	    BitSet setBits = new BitSet();
+	    BitSet clearBits = new BitSet();
 
-			    if (point.treePathTerm.findNext())
-				{
-				    // New instantiation for the variable, if necessary:
-				    if (!point.treePathTerm.isIdenticalToVar())
-					_unifier.instantiate(point.treePathTerm.variable(),
-							     point.treePathTerm.flatterm());
+	    int begin = 0;
+	    while (begin < toBuild.size())
+		{
+		    int tree = toBuild.get(begin).tree;
+		    int end = begin + 1;
+		    while (end < toBuild.size() && toBuild.get(end).tree == tree)
+			++end;
 
-				    ++_stackSize;
+		    TreeNode chain = 
+			buildLevel(toBuild,begin,end,0,setBits,clearBits);
 
-				    return true;
-				};	
-			};
-		}; // while (_stackSize != 0)
+		    _nonvariableHash[tree] = 
+			(NonleafTreeNode)addBitChecks(setBits,clearBits,chain);
 
-	    return false;
+		    begin = end;
+		};
 
-	} // backtrack()
+	} // load()
 
 
-	private boolean passClusterTests() {
-	    
-	    //System.out.println("   test cluster");
+	private ArrayList<BulkEntry> _entries;
 
-	    assert _indexCursor != null;
+    } // class BulkLoader
 
-	    if (_indexCursor.isClusterTest())
-		{
-		    if (!((ClusterTestNode)_indexCursor).test(_currentCluster))
-			{
 
-			    //System.out.println("/1/CLUSTER " + _currentCluster + " DOES NOT PASS " + ((ClusterTestNode)_indexCursor));
+    /** Exceptions thrown when deletion or relocation methods cannot
+     *  find the term-cluster pair being deleted or relocated.
+     */
+    private static class TermClusterPairNotFoundException extends java.lang.Exception {
 
-			    return false;
-			};
-		    
-		    _indexCursor = 
-			((ClusterTestNode)_indexCursor).treeBelow();
-		    
-		    if (_indexCursor.isClusterTest())
-			{
-			    if (!((ClusterTestNode)_indexCursor).test(_currentCluster))
-				{
-				    
-				    //System.out.println("/2/CLUSTER " + _currentCluster + " DOES NOT PASS " + ((ClusterTestNode)_indexCursor));
-				    
-				    return false;
-				};
+	public TermClusterPairNotFoundException() {}
 
-			    _indexCursor = 
-				((ClusterTestNode)_indexCursor).
-				treeBelow();
-			    assert _indexCursor != null;
-			    assert !_indexCursor.isClusterTest();
-			};
-		};
+    } // class TermClusterPairNotFoundException
 
-	    return true;
 
-	} // passClusterTests()
 
 
+    //                     Private methods:
 
 
-	//
-	//          Private data:
-	//
+    /** Object number <code>n</code> in <code>bucket</code>;
+     *  see {@link LeafBucket#typedObject(int)}.
+     */
+    private IndexedObject indexedObject(LeafBucket bucket,int n) {
+	return bucket.<IndexedObject>typedObject(n);
+    }
 
 
-	private Substitution1 _unifier;
+    /** Returns <code>node</code> itself if it can be modified, or
+     *  its copy if it may be shared with published versions,
+     *  in which case the caller must replace the node with the copy
+     *  in the tree.
+     *  <b>pre:</b> <code>node</code> can be <code>null</code>.
+     */
+    // The cast is safe: every node class overrides copy()
+    // with itself as the result type.
+    @SuppressWarnings("unchecked")
+    private <Node extends TreeNode> Node mutable(Node node) {
 
-	private boolean _queryIsVariable;
+	if (node == null || node.epoch() >= _frozenEpoch) return node;
 
-	private Flatterm _currentQuery;
+	return (Node)node.copy();
 
-	private BitSet _currentCluster;
+    } // mutable(Node node)
 
-	/** Indicates if the query has just been reset, i.e., 
-	 *  there were no calls to {@link logic.is.power.logic_warehouse#ClusteredUnificationIndex#retrieveNext(retrievedIndexedObject)}.
-	 */
-	private boolean _freshQuery;
 
-	private 
-	    FlattermInstance.BacktrackableIterator
-	    _queryCursor;
-	
-	private TreeNode _indexCursor;
+    /** Same as {@link #mutable(TreeNode)}, for leaf buckets. */
+    private LeafBucket mutable(LeafBucket bucket) {
 
-	/** Identifies the index tree being used currently. */
-	private int _currentHashCode;
+	if (bucket.epoch() >= _frozenEpoch) return bucket;
 
-	/** Identifies, together with <code>_currentVarLeaf</code>; 
-	 *  the current position in the variable index. 
-	 */
-	private Iterator<Map.Entry<Variable,LeafNode>> _currentVar;
+	return bucket.copy();
 
-	/** Identifies, together with <code>_currentVarLeaves</code>; 
-	 *  the current position in the variable index. 
-	 */
-	private LeafNode _currentVarLeaf;
-	
-	private int _unifierSavepointBeforeRetrievalFromVarIndex;
+    } // mutable(LeafBucket bucket)
 
 
-	//     Stacks for backtracking:
+    /** Copies the maps in <code>_variableIndex</code> if they
+     *  may be shared with published versions; the buckets 
+     *  are copied later, when they have to be modified,
+     *  see {@link #mutableVariableBucket(TreeMap,Variable)}.
+     */
+    private void makeVariableIndexMutable() {
 
-	private int _stackSize; 
+	if (_variableIndexEpoch >= _frozenEpoch) return;
 
-	private Vector<BacktrackPoint> _backtrackPointStack;
+	HashMap<ClusterId, TreeMap<Variable,LeafBucket>> newVariableIndex =
+	    new HashMap<ClusterId, TreeMap<Variable,LeafBucket>>();
 
-	/** Indicates whether currently we are retrieving from the index
-	 *  for variables.
-	 */
-	private boolean _retrievingFromVarIndex;
+	for (Map.Entry<ClusterId, TreeMap<Variable,LeafBucket>> entry :
+		 _variableIndex.entrySet())
+	    newVariableIndex.put(entry.getKey(),
+				 new TreeMap<Variable,LeafBucket>(entry.getValue()));
 
-    } // class RetrievalImpl
+	_variableIndex = newVariableIndex;
+	_variableIndexEpoch = _frozenEpoch;
 
+    } // makeVariableIndexMutable()
 
-    /** Exceptions thrown when deletion or relocation methods cannot
-     *  find the term-cluster pair being deleted or relocated.
+
+    /** Finds the bucket for the variable, and, if necessary,
+     *  replaces it with its copy that can be modified.
+     *  <b>pre:</b> <code>varToLeaves</code> is a map from 
+     *  <code>_variableIndex</code> after a call to 
+     *  {@link #makeVariableIndexMutable()}.
+     *  @return null if there is no bucket for the variable
      */
-    private static class TermClusterPairNotFoundException extends java.lang.Exception {
+    private LeafBucket mutableVariableBucket(TreeMap<Variable,LeafBucket> varToLeaves,
+					     Variable var) {
 
-	public TermClusterPairNotFoundException() {}
+	LeafBucket result = varToLeaves.get(var);
 
-    } // class TermClusterPairNotFoundException
+	if (result == null) return null;
 
+	LeafBucket copy = mutable(result);
 
+	if (copy != result) varToLeaves.put(var,copy);
+
+	return copy;
+
+    } // mutableVariableBucket(TreeMap<Variable,LeafBucket> varToLeaves,..)
 
 
-    //                     Private methods:
     
     /** <b>pre:</b> <code>leaf</code> can be <code>null</code>. */
-    private int countInLeaves(BitSet cluster,LeafNode leaf) {
-	
+    private int countInLeaves(ClusterId cluster,LeafNode leaf) {
+
 	if (leaf == null) return 0;
 
-	return 
-	    (leaf.cluster().equals(cluster))?
-	    1 + countInLeaves(cluster,leaf.otherLeaves())
-	    :
-	    countInLeaves(cluster,leaf.otherLeaves())
-	    ;
+	LeafBucket bucket = leaf.bucket(cluster);
+
+	return (bucket == null)? 0 : bucket.size();
 
-    } // countInLeaves(BitSet cluster,LeafNode leaf)
+    } // countInLeaves(ClusterId cluster,LeafNode leaf)
 
 
     
     /** <b>pre:</b> <code>tree</code> can be <code>null</code>. */
     private int countInTree(Term.LeanIterator termIterator,
-			    BitSet cluster,
+			    ClusterId cluster,
 			    TreeNode tree) {
 
 	if (tree == null) return 0;
@@ -1960,7 +7235,7 @@ public class ClusteredUnificationIndex<IndexedObject> {
     /** <b>pre:</b> <code>tree != null</code>. */
     private int countInTree(Term currentSubterm,
 			    Term.LeanIterator termIterator,
-			    BitSet cluster,
+			    ClusterId cluster,
 			    NonleafTreeNode tree) {
 
 
@@ -2000,59 +7275,226 @@ public class ClusteredUnificationIndex<IndexedObject> {
 		}
 
 
-	    case TreeNode.Kind.ClusterSetBitTest:
-		{
-		    // Check the cluster:
-		    
-		    BitSet invertedCluster = (BitSet)cluster.clone();
-		    invertedCluster.flip(0,invertedCluster.size());
-		    
-		    if (((ClusterSetBitTestNode)tree).mask().
-			intersects(invertedCluster))
-			// At least one set-bit check fails 
-			// on the cluster => this term-cluster pair 
-			// is not in the index!
-			return 0;
-		    
-		    return countInTree(currentSubterm,
-				       termIterator,
-				       cluster,
-				       (NonleafTreeNode)tree.treeBelow());
+	    case TreeNode.Kind.SymbolHash:
+		{
+		    SymbolNode entry =
+			((SymbolHashNode)tree).find(currentSubterm.topSymbol());
+
+		    if (entry == null)
+			// The term is not in the index!
+			return 0;
+
+		    return countInTree(termIterator,
+				       cluster,
+				       entry.treeBelow());
+		}
+
+
+	    case TreeNode.Kind.ClusterSetBitTest:
+		{
+		    // Check the cluster:
+		    
+		    if (!((ClusterSetBitTestNode)tree).test(cluster))
+			// At least one set-bit check fails 
+			// on the cluster => this term-cluster pair 
+			// is not in the index!
+			return 0;
+		    
+		    return countInTree(currentSubterm,
+				       termIterator,
+				       cluster,
+				       (NonleafTreeNode)tree.treeBelow());
+
+
+		} // case ClusterSetBitTest:
+
+
+	    case TreeNode.Kind.ClusterClearBitTest:
+		{
+		    // Check the cluster:
+		    
+		    if (!((ClusterClearBitTestNode)tree).test(cluster))
+			// At least one clear-bit check fails 
+			// on the cluster => this term-cluster pair 
+			// is not in the index!
+			return 0;
+		    
+		    return countInTree(currentSubterm,
+				       termIterator,
+				       cluster,
+				       (NonleafTreeNode)tree.treeBelow());
+
+
+		} // case ClusterClearBitTest:
+
+
+	    case TreeNode.Kind.Leaf:
+		assert false;
+		return 0;
+
+	    }; // switch (tree.kind())
+
+	assert false;
+	return 0;
+
+    } // countInTree(Term currentSubterm,..)
+
+
+
+    /** Adds to <code>_variantBuckets</code> the buckets for 
+     *  the cluster associated with the variants of the remainder 
+     *  of the term, that starts with the symbol 
+     *  <code>_variantSymbols[position]</code>; the term variables 
+     *  seen so far are renamed as specified by the first
+     *  <code>_renamingSize</code> elements of 
+     *  <code>_renamedVariables</code> and <code>_renamingImages</code>.
+     *  <b>pre:</b> <code>tree</code> can be <code>null</code>.
+     */
+    private void findVariantInTree(int position,
+				   ClusterId cluster,
+				   TreeNode tree) {
+
+	while (tree != null && tree.isClusterTest())
+	    {
+		if (!((ClusterTestNode)tree).test(cluster)) return;
+		tree = ((ClusterTestNode)tree).treeBelow();
+	    };
+
+	if (tree == null) return;
+
+	if (position == _numberOfVariantSymbols)
+	    {
+		// end of the term
+
+		assert tree.isLeaf();
+
+		LeafBucket bucket = ((LeafNode)tree).bucket(cluster);
+
+		if (bucket != null) _variantBuckets.add(bucket);
+
+		return;
+	    };
+
+	Symbol sym = _variantSymbols[position];
+
+	if (sym.isVariable())
+	    {
+		Variable var = (Variable)sym;
+		Variable indexVar = renamingImage(var);
+
+		// Only variable nodes can match; they preceed
+		// all other nodes in the chain.
+
+		while (tree.kind() == TreeNode.Kind.Variable)
+		    {
+			Variable nodeVar = ((VariableNode)tree).variable();
+
+			if (indexVar == null)
+			    {
+				if (!isRenamingImage(nodeVar))
+				    {
+					addToRenaming(var,nodeVar);
+
+					findVariantInTree(position + 1,
+							  cluster,
+							  ((VariableNode)tree).treeBelow());
+
+					--_renamingSize;
+				    };
+			    }
+			else if (nodeVar == indexVar)
+			    {
+				findVariantInTree(position + 1,
+						  cluster,
+						  ((VariableNode)tree).treeBelow());
+				return;
+			    };
+
+			tree = ((VariableNode)tree).alternative();
+
+			while (tree != null && tree.isClusterTest())
+			    {
+				if (!((ClusterTestNode)tree).test(cluster)) return;
+				tree = ((ClusterTestNode)tree).treeBelow();
+			    };
+
+			if (tree == null) return;
+		    };
+
+		return;
+
+	    }; // if (sym.isVariable())
+
+
+	// The path for a nonvariable symbol is unique:
+
+	while (true)
+	    {
+		if (tree.isSymbolHash())
+		    {
+			SymbolNode entry = ((SymbolHashNode)tree).find(sym);
+
+			if (entry == null) return;
+
+			tree = entry.treeBelow();
+			break;
+		    };
+
+		if (greater(((SymbolNode)tree).symbol(),sym)) return;
+
+		if (((SymbolNode)tree).symbol().equals(sym))
+		    {
+			tree = ((SymbolNode)tree).treeBelow();
+			break;
+		    };
 
+		tree = ((SymbolNode)tree).alternative();
 
-		} // case ClusterSetBitTest:
+		while (tree != null && tree.isClusterTest())
+		    {
+			if (!((ClusterTestNode)tree).test(cluster)) return;
+			tree = ((ClusterTestNode)tree).treeBelow();
+		    };
 
+		if (tree == null) return;
+	    };
 
-	    case TreeNode.Kind.ClusterClearBitTest:
-		{
-		    // Check the cluster:
-		    
-		    if (((ClusterClearBitTestNode)tree).mask().
-			intersects(cluster))
-			// At least one clear-bit check fails 
-			// on the cluster => this term-cluster pair 
-			// is not in the index!
-			return 0;
-		    
-		    return countInTree(currentSubterm,
-				       termIterator,
-				       cluster,
-				       (NonleafTreeNode)tree.treeBelow());
+	findVariantInTree(position + 1,cluster,tree);
 
+    } // findVariantInTree(int position,..)
 
-		} // case ClusterClearBitTest:
 
+    /** Index variable corresponding to the term variable 
+     *  <code>var</code> in the renaming being built by 
+     *  {@link #findVariantInTree(int,ClusterId,TreeNode)}, or null.
+     */
+    private Variable renamingImage(Variable var) {
+	for (int n = 0; n < _renamingSize; ++n)
+	    if (_renamedVariables[n] == var) return _renamingImages[n];
+	return null;
+    }
 
-	    case TreeNode.Kind.Leaf:
-		assert false;
-		return 0;
+    private boolean isRenamingImage(Variable indexVar) {
+	for (int n = 0; n < _renamingSize; ++n)
+	    if (_renamingImages[n] == indexVar) return true;
+	return false;
+    }
 
-	    }; // switch (tree.kind())
+    private void addToRenaming(Variable var,Variable indexVar) {
 
-	assert false;
-	return 0;
+	if (_renamingSize == _renamedVariables.length)
+	    {
+		_renamedVariables = 
+		    Arrays.copyOf(_renamedVariables,2 * _renamingSize);
+		_renamingImages = 
+		    Arrays.copyOf(_renamingImages,2 * _renamingSize);
+	    };
 
-    } // countInTree(Term currentSubterm,..)
+	_renamedVariables[_renamingSize] = var;
+	_renamingImages[_renamingSize] = indexVar;
+	++_renamingSize;
+
+    } // addToRenaming(Variable var,Variable indexVar)
 
 
 
@@ -2082,7 +7524,7 @@ public class ClusteredUnificationIndex<IndexedObject> {
     private 
 	TreeNode 
 	insertIntoTree(Term.LeanIterator termIterator,
-		       BitSet cluster,
+		       ClusterId cluster,
 		       BitSet setBitChecksToInsert,
 		       BitSet clearBitChecksToInsert,
 		       BitSet setBitChecksToPush,
@@ -2103,9 +7545,11 @@ public class ClusteredUnificationIndex<IndexedObject> {
 		    tree.kind() == TreeNode.Kind.ClusterSetBitTest ||
 		    tree.kind() == TreeNode.Kind.ClusterClearBitTest; 
 
+		tree = mutable(tree);
+
 		if (tree.kind() == TreeNode.Kind.ClusterSetBitTest)
 		    {
-			((ClusterSetBitTestNode)tree).mask().and(cluster);
+			((ClusterSetBitTestNode)tree).andMask(cluster.bits());
 			// Keep only these checks.
 
 			if (((ClusterSetBitTestNode)tree).mask().isEmpty())
@@ -2146,7 +7590,7 @@ public class ClusteredUnificationIndex<IndexedObject> {
 
 		if (tree.kind() == TreeNode.Kind.ClusterClearBitTest)
 		    {
-			((ClusterClearBitTestNode)tree).mask().andNot(cluster);
+			((ClusterClearBitTestNode)tree).andNotMask(cluster.bits());
 			// Keep only these checks.
 
 			if (((ClusterClearBitTestNode)tree).mask().isEmpty())
@@ -2187,23 +7631,25 @@ public class ClusteredUnificationIndex<IndexedObject> {
 
 		assert tree.isLeaf();
 
-		return new LeafNode(obj,cluster,(LeafNode)tree);
+		((LeafNode)tree).add(cluster,obj,_insertedOriginalVariables);
+
+		return tree;
 
 	    }; // if (!termIterator.hasNext())
 
 	  
 	// tree != null && termIterator.hasNext()
 		
-	assert (tree instanceof NonleafTreeNode);					
-	return insertIntoTree(termIterator.next(),
-			      termIterator,
-			      cluster,
-			      setBitChecksToInsert,
-			      clearBitChecksToInsert,
-			      setBitChecksToPush,
-			      clearBitChecksToPush,
-			      obj,
-			      (NonleafTreeNode)tree);
+	assert (tree instanceof NonleafTreeNode);
+	return hashLevelIfNeeded(insertIntoTree(termIterator.next(),
+						termIterator,
+						cluster,
+						setBitChecksToInsert,
+						clearBitChecksToInsert,
+						setBitChecksToPush,
+						clearBitChecksToPush,
+						obj,
+						(NonleafTreeNode)tree));
 
     } // insert(Term.LeanIterator termIterator,..)
 
@@ -2214,7 +7660,7 @@ public class ClusteredUnificationIndex<IndexedObject> {
     private 
 	NonleafTreeNode insertIntoTree(Term currentSubterm,
 				       Term.LeanIterator termIterator,
-				       BitSet cluster,
+				       ClusterId cluster,
 				       BitSet setBitChecksToInsert,
 				       BitSet clearBitChecksToInsert,
 				       BitSet setBitChecksToPush,
@@ -2224,6 +7670,9 @@ public class ClusteredUnificationIndex<IndexedObject> {
 	
 
 	assert tree != null;
+
+	// Path copying: all nodes on the path are modified.
+	tree = mutable(tree);
 	
 	switch (tree.kind())
 	    {
@@ -2257,6 +7706,8 @@ public class ClusteredUnificationIndex<IndexedObject> {
 						     clearBitChecksToPush,
 						     obj,
 						     tree.treeBelow()));
+
+		    tree.widenSummary(_insertedTermSymbols,_insertedTermDepth);
 		}
 		else // !currentSubterm.topSymbol().equals(((SymbolNode)tree).symbol())
 		    {
@@ -2278,6 +7729,9 @@ public class ClusteredUnificationIndex<IndexedObject> {
 								 clearBitChecksToPush,
 								 obj,
 								 null));
+
+				newNode.widenSummary(_insertedTermSymbols,
+						     _insertedTermDepth);
 				
 				// Push the postponed checks into the alternative branch.
 				TreeNode alternative = 
@@ -2310,6 +7764,8 @@ public class ClusteredUnificationIndex<IndexedObject> {
 							     clearBitChecksToPush,
 							     obj,
 							     null));
+			    newNode.widenSummary(_insertedTermSymbols,
+						 _insertedTermDepth);
 			    ((SymbolNode)tree).setAlternative(newNode);
 			}
 			else 
@@ -2349,12 +7805,93 @@ public class ClusteredUnificationIndex<IndexedObject> {
 
 
 
+	    case TreeNode.Kind.SymbolHash:
+		{
+		    SymbolHashNode hash = (SymbolHashNode)tree;
+
+		    if (currentSubterm.isVariable())
+			{
+			    // Variable nodes preceed the hash node:
+
+			    SymbolNode newNode =
+				newSymbolNode(currentSubterm.topSymbol(),
+					      insertIntoTree(termIterator,
+							     cluster,
+							     setBitChecksToInsert,
+							     clearBitChecksToInsert,
+							     setBitChecksToPush,
+							     clearBitChecksToPush,
+							     obj,
+							     null));
+
+			    newNode.widenSummary(_insertedTermSymbols,
+						 _insertedTermDepth);
+
+			    // Push the postponed checks into the hash node.
+			    TreeNode alternative =
+				addBitChecks(setBitChecksToPush,
+					     clearBitChecksToPush,
+					     tree);
+
+			    newNode.setAlternative((NonleafTreeNode)alternative);
+
+			    return newNode;
+			};
+
+
+		    SymbolNode entry = hash.find(currentSubterm.topSymbol());
+
+		    if (!setBitChecksToPush.isEmpty() ||
+			!clearBitChecksToPush.isEmpty())
+			{
+			    // Push the postponed checks into the trees
+			    // below all the other entries.
+
+			    for (int n = 0; n < hash.size(); ++n)
+				if (hash.entry(n) != entry)
+				    hash.entry(n).
+					setTreeBelow(addBitChecks(setBitChecksToPush,
+								  clearBitChecksToPush,
+								  hash.entry(n).treeBelow()));
+			};
+
+		    if (entry == null)
+			{
+			    entry = 
+				newSymbolNode(currentSubterm.topSymbol(),
+					      insertIntoTree(termIterator,
+							     cluster,
+							     setBitChecksToInsert,
+							     clearBitChecksToInsert,
+							     setBitChecksToPush,
+							     clearBitChecksToPush,
+							     obj,
+							     null));
+			    hash.add(entry);
+			}
+		    else
+			entry.setTreeBelow(insertIntoTree(termIterator,
+							  cluster,
+							  setBitChecksToInsert,
+							  clearBitChecksToInsert,
+							  setBitChecksToPush,
+							  clearBitChecksToPush,
+							  obj,
+							  entry.treeBelow()));
+
+		    entry.widenSummary(_insertedTermSymbols,_insertedTermDepth);
+		    hash.widenSummary(_insertedTermSymbols,_insertedTermDepth);
+
+		    return tree;
+		}
+
+
 	    case TreeNode.Kind.ClusterSetBitTest:
 		{
 		    BitSet mask = ((ClusterSetBitTestNode)tree).mask();
 
 		    BitSet remainingChecks = (BitSet)mask.clone();
-		    remainingChecks.and(cluster);
+		    remainingChecks.and(cluster.bits());
 		    // Here remainingChecks contains checks that 
 		    // can be left in this node.
 
@@ -2420,7 +7957,7 @@ public class ClusteredUnificationIndex<IndexedObject> {
 		    BitSet mask = ((ClusterClearBitTestNode)tree).mask();
 
 		    BitSet remainingChecks = (BitSet)mask.clone();
-		    remainingChecks.andNot(cluster);
+		    remainingChecks.andNot(cluster.bits());
 		    // Here remainingChecks contains checks that 
 		    // can be left in this node.
 
@@ -2498,37 +8035,49 @@ public class ClusteredUnificationIndex<IndexedObject> {
 
 
     private TreeNode createBranch(Term.LeanIterator termIterator,
-				  BitSet cluster,
+				  ClusterId cluster,
 				  IndexedObject obj) {
 	
 	if (!termIterator.hasNext())
-	    // end of the term
-	    return new LeafNode(obj,cluster,null);
+	    {
+		// end of the term
+		LeafNode result = new LeafNode();
+		result.add(cluster,obj,_insertedOriginalVariables);
+		result.widenSummary(_insertedTermSymbols,_insertedTermDepth);
+		return result;
+	    };
      	
 	Term subterm = termIterator.next();
 	
 	TreeNode result = createBranch(termIterator,cluster,obj);
+
+	SymbolNode node = null;
 	
 	switch (subterm.kind())
 	    {
 	    case Term.Kind.Variable:
-		return new VariableNode((Variable)subterm,result);
+		node = new VariableNode((Variable)subterm,result);
+		break;
 		
 	    case Term.Kind.CompoundTerm: 
-		return new FunctionNode(((CompoundTerm)subterm).function(),
+		node = new FunctionNode(((CompoundTerm)subterm).function(),
 					result);
+		break;
 		
 	    case Term.Kind.IndividualConstant:
-		return new ConstantNode((IndividualConstant)subterm,
+		node = new ConstantNode((IndividualConstant)subterm,
 					result);
+		break;
 
 	    case Term.Kind.AtomicFormula:
-		return new PredicateNode(((AtomicFormula)subterm).predicate(),
+		node = new PredicateNode(((AtomicFormula)subterm).predicate(),
 					 result);
+		break;
       
 	    case Term.Kind.ConnectiveApplication:
-		return new ConnectiveNode(((ConnectiveApplication)subterm).connective(),
+		node = new ConnectiveNode(((ConnectiveApplication)subterm).connective(),
 					  result);
+		break;
 
 	    case Term.Kind.QuantifierApplication:
 		assert false;
@@ -2544,18 +8093,256 @@ public class ClusteredUnificationIndex<IndexedObject> {
 
 	    }; // switch (subter.kind())
 
-	assert false;
-	return null;
+	assert node != null;
+
+	node.widenSummary(_insertedTermSymbols,_insertedTermDepth);
+
+	return node;
 
     } // createBranch(Term.LeanIterator termIterator,..)
 
 
+    /** Index in <code>_nonvariableHash</code> of the tree for
+     *  the nonvariable term.
+     */
+    private static int treeNumber(Term term) {
+	return term.topSymbol().hashCode() % NonvariableHashSize;
+    }
+
+
+    /** Builds bottom-up the part of a tree for the sorted range 
+     *  <code>[begin,end)</code> of entries, which all share the first 
+     *  <code>position</code> symbols: a leaf if the entries have 
+     *  no more symbols, or a chain of alternatives, possibly ending 
+     *  with a symbol hash, otherwise. The chain does not include the 
+     *  checks common for all the entries: they are returned in
+     *  <code>setBits</code> and <code>clearBits</code>, so that 
+     *  the caller can put them in front of the chain.
+     */
+    private TreeNode buildLevel(ArrayList<BulkEntry> entries,
+				int begin,
+				int end,
+				int position,
+				BitSet setBits,
+				BitSet clearBits) {
+
+	assert begin < end;
+
+	if (position == entries.get(begin).symbols.length)
+	    {
+		// All the entries have the same term.
+
+		LeafNode leaf = new LeafNode();
+
+		setBits.clear();
+		clearBits.clear();
+		ClusterId lastCluster = null;
+
+		for (int n = begin; n < end; ++n)
+		    {
+			BulkEntry entry = entries.get(n);
+
+			leaf.add(entry.cluster,entry.obj,entry.originalVariables);
+			leaf.widenSummary(entry.numberOfSymbols,entry.depth);
+
+			if (entry.cluster.equals(lastCluster)) continue;
+
+			BitSet bits = entry.cluster.bits();
+
+			if (lastCluster == null)
+			    {
+				setBits.or(bits);
+				clearBits.set(0,bits.size());
+				clearBits.andNot(bits);
+			    }
+			else
+			    {
+				setBits.and(bits);
+				clearBits.andNot(bits);
+				if (clearBits.length() > bits.size())
+				    clearBits.clear(bits.size(),clearBits.length());
+			    };
+
+			lastCluster = entry.cluster;
+		    };
+
+		return leaf;
+
+	    }; // if (position == entries.get(begin).symbols.length)
+
+
+	// Split the range into groups with the same symbol at the position.
+	// The groups with variables come first.
+
+	ArrayList<Integer> groupBegins = new ArrayList<Integer>();
+	int numberOfVariableGroups = 0;
+
+	for (int n = begin; n < end; ++n)
+	    if (n == begin ||
+		entries.get(n).symbols[position] != 
+		entries.get(n - 1).symbols[position])
+		{
+		    groupBegins.add(n);
+		    if (entries.get(n).symbols[position].isVariable())
+			++numberOfVariableGroups;
+		};
+
+	int numberOfGroups = groupBegins.size();
+
+	// Groups that are not hashed form a sorted chain:
+	int numberOfChainGroups = 
+	    (numberOfGroups - numberOfVariableGroups > SymbolHashThreshold)?
+	    numberOfVariableGroups
+	    :
+	    numberOfGroups;
+
+	// Checks common for the groups below:
+	BitSet groupSetBits = new BitSet();
+	BitSet groupClearBits = new BitSet();
+
+	// The rest of the chain and the checks common for it:
+	NonleafTreeNode rest = null;
+	BitSet restSetBits = null;
+	BitSet restClearBits = null;
+
+	if (numberOfChainGroups < numberOfGroups)
+	    {
+		// The nonvariable groups go to a hash node.
+
+		SymbolHashNode hash = new SymbolHashNode();
+		ArrayList<BitSet> entrySetBits = new ArrayList<BitSet>();
+		ArrayList<BitSet> entryClearBits = new ArrayList<BitSet>();
+
+		for (int g = numberOfChainGroups; g < numberOfGroups; ++g)
+		    {
+			int groupBegin = groupBegins.get(g);
+			int groupEnd = 
+			    (g + 1 < numberOfGroups)? groupBegins.get(g + 1) : end;
+
+			BitSet nodeSetBits = new BitSet();
+			BitSet nodeClearBits = new BitSet();
+
+			TreeNode below = 
+			    buildLevel(entries,
+				       groupBegin,
+				       groupEnd,
+				       position + 1,
+				       nodeSetBits,
+				       nodeClearBits);
+
+			SymbolNode node = 
+			    newSymbolNode(entries.get(groupBegin).symbols[position],
+					  below);
+			node.widenSummaryWithChain(below);
+
+			hash.add(node);
+			hash.widenSummary(node);
+			entrySetBits.add(nodeSetBits);
+			entryClearBits.add(nodeClearBits);
+
+			if (restSetBits == null)
+			    {
+				restSetBits = (BitSet)nodeSetBits.clone();
+				restClearBits = (BitSet)nodeClearBits.clone();
+			    }
+			else
+			    {
+				restSetBits.and(nodeSetBits);
+				restClearBits.and(nodeClearBits);
+			    };
+		    };
+
+		// All checks relevant to an entry, except the common ones,
+		// are kept in the tree below the entry:
+
+		for (int n = 0; n < hash.size(); ++n)
+		    {
+			entrySetBits.get(n).andNot(restSetBits);
+			entryClearBits.get(n).andNot(restClearBits);
+			hash.entry(n).
+			    setTreeBelow(addBitChecks(entrySetBits.get(n),
+						      entryClearBits.get(n),
+						      hash.entry(n).treeBelow()));
+		    };
+
+		rest = hash;
+
+	    }; // if (numberOfChainGroups < numberOfGroups)
+
+
+	// The chain is built from the end:
+
+	for (int g = numberOfChainGroups - 1; g >= 0; --g)
+	    {
+		int groupBegin = groupBegins.get(g);
+		int groupEnd = (g + 1 < numberOfGroups)? groupBegins.get(g + 1) : end;
+
+		TreeNode below = 
+		    buildLevel(entries,
+			       groupBegin,
+			       groupEnd,
+			       position + 1,
+			       groupSetBits,
+			       groupClearBits);
+
+		SymbolNode node = 
+		    newSymbolNode(entries.get(groupBegin).symbols[position],below);
+		node.widenSummaryWithChain(below);
+
+		if (rest == null)
+		    {
+			// The last node of the chain.
+			restSetBits = (BitSet)groupSetBits.clone();
+			restClearBits = (BitSet)groupClearBits.clone();
+		    }
+		else
+		    {
+			// The checks for the rest of the chain not
+			// common with this group go in front of the rest:
+
+			BitSet newRestSetBits = (BitSet)restSetBits.clone();
+			newRestSetBits.and(groupSetBits);
+			BitSet newRestClearBits = (BitSet)restClearBits.clone();
+			newRestClearBits.and(groupClearBits);
+
+			restSetBits.andNot(newRestSetBits);
+			restClearBits.andNot(newRestClearBits);
+			node.setAlternative((NonleafTreeNode)
+					    addBitChecks(restSetBits,
+							 restClearBits,
+							 rest));
+
+			restSetBits = newRestSetBits;
+			restClearBits = newRestClearBits;
+		    };
+
+		// The checks for the group not common with the rest
+		// of the chain go below the node:
+
+		groupSetBits.andNot(restSetBits);
+		groupClearBits.andNot(restClearBits);
+		node.setTreeBelow(addBitChecks(groupSetBits,groupClearBits,below));
+
+		rest = node;
+
+	    }; // for (int g = numberOfChainGroups - 1; g >= 0; --g)
+
+	setBits.clear();
+	setBits.or(restSetBits);
+	clearBits.clear();
+	clearBits.or(restClearBits);
+
+	return rest;
+
+    } // buildLevel(ArrayList<BulkEntry> entries,..)
+
+
 
     /** Adds the specified clear-bit checks in the beginning of the tree. 
      *  <b>pre:</b> <code>tree != null</code>
      */
-    private static TreeNode addClearBitChecks(BitSet clearBitChecks, 
-					      TreeNode tree) {
+    private TreeNode addClearBitChecks(BitSet clearBitChecks, 
+				       TreeNode tree) {
 	
 	assert tree != null;
 
@@ -2573,6 +8360,7 @@ public class ClusteredUnificationIndex<IndexedObject> {
 	case TreeNode.Kind.Function: // as below
 	case TreeNode.Kind.Constant: // as below
 	case TreeNode.Kind.Predicate: // as below
+	case TreeNode.Kind.SymbolHash: // as below
 	case TreeNode.Kind.Connective:
 	    // Same treatment for all symbol nodes.
 	    return
@@ -2582,6 +8370,7 @@ public class ClusteredUnificationIndex<IndexedObject> {
 	case TreeNode.Kind.ClusterSetBitTest:
 	    // We are assuming here that no ClusterClearBitTest
 	    // can directly preceed a ClusterSetBitTest.
+	    tree = mutable(tree);
 	    ((NonleafTreeNode)tree).
 		setTreeBelow(addClearBitChecks(clearBitChecks,
 					       ((NonleafTreeNode)tree).
@@ -2590,7 +8379,8 @@ public class ClusteredUnificationIndex<IndexedObject> {
 	    
 	case TreeNode.Kind.ClusterClearBitTest:
 	    // Add new checks to this node.
-	    ((ClusterClearBitTestNode)tree).mask().or(clearBitChecks);
+	    tree = mutable(tree);
+	    ((ClusterClearBitTestNode)tree).orMask(clearBitChecks);
 	    return tree;
 	    
 	    
@@ -2612,8 +8402,8 @@ public class ClusteredUnificationIndex<IndexedObject> {
     /** Adds the specified set-bit checks in the beginning of the tree. 
      *  <b>pre:</b> <code>tree != null</code>
      */
-    private static TreeNode addSetBitChecks(BitSet setBitChecks,
-					    TreeNode tree) {
+    private TreeNode addSetBitChecks(BitSet setBitChecks,
+				     TreeNode tree) {
 	
 	assert tree != null;
 
@@ -2631,6 +8421,7 @@ public class ClusteredUnificationIndex<IndexedObject> {
 	case TreeNode.Kind.Function: // as below
 	case TreeNode.Kind.Constant: // as below
 	case TreeNode.Kind.Predicate: // as below
+	case TreeNode.Kind.SymbolHash: // as below
 	case TreeNode.Kind.Connective:
 	    // Same treatment for all symbol nodes.
 	    return 
@@ -2639,7 +8430,8 @@ public class ClusteredUnificationIndex<IndexedObject> {
 	    
 	case TreeNode.Kind.ClusterSetBitTest:
 	    // Add new checks to this node.
-	    ((ClusterSetBitTestNode)tree).mask().or(setBitChecks);
+	    tree = mutable(tree);
+	    ((ClusterSetBitTestNode)tree).orMask(setBitChecks);
 	    return tree;
 	    
 	    
@@ -2663,32 +8455,213 @@ public class ClusteredUnificationIndex<IndexedObject> {
 	assert false;
 	return null;
 
-    } // addSetBitChecks(BitSet setBitChecks,..)
+    } // addSetBitChecks(BitSet setBitChecks,..)
+
+
+
+
+    /** Adds the specified bit checks in the beginning of the tree. 
+     *  <b>pre:</b> <code>tree</code> can be <code>null</code>, in which
+     *  case <code>null</code> is returned.
+     */
+    private TreeNode addBitChecks(BitSet setBitChecks,
+				  BitSet clearBitChecks, 
+				  TreeNode tree) {
+	
+	if (tree == null) return null;
+
+	// The order of insertion of set-bit checks and clear-bit
+	// checks is important: we assume and guarantee that
+	// no ClusterClearBitTestNode can directly preceed
+	// a ClusterSetBitTestNode in the tree.
+
+	return addSetBitChecks(setBitChecks,
+			       addClearBitChecks(clearBitChecks, 
+						 tree));
+
+
+    } // addBitChecks(BitSet setBitChecks,..)
+
+
+
+    /** Checks if the nonvariable part of the alternative chain
+     *  starting with <code>level</code> has grown longer than
+     *  {@link #SymbolHashThreshold} nodes, and if so, replaces it
+     *  with a {@link SymbolHashNode}.
+     *  <b>pre:</b> <code>level != null</code>.
+     *  @return the new beginning of the level
+     */
+    private NonleafTreeNode hashLevelIfNeeded(NonleafTreeNode level) {
+
+	assert level != null;
+
+	// Skip the variable nodes and the checks in front of them,
+	// remembering the last node preceeding the nonvariable part:
+
+	NonleafTreeNode link = null;
+	NonleafTreeNode node = level;
+
+	while (node != null)
+	    {
+		if (node.isClusterTest())
+		    {
+			link = node;
+			node = (NonleafTreeNode)node.treeBelow();
+		    }
+		else if (node.isVariableNode())
+		    {
+			link = node;
+			node = ((SymbolNode)node).alternative();
+		    }
+		else
+		    break;
+	    };
+
+	if (node == null || node.isSymbolHash())
+	    return level;
+
+	// Count the nonvariable symbol nodes, but only up to the threshold:
+
+	int numberOfNodes = 0;
+	NonleafTreeNode cursor = node;
+
+	while (cursor != null && numberOfNodes <= SymbolHashThreshold)
+	    {
+		if (cursor.isClusterTest())
+		    {
+			cursor = (NonleafTreeNode)cursor.treeBelow();
+		    }
+		else
+		    {
+			++numberOfNodes;
+			cursor = ((SymbolNode)cursor).alternative();
+		    };
+	    };
+
+	if (numberOfNodes <= SymbolHashThreshold)
+	    return level;
+
+	// The nodes preceeding the nonvariable part will be relinked,
+	// so they may have to be copied:
+
+	level = mutable(level);
+	link = null;
+	node = level;
+
+	while (node.isClusterTest() || node.isVariableNode())
+	    {
+		NonleafTreeNode next;
+
+		if (node.isClusterTest())
+		    {
+			next = mutable((NonleafTreeNode)node.treeBelow());
+			node.setTreeBelow(next);
+		    }
+		else
+		    {
+			next = mutable(((SymbolNode)node).alternative());
+			((SymbolNode)node).setAlternative(next);
+		    };
+
+		link = node;
+		node = next;
+	    };
+
+	SymbolHashNode hash = symbolHashFromChain(node);
+
+	if (link == null) return hash;
+
+	if (link.isClusterTest())
+	    {
+		link.setTreeBelow(hash);
+	    }
+	else
+	    ((SymbolNode)link).setAlternative(hash);
+
+	return level;
+
+    } // hashLevelIfNeeded(NonleafTreeNode level)
+
+
+
+    /** Collects all symbol nodes from the chain into a new hash node;
+     *  the cluster checks from the chain are pushed into the trees
+     *  below the nodes they guard.
+     *  <b>pre:</b> the chain contains no variable nodes.
+     */
+    private SymbolHashNode symbolHashFromChain(NonleafTreeNode chain) {
+
+	SymbolHashNode result = new SymbolHashNode();
+
+	// Checks guarding the rest of the chain:
+	BitSet setBitChecks = new BitSet();
+	BitSet clearBitChecks = new BitSet();
+
+	while (chain != null)
+	    {
+		if (chain.kind() == TreeNode.Kind.ClusterSetBitTest)
+		    {
+			setBitChecks.or(((ClusterTestNode)chain).mask());
+			chain = (NonleafTreeNode)chain.treeBelow();
+		    }
+		else if (chain.kind() == TreeNode.Kind.ClusterClearBitTest)
+		    {
+			clearBitChecks.or(((ClusterTestNode)chain).mask());
+			chain = (NonleafTreeNode)chain.treeBelow();
+		    }
+		else
+		    {
+			assert chain.isNonvariableSymbolNode();
+
+			// The old chain is discarded, but it may be shared
+			// with published versions:
+			SymbolNode node = mutable((SymbolNode)chain);
+			chain = node.alternative();
+
+			node.setTreeBelow(addBitChecks(setBitChecks,
+						       clearBitChecks,
+						       node.treeBelow()));
+			result.add(node);
+			result.widenSummary(node);
+		    };
+	    };
+
+	return result;
 
+    } // symbolHashFromChain(NonleafTreeNode chain)
 
 
 
-    /** Adds the specified bit checks in the beginning of the tree. 
-     *  <b>pre:</b> <code>tree</code> can be <code>null</code>, in which
-     *  case <code>null</code> is returned.
+    /** Converts the hash node back into a normal sorted chain
+     *  of alternatives if the number of its entries has dropped
+     *  well below {@link #SymbolHashThreshold}.
+     *  @return null if the hash is empty
      */
-    private static TreeNode addBitChecks(BitSet setBitChecks,
-					 BitSet clearBitChecks, 
-					 TreeNode tree) {
-	
-	if (tree == null) return null;
+    private static NonleafTreeNode unhashLevelIfNeeded(SymbolHashNode hash) {
 
-	// The order of insertion of set-bit checks and clear-bit
-	// checks is important: we assume and guarantee that
-	// no ClusterClearBitTestNode can directly preceed
-	// a ClusterSetBitTestNode in the tree.
+	if (hash.size() == 0) return null;
 
-	return addSetBitChecks(setBitChecks,
-			       addClearBitChecks(clearBitChecks, 
-						 tree));
+	if (hash.size() >= SymbolHashThreshold / 2) return hash;
 
+	SymbolNode[] nodes = new SymbolNode[hash.size()];
+	for (int n = 0; n < nodes.length; ++n)
+	    nodes[n] = hash.entry(n);
 
-    } // addBitChecks(BitSet setBitChecks,..)
+	Arrays.sort(nodes,
+		    new Comparator<SymbolNode>() {
+			public int compare(SymbolNode node1,SymbolNode node2) {
+			    return node1.symbol().compareTo(node2.symbol());
+			}
+		    });
+
+	for (int n = 0; n + 1 < nodes.length; ++n)
+	    nodes[n].setAlternative(nodes[n + 1]);
+
+	nodes[nodes.length - 1].setAlternative(null);
+
+	return nodes[0];
+
+    } // unhashLevelIfNeeded(SymbolHashNode hash)
 	
 
 
@@ -2699,7 +8672,7 @@ public class ClusteredUnificationIndex<IndexedObject> {
     private 
 	TreeNode 
 	eraseFromTree(Term.LeanIterator termIterator,
-		      BitSet cluster,
+		      ClusterId cluster,
 		      UnaryPredicateObject<IndexedObject> hasToBeRemoved,
 		      TreeNode tree) 
     throws TermClusterPairNotFoundException {
@@ -2725,11 +8698,10 @@ public class ClusteredUnificationIndex<IndexedObject> {
 
 		assert tree.isLeaf();
 
-		return 
+		return
 		    pullCommonChecksFromLeaves(eraseLeaves(cluster,
 							   hasToBeRemoved,
-							   (LeafNode)tree,
-							   true));
+							   (LeafNode)tree));
 
 	    }; // if (!termIterator.hasNext())
 
@@ -2752,7 +8724,7 @@ public class ClusteredUnificationIndex<IndexedObject> {
 	NonleafTreeNode 
 	eraseFromTree(Term currentSubterm,
 		      Term.LeanIterator termIterator,
-		      BitSet cluster,
+		      ClusterId cluster,
 		      UnaryPredicateObject<IndexedObject> hasToBeRemoved,
 		      NonleafTreeNode tree)  
 	throws TermClusterPairNotFoundException {
@@ -2782,8 +8754,13 @@ public class ClusteredUnificationIndex<IndexedObject> {
 			return 
 			    ((SymbolNode)tree).alternative();
 
+		    tree = mutable(tree);
 		    tree.setTreeBelow(newTreeBelow);
 
+		    // The summary may become narrower:
+		    tree.clearSummary();
+		    tree.widenSummaryWithChain(newTreeBelow);
+
 		    return pullCommonChecks((SymbolNode)tree);
 		}
 		else if (((SymbolNode)tree).alternative() == null || 
@@ -2801,6 +8778,7 @@ public class ClusteredUnificationIndex<IndexedObject> {
 				      hasToBeRemoved,
 				      ((SymbolNode)tree).alternative());
 
+		    tree = mutable(tree);
 		    ((SymbolNode)tree).setAlternative(newAlternative);
 
 		    return pullCommonChecks((SymbolNode)tree);
@@ -2810,15 +8788,50 @@ public class ClusteredUnificationIndex<IndexedObject> {
 
 
 
+	    case TreeNode.Kind.SymbolHash:
+		{
+		    SymbolNode entry =
+			((SymbolHashNode)tree).find(currentSubterm.topSymbol());
+
+		    if (entry == null)
+			// The term is not in the index!
+			throw new TermClusterPairNotFoundException();
+
+		    TreeNode newTreeBelow =
+			eraseFromTree(termIterator,
+				      cluster,
+				      hasToBeRemoved,
+				      entry.treeBelow());
+
+		    // The entries are copied together with the hash:
+		    tree = mutable(tree);
+		    entry = ((SymbolHashNode)tree).find(currentSubterm.topSymbol());
+
+		    if (newTreeBelow == null)
+			{
+			    ((SymbolHashNode)tree).remove(entry.symbol());
+			    return unhashLevelIfNeeded((SymbolHashNode)tree);
+			};
+
+		    // The checks are never pulled above the entries:
+		    // they remain in the trees below them.
+
+		    entry.setTreeBelow(newTreeBelow);
+
+		    // The summary of the hash itself is not narrowed,
+		    // which would require a pass over all the entries.
+		    entry.clearSummary();
+		    entry.widenSummaryWithChain(newTreeBelow);
+
+		    return tree;
+		}
+
+
 	    case TreeNode.Kind.ClusterSetBitTest:
 		{
 		    // Check the cluster:
 		    
-		    BitSet invertedCluster = (BitSet)cluster.clone();
-		    invertedCluster.flip(0,invertedCluster.size());
-		    
-		    if (((ClusterSetBitTestNode)tree).mask().
-			intersects(invertedCluster))
+		    if (!((ClusterSetBitTestNode)tree).test(cluster))
 			// At least one set-bit check fails 
 			// on the cluster => this term-cluster pair 
 			// is not in the index!
@@ -2838,8 +8851,7 @@ public class ClusteredUnificationIndex<IndexedObject> {
 		{
 		    // Check the cluster:
 		    
-		    if (((ClusterClearBitTestNode)tree).mask().
-			intersects(cluster))
+		    if (!((ClusterClearBitTestNode)tree).test(cluster))
 			// At least one clear-bit check fails 
 			// on the cluster => this term-cluster pair 
 			// is not in the index!
@@ -2869,38 +8881,37 @@ public class ClusteredUnificationIndex<IndexedObject> {
 
 
     
-    /** <b>pre:</b> <code>leaf</code> can be <code>null</code>. */
-    private 
-	LeafNode 
-	eraseLeaves(BitSet cluster,
+    /** Removes all objects with the specified cluster,
+     *  that satisfy <code>hasToBeRemoved</code>, from the leaf.
+     *  @return <code>leaf</code>, or null if it becomes empty
+     *  @throws TermClusterPairNotFoundException if nothing was removed
+     */
+    private
+	LeafNode
+	eraseLeaves(ClusterId cluster,
 		    UnaryPredicateObject<IndexedObject> hasToBeRemoved,
-		    LeafNode leaf,
-		    boolean throwIfNotFound) 
+		    LeafNode leaf)
     throws TermClusterPairNotFoundException {
-	
-	if (leaf == null) 
-	    if (throwIfNotFound) 
-		{
-		    throw new TermClusterPairNotFoundException();
-		}
-	    else return null;
 
-	if (leaf.cluster().equals(cluster) &&
-	    hasToBeRemoved.evaluate((IndexedObject)leaf.indexedObject()))
-	    return 
-		eraseLeaves(cluster,
-			    hasToBeRemoved,
-			    leaf.otherLeaves(),
-			    false);
-	    
-	leaf.setOtherLeaves(eraseLeaves(cluster,
-					hasToBeRemoved,
-					leaf.otherLeaves(),
-					throwIfNotFound));
+	assert leaf != null;
+
+	leaf = mutable(leaf);
+
+	LeafBucket bucket = leaf.bucket(cluster);
+
+	if (bucket == null ||
+	    bucket.removeAll(hasToBeRemoved) == 0)
+	    throw new TermClusterPairNotFoundException();
+
+	if (bucket.isEmpty())
+	    {
+		leaf.removeBucket(bucket);
+		if (leaf.isEmpty()) return null;
+	    };
 
 	return leaf;
 
-    } // eraseLeaves(BitSet cluster,..)
+    } // eraseLeaves(ClusterId cluster,..)
 
 
     
@@ -2942,22 +8953,27 @@ public class ClusteredUnificationIndex<IndexedObject> {
 	commonChecksForLeaves(LeafNode tree) {
 
 	assert tree != null;
+	assert !tree.isEmpty();
+
+	Iterator<LeafBucket> buckets = tree.buckets().iterator();
 
-	BitSet setBitChecks = 
-	    (BitSet)tree.cluster().clone();
+	BitSet firstCluster = buckets.next().cluster().bits();
+
+	BitSet setBitChecks =
+	    (BitSet)firstCluster.clone();
 	BitSet clearBitChecks =
-	    (BitSet)tree.cluster().clone();
+	    (BitSet)firstCluster.clone();
 	clearBitChecks.flip(0,clearBitChecks.size());
-	
-	Pair<BitSet,BitSet> result = 
+
+	Pair<BitSet,BitSet> result =
 	    new Pair<BitSet,BitSet>(setBitChecks,
 				    clearBitChecks);
-	
-	while (tree.otherLeaves() != null)
+
+	while (buckets.hasNext())
 	    {
-		tree = tree.otherLeaves();
-		result.first.and(tree.cluster());
-		result.second.andNot(tree.cluster());
+		ClusterId cluster = buckets.next().cluster();
+		result.first.and(cluster.bits());
+		result.second.andNot(cluster.bits());
 	    };
 
 	return result;
@@ -2967,13 +8983,14 @@ public class ClusteredUnificationIndex<IndexedObject> {
     
 
 
+    /** <b>pre:</b> <code>tree</code> is not shared with published versions. */
     private 
-	static 
 	NonleafTreeNode 
 	pullCommonChecks(NonleafTreeNodeWithAlternative tree) {
 
 
 	assert tree != null;
+	assert tree.epoch() >= _frozenEpoch;
 
 	if (tree.alternative() == null)
 	    {
@@ -2982,10 +8999,13 @@ public class ClusteredUnificationIndex<IndexedObject> {
 		
 		TreeNode newTreeBelow = tree.treeBelow();
 
+		// The checks are moved above tree, so they may
+		// have to be copied.
+
 		if (newTreeBelow.kind() == 
 		    TreeNode.Kind.ClusterSetBitTest)
 		    {
-			setBitChecks = (ClusterSetBitTestNode)newTreeBelow;
+			setBitChecks = mutable((ClusterSetBitTestNode)newTreeBelow);
 			newTreeBelow = 
 			    ((ClusterSetBitTestNode)newTreeBelow).treeBelow();
 
@@ -2994,7 +9014,7 @@ public class ClusteredUnificationIndex<IndexedObject> {
 		if (newTreeBelow.kind() == 
 		    TreeNode.Kind.ClusterClearBitTest)
 		    {
-			clearBitChecks = (ClusterClearBitTestNode)newTreeBelow;
+			clearBitChecks = mutable((ClusterClearBitTestNode)newTreeBelow);
 			newTreeBelow = 
 			    ((ClusterClearBitTestNode)newTreeBelow).treeBelow();
 		    };
@@ -3068,6 +9088,52 @@ public class ClusteredUnificationIndex<IndexedObject> {
 
 		BitSet newSetBitChecks = null;
 		BitSet newClearBitChecks = null;
+
+
+		if ((clearBitChecks1 != null && 
+		     clearBitChecks2 != null &&
+		     clearBitChecks1.mask().intersects(clearBitChecks2.mask())) ||
+		    (setBitChecks1 != null && 
+		     setBitChecks2 != null &&
+		     setBitChecks1.mask().intersects(setBitChecks2.mask())))
+		    {
+			// Some checks will be modified, so they may have 
+			// to be copied:
+
+			if (setBitChecks1 != null)
+			    {
+				setBitChecks1 = mutable(setBitChecks1);
+				tree.setTreeBelow(setBitChecks1);
+			    };
+
+			if (clearBitChecks1 != null)
+			    {
+				clearBitChecks1 = mutable(clearBitChecks1);
+				if (setBitChecks1 == null)
+				    {
+					tree.setTreeBelow(clearBitChecks1);
+				    }
+				else
+				    setBitChecks1.setTreeBelow(clearBitChecks1);
+			    };
+
+			if (setBitChecks2 != null)
+			    {
+				setBitChecks2 = mutable(setBitChecks2);
+				tree.setAlternative(setBitChecks2);
+			    };
+
+			if (clearBitChecks2 != null)
+			    {
+				clearBitChecks2 = mutable(clearBitChecks2);
+				if (setBitChecks2 == null)
+				    {
+					tree.setAlternative(clearBitChecks2);
+				    }
+				else
+				    setBitChecks2.setTreeBelow(clearBitChecks2);
+			    };
+		    };
 		   
 
 		if (clearBitChecks1 != null && clearBitChecks2 != null)
@@ -3085,8 +9151,8 @@ public class ClusteredUnificationIndex<IndexedObject> {
 				// Remove the lifted checks from clearBitChecks1
 				// and clearBitChecks2:
 				
-				clearBitChecks1.mask().andNot(newClearBitChecks);
-				clearBitChecks2.mask().andNot(newClearBitChecks);
+				clearBitChecks1.andNotMask(newClearBitChecks);
+				clearBitChecks2.andNotMask(newClearBitChecks);
 				
 			    }; // if (clearBitChecks1.intersects(clearBitChecks2))
 		    }; // if (clearBitChecks1 != null && clearBitChecks2 != null)
@@ -3107,8 +9173,8 @@ public class ClusteredUnificationIndex<IndexedObject> {
 				// Remove the lifted checks from setBitChecks1
 				// and setBitChecks2:
 				
-				setBitChecks1.mask().andNot(newSetBitChecks);
-				setBitChecks2.mask().andNot(newSetBitChecks);
+				setBitChecks1.andNotMask(newSetBitChecks);
+				setBitChecks2.andNotMask(newSetBitChecks);
 				
 			    }; // if (setBitChecks1.intersects(setBitChecks2))
 
@@ -3186,8 +9252,8 @@ public class ClusteredUnificationIndex<IndexedObject> {
     private 
 	TreeNode 
 	relocateInTree(Term.LeanIterator termIterator,
-		       BitSet cluster,
-		       BitSet newCluster,
+		       ClusterId cluster,
+		       ClusterId newCluster,
 		       UnaryPredicateObject<IndexedObject> hasToBeRelocated,
 		       TreeNode tree) 
     throws TermClusterPairNotFoundException {
@@ -3212,14 +9278,16 @@ public class ClusteredUnificationIndex<IndexedObject> {
 				       ((NonleafTreeNode)tree).
 				       treeBelow());
 		assert tree.isLeaf();
+
+		LeafNode leaf = mutable((LeafNode)tree);
 		
 		relocateLeaves(cluster,
 			       newCluster,
 			       hasToBeRelocated,
-			       (LeafNode)tree);
+			       leaf);
 		
 		return 
-		    pullCommonChecksFromLeaves((LeafNode)tree);
+		    pullCommonChecksFromLeaves(leaf);
 		
 	    }; // if (!termIterator.hasNext())
 	
@@ -3245,8 +9313,8 @@ public class ClusteredUnificationIndex<IndexedObject> {
 	NonleafTreeNode 
 	relocateInTree(Term currentSubterm,
 		       Term.LeanIterator termIterator,
-		       BitSet cluster,
-		       BitSet newCluster,
+		       ClusterId cluster,
+		       ClusterId newCluster,
 		       UnaryPredicateObject<IndexedObject> hasToBeRelocated,
 		       NonleafTreeNode tree) 
 	throws TermClusterPairNotFoundException {
@@ -3272,6 +9340,7 @@ public class ClusteredUnificationIndex<IndexedObject> {
 				       hasToBeRelocated,
 				       tree.treeBelow());
 
+		    tree = mutable(tree);
 		    tree.setTreeBelow(newTreeBelow);
 
 		    return pullCommonChecks((SymbolNode)tree);
@@ -3292,6 +9361,7 @@ public class ClusteredUnificationIndex<IndexedObject> {
 				       hasToBeRelocated,
 				       ((SymbolNode)tree).alternative());
 
+		    tree = mutable(tree);
 		    ((SymbolNode)tree).setAlternative(newAlternative);
 
 		    return pullCommonChecks((SymbolNode)tree);
@@ -3300,15 +9370,39 @@ public class ClusteredUnificationIndex<IndexedObject> {
 
 
 
+	    case TreeNode.Kind.SymbolHash:
+		{
+		    SymbolNode entry =
+			((SymbolHashNode)tree).find(currentSubterm.topSymbol());
+
+		    if (entry == null)
+			// The term is not in the index!
+			throw new TermClusterPairNotFoundException();
+
+		    // The checks are never pulled above the entries:
+		    // they remain in the trees below them.
+
+		    TreeNode newTreeBelow =
+			relocateInTree(termIterator,
+				       cluster,
+				       newCluster,
+				       hasToBeRelocated,
+				       entry.treeBelow());
+
+		    // The entries are copied together with the hash:
+		    tree = mutable(tree);
+		    entry = ((SymbolHashNode)tree).find(currentSubterm.topSymbol());
+
+		    entry.setTreeBelow(newTreeBelow);
+		    return tree;
+		}
+
+
 	    case TreeNode.Kind.ClusterSetBitTest:
 		{
 		    // Check the cluster:
 		    
-		    BitSet invertedCluster = (BitSet)cluster.clone();
-		    invertedCluster.flip(0,invertedCluster.size());
-		    
-		    if (((ClusterSetBitTestNode)tree).mask().
-			intersects(invertedCluster))
+		    if (!((ClusterSetBitTestNode)tree).test(cluster))
 			// At least one set-bit check fails 
 			// on the cluster => this term-cluster pair 
 			// is not in the index!
@@ -3322,7 +9416,8 @@ public class ClusteredUnificationIndex<IndexedObject> {
 				       hasToBeRelocated,
 				       (NonleafTreeNode)tree.treeBelow());
 			
-		    ((ClusterSetBitTestNode)tree).mask().and(newCluster);
+		    tree = mutable(tree);
+		    ((ClusterSetBitTestNode)tree).andMask(newCluster.bits());
 		    if (((ClusterSetBitTestNode)tree).mask().isEmpty())
 			// The node is completely removed.
 			return newTreeBelow;
@@ -3331,9 +9426,9 @@ public class ClusteredUnificationIndex<IndexedObject> {
 
 		    if (newTreeBelow.kind() == TreeNode.Kind.ClusterSetBitTest)
 			{
+			    newTreeBelow = mutable(newTreeBelow);
 			    ((ClusterSetBitTestNode)newTreeBelow).
-				mask().
-				or(((ClusterSetBitTestNode)tree).mask());
+				orMask(((ClusterSetBitTestNode)tree).mask());
 			    
 			    return newTreeBelow;
 			};
@@ -3351,8 +9446,7 @@ public class ClusteredUnificationIndex<IndexedObject> {
 		{
 		    // Check the cluster:
 		    
-		    if (((ClusterClearBitTestNode)tree).mask().
-			intersects(cluster))
+		    if (!((ClusterClearBitTestNode)tree).test(cluster))
 			// At least one clear-bit check fails 
 			// on the cluster => this term-cluster pair 
 			// is not in the index!
@@ -3367,7 +9461,8 @@ public class ClusteredUnificationIndex<IndexedObject> {
 				       (NonleafTreeNode)tree.treeBelow());
 
 		    
-		    ((ClusterClearBitTestNode)tree).mask().andNot(newCluster);
+		    tree = mutable(tree);
+		    ((ClusterClearBitTestNode)tree).andNotMask(newCluster.bits());
 		    if (((ClusterClearBitTestNode)tree).mask().isEmpty())
 			// The node is completely removed.
 			return newTreeBelow;
@@ -3379,14 +9474,17 @@ public class ClusteredUnificationIndex<IndexedObject> {
 
 		    if (newTreeBelow.kind() == TreeNode.Kind.ClusterClearBitTest)
 			{
+			    newTreeBelow = mutable(newTreeBelow);
 			    clearBitTest = (ClusterClearBitTestNode)newTreeBelow;
 			}
 		    else if (newTreeBelow.kind() == TreeNode.Kind.ClusterSetBitTest &&
 			     newTreeBelow.treeBelow().kind() ==  
 			     TreeNode.Kind.ClusterClearBitTest)
 			{
+			    newTreeBelow = mutable(newTreeBelow);
 			    clearBitTest = 
-				(ClusterClearBitTestNode)newTreeBelow.treeBelow();
+				mutable((ClusterClearBitTestNode)newTreeBelow.treeBelow());
+			    newTreeBelow.setTreeBelow(clearBitTest);
 			}
 		    else
 			{
@@ -3397,6 +9495,8 @@ public class ClusteredUnificationIndex<IndexedObject> {
 				{
 				    // (ClusterClearBitTestNode)tree has to be pushed under
 				    // the ClusterClearBitTest node:
+
+				    newTreeBelow = mutable(newTreeBelow);
 				    
 				    ((ClusterClearBitTestNode)tree).
 					setTreeBelow(((ClusterSetBitTestNode)newTreeBelow).
@@ -3412,7 +9512,7 @@ public class ClusteredUnificationIndex<IndexedObject> {
 			    return tree;
 			};
 
-		    clearBitTest.mask().or(((ClusterClearBitTestNode)tree).mask());
+		    clearBitTest.orMask(((ClusterClearBitTestNode)tree).mask());
 
 		    return newTreeBelow;
 
@@ -3433,30 +9533,40 @@ public class ClusteredUnificationIndex<IndexedObject> {
 
 
 
-    /** <b>pre:</b> <code>leaf</code> can be <code>null</code>. */
-    private static void relocateLeaves(BitSet cluster,
-				       BitSet newCluster,
-				       UnaryPredicateObject hasToBeRelocated,
-				       LeafNode leaf) 
+    /** <b>pre:</b> <code>leaf</code> cannot be <code>null</code>. */
+    private static <T> void relocateLeaves(ClusterId cluster,
+					   ClusterId newCluster,
+					   UnaryPredicateObject<T> hasToBeRelocated,
+					   LeafNode leaf)
     throws TermClusterPairNotFoundException {
 
-	boolean somethingChanged = false;
+	assert leaf != null;
+
+	LeafBucket bucket = leaf.bucket(cluster);
+
+	if (bucket == null) throw new TermClusterPairNotFoundException();
 
-	while (leaf != null)
+	if (cluster.equals(newCluster))
 	    {
-		if (leaf.cluster().equals(cluster) &&
-		    hasToBeRelocated.evaluate(leaf.indexedObject()))
-		    {
-			somethingChanged = true;
-			leaf.setCluster((BitSet)newCluster.clone());
-		    };
-		leaf = leaf.otherLeaves();
+		// Nothing to move, but we have to check if
+		// there is something to relocate.
+		for (int n = 0; n < bucket.size(); ++n)
+		    if (hasToBeRelocated.evaluate(bucket.<T>typedObject(n)))
+			return;
+		throw new TermClusterPairNotFoundException();
 	    };
-	
-	if (!somethingChanged) throw new TermClusterPairNotFoundException();
 
+	LeafBucket newBucket = leaf.bucketForInsertion(newCluster);
+
+	if (bucket.moveAll(hasToBeRelocated,newBucket) == 0)
+	    {
+		if (newBucket.isEmpty()) leaf.removeBucket(newBucket);
+		throw new TermClusterPairNotFoundException();
+	    };
 
-    } // relocateLeaves(BitSet cluster,..)
+	if (bucket.isEmpty()) leaf.removeBucket(bucket);
+
+    } // relocateLeaves(ClusterId cluster,..)
 
 
 	
@@ -3495,10 +9605,10 @@ public class ClusteredUnificationIndex<IndexedObject> {
 	
 	HashMap<TreeNode,Integer> nodeNumbers =
 	    new HashMap<TreeNode,Integer>();
-	nodeNumbers.put(tree,new Integer(0));
+	nodeNumbers.put(tree,Integer.valueOf(0));
 
 	Ref<Integer> nextFreshNodeNumber = 
-	    new Ref<Integer>(new Integer(1));
+	    new Ref<Integer>(Integer.valueOf(1));
 
 	return treeToString(tree,nodeNumbers,nextFreshNodeNumber);
 	
@@ -3556,6 +9666,28 @@ public class ClusteredUnificationIndex<IndexedObject> {
 		return result;
 
 
+	    case TreeNode.Kind.SymbolHash:
+		result += tree.toString();
+
+		if (((SymbolHashNode)tree).firstEntry() != null)
+		    {
+			// The entries are printed as a chain:
+			nodeNumbers.put(((SymbolHashNode)tree).firstEntry(),
+					nextFreshNodeNumber.content);
+			result += ", FIRST [" + nextFreshNodeNumber.content + "]";
+			nextFreshNodeNumber.content = nextFreshNodeNumber.content + 1;
+
+			result += "\n" +
+			    treeToString(((SymbolHashNode)tree).firstEntry(),
+					 nodeNumbers,
+					 nextFreshNodeNumber);
+
+			nodeNumbers.remove(((SymbolHashNode)tree).firstEntry());
+		    };
+
+		return result;
+
+
 	    case TreeNode.Kind.ClusterSetBitTest: // as below
 	    case TreeNode.Kind.ClusterClearBitTest:
 		nodeNumbers.put(((NonleafTreeNode)tree).treeBelow(),
@@ -3573,16 +9705,6 @@ public class ClusteredUnificationIndex<IndexedObject> {
 
 	    case TreeNode.Kind.Leaf:
 		result += tree.toString() + "\n";
-		if (((LeafNode)tree).otherLeaves() != null)
-		    {
-			nodeNumbers.put(((LeafNode)tree).otherLeaves(),
-					nextFreshNodeNumber.content);
-			nextFreshNodeNumber.content = nextFreshNodeNumber.content + 1;
-			result += treeToString(((LeafNode)tree).otherLeaves(),
-					       nodeNumbers,
-					       nextFreshNodeNumber);
-			nodeNumbers.remove(((LeafNode)tree).otherLeaves());
-		    };
 		return result;
 			    
 	    }; // switch (tree.kind())
@@ -3593,6 +9715,134 @@ public class ClusteredUnificationIndex<IndexedObject> {
     } // treeToString(TreeNode tree,..)
 	
 
+    /** Renames the variables of the term into the canonical 
+     *  variables, if the index normalises variables; otherwise 
+     *  returns the term itself.
+     */
+    private Term normalise(Term term) {
+
+	if (!_normaliseVariables || !term.containsVariables()) return term;
+
+	_numberOfNormalisedVariables = 0;
+
+	Term result = normalisedCopy(term);
+
+	// Release the original variables:
+	Arrays.fill(_normalisedVariables,0,_numberOfNormalisedVariables,null);
+	_numberOfNormalisedVariables = 0;
+
+	return result;
+
+    } // normalise(Term term)
+
+
+    /** Same as <code>TermFactory.copyWithVariableRenaming(..)</code>
+     *  with {@link #canonicalImage(Variable)} as the renaming,
+     *  but the copy is assembled directly instead of being 
+     *  shared in a factory; the subterms without variables 
+     *  are taken from <code>term</code> itself.
+     */
+    private Term normalisedCopy(Term term) {
+
+	if (!term.containsVariables()) return term;
+
+	switch (term.kind())
+	    {
+	    case Term.Kind.Variable:
+		return canonicalImage((Variable)term);
+
+	    case Term.Kind.CompoundTerm:
+		return 
+		    new CompoundTerm(((CompoundTerm)term).function(),
+				     normalisedCopy(((CompoundTerm)term).argument()));
+
+	    case Term.Kind.AtomicFormula:
+		// The argument is not null since there are variables.
+		return 
+		    new AtomicFormula(((AtomicFormula)term).predicate(),
+				      normalisedCopy(((AtomicFormula)term).argument()));
+
+	    case Term.Kind.ConnectiveApplication:
+		return 
+		    new ConnectiveApplication(((ConnectiveApplication)term).connective(),
+					      normalisedCopy(((ConnectiveApplication)term).argument()));
+
+	    case Term.Kind.QuantifierApplication:
+		return 
+		    new QuantifierApplication(((QuantifierApplication)term).quantifier(),
+					      normalisedCopy(((QuantifierApplication)term).abstraction()));
+
+	    case Term.Kind.AbstractionTerm:
+		{
+		    // The bound variable is renamed before the matrix:
+		    Variable var = 
+			canonicalImage(((AbstractionTerm)term).variable());
+		    return 
+			new AbstractionTerm(var,
+					    normalisedCopy(((AbstractionTerm)term).matrix()));
+		}
+
+	    case Term.Kind.TermPair:
+		{
+		    Term first = normalisedCopy(((TermPair)term).first());
+		    return new TermPair(first,
+					normalisedCopy(((TermPair)term).second()));
+		}
+
+	    }; // switch (term.kind())
+
+	assert false;
+	return null;
+
+    } // normalisedCopy(Term term)
+
+
+    /** Canonical variable replacing <code>var</code> in the term
+     *  being normalised: the variables are numbered in the order 
+     *  of their first occurrences.
+     */
+    private Variable canonicalImage(Variable var) {
+
+	for (int n = 0; n < _numberOfNormalisedVariables; ++n)
+	    if (_normalisedVariables[n] == var) return canonicalVariable(n);
+
+	if (_numberOfNormalisedVariables == _normalisedVariables.length)
+	    _normalisedVariables = 
+		Arrays.copyOf(_normalisedVariables,
+			      2 * _numberOfNormalisedVariables);
+
+	_normalisedVariables[_numberOfNormalisedVariables] = var;
+	++_numberOfNormalisedVariables;
+
+	return canonicalVariable(_numberOfNormalisedVariables - 1);
+
+    } // canonicalImage(Variable var)
+
+
+    /** Variables of the term in the order of their first occurrences,
+     *  ie, in the order of the corresponding canonical variables;
+     *  null if there are no variables.
+     */
+    private static Variable[] originalVariables(Term term) {
+
+	if (!term.containsVariables()) return null;
+
+	ArrayList<Variable> result = new ArrayList<Variable>();
+
+	Term.LeanIterator iter = new Term.LeanIterator(term);
+	while (iter.hasNext())
+	    {
+		Term subterm = iter.next();
+		if (subterm.isVariable() && 
+		    !result.contains((Variable)subterm))
+		    result.add((Variable)subterm);
+	    };
+
+	return result.toArray(new Variable[result.size()]);
+
+    } // originalVariables(Term term)
+
+
     /** Compares two symbols; any variable is smaller than any
      *  nonvariable symbol.
      */
@@ -3620,10 +9870,64 @@ public class ClusteredUnificationIndex<IndexedObject> {
     //                     Data:
 
     private static final int NonvariableHashSize = 1000;
+
+    /** When the number of nonvariable symbol nodes at a level
+     *  exceeds this value, they are moved into a {@link SymbolHashNode}.
+     */
+    private static final int SymbolHashThreshold = 16;
+
+    /** Must be a power of 2 greater than <code>2 * SymbolHashThreshold</code>. */
+    private static final int InitialSymbolHashCapacity = 64;
+
+    private static final int InitialLeafBucketCapacity = 2;
+
+    private static final int InitialBatchCapacity = 16;
+
+    private static final int InitialVariantCapacity = 16;
+
+    private static final int InitialRetrievalStackCapacity = 128;
+
+    /** Initial depth of the stacks in the tree path terms
+     *  of shared and one-way retrievals; the stacks grow on demand.
+     */
+    private static final int InitialTreePathTermCapacity = 8;
+
+    /** Number of ints in a node record of a {@link CompactVersion};
+     *  the fields are at the offsets {@link #CompactKindField}, 
+     *  {@link #CompactDataField}, {@link #CompactBelowField} and
+     *  {@link #CompactAlternativeField}.
+     */
+    private static final int CompactRecordSize = 4;
+
+    /** Offset of the {@link TreeNode.Kind} of the node. */
+    private static final int CompactKindField = 0;
+
+    /** Offset of the number of the symbol, mask or leaf of the node,
+     *  or the number of entries for symbol hashes.
+     */
+    private static final int CompactDataField = 1;
+
+    /** Offset of the position of the tree below the node, or the first
+     *  entry for symbol hashes.
+     */
+    private static final int CompactBelowField = 2;
+
+    private static final int CompactAlternativeField = 3;
+
+    /** Encodes null pointers in {@link CompactVersion}s. */
+    private static final int NoRecord = -1;
+
+    /** Marks backtrack points for tree path terms 
+     *  in {@link CompactRetrieval}s.
+     */
+    private static final int TreePathTermPoint = -2;
+
+    /** Initial number of records in {@link CompactVersion}s. */
+    private static final int InitialCompactCapacity = 1024;
         
     private TreeNode[] _nonvariableHash;
 
-    private HashMap<BitSet, TreeMap<Variable,LeafNode>> _variableIndex;
+    private HashMap<ClusterId, TreeMap<Variable,LeafBucket>> _variableIndex;
 
     /** Number of locks set by retrieval operation in progress;
      *  should be 0 when any maintenance is performed,
@@ -3631,5 +9935,95 @@ public class ClusteredUnificationIndex<IndexedObject> {
      */
     private int _retrievalLocks;
 
+    /** Number of unreleased frozen views of the index;
+     *  should be 0 when any maintenance is performed.
+     */
+    private int _frozenViews;
+
+    /** Source of epochs for the tree nodes and leaf buckets 
+     *  of all indexes; only grows.
+     */
+    private static final AtomicInteger _epochClock = new AtomicInteger(0);
+
+    /** Tree nodes and leaf buckets with epochs smaller than this
+     *  may be reachable from published versions, so they must
+     *  be copied before any modification.
+     */
+    private int _frozenEpoch;
+
+    /** Value of {@link #_frozenEpoch} when <code>_variableIndex</code>
+     *  was last copied; the maps in <code>_variableIndex</code> are shared
+     *  with the latest published version if this is smaller
+     *  than <code>_frozenEpoch</code>.
+     */
+    private int _variableIndexEpoch;
+
+    /** Indicates that the index has been modified since 
+     *  the last call to {@link #publish()}. 
+     */
+    private boolean _unpublishedChanges;
+
+    private volatile Version _latestVersion;
+
+    /** Number of symbols in the term being inserted. */
+    private int _insertedTermSymbols;
+
+    /** Depth of the term being inserted. */
+    private int _insertedTermDepth;
+
+    /** Original variables of the term being inserted, if the index
+     *  normalises variables.
+     */
+    private Variable[] _insertedOriginalVariables;
+
+    //     Scratch structures for findVariant(..):
+
+    private final Term.LeanIterator _variantIterator;
+
+    /** Top symbols of the subterms of the term being looked up. */
+    private Symbol[] _variantSymbols;
+
+    private int _numberOfVariantSymbols;
+
+    /** Term variable <code>_renamedVariables[n]</code> corresponds to
+     *  the index variable <code>_renamingImages[n]</code> 
+     *  if <code>n < _renamingSize</code>.
+     */
+    private Variable[] _renamedVariables;
+
+    private Variable[] _renamingImages;
+
+    private int _renamingSize;
+
+    /** Buckets with the variants found so far. */
+    private final ArrayList<LeafBucket> _variantBuckets;
+
+    /** See {@link #ClusteredUnificationIndex(boolean)}. */
+    private final boolean _normaliseVariables;
+
+    /** Representatives of the clusters of the indexed objects; 
+     *  only used by the maintenance methods, so that queries do not
+     *  need any synchronisation.
+     */
+    private final ClusterId.Pool _clusterPool;
+
+    // Used only if _normaliseVariables:
+
+    /** Canonical variables; only used by {@link #canonicalVariable(int)}. */
+    private Variable.Bank _canonicalVariableBank;
+
+    /** Canonical variables reserved so far, in the order of 
+     *  their reservation. 
+     */
+    private ArrayList<Variable> _canonicalVariables;
+
+    /** Variables of the term being normalised, in the order of 
+     *  their first occurrences; the first 
+     *  <code>_numberOfNormalisedVariables</code> elements are used.
+     */
+    private Variable[] _normalisedVariables;
+
+    private int _numberOfNormalisedVariables;
+
 }; // class ClusteredUnificationIndex<IndexedObject>
 
@@ -37,8 +37,17 @@ public final class CompoundTerm implements Term {
 	assert func.arity() > 0;
 	assert func.arity() != 1 || arg.isIndividualValued();
 	assert func.arity() == 1 || arg.isPair();
+	assert func.markUsed();
+	assert arg.kind() != Term.Kind.IndividualConstant ||
+	    ((IndividualConstant)arg).markUsed();
 	_function = func;
 	_argument = arg;
+	_numberOfSymbols = 1 + arg.numberOfSymbols();
+	_depth = 1 + arg.depth();
+	_weightConstantPart = func.weight() + arg.weightConstantPart();
+	_numberOfVariableOccurrences = arg.numberOfVariableOccurrences();
+	_containsVariables = arg.containsVariables();
+	_variableMask = arg.variableMask();
     }
       
     public final Function function() { return _function; }
@@ -133,8 +142,9 @@ public final class CompoundTerm implements Term {
 	boolean 
 	containsVariableAsProperSubterm(Variable var) {
 	return
-	    _argument == (Term)var ||
-	    _argument.containsVariableAsProperSubterm(var);
+	    (_variableMask & var.maskBit()) != 0 &&
+	    (_argument == (Term)var ||
+	     _argument.containsVariableAsProperSubterm(var));
     }
 
     public final boolean containsAsProperSubterm(Term term) {
@@ -189,11 +199,12 @@ public final class CompoundTerm implements Term {
     }
 
     public final boolean containsFreeVariables() {
-	return _argument.containsFreeVariables();
+	return _numberOfVariableOccurrences != 0 &&
+	    _argument.containsFreeVariables();
     }
 
     public final boolean containsVariables() {
-	return _argument.containsVariables();
+	return _containsVariables;
     }
 
     public 
@@ -207,14 +218,18 @@ public final class CompoundTerm implements Term {
 	return toString();
     }
 
-    public final int depth() {
-	return 1 + argument().depth();
-    }
+    public final int depth() { return _depth; }
+
+    public final int numberOfSymbols() { return _numberOfSymbols; }
+
+    public final int weightConstantPart() { return _weightConstantPart; }
 
-    public final int numberOfSymbols() {
-	return 1 + argument().numberOfSymbols();
+    public final int numberOfVariableOccurrences() { 
+	return _numberOfVariableOccurrences; 
     }
 
+    public final long variableMask() { return _variableMask; }
+
     public final int numberOfSymbolsAfterSubst1() {
 	return 1 + argument().numberOfSymbolsAfterSubst1();
     }
@@ -274,4 +289,22 @@ public final class CompoundTerm implements Term {
 
     private final Term _argument;
 
+    // The following are computed once since the term is immutable:
+
+    private final int _numberOfSymbols;
+
+    private final int _depth;
+
+    /** Weights of the symbols are taken when the term is created. */
+    private final int _weightConstantPart;
+
+    private final int _numberOfVariableOccurrences;
+
+    /** Not implied by the occurrence count: the argument may
+     *  contain binders with no occurrences of their variables. 
+     */
+    private final boolean _containsVariables;
+
+    private final long _variableMask;
+
 }; // class CompoundTerm
@@ -0,0 +1,1039 @@
+/* Copyright (C) 2010 Alexandre Riazanov (Alexander Ryazanov)
+ *
+ * The copyright owner licenses this file to You under the Apache License, 
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package logic.is.power.logic_warehouse;
+
+import java.util.*;
+
+import logic.is.power.cushion.*;
+
+/** Feature vector index that can be searched by any number of 
+ *  threads while it is being modified.
+ *  <p>
+ *  Modifications ({@link #insert(FeatureVector,Object)} and
+ *  {@link #remove(FeatureVector,Ref)}) are serialised on the index 
+ *  object, and a single writer thread is the intended use.
+ *  Searches ({@link #find(FeatureVector)}, {@link Subsuming} and
+ *  {@link Subsumed}) take no locks: they work on an immutable 
+ *  snapshot of the index, which is replaced after every modification
+ *  with a single volatile write. An iterator sees the snapshot that was
+ *  current at the moment of its <code>reset(..)</code>, ie, it is not 
+ *  affected by the modifications done during the iteration.
+ *  <p>
+ *  The trie is encoded in an int array, like in
+ *  {@link FeatureVectorIndex}, but the segments are never modified 
+ *  once written: a modification copies all levels on the path to 
+ *  the modified level into new segments in the end of the array (path 
+ *  copying), and the snapshots keep the arrays they were created with, 
+ *  so that growing or compacting the arrays does not affect them.
+ *  A level at offset <code>s</code> occupies 
+ *  <code>1 + 2 * size</code> elements: 
+ *  the size, the sorted values, and the offsets of the levels below,
+ *  or, for the last feature, the slots of the values 
+ *  in the array of leaves.
+ */
+public class ConcurrentFeatureVectorIndex<IndexedObject> {
+
+    public ConcurrentFeatureVectorIndex(int numberOfFeatures) {
+	_numberOfFeatures = numberOfFeatures;
+	_arena = new int[InitialArenaCapacity];
+	_arenaTop = 0;
+	_garbage = 0;
+	_leaves = new Object[InitialNumberOfLeaves];
+	_numberOfLeaves = 0;
+	_leafGarbage = 0;
+	_root = NoLevel;
+	_size = 0;
+	_snapshot = new Snapshot(_arena,_leaves,NoLevel,0);
+    }
+
+
+    /** Associates the value with the feature vector; the previous
+     *  value, if the vector is already in the index, is replaced.
+     *  The change becomes visible to the new searches
+     *  when the method returns.
+     */
+    public final synchronized void insert(FeatureVector key,IndexedObject value) {
+
+	assert key.length() == _numberOfFeatures;
+
+	compactIfNeeded();
+
+	int leaf = newLeaf(value);
+
+	if (_root == NoLevel)
+	    {
+		_root = createBranch(key,0,leaf);
+		_found = false;
+	    }
+	else
+	    _root = insertIntoLevel(_root,key,0,leaf);
+
+	if (!_found) ++_size;
+
+	publish();
+
+    } // insert(FeatureVector key,IndexedObject value)
+
+
+
+    /** Tries to reach the value corresponding to the given 
+     *  feature vector; can be called by any thread.
+     *  @return null if the index does not contain this vector
+     */
+    @SuppressWarnings("unchecked")
+    public final IndexedObject find(FeatureVector key) {
+
+	Snapshot snapshot = _snapshot;
+
+	int level = snapshot.root;
+
+	if (level == NoLevel) return null;
+
+	for (int feature = 0; feature < _numberOfFeatures; ++feature)
+	    {
+		int position = find(snapshot.arena,level,key.get(feature));
+
+		if (position < 0) return null;
+
+		level = below(snapshot.arena,level,position);
+	    };
+
+	// level is the leaf slot now.
+
+	return (IndexedObject)snapshot.leaves[level];
+
+    } // find(FeatureVector key)
+
+
+    /** Tries to remove the feature vector from the index;
+     *  if succedes, the indexed value is returned in 
+     *  <code>value</code>. The change becomes visible to the new 
+     *  searches when the method returns.
+     */
+    public final synchronized boolean remove(FeatureVector key,
+					     Ref<IndexedObject> value) {
+
+	if (_root == NoLevel) return false;
+
+	compactIfNeeded();
+
+	int newRoot = removeFromLevel(_root,key,0,value);
+
+	if (!_found) return false;
+
+	_root = newRoot;
+	--_size;
+
+	publish();
+
+	return true;
+
+    } // remove(FeatureVector key,..)
+
+
+    /** Number of the feature vectors in the current snapshot. */
+    public final int size() { return _snapshot.size; }
+
+
+    /** Approximate number of bytes occupied by the arrays of
+     *  the latest snapshot, not counting the indexed values.
+     */
+    public final long estimatedBytes() {
+	Snapshot snapshot = _snapshot;
+	return 
+	    IntBytes * (long)snapshot.arena.length + 
+	    ReferenceBytes * (long)snapshot.leaves.length;
+    }
+
+
+
+
+
+    // 
+    //              Retrieval of subsuming and subsumed:
+    //
+
+    
+    
+    /** Iteration over all indexed values corresponding
+     *  to feature vectors subsuming a specified vector;
+     *  an object of this class can be used by one thread at a time.
+     */
+    public class Subsuming 
+	implements java.util.Iterator<IndexedObject> {
+
+	
+	public Subsuming() {
+	    _backtrackPoints = new int[16]; 
+	    // 16 = defalt size, may be resized
+	    _positions = new int[16];
+	    _limits = new int[16];
+	}
+
+
+	/** Releases all pointers to external objects. */
+	public final void clear() {
+	    _key = null;
+	    _arena = null;
+	    _leaves = null;
+	    _nextLeaf = NoLevel;
+	}
+
+
+	/** Starts the iteration over all indexed values 
+	 *  from the latest snapshot of the host index, corresponding
+	 *  to feature vectors subsuming <code>key</code>.
+	 */
+	public final void reset(FeatureVector key) {
+
+	    assert key.length() == _numberOfFeatures;
+
+	    if (key.length() > _backtrackPoints.length)
+		{
+		    _backtrackPoints = new int[key.length()];
+		    _positions = new int[key.length()];
+		    _limits = new int[key.length()];
+		};
+
+	    Snapshot snapshot = _snapshot;
+	    
+	    if (snapshot.root == NoLevel)
+		{
+		    _nextLeaf = NoLevel;
+		    return;
+		};
+
+	    _key = key;
+	    _arena = snapshot.arena;
+	    _leaves = snapshot.leaves;
+
+	    // Only the values not greater than in the key are relevant:
+	    int limit = upperBound(_arena,snapshot.root,_key.get(0));
+
+	    if (limit == 0)
+		{
+		    _nextLeaf = NoLevel;
+		    return;
+		};
+
+	    // To enable complete()/backtrack() calls:
+	    _stackSize = 0;
+	    _backtrackPoints[0] = snapshot.root;
+	    _positions[0] = 0;
+	    _limits[0] = limit;
+
+	    while (!complete())
+		{
+		    if (!backtrack())
+			{
+			    _nextLeaf = NoLevel;
+			    return;
+			};
+		};
+	    
+	    assert _nextLeaf != NoLevel;
+
+	} // reset(FeatureVector key)
+
+	
+	public final boolean hasNext() { return _nextLeaf != NoLevel; } 
+	    
+	
+	@SuppressWarnings("unchecked")
+	public 
+	    final 
+	    IndexedObject next() throws java.util.NoSuchElementException {
+
+	    if (_nextLeaf == NoLevel)
+		throw new java.util.NoSuchElementException();
+
+	    IndexedObject result = (IndexedObject)_leaves[_nextLeaf];
+
+	    // Backtrack:
+
+	    _stackSize = _numberOfFeatures;
+
+	    while (backtrack())
+		{
+		    if (complete())
+			{
+			    assert _nextLeaf != NoLevel;
+			    return result;
+			};
+
+		}; // while (backtrack())
+	   
+	    _nextLeaf = NoLevel;
+
+	    return result;
+
+	} // next()
+
+
+	/** Cannot be used. */
+	public void remove() throws Error {
+	    throw 
+		new Error("Forbidden method call: logic_warehouse_je.ConcurrentFeatureVectorIndex.Subsuming.remove()");
+	}
+
+
+	private boolean backtrack() {
+	    
+	    --_stackSize;
+
+	    while (_stackSize >= 0)
+		{
+		    ++_positions[_stackSize];
+		    
+		    if (_positions[_stackSize] == _limits[_stackSize])
+			{
+			    --_stackSize;
+			}
+		    else
+			return true;
+		    
+		}; // while (_stackSize >= 0)
+
+	    return false;
+
+	} // backtrack()
+
+
+	private boolean complete() {
+	    
+	    assert _stackSize >= 0;
+	    assert _stackSize < _numberOfFeatures;
+
+	    int node = 
+		below(_arena,
+		      _backtrackPoints[_stackSize],
+		      _positions[_stackSize]);
+	    
+	    ++_stackSize;
+	    
+	    while (_stackSize < _numberOfFeatures)
+		{
+		    int limit = upperBound(_arena,node,_key.get(_stackSize));
+
+		    if (limit == 0) return false;
+
+		    _backtrackPoints[_stackSize] = node;
+		    _positions[_stackSize] = 0;
+		    _limits[_stackSize] = limit;
+
+		    node = below(_arena,node,0);
+		    
+		    ++_stackSize;
+
+		}; // while (_stackSize < _numberOfFeatures)
+
+	    _nextLeaf = node;
+	    
+	    return true;
+
+	} // complete()
+	    
+
+	
+	//              Data:
+
+	private FeatureVector _key;
+
+	/** Arrays of the snapshot being searched. */
+	private int[] _arena;
+
+	private Object[] _leaves;
+
+	/** Offsets of the levels on the current path. */
+	private int[] _backtrackPoints;
+
+	/** <code>_positions[n]</code> is the current position 
+	 *  in the level <code>_backtrackPoints[n]</code>.
+	 */
+	private int[] _positions;
+
+	/** <code>_limits[n]</code> is the position in the level
+	 *  <code>_backtrackPoints[n]</code> of the first value 
+	 *  that is too big.
+	 */
+	private int[] _limits;
+
+	private int _stackSize;
+	
+	/** Leaf slot of the next value, or <code>NoLevel</code>. */
+	private int _nextLeaf;
+
+    } // class Subsuming 
+
+
+
+
+    
+    /** Iteration over all indexed values corresponding
+     *  to feature vectors subsumed by a specified vector;
+     *  an object of this class can be used by one thread at a time.
+     */
+    public class Subsumed 
+	implements java.util.Iterator<IndexedObject> {
+
+	
+	public Subsumed() {
+	    _backtrackPoints = new int[16]; 
+	    // 16 = defalt size, may be resized
+	    _positions = new int[16];
+	}
+
+
+	/** Releases all pointers to external objects. */
+	public final void clear() {
+	    _key = null;
+	    _arena = null;
+	    _leaves = null;
+	    _nextLeaf = NoLevel;
+	}
+
+
+	/** Starts the iteration over all indexed values 
+	 *  from the latest snapshot of the host index, corresponding
+	 *  to feature vectors subsumed by <code>key</code>.
+	 */
+	public final void reset(FeatureVector key) {
+
+	    assert key.length() == _numberOfFeatures;
+
+	    if (key.length() > _backtrackPoints.length)
+		{
+		    _backtrackPoints = new int[key.length()];
+		    _positions = new int[key.length()];
+		};
+
+	    Snapshot snapshot = _snapshot;
+	    
+	    if (snapshot.root == NoLevel)
+		{
+		    _nextLeaf = NoLevel;
+		    return;
+		};
+
+	    _key = key;
+	    _arena = snapshot.arena;
+	    _leaves = snapshot.leaves;
+
+	    // Jump to the first value not smaller than in the key:
+	    int start = lowerBound(_arena,snapshot.root,_key.get(0));
+
+	    if (start == _arena[snapshot.root])
+		{
+		    _nextLeaf = NoLevel;
+		    return;
+		};
+
+	    // To enable complete()/backtrack() calls:
+	    _stackSize = 0;
+	    _backtrackPoints[0] = snapshot.root;
+	    _positions[0] = start;
+
+	    while (!complete())
+		{
+		    if (!backtrack())
+			{
+			    _nextLeaf = NoLevel;
+			    return;
+			};
+		};
+	    
+	    assert _nextLeaf != NoLevel;
+
+	} // reset(FeatureVector key)
+
+	
+	public final boolean hasNext() { return _nextLeaf != NoLevel; } 
+	    
+	
+	@SuppressWarnings("unchecked")
+	public 
+	    final 
+	    IndexedObject next() throws java.util.NoSuchElementException {
+
+	    if (_nextLeaf == NoLevel)
+		throw new java.util.NoSuchElementException();
+
+	    IndexedObject result = (IndexedObject)_leaves[_nextLeaf];
+
+	    // Backtrack:
+
+	    _stackSize = _numberOfFeatures;
+
+	    while (backtrack())
+		{
+		    if (complete())
+			{
+			    assert _nextLeaf != NoLevel;
+			    return result;
+			};
+
+		}; // while (backtrack())
+	   
+	    _nextLeaf = NoLevel;
+
+	    return result;
+
+	} // next()
+
+
+	/** Cannot be used. */
+	public void remove() throws Error {
+	    throw 
+		new Error("Forbidden method call: logic_warehouse_je.ConcurrentFeatureVectorIndex.Subsumed.remove()");
+	}
+
+
+	private boolean backtrack() {
+	    
+	    --_stackSize;
+
+	    while (_stackSize >= 0)
+		{
+		    ++_positions[_stackSize];
+		    
+		    if (_positions[_stackSize] == 
+			_arena[_backtrackPoints[_stackSize]])
+			{
+			    --_stackSize;
+			}
+		    else
+			return true;
+		    
+		}; // while (_stackSize >= 0)
+
+	    return false;
+
+	} // backtrack()
+
+
+	private boolean complete() {
+	    
+	    assert _stackSize >= 0;
+	    assert _stackSize < _numberOfFeatures;
+
+	    int node = 
+		below(_arena,
+		      _backtrackPoints[_stackSize],
+		      _positions[_stackSize]);
+	    
+	    ++_stackSize;
+	    
+	    while (_stackSize < _numberOfFeatures)
+		{
+		    int start = lowerBound(_arena,node,_key.get(_stackSize));
+
+		    if (start == _arena[node]) return false;
+
+		    _backtrackPoints[_stackSize] = node;
+		    _positions[_stackSize] = start;
+
+		    node = below(_arena,node,start);
+		    
+		    ++_stackSize;
+
+		}; // while (_stackSize < _numberOfFeatures)
+
+	    _nextLeaf = node;
+	    
+	    return true;
+
+	} // complete()
+	    
+
+	
+	//              Data:
+
+	private FeatureVector _key;
+
+	/** Arrays of the snapshot being searched. */
+	private int[] _arena;
+
+	private Object[] _leaves;
+
+	/** Offsets of the levels on the current path. */
+	private int[] _backtrackPoints;
+
+	/** <code>_positions[n]</code> is the current position 
+	 *  in the level <code>_backtrackPoints[n]</code>.
+	 */
+	private int[] _positions;
+
+	private int _stackSize;
+	
+	/** Leaf slot of the next value, or <code>NoLevel</code>. */
+	private int _nextLeaf;
+
+    } // class Subsumed
+
+
+
+
+
+    //                 
+    //                 Private types:
+    //                 
+
+
+    /** Everything the searches need; never modified. */
+    private static final class Snapshot {
+
+	public Snapshot(int[] arena,Object[] leaves,int root,int size) {
+	    this.arena = arena;
+	    this.leaves = leaves;
+	    this.root = root;
+	    this.size = size;
+	}
+
+	public final int[] arena;
+
+	public final Object[] leaves;
+
+	public final int root;
+
+	public final int size;
+
+    } // class Snapshot
+
+
+
+    //                 
+    //                 Reading levels:
+    //                 
+
+
+    /** @return the position of the value in the level if it is present,
+     *          or <code>-(p + 1)</code>, where <code>p</code> is
+     *          the position where it could be inserted
+     */
+    private static int find(int[] arena,int level,int value) {
+	int position = 
+	    Arrays.binarySearch(arena,level + 1,level + 1 + arena[level],value);
+	if (position >= 0) return position - (level + 1);
+	return position + (level + 1);
+    }
+
+    /** Position of the smallest value <code>>= value</code> 
+     *  in the level, or its size if there is no such value.
+     */
+    private static int lowerBound(int[] arena,int level,int value) {
+
+	int low = 0;
+	int high = arena[level];
+
+	while (low < high)
+	    {
+		int middle = (low + high) >>> 1;
+		if (arena[level + 1 + middle] < value)
+		    {
+			low = middle + 1;
+		    }
+		else
+		    high = middle;
+	    };
+
+	return low;
+
+    } // lowerBound(int[] arena,int level,int value)
+
+    /** Position of the smallest value <code>> value</code> 
+     *  in the level, or its size if there is no such value.
+     */
+    private static int upperBound(int[] arena,int level,int value) {
+	if (value == Integer.MAX_VALUE) return arena[level];
+	return lowerBound(arena,level,value + 1);
+    }
+
+    /** Offset of the level below the value at the position, 
+     *  or the leaf slot.
+     */
+    private static int below(int[] arena,int level,int position) {
+	return arena[level + 1 + arena[level] + position];
+    }
+
+
+
+    //                 
+    //                 Maintenance (only under the lock):
+    //                 
+
+
+    /** Copies the path to the value of <code>key</code> at 
+     *  <code>feature</code> in the level, and makes it lead to the leaf;
+     *  sets <code>_found</code> if the vector is already in the index.
+     *  @return the offset of the copy of the level
+     */
+    private int insertIntoLevel(int level,
+				FeatureVector key,
+				int feature,
+				int leaf) {
+
+	int position = find(_arena,level,key.get(feature));
+	
+	if (position < 0)
+	    {
+		_found = false;
+		return copyWithInsertion(level,
+					 -(position + 1),
+					 key.get(feature),
+					 createBranch(key,feature + 1,leaf));
+	    };
+	
+	int newBelow;
+
+	if (feature + 1 == _numberOfFeatures)
+	    {
+		// The old value is replaced.
+		_found = true;
+		++_leafGarbage;
+		newBelow = leaf;
+	    }
+	else
+	    newBelow = 
+		insertIntoLevel(below(_arena,level,position),key,feature + 1,leaf);
+
+	return copyWithReplacement(level,position,newBelow);
+
+    } // insertIntoLevel(int level,..)
+
+
+    /** Copies the path to the value of <code>key</code> at 
+     *  <code>feature</code> in the level, without the vector;
+     *  sets <code>_found</code> if the vector is in the index.
+     *  @return the offset of the copy of the level, or 
+     *          <code>NoLevel</code> if the copy would be empty
+     */
+    private int removeFromLevel(int level,
+				FeatureVector key,
+				int feature,
+				Ref<IndexedObject> value) {
+
+	int position = find(_arena,level,key.get(feature));
+	
+	if (position < 0)
+	    {
+		_found = false;
+		return level;
+	    };
+
+	int newBelow;
+
+	if (feature + 1 == _numberOfFeatures)
+	    {
+		_found = true;
+		value.content = leafValue(below(_arena,level,position));
+		++_leafGarbage;
+		newBelow = NoLevel;
+	    }
+	else
+	    {
+		newBelow = 
+		    removeFromLevel(below(_arena,level,position),
+				    key,
+				    feature + 1,
+				    value);
+		if (!_found) return level;
+	    };
+
+	if (newBelow != NoLevel)
+	    return copyWithReplacement(level,position,newBelow);
+
+	if (_arena[level] == 1)
+	    {
+		_garbage += levelLength(level);
+		return NoLevel;
+	    };
+
+	return copyWithRemoval(level,position);
+
+    } // removeFromLevel(int level,..)
+
+
+    /** Creates the levels for the features of <code>key</code> 
+     *  starting with <code>firstFeature</code>, ending with 
+     *  the leaf slot.
+     *  @return the offset of the first new level, or <code>leaf</code>
+     *          if <code>firstFeature == _numberOfFeatures</code>
+     */
+    private int createBranch(FeatureVector key,
+			     int firstFeature,
+			     int leaf) {
+
+	int result = leaf;
+
+	for (int feature = _numberOfFeatures - 1; 
+	     feature >= firstFeature; 
+	     --feature)
+	    {
+		int level = allocate(3);
+		_arena[level] = 1;
+		_arena[level + 1] = key.get(feature);
+		_arena[level + 2] = result;
+		result = level;
+	    };
+
+	return result;
+
+    } // createBranch(FeatureVector key,..)
+
+
+    private int copyWithReplacement(int level,int position,int newBelow) {
+
+	int size = _arena[level];
+	int result = allocate(1 + 2 * size);
+	System.arraycopy(_arena,level,_arena,result,1 + 2 * size);
+	_arena[result + 1 + size + position] = newBelow;
+	_garbage += levelLength(level);
+	return result;
+
+    } // copyWithReplacement(int level,int position,int newBelow)
+
+
+    private int copyWithInsertion(int level,int position,int value,int below) {
+
+	int size = _arena[level];
+	int result = allocate(1 + 2 * (size + 1));
+	int values = level + 1;
+	int belows = values + size;
+
+	_arena[result] = size + 1;
+	int newValues = result + 1;
+	int newBelows = newValues + size + 1;
+
+	System.arraycopy(_arena,values,_arena,newValues,position);
+	_arena[newValues + position] = value;
+	System.arraycopy(_arena,
+			 values + position,
+			 _arena,
+			 newValues + position + 1,
+			 size - position);
+
+	System.arraycopy(_arena,belows,_arena,newBelows,position);
+	_arena[newBelows + position] = below;
+	System.arraycopy(_arena,
+			 belows + position,
+			 _arena,
+			 newBelows + position + 1,
+			 size - position);
+
+	_garbage += levelLength(level);
+	return result;
+
+    } // copyWithInsertion(int level,int position,..)
+
+
+    /** <b>pre:</b> the level has at least two values. */
+    private int copyWithRemoval(int level,int position) {
+
+	int size = _arena[level];
+	assert size > 1;
+	int result = allocate(1 + 2 * (size - 1));
+	int values = level + 1;
+	int belows = values + size;
+
+	_arena[result] = size - 1;
+	int newValues = result + 1;
+	int newBelows = newValues + size - 1;
+
+	System.arraycopy(_arena,values,_arena,newValues,position);
+	System.arraycopy(_arena,
+			 values + position + 1,
+			 _arena,
+			 newValues + position,
+			 size - position - 1);
+
+	System.arraycopy(_arena,belows,_arena,newBelows,position);
+	System.arraycopy(_arena,
+			 belows + position + 1,
+			 _arena,
+			 newBelows + position,
+			 size - position - 1);
+
+	_garbage += levelLength(level);
+	return result;
+
+    } // copyWithRemoval(int level,int position)
+
+
+    private int levelLength(int level) { return 1 + 2 * _arena[level]; }
+
+
+    /** Reserves space in the end of <code>_arena</code>; the array
+     *  may be replaced with a longer copy.
+     *  @return the offset of the reserved space
+     */
+    private int allocate(int length) {
+
+	if (_arenaTop + length > _arena.length)
+	    {
+		int newLength = 2 * _arena.length;
+		while (_arenaTop + length > newLength) newLength *= 2;
+		_arena = Arrays.copyOf(_arena,newLength);
+	    };
+
+	int result = _arenaTop;
+	_arenaTop += length;
+	return result;
+
+    } // allocate(int length)
+
+
+    private int newLeaf(IndexedObject value) {
+
+	if (_numberOfLeaves == _leaves.length)
+	    _leaves = Arrays.copyOf(_leaves,2 * _numberOfLeaves);
+
+	_leaves[_numberOfLeaves] = value;
+	++_numberOfLeaves;
+	return _numberOfLeaves - 1;
+
+    } // newLeaf(IndexedObject value)
+
+
+    @SuppressWarnings("unchecked")
+    private IndexedObject leafValue(int leaf) {
+	return (IndexedObject)_leaves[leaf];
+    }
+
+
+    /** Copies the live levels and leaves into new arrays if
+     *  the abandoned ones occupy too much space; the old arrays
+     *  are left intact for the searches still using them.
+     */
+    private void compactIfNeeded() {
+
+	if ((_garbage < MinGarbageToCompact || 2 * _garbage < _arenaTop) &&
+	    (_leafGarbage < MinGarbageToCompact || 2 * _leafGarbage < _numberOfLeaves))
+	    return;
+
+	int[] oldArena = _arena;
+	Object[] oldLeaves = _leaves;
+
+	_arena = 
+	    new int[Math.max(InitialArenaCapacity,2 * (_arenaTop - _garbage))];
+	_arenaTop = 0;
+	_garbage = 0;
+	_leaves = 
+	    new Object[Math.max(InitialNumberOfLeaves,
+				2 * (_numberOfLeaves - _leafGarbage))];
+	_numberOfLeaves = 0;
+	_leafGarbage = 0;
+
+	if (_root != NoLevel)
+	    _root = copyTree(oldArena,oldLeaves,_root,0);
+
+	// The snapshot must not keep the old arrays alive:
+	publish();
+
+    } // compactIfNeeded()
+
+
+    /** Copies the level with everything below it from the old arrays
+     *  into the current ones.
+     *  @return the new offset of the level
+     */
+    private int copyTree(int[] oldArena,Object[] oldLeaves,int level,int feature) {
+
+	int size = oldArena[level];
+	int result = allocate(1 + 2 * size);
+
+	System.arraycopy(oldArena,level,_arena,result,1 + size);
+
+	for (int n = 0; n < size; ++n)
+	    {
+		int newBelow;
+		if (feature + 1 == _numberOfFeatures)
+		    {
+			newBelow = _numberOfLeaves;
+			_leaves[_numberOfLeaves] = oldLeaves[below(oldArena,level,n)];
+			++_numberOfLeaves;
+		    }
+		else
+		    newBelow = 
+			copyTree(oldArena,oldLeaves,below(oldArena,level,n),feature + 1);
+
+		// _arena may have been replaced by the recursive call.
+		_arena[result + 1 + size + n] = newBelow;
+	    };
+
+	return result;
+
+    } // copyTree(int[] oldArena,..)
+
+
+    /** Makes the current state visible to the new searches. */
+    private void publish() {
+	_snapshot = new Snapshot(_arena,_leaves,_root,_size);
+    }
+
+
+
+    //                 
+    //                 Data:
+    //                 
+
+    private static final int NoLevel = -1;
+
+    private static final int InitialArenaCapacity = 64;
+
+    private static final int InitialNumberOfLeaves = 16;
+
+    /** Abandoned levels and leaves are not reclaimed while they 
+     *  occupy less than this number of elements.
+     */
+    private static final int MinGarbageToCompact = 1024;
+
+    private static final int IntBytes = 4;
+
+    private static final int ReferenceBytes = 4;
+
+
+    /** Read by the searches without locking. */
+    private volatile Snapshot _snapshot;
+
+    // Only accessed under the lock:
+
+    /** Levels; only the part up to <code>_arenaTop</code> is used. */
+    private int[] _arena;
+
+    private int _arenaTop;
+
+    /** Total length of the abandoned levels in <code>_arena</code>. */
+    private int _garbage;
+
+    /** Values; only the part up to <code>_numberOfLeaves</code> is used. */
+    private Object[] _leaves;
+
+    private int _numberOfLeaves;
+
+    /** Number of the abandoned slots in <code>_leaves</code>. */
+    private int _leafGarbage;
+
+    /** Offset of the first level, or <code>NoLevel</code>. */
+    private int _root;
+
+    private int _size;
+
+    /** Result of the last search for a vector by a modification. */
+    private boolean _found;
+
+    private final int _numberOfFeatures;
+
+} // class ConcurrentFeatureVectorIndex<IndexedObject>
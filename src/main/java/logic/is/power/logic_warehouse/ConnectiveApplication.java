@@ -183,6 +183,18 @@ public final class ConnectiveApplication extends Formula {
 	return 1 + argument().numberOfSymbolsAfterSubst1();
     }
 
+    public final int weightConstantPart() {
+	return 1 + argument().weightConstantPart();
+    }
+
+    public final int numberOfVariableOccurrences() {
+	return argument().numberOfVariableOccurrences();
+    }
+
+    public final long variableMask() {
+	return argument().variableMask();
+    }
+
 
     /** Counts all nonvariable symbols <code>sym</code>, 
      *  including logical symbols, but excluding pair constructors
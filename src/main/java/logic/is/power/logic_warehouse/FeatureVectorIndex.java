@@ -19,12 +19,49 @@ import java.util.*;
 
 import logic.is.power.cushion.*;
 
-/** Generic feature vector index. */
+/** Generic feature vector index.
+ *  <p>
+ *  The index is a trie encoded in primitive arrays. A level is
+ *  the set of all values of one feature after a common prefix
+ *  of vectors; its values are kept sorted in a segment of
+ *  <code>_values</code>, together with the corresponding entries
+ *  of <code>_below</code>, which are the numbers of the levels below,
+ *  or, for the last feature, the numbers of the leaf slots.
+ *  Segments are allocated in the end of the arrays and are doubled
+ *  when they overflow; the space of abandoned segments is reclaimed
+ *  by compacting the arrays when it exceeds the live space.
+ *  The only objects allocated per indexed vector are the leaves,
+ *  which are returned as the references to indexed values.
+ *  <p>
+ *  Every level also keeps the smallest and the greatest sums
+ *  of its feature and the features after it, over all vectors
+ *  in its subtree. {@link Subsuming} does not enter a level whose
+ *  smallest sum exceeds the corresponding sum for the key, and
+ *  {@link Subsumed} does not enter a level whose greatest sum
+ *  is smaller than it, because no vector there can be componentwise
+ *  smaller or greater than the key, respectively.
+ */
 public class FeatureVectorIndex<IndexedObject> {
-  
+
     public FeatureVectorIndex(int numberOfFeatures) {
-	_tree = null;
 	_numberOfFeatures = numberOfFeatures;
+	_root = NoLevel;
+	_levelStarts = new int[InitialNumberOfLevels];
+	_levelSizes = new int[InitialNumberOfLevels];
+	_levelCapacities = new int[InitialNumberOfLevels];
+	_levelMinSums = new int[InitialNumberOfLevels];
+	_levelMaxSums = new int[InitialNumberOfLevels];
+	_numberOfLevels = 0;
+	_freeLevels = new int[InitialNumberOfLevels];
+	_numberOfFreeLevels = 0;
+	_values = new int[InitialArenaCapacity];
+	_below = new int[InitialArenaCapacity];
+	_arenaTop = 0;
+	_garbage = 0;
+	_leaves = new ArrayList<FeatureVectorIndexLeafNode<IndexedObject>>();
+	_freeLeaves = new int[InitialNumberOfLevels];
+	_numberOfFreeLeaves = 0;
+	_keySums = new long[numberOfFeatures + 1];
     }
 
     /** Inserts the feature vector into the index; returns the reference
@@ -36,68 +73,186 @@ public class FeatureVectorIndex<IndexedObject> {
 
 	assert key.length() == _numberOfFeatures;
 
-	Ref<Ref<IndexedObject>> ref = 
-	    new Ref<Ref<IndexedObject>>();
+	compactArenaIfNeeded();
+
+	computeSums(key,_keySums);
+
+	if (_root == NoLevel)
+	    {
+		int leaf = newLeaf();
+		_root = createBranch(key,0,leaf);
+		return _leaves.get(leaf);
+	    };
+
+	int level = _root;
 
-	_tree = insertIntoTree(_tree,key,0,ref);
+	for (int feature = 0; feature < _numberOfFeatures; ++feature)
+	    {
+		int sum = saturate(_keySums[feature]);
+		if (sum < _levelMinSums[level]) _levelMinSums[level] = sum;
+		if (sum > _levelMaxSums[level]) _levelMaxSums[level] = sum;
 
-	assert ref.content != null;
+		int position = find(level,key.get(feature));
 
-	return ref.content;
+		if (position < 0)
+		    {
+			// The value is new at this level:
+			int leaf = newLeaf();
+			insertValue(level,
+				    -(position + 1),
+				    key.get(feature),
+				    createBranch(key,feature + 1,leaf));
+			return _leaves.get(leaf);
+		    };
+
+		level = _below[_levelStarts[level] + position];
+	    };
+
+	// level is the leaf slot now.
+
+	return _leaves.get(level);
 
     } // insert(FeatureVector key)
-   
 
 
-    /** Tries to reach an indexed object corresponding to the given 
+
+    /** Tries to reach an indexed object corresponding to the given
      *  feature vector.
      *  @return null if the index does not contain this vector
      */
     public final Ref<IndexedObject> find(FeatureVector key) {
-	
-	return findInTree(_tree,key,0);
 
+	if (_root == NoLevel) return null;
+
+	int level = _root;
+
+	for (int feature = 0; feature < _numberOfFeatures; ++feature)
+	    {
+		int position = find(level,key.get(feature));
+
+		if (position < 0) return null;
+
+		level = _below[_levelStarts[level] + position];
+	    };
+
+	// level is the leaf slot now.
+
+	return _leaves.get(level);
 
     } // find(FeatureVector key)
- 
+
 
     /** Tries to remove the feature vector from the index;
-     *  if succedes, the indexed value is returned in 
+     *  if succedes, the indexed value is returned in
      *  <code>value</code>.
      */
     public final boolean remove(FeatureVector key,
 				Ref<IndexedObject> value) {
 
-	Ref<Boolean> ref = new Ref<Boolean>();
+	if (_root == NoLevel) return false;
+
+	compactArenaIfNeeded();
+
+	Ref<Boolean> ref = new Ref<Boolean>(new Boolean(false));
+
+	if (removeFromLevel(_root,key,0,value,ref))
+	    _root = NoLevel;
 
-	_tree = removeFromTree(_tree,key,0,ref);
-	
 	return ref.content.booleanValue();
 
     } // remove(FeatureVector key,..)
-    
 
 
+    /** Number of the feature vectors in the index. */
+    public final int size() {
+	return _leaves.size() - _numberOfFreeLeaves;
+    }
+
+
+    /** Approximate number of bytes occupied by the index,
+     *  not counting the indexed values; assumes a 64-bit JVM
+     *  with compressed object pointers.
+     */
+    public final long estimatedBytes() {
+
+	long result =
+	    IntBytes *
+	    ((long)_levelStarts.length +
+	     _levelSizes.length +
+	     _levelCapacities.length +
+	     _levelMinSums.length +
+	     _levelMaxSums.length +
+	     _freeLevels.length +
+	     _values.length +
+	     _below.length +
+	     _freeLeaves.length);
+
+	// The leaves, their list and its array:
+	result +=
+	    (LeafBytes + ReferenceBytes) * (long)_leaves.size() +
+	    ObjectOverheadBytes;
+
+	return result;
+
+    } // estimatedBytes()
+
+
+    /** Inserts all the vectors from this index into
+     *  <code>target</code>, with the features rearranged,
+     *  together with their values: feature n of a new vector
+     *  is feature <code>features[n]</code> of the old one, or 
+     *  <code>constants[n]</code> if <code>features[n]</code>
+     *  is negative.
+     *  <b>pre:</b> <code>target</code> has
+     *  <code>features.length</code> features, and the omitted
+     *  features, if any, do not distinguish any vectors
+     *  in this index.
+     *  @param constants can be null if all <code>features[n]</code> 
+     *         are nonnegative
+     */
+    public final void copyTo(FeatureVectorIndex<IndexedObject> target,
+			     int[] features,
+			     int[] constants) {
+
+	assert target._numberOfFeatures == features.length;
+
+	if (_root == NoLevel) return;
 
+	int[] path = new int[_numberOfFeatures];
+	FeatureVector.ArrayBased newKey =
+	    new FeatureVector.ArrayBased(features.length);
 
+	for (int n = 0; n < features.length; ++n)
+	    if (features[n] < 0) newKey.set(n,constants[n]);
 
-    // 
+	copyLevel(_root,0,path,target,features,newKey);
+
+    } // copyTo(FeatureVectorIndex<IndexedObject> target,..)
+
+
+
+
+
+
+    //
     //              Retrieval of subsuming and subsumed:
     //
 
-    
-    
+
+
     /** Iteration over all indexed values corresponding
      *  to feature vectors subsuming a specified vector.
      */
-    public class Subsuming 
+    public class Subsuming
 	implements java.util.Iterator<IndexedObject> {
 
-	
+
 	public Subsuming() {
-	    _backtrackPoints = 
-		new FeatureVectorIndexNode[16]; 
+	    _backtrackPoints = new int[16];
 	    // 16 = defalt size, may be resized
+	    _positions = new int[16];
+	    _limits = new int[16];
+	    _keySums = new long[17];
 	}
 
 
@@ -108,23 +263,18 @@ public class FeatureVectorIndex<IndexedObject> {
 
 	    _key = null;
 
-	    for (int i = 0; i < _backtrackPoints.length; ++i)
-		{
-		    _backtrackPoints[i] = null;
-		};
-
 	    _nextLeaf = null;
 
-	} // clear() 
+	} // clear()
 
 
 
-	/** Starts the iteration over all indexed values 
+	/** Starts the iteration over all indexed values
 	 *  from the host index, corresponding
 	 *  to feature vectors subsuming <code>key</code>.
 	 */
-	public 
-	    final 
+	public
+	    final
 	    void reset(FeatureVector key) {
 
 	    //System.out.println("RESET " + key);
@@ -132,22 +282,32 @@ public class FeatureVectorIndex<IndexedObject> {
 	    assert key.length() == _numberOfFeatures;
 
 	    if (key.length() > _backtrackPoints.length)
-		_backtrackPoints = 
-		    new FeatureVectorIndexNode[key.length()];
-	    
-	    if (_tree == null)
+		{
+		    _backtrackPoints = new int[key.length()];
+		    _positions = new int[key.length()];
+		    _limits = new int[key.length()];
+		    _keySums = new long[key.length() + 1];
+		};
+
+	    if (_root == NoLevel)
 		{
 		    _nextLeaf = null;
 		    return;
 		};
 
 	    _key = key;
+	    computeSums(_key,_keySums);
 
-	    FeatureVectorIndexNode<IndexedObject> node =
-		(FeatureVectorIndexNode<IndexedObject>)_tree;
+	    if (minSumExceeds(_root,_keySums[0]))
+		{
+		    _nextLeaf = null;
+		    return;
+		};
+
+	    // Only the values not greater than in the key are relevant:
+	    int limit = upperBound(_root,_key.get(0));
 
-	    if (((FeatureVectorIndexNonleafNode<IndexedObject>)node).value() >
-			_key.get(0))
+	    if (limit == 0)
 		{
 		    _nextLeaf = null;
 		    return;
@@ -155,7 +315,9 @@ public class FeatureVectorIndex<IndexedObject> {
 
 	    // To enable complete()/backtrack() calls:
 	    _stackSize = 0;
-	    _backtrackPoints[0] = node;
+	    _backtrackPoints[0] = _root;
+	    _positions[0] = 0;
+	    _limits[0] = limit;
 
 	    while (!complete())
 		{
@@ -166,20 +328,20 @@ public class FeatureVectorIndex<IndexedObject> {
 			};
 
 		};
-	    
+
 	    assert _nextLeaf != null;
 	    return;
 
 	} // reset(FeatureVectorIndex<IndexedObject> index,..)
 
-	
-	public final boolean hasNext() { return _nextLeaf != null; } 
-	    
-	
-	public 
-	    final 
+
+	public final boolean hasNext() { return _nextLeaf != null; }
+
+
+	public
+	    final
 	    IndexedObject next() throws java.util.NoSuchElementException {
-	    
+
 	   //System.out.println("NEXT");
 
 	    if (_nextLeaf == null)
@@ -200,8 +362,8 @@ public class FeatureVectorIndex<IndexedObject> {
 			};
 
 		}; // while (backtrack())
-	    
-	   
+
+
 	    _nextLeaf = null;
 
 	    return result;
@@ -212,40 +374,37 @@ public class FeatureVectorIndex<IndexedObject> {
 
 	/** Cannot be used. */
 	public void remove() throws Error {
-	    throw 
+	    throw
 		new Error("Forbidden method call: logic_warehouse_je.FeatureVectorIndex.Subsuming.remove()");
 	}
 
 
 
 	private boolean backtrack() {
-	    
+
 	    //System.out.println("  BACKTRACK " + _stackSize);
 
 	    --_stackSize;
 
-	    FeatureVectorIndexNonleafNode<IndexedObject> node;
 	    while (_stackSize >= 0)
 		{
 		   //System.out.println("    AAA " + _stackSize);
 
-		    assert _backtrackPoints[_stackSize] != null;
-		    node = 
-			((FeatureVectorIndexNonleafNode<IndexedObject>)
-			 _backtrackPoints[_stackSize]).greater();
-		    
-		    if (node == null ||
-			node.value() > _key.get(_stackSize))
+		    ++_positions[_stackSize];
+
+		    if (_positions[_stackSize] == _limits[_stackSize])
 			{
-			    _backtrackPoints[_stackSize] = null;
 			    --_stackSize;
 			}
 		    else
 			{
-			    _backtrackPoints[_stackSize] = node;
+			    assert
+				_values[_levelStarts[_backtrackPoints[_stackSize]] +
+					_positions[_stackSize]] <=
+				_key.get(_stackSize);
 			    return true;
 			};
-		    
+
 		}; // while (_stackSize >= 0)
 
 	    return false;
@@ -255,141 +414,153 @@ public class FeatureVectorIndex<IndexedObject> {
 
 
 	private boolean complete() {
-	    
+
 	   //System.out.println("  COMPLETE " + _stackSize);
 
 	    assert _stackSize >= 0;
 	    assert _stackSize < _numberOfFeatures;
-	    assert _backtrackPoints[_stackSize] != null;
 
 
-	    FeatureVectorIndexNode<IndexedObject> node =
-		((FeatureVectorIndexNonleafNode<IndexedObject>)
-		 _backtrackPoints[_stackSize]).treeBelow();
-	    
+	    int node =
+		_below[_levelStarts[_backtrackPoints[_stackSize]] +
+		       _positions[_stackSize]];
+
 	    ++_stackSize;
-	    
+
 	    while (_stackSize < _numberOfFeatures)
 		{
-		    if (((FeatureVectorIndexNonleafNode<IndexedObject>)node).value() >
-			_key.get(_stackSize))
-			{
-			    assert _backtrackPoints[_stackSize] == null;
+		    if (minSumExceeds(node,_keySums[_stackSize])) return false;
 
-			    return false;
-			};
+		    int limit = upperBound(node,_key.get(_stackSize));
+
+		    if (limit == 0) return false;
 
 		    _backtrackPoints[_stackSize] = node;
+		    _positions[_stackSize] = 0;
+		    _limits[_stackSize] = limit;
+
+		    node = _below[_levelStarts[node]];
 
-		    node = 
-			((FeatureVectorIndexNonleafNode<IndexedObject>)node).
-			treeBelow();
-		    
 		    ++_stackSize;
 
 		}; // while (_stackSize < _numberOfFeatures)
 
 
-	    _nextLeaf =
-		(FeatureVectorIndexLeafNode<IndexedObject>)
-		node;
+	    _nextLeaf = _leaves.get(node);
 	    assert _nextLeaf != null;
-	    
+
 	    return true;
 
 	} // complete()
-	    
 
 
-	
+
+
 	//              Data:
 
 
 	private FeatureVector _key;
 
-	private FeatureVectorIndexNode<IndexedObject>[] _backtrackPoints;
+	/** Numbers of the levels on the current path. */
+	private int[] _backtrackPoints;
+
+	/** <code>_positions[n]</code> is the current position
+	 *  in the level <code>_backtrackPoints[n]</code>.
+	 */
+	private int[] _positions;
+
+	/** <code>_limits[n]</code> is the position in the level
+	 *  <code>_backtrackPoints[n]</code> of the first value
+	 *  that is too big.
+	 */
+	private int[] _limits;
+
+	/** <code>_keySums[n]</code> is the sum of the features
+	 *  of <code>_key</code> starting with <code>n</code>.
+	 */
+	private long[] _keySums;
 
 	private int _stackSize;
-	
+
 	private FeatureVectorIndexLeafNode<IndexedObject> _nextLeaf;
 
-    } // class Subsuming 
+    } // class Subsuming
+
 
 
 
 
 
 
-    
     /** Iteration over all indexed values corresponding
      *  to feature vectors subsumed by a specified vector.
      */
-    public class Subsumed 
+    public class Subsumed
 	implements java.util.Iterator<IndexedObject> {
 
-	
+
 	public Subsumed() {
-	    _backtrackPoints = 
-		new FeatureVectorIndexNode[16]; 
+	    _backtrackPoints = new int[16];
 	    // 16 = defalt size, may be resized
+	    _positions = new int[16];
+	    _keySums = new long[17];
 	}
 
 	/** Releases all pointers to external objects. */
 	public final void clear() {
 	    _key = null;
 
-	    for (int i = 0; i < _numberOfFeatures; ++i)
-		{
-		    _backtrackPoints[i] = null;
-		};
-
 	    _nextLeaf = null;
 
 	}
 
 
-	/** Starts the iteration over all indexed values 
+	/** Starts the iteration over all indexed values
 	 *  from the host index, corresponding
 	 *  to feature vectors subsumed by <code>key</code>.
 	 */
-	public 
-	    final 
+	public
+	    final
 	    void reset(FeatureVector key) {
 
 	    assert key.length() == _numberOfFeatures;
 
-	    if (_tree == null)
+	    if (_root == NoLevel)
 		{
 		    _nextLeaf = null;
 		    return;
 		};
 
 	    if (key.length() > _backtrackPoints.length)
-		_backtrackPoints = 
-		    new FeatureVectorIndexNode[key.length()];
-	    
+		{
+		    _backtrackPoints = new int[key.length()];
+		    _positions = new int[key.length()];
+		    _keySums = new long[key.length() + 1];
+		};
+
 	    _key = key;
+	    computeSums(_key,_keySums);
 
-	    FeatureVectorIndexNode<IndexedObject> node =
-		(FeatureVectorIndexNode<IndexedObject>)_tree;
+	    if (maxSumIsBelow(_root,_keySums[0]))
+		{
+		    _nextLeaf = null;
+		    return;
+		};
 
-	    while (((FeatureVectorIndexNonleafNode<IndexedObject>)node).value() <
-		   _key.get(0))
+	    // Jump to the first value not smaller than in the key:
+	    int start = lowerBound(_root,_key.get(0));
+
+	    if (start == _levelSizes[_root])
 		{
-		    node =
-			((FeatureVectorIndexNonleafNode<IndexedObject>)node).
-			greater();
-		    if (node == null)
-			{
-			    _nextLeaf = null;
-			    return;
-			};
+		    _nextLeaf = null;
+		    return;
 		};
 
 	    // To enable complete()/backtrack() calls:
 	    _stackSize = 0;
-	    _backtrackPoints[0] = node;
-	    
+	    _backtrackPoints[0] = _root;
+	    _positions[0] = start;
+
 	    while (!complete())
 		{
 		    if (!backtrack())
@@ -399,7 +570,7 @@ public class FeatureVectorIndex<IndexedObject> {
 			};
 
 		};
-	    
+
 	    assert _nextLeaf != null;
 	    return;
 
@@ -407,13 +578,13 @@ public class FeatureVectorIndex<IndexedObject> {
 	} // reset(FeatureVector key)
 
 
-	public final boolean hasNext() { return _nextLeaf != null; } 
-	    
-	
-	public 
-	    final 
+	public final boolean hasNext() { return _nextLeaf != null; }
+
+
+	public
+	    final
 	    IndexedObject next() throws java.util.NoSuchElementException {
-	    
+
 	   //System.out.println("NEXT");
 
 	    if (_nextLeaf == null)
@@ -434,57 +605,51 @@ public class FeatureVectorIndex<IndexedObject> {
 			};
 
 		}; // while (backtrack())
-	    
-	   
+
+
 	    _nextLeaf = null;
 
 	    return result;
 
 	} // next()
 
-	    
-	    
-	
+
+
+
 
 	/** Cannot be used. */
 	public void remove() throws Error {
-	    throw 
+	    throw
 		new Error("Forbidden method call: logic_warehouse_je.FeatureVectorIndex.Subsumed.remove()");
 	}
 
 
 	private boolean backtrack() {
-	    
-	   //System.out.println("  BACKTRACK " + _stackSize);
 
-	    assert (_stackSize == _backtrackPoints.length) ||
-		(_backtrackPoints[_stackSize] == null);
+	   //System.out.println("  BACKTRACK " + _stackSize);
 
 	    --_stackSize;
 
-	    FeatureVectorIndexNonleafNode<IndexedObject> node;
 	    while (_stackSize >= 0)
 		{
 		   //System.out.println("    AAA " + _stackSize);
 
-		    assert _backtrackPoints[_stackSize] != null;
-		    node = 
-			((FeatureVectorIndexNonleafNode<IndexedObject>)
-			 _backtrackPoints[_stackSize]).greater();
-		    
-		    if (node == null)
+		    ++_positions[_stackSize];
+
+		    if (_positions[_stackSize] ==
+			_levelSizes[_backtrackPoints[_stackSize]])
 			{
-			    _backtrackPoints[_stackSize] = null;
 			    --_stackSize;
 			}
 		    else
 			{
-			    assert node.value() > _key.get(_stackSize);
-
-			    _backtrackPoints[_stackSize] = node;
+			    assert
+				_values[_levelStarts[_backtrackPoints[_stackSize]] +
+					_positions[_stackSize]] >
+				_key.get(_stackSize);
 			    return true;
 			};
-		    
+
 		}; // while (_stackSize >= 0)
 
 	    return false;
@@ -494,68 +659,69 @@ public class FeatureVectorIndex<IndexedObject> {
 
 
 	private boolean complete() {
-	    
+
 	   //System.out.println("  COMPLETE " + _stackSize);
 
 	    assert _stackSize >= 0;
 	    assert _stackSize < _numberOfFeatures;
-	    assert _backtrackPoints[_stackSize] != null;
 
 
-	    FeatureVectorIndexNode<IndexedObject> node =
-		((FeatureVectorIndexNonleafNode<IndexedObject>)
-		 _backtrackPoints[_stackSize]).treeBelow();
-	    
+	    int node =
+		_below[_levelStarts[_backtrackPoints[_stackSize]] +
+		       _positions[_stackSize]];
+
 	    ++_stackSize;
-	    
+
 	    while (_stackSize < _numberOfFeatures)
 		{
+		    if (maxSumIsBelow(node,_keySums[_stackSize])) return false;
 
-		    while (((FeatureVectorIndexNonleafNode<IndexedObject>)node).value() <
-			   _key.get(_stackSize))
-			{
-			    assert _backtrackPoints[_stackSize] == null;
-			    
-			    node =
-				((FeatureVectorIndexNonleafNode<IndexedObject>)node).
-				greater();
-			    if (node == null) return false;
-			};
+		    int start = lowerBound(node,_key.get(_stackSize));
+
+		    if (start == _levelSizes[node]) return false;
 
 		    _backtrackPoints[_stackSize] = node;
+		    _positions[_stackSize] = start;
+
+		    node = _below[_levelStarts[node] + start];
 
-		    node = 
-			((FeatureVectorIndexNonleafNode<IndexedObject>)node).
-			treeBelow();
-		    
 		    ++_stackSize;
 
 		}; // while (_stackSize < _numberOfFeatures)
 
 
-	    _nextLeaf =
-		(FeatureVectorIndexLeafNode<IndexedObject>)
-		node;
+	    _nextLeaf = _leaves.get(node);
 	    assert _nextLeaf != null;
-	    
+
 	    return true;
 
 	} // complete()
-	    
 
 
 
-	
+
+
 	//              Data:
 
 
 	private FeatureVector _key;
 
 
-	private FeatureVectorIndexNode<IndexedObject>[] _backtrackPoints;
+	/** Numbers of the levels on the current path. */
+	private int[] _backtrackPoints;
+
+	/** <code>_positions[n]</code> is the current position
+	 *  in the level <code>_backtrackPoints[n]</code>.
+	 */
+	private int[] _positions;
+
+	/** <code>_keySums[n]</code> is the sum of the features
+	 *  of <code>_key</code> starting with <code>n</code>.
+	 */
+	private long[] _keySums;
 
 	private int _stackSize;
-	
+
 	private FeatureVectorIndexLeafNode<IndexedObject> _nextLeaf;
 
 
@@ -566,236 +732,553 @@ public class FeatureVectorIndex<IndexedObject> {
 
 
 
-
-    // 
+    //
     //              Maintenance:
     //
 
 
+    /** Creates the levels for the features of <code>key</code>
+     *  starting with <code>firstFeature</code>, ending with
+     *  the leaf slot; <code>_keySums</code> must be computed
+     *  for <code>key</code>.
+     *  @return the number of the first new level, or <code>leaf</code>
+     *          if <code>firstFeature == _numberOfFeatures</code>
+     */
+    private int createBranch(FeatureVector key,
+			     int firstFeature,
+			     int leaf) {
 
-    private 
-	FeatureVectorIndexNode<IndexedObject> 
-	insertIntoTree(FeatureVectorIndexNode<IndexedObject> tree,
-		       FeatureVector key,
-		       int firstFeature,
-		       Ref<Ref<IndexedObject>> leafRef) {
-	
-	if (tree == null)
-	    return createBranch(key,firstFeature,leafRef);
-	
 	assert firstFeature <= _numberOfFeatures;
 
-	if (firstFeature == _numberOfFeatures)
-	    {
-		// tree is the leaf corresponding to the vector.
+	int result = leaf;
 
-		assert tree instanceof FeatureVectorIndexLeafNode;
-		
-		leafRef.content = 
-		    (Ref<IndexedObject>)
-		    (FeatureVectorIndexLeafNode<IndexedObject>)tree;
+	for (int feature = _numberOfFeatures - 1;
+	     feature >= firstFeature;
+	     --feature)
+	    result =
+		newLevel(key.get(feature),result,saturate(_keySums[feature]));
 
-		return tree;
-	    };
-	
-	int feature = key.get(firstFeature);
-	
-	if (feature == ((FeatureVectorIndexNonleafNode<IndexedObject>)tree).value())
+	return result;
+
+    } // createBranch(FeatureVector key,..)
+
+
+
+    /** Removes the remainder of <code>key</code>, starting with
+     *  <code>feature</code>, from the level.
+     *  @return true if the level has become empty and has been freed
+     */
+    private boolean removeFromLevel(int level,
+				    FeatureVector key,
+				    int feature,
+				    Ref<IndexedObject> value,
+				    Ref<Boolean> successRef) {
+
+	int position = find(level,key.get(feature));
+
+	if (position < 0) return false;
+
+	int below = _below[_levelStarts[level] + position];
+
+	if (feature + 1 == _numberOfFeatures)
+	    {
+		// below is the leaf slot.
+		successRef.content = new Boolean(true);
+		value.content = _leaves.get(below).content;
+		freeLeaf(below);
+	    }
+	else if (!removeFromLevel(below,key,feature + 1,value,successRef))
 	    {
-		FeatureVectorIndexNode<IndexedObject> newTreeBelow =
-		    insertIntoTree(((FeatureVectorIndexNonleafNode<IndexedObject>)tree).
-				   treeBelow(),
-				   key,
-				   firstFeature + 1,
-				   leafRef);
-
-		((FeatureVectorIndexNonleafNode<IndexedObject>)tree).
-		    setTreeBelow(newTreeBelow);
-		return tree;
+		if (successRef.content.booleanValue())
+		    recomputeSums(level,feature);
+		return false;
 	    };
 
-	if (feature > ((FeatureVectorIndexNonleafNode<IndexedObject>)tree).value())
+	removeValue(level,position);
+
+	if (_levelSizes[level] != 0)
 	    {
-		FeatureVectorIndexNode<IndexedObject> newGreater =
-		    insertIntoTree(((FeatureVectorIndexNonleafNode<IndexedObject>)tree).
-				   greater(),
-				   key,
-				   firstFeature,
-				   leafRef);
-		((FeatureVectorIndexNonleafNode<IndexedObject>)tree).
-		    setGreater((FeatureVectorIndexNonleafNode<IndexedObject>)newGreater);
-		return tree;
+		recomputeSums(level,feature);
+		return false;
 	    };
 
-	// feature < ((FeatureVectorIndexNonleafNode<IndexedObject>)tree).value()
+	freeLevel(level);
+	return true;
 
-	FeatureVectorIndexNonleafNode<IndexedObject> result =
-	    (FeatureVectorIndexNonleafNode<IndexedObject>)
-	    createBranch(key,firstFeature,leafRef);
-			
-	result.setGreater((FeatureVectorIndexNonleafNode<IndexedObject>)tree);
+    } // removeFromLevel(int level,..)
 
-	return result;
 
-    } // insertIntoTree(FeatureVectorIndexNode<IndexedObject> tree,..)
 
+    /** Recursive part of
+     *  {@link #copyTo(FeatureVectorIndex,int[],int[])}: <code>path</code>
+     *  holds the values of the features before <code>feature</code>.
+     */
+    private void copyLevel(int level,
+			   int feature,
+			   int[] path,
+			   FeatureVectorIndex<IndexedObject> target,
+			   int[] features,
+			   FeatureVector.ArrayBased newKey) {
 
+	int start = _levelStarts[level];
 
-    private 
-	final
-	FeatureVectorIndexNode<IndexedObject> 
-	createBranch(FeatureVector key,
-		     int firstFeature,
-		     Ref<Ref<IndexedObject>> leafRef) {
-	
-	assert firstFeature <= _numberOfFeatures;
-	
-	if (firstFeature == _numberOfFeatures)
+	for (int n = start; n < start + _levelSizes[level]; ++n)
 	    {
-		// Create just the leaf
-		FeatureVectorIndexLeafNode<IndexedObject> result =
-		    new FeatureVectorIndexLeafNode<IndexedObject>();		
-		leafRef.content = (Ref<IndexedObject>)result;
-		return result;
+		path[feature] = _values[n];
+
+		if (feature + 1 < _numberOfFeatures)
+		    {
+			copyLevel(_below[n],feature + 1,path,target,features,newKey);
+		    }
+		else
+		    {
+			for (int f = 0; f < features.length; ++f)
+			    if (features[f] >= 0) newKey.set(f,path[features[f]]);
+			target.insert(newKey).content = _leaves.get(_below[n]).content;
+		    };
 	    };
 
-	return
-	    new FeatureVectorIndexNonleafNode<IndexedObject>(key.get(firstFeature),
-							     createBranch(key,
-									  firstFeature + 1,
-									  leafRef),
-							     null);
+    } // copyLevel(int level,..)
 
-    } // createBranch(FeatureVector key,..)
 
-    
-    private 
-	Ref<IndexedObject>
-	findInTree(FeatureVectorIndexNode<IndexedObject> tree,
-		   FeatureVector key,
-		   int firstFeature) {
-	
-	if (tree == null) return null;
-	
-	assert firstFeature <= _numberOfFeatures;
 
-	if (firstFeature == _numberOfFeatures)
+    //
+    //              Operations on levels:
+    //
+
+
+    /** @return the position of the value in the level if it is present,
+     *          or <code>-(p + 1)</code>, where <code>p</code> is
+     *          the position where it could be inserted
+     */
+    private int find(int level,int value) {
+	int start = _levelStarts[level];
+	int position =
+	    Arrays.binarySearch(_values,start,start + _levelSizes[level],value);
+	if (position >= 0) return position - start;
+	return position + start;
+    }
+
+
+    /** Position of the smallest value <code>>= value</code>
+     *  in the level, or its size if there is no such value.
+     */
+    private int lowerBound(int level,int value) {
+
+	int start = _levelStarts[level];
+	int low = 0;
+	int high = _levelSizes[level];
+
+	while (low < high)
 	    {
-		// tree is the leaf corresponding to the vector.
-		
-		assert tree instanceof FeatureVectorIndexLeafNode;
+		int middle = (low + high) >>> 1;
+		if (_values[start + middle] < value)
+		    {
+			low = middle + 1;
+		    }
+		else
+		    high = middle;
+	    };
+
+	return low;
+
+    } // lowerBound(int level,int value)
+
+
+    /** Position of the smallest value <code>> value</code>
+     *  in the level, or its size if there is no such value.
+     */
+    private int upperBound(int level,int value) {
+	if (value == Integer.MAX_VALUE) return _levelSizes[level];
+	return lowerBound(level,value + 1);
+    }
+
+
+    /** Creates a level with the single value.
+     *  @param below number of the level below, or the leaf slot
+     *  @param sum sum of the features of the only vector
+     *         in the subtree, starting with the feature of the level
+     */
+    private int newLevel(int value,int below,int sum) {
+
+	int result;
 
-		return 
-		    (Ref<IndexedObject>)
-		    (FeatureVectorIndexLeafNode<IndexedObject>)tree;
+	if (_numberOfFreeLevels != 0)
+	    {
+		--_numberOfFreeLevels;
+		result = _freeLevels[_numberOfFreeLevels];
+	    }
+	else
+	    {
+		if (_numberOfLevels == _levelStarts.length)
+		    {
+			int newLength = 2 * _numberOfLevels;
+			_levelStarts = Arrays.copyOf(_levelStarts,newLength);
+			_levelSizes = Arrays.copyOf(_levelSizes,newLength);
+			_levelCapacities =
+			    Arrays.copyOf(_levelCapacities,newLength);
+			_levelMinSums = Arrays.copyOf(_levelMinSums,newLength);
+			_levelMaxSums = Arrays.copyOf(_levelMaxSums,newLength);
+		    };
+		result = _numberOfLevels;
+		++_numberOfLevels;
 	    };
-	
-	int feature = key.get(firstFeature);
-	
-	if (feature == 
-	    ((FeatureVectorIndexNonleafNode<IndexedObject>)tree).value())
-	    return 
-		findInTree(((FeatureVectorIndexNonleafNode<IndexedObject>)tree).
-			   treeBelow(),
-			   key,
-			   firstFeature + 1);
 
+	int start = allocate(1);
+	_values[start] = value;
+	_below[start] = below;
+	_levelStarts[result] = start;
+	_levelSizes[result] = 1;
+	_levelCapacities[result] = 1;
+	_levelMinSums[result] = sum;
+	_levelMaxSums[result] = sum;
+
+	return result;
 
-	if (feature > 
-	    ((FeatureVectorIndexNonleafNode<IndexedObject>)tree).value())
-	    return 
-		findInTree(((FeatureVectorIndexNonleafNode<IndexedObject>)tree).
-			   greater(),
-			   key,
-			   firstFeature);
-	
-	// feature < ((FeatureVectorIndexNonleafNode<IndexedObject>)tree).value()
+    } // newLevel(int value,int below,int sum)
 
-	return null;
 
-    } // findInTree(FeatureVectorIndexNode<IndexedObject> tree,
+    /** <b>pre:</b> the level is empty. */
+    private void freeLevel(int level) {
 
+	assert _levelSizes[level] == 0;
 
+	_garbage += _levelCapacities[level];
+	_levelCapacities[level] = 0;
 
+	if (_numberOfFreeLevels == _freeLevels.length)
+	    _freeLevels = Arrays.copyOf(_freeLevels,2 * _numberOfFreeLevels);
+	_freeLevels[_numberOfFreeLevels] = level;
+	++_numberOfFreeLevels;
 
+    } // freeLevel(int level)
 
-    private 
-	FeatureVectorIndexNode<IndexedObject> 
-	removeFromTree(FeatureVectorIndexNode<IndexedObject> tree,
-		       FeatureVector key,
-		       int firstFeature,
-		       Ref<Boolean> successRef) {
-	
-	if (tree == null)
+
+    /** Inserts the value in the level at the position.
+     *  <b>pre:</b> <code>0 <= position <= _levelSizes[level]</code>,
+     *  and the order of values is preserved.
+     */
+    private void insertValue(int level,int position,int value,int below) {
+
+	int size = _levelSizes[level];
+
+	assert 0 <= position && position <= size;
+
+	if (size == _levelCapacities[level])
 	    {
-		successRef.content = new Boolean(false);
-		return null;
+		// Move the level to a new segment twice as big:
+		int newStart = allocate(2 * size);
+		int oldStart = _levelStarts[level];
+		System.arraycopy(_values,oldStart,_values,newStart,size);
+		System.arraycopy(_below,oldStart,_below,newStart,size);
+		_garbage += size;
+		_levelStarts[level] = newStart;
+		_levelCapacities[level] = 2 * size;
 	    };
 
-	assert firstFeature <= _numberOfFeatures;
-	
-	if (firstFeature == _numberOfFeatures)
+	int start = _levelStarts[level];
+
+	assert position == 0 || _values[start + position - 1] < value;
+	assert position == size || value < _values[start + position];
+
+	System.arraycopy(_values,
+			 start + position,
+			 _values,
+			 start + position + 1,
+			 size - position);
+	System.arraycopy(_below,
+			 start + position,
+			 _below,
+			 start + position + 1,
+			 size - position);
+	_values[start + position] = value;
+	_below[start + position] = below;
+	++_levelSizes[level];
+
+    } // insertValue(int level,int position,..)
+
+
+    /** <b>pre:</b> <code>0 <= position < _levelSizes[level]</code>. */
+    private void removeValue(int level,int position) {
+
+	assert 0 <= position && position < _levelSizes[level];
+
+	int start = _levelStarts[level];
+	int size = --_levelSizes[level];
+
+	System.arraycopy(_values,
+			 start + position + 1,
+			 _values,
+			 start + position,
+			 size - position);
+	System.arraycopy(_below,
+			 start + position + 1,
+			 _below,
+			 start + position,
+			 size - position);
+
+    } // removeValue(int level,int position)
+
+
+    /** Reserves a new segment in the end of <code>_values</code>
+     *  and <code>_below</code>.
+     *  @return the beginning of the segment
+     */
+    private int allocate(int capacity) {
+
+	if (_arenaTop + capacity > _values.length)
 	    {
-		// tree is the leaf corresponding to the vector.
-		successRef.content = new Boolean(true);
-		return null;
+		int newLength = 2 * _values.length;
+		while (_arenaTop + capacity > newLength) newLength *= 2;
+		_values = Arrays.copyOf(_values,newLength);
+		_below = Arrays.copyOf(_below,newLength);
 	    };
 
+	int result = _arenaTop;
+	_arenaTop += capacity;
+	return result;
+
+    } // allocate(int capacity)
+
+
+    /** Moves all the live segments to the beginning of
+     *  the arrays if the abandoned segments occupy too much space.
+     *  Only the level beginnings change, so this cannot be done
+     *  while the positions of some segments are being used.
+     */
+    private void compactArenaIfNeeded() {
+
+	if (_garbage < MinGarbageToCompact ||
+	    2 * _garbage < _arenaTop)
+	    return;
+
+	int live = _arenaTop - _garbage;
+	int[] newValues = new int[Math.max(InitialArenaCapacity,2 * live)];
+	int[] newBelow = new int[newValues.length];
+	int top = 0;
+
+	for (int level = 0; level < _numberOfLevels; ++level)
+	    if (_levelCapacities[level] != 0)
+		{
+		    int size = _levelSizes[level];
+		    System.arraycopy(_values,_levelStarts[level],newValues,top,size);
+		    System.arraycopy(_below,_levelStarts[level],newBelow,top,size);
+		    _levelStarts[level] = top;
+		    _levelCapacities[level] = size;
+		    top += size;
+		};
+
+	_values = newValues;
+	_below = newBelow;
+	_arenaTop = top;
+	_garbage = 0;
+
+    } // compactArenaIfNeeded()
+
 
-	int feature = key.get(firstFeature);
-	
-	if (feature == 
-	    ((FeatureVectorIndexNonleafNode<IndexedObject>)tree).value())
+    /** Recomputes the smallest and the greatest sums for the level
+     *  of the feature from the values and the levels below.
+     *  <b>pre:</b> the level is not empty.
+     */
+    private void recomputeSums(int level,int feature) {
+
+	int start = _levelStarts[level];
+	long min = Long.MAX_VALUE;
+	long max = Long.MIN_VALUE;
+
+	for (int n = start; n < start + _levelSizes[level]; ++n)
 	    {
-		FeatureVectorIndexNode<IndexedObject> newTreeBelow =
-		    removeFromTree(((FeatureVectorIndexNonleafNode<IndexedObject>)tree).
-				   treeBelow(),
-				   key,
-				   firstFeature + 1,
-				   successRef);
-		if (newTreeBelow == null) 
+		long belowMin = 0;
+		long belowMax = 0;
+
+		if (feature + 1 < _numberOfFeatures)
 		    {
-			assert successRef.content;
-			return 
-			    ((FeatureVectorIndexNonleafNode<IndexedObject>)tree).
-			    greater();
+			belowMin = _levelMinSums[_below[n]];
+			belowMax = _levelMaxSums[_below[n]];
 		    };
 
-		((FeatureVectorIndexNonleafNode<IndexedObject>)tree).
-		    setTreeBelow(newTreeBelow);
-		return tree;
+		// Saturated sums are not exact, so they have to stay saturated:
+
+		if (belowMin == Integer.MIN_VALUE)
+		    {
+			min = Integer.MIN_VALUE;
+		    }
+		else if (min != Integer.MIN_VALUE)
+		    min = Math.min(min,_values[n] + belowMin);
+
+		if (belowMax == Integer.MAX_VALUE)
+		    {
+			max = Integer.MAX_VALUE;
+		    }
+		else if (max != Integer.MAX_VALUE)
+		    max = Math.max(max,_values[n] + belowMax);
 	    };
 
+	_levelMinSums[level] = saturate(min);
+	_levelMaxSums[level] = saturate(max);
+
+    } // recomputeSums(int level,int feature)
+
+
+    /** True if all vectors in the subtree of the level
+     *  are known to have the sum of the features, starting with
+     *  the feature of the level, greater than <code>sum</code>.
+     */
+    private boolean minSumExceeds(int level,long sum) {
+	return _levelMinSums[level] != Integer.MIN_VALUE &&
+	    _levelMinSums[level] > sum;
+    }
+
 
-	if (feature > 
-	    ((FeatureVectorIndexNonleafNode<IndexedObject>)tree).value())
+    /** True if all vectors in the subtree of the level
+     *  are known to have the sum of the features, starting with
+     *  the feature of the level, smaller than <code>sum</code>.
+     */
+    private boolean maxSumIsBelow(int level,long sum) {
+	return _levelMaxSums[level] != Integer.MAX_VALUE &&
+	    _levelMaxSums[level] < sum;
+    }
+
+
+    /** <code>sums[n]</code> becomes the sum of the features
+     *  of <code>key</code> starting with <code>n</code>.
+     */
+    private static void computeSums(FeatureVector key,long[] sums) {
+	sums[key.length()] = 0;
+	for (int n = key.length() - 1; n >= 0; --n)
+	    sums[n] = sums[n + 1] + key.get(n);
+    }
+
+
+    /** Converts the sum to int; sums out of the int range
+     *  become <code>Integer.MIN_VALUE</code> or
+     *  <code>Integer.MAX_VALUE</code>, which are never used
+     *  for pruning.
+     */
+    private static int saturate(long sum) {
+	if (sum <= Integer.MIN_VALUE) return Integer.MIN_VALUE;
+	if (sum >= Integer.MAX_VALUE) return Integer.MAX_VALUE;
+	return (int)sum;
+    }
+
+
+    private int newLeaf() {
+
+	if (_numberOfFreeLeaves != 0)
 	    {
-		FeatureVectorIndexNode<IndexedObject> newGreater =
-		    removeFromTree(((FeatureVectorIndexNonleafNode<IndexedObject>)tree).
-				   greater(),
-				   key,
-				   firstFeature,
-				   successRef);
-		((FeatureVectorIndexNonleafNode<IndexedObject>)tree).
-		    setGreater((FeatureVectorIndexNonleafNode<IndexedObject>)newGreater);
-		return tree;
+		--_numberOfFreeLeaves;
+		int result = _freeLeaves[_numberOfFreeLeaves];
+		_leaves.set(result,new FeatureVectorIndexLeafNode<IndexedObject>());
+		return result;
 	    };
 
-	// feature < ((FeatureVectorIndexNonleafNode<IndexedObject>)tree).value()
-	
-	successRef.content = new Boolean(false);
-	return tree;
+	_leaves.add(new FeatureVectorIndexLeafNode<IndexedObject>());
+	return _leaves.size() - 1;
+
+    } // newLeaf()
+
+
+    private void freeLeaf(int leaf) {
+
+	_leaves.set(leaf,null);
 
-    } // removeFromTree(FeatureVectorIndexNode<IndexedObject> tree,
-	
+	if (_numberOfFreeLeaves == _freeLeaves.length)
+	    _freeLeaves = Arrays.copyOf(_freeLeaves,2 * _numberOfFreeLeaves);
+	_freeLeaves[_numberOfFreeLeaves] = leaf;
+	++_numberOfFreeLeaves;
 
-    //                 
+    } // freeLeaf(int leaf)
+
+
+
+    //
     //                 Data:
-    //                 
-    
-    private FeatureVectorIndexNode<IndexedObject> _tree;
+    //
+
+    private static final int NoLevel = -1;
+
+    private static final int InitialNumberOfLevels = 16;
+
+    private static final int InitialArenaCapacity = 64;
+
+    /** Abandoned segments are not reclaimed while they occupy
+     *  less than this number of elements.
+     */
+    private static final int MinGarbageToCompact = 1024;
+
+    // Approximate sizes, in bytes:
+
+    private static final int IntBytes = 4;
+
+    private static final int ReferenceBytes = 4;
+
+    /** Header and the value reference. */
+    private static final int LeafBytes = 16;
+
+    /** Object headers of the arrays and the list. */
+    private static final int ObjectOverheadBytes = 8 * 16;
+
+
+    /** Number of the first level, or <code>NoLevel</code> if
+     *  the index is empty.
+     */
+    private int _root;
+
+    // Level number n occupies the segment of _values and _below
+    // starting with _levelStarts[n], of the length _levelCapacities[n];
+    // only the first _levelSizes[n] elements are used.
+    // _levelCapacities[n] == 0 for free level numbers.
+
+    private int[] _levelStarts;
+
+    private int[] _levelSizes;
+
+    private int[] _levelCapacities;
+
+    /** <code>_levelMinSums[n]</code> and <code>_levelMaxSums[n]</code>
+     *  are the smallest and the greatest sums of the features,
+     *  starting with the feature of level number n, over all vectors
+     *  in its subtree; <code>Integer.MIN_VALUE</code> and
+     *  <code>Integer.MAX_VALUE</code> mean unknown.
+     */
+    private int[] _levelMinSums;
+
+    private int[] _levelMaxSums;
+
+    /** Number of used elements in <code>_levelStarts</code>, etc. */
+    private int _numberOfLevels;
+
+    /** Stack of the free level numbers. */
+    private int[] _freeLevels;
+
+    private int _numberOfFreeLevels;
+
+    /** Values of the features in all levels. */
+    private int[] _values;
+
+    /** Parallel to <code>_values</code>: numbers of the levels below,
+     *  or the leaf slots for the last feature.
+     */
+    private int[] _below;
+
+    /** End of the used part of <code>_values</code> and <code>_below</code>. */
+    private int _arenaTop;
+
+    /** Total length of the abandoned segments. */
+    private int _garbage;
+
+    /** Leaf slots; null for free slots. */
+    private ArrayList<FeatureVectorIndexLeafNode<IndexedObject>> _leaves;
+
+    /** Stack of the free leaf slots. */
+    private int[] _freeLeaves;
+
+    private int _numberOfFreeLeaves;
+
+    /** Used by {@link #insert(FeatureVector)}. */
+    private long[] _keySums;
 
     /** Determined by the first inserted vector. */
     private int _numberOfFeatures;
 
-} // class FeatureVectorIndex<IndexedObject>
\ No newline at end of file
+} // class FeatureVectorIndex<IndexedObject>
@@ -18,10 +18,11 @@ package logic.is.power.logic_warehouse;
 
 import logic.is.power.cushion.*;
 
-/** Leaf nodes of {@link logic.is.power.logic_warehouse.FeatureVectorIndexNode}. */
+/** Leaf nodes of {@link logic.is.power.logic_warehouse.FeatureVectorIndex}:
+ *  one per indexed feature vector, they keep the indexed values. 
+ */
 /* package */ class FeatureVectorIndexLeafNode<IndexedObject> 
 		  extends Ref<IndexedObject>
-		  implements FeatureVectorIndexNode<IndexedObject>
 { 
     public FeatureVectorIndexLeafNode() {
 	super();
@@ -78,6 +78,18 @@ public class Flatterm {
 	result._symbol = var;
 	return result;
     } 
+
+    /** Makes this cell a fresh unlinked cell with the specified kind
+     *  and symbol, so that cells of discarded terms can be reused;
+     *  <code>kindTag</code> must be one of the {@link Term.Kind} constants
+     *  matching the category of <code>sym</code>.
+     */
+    final void reinitialise(int kindTag,Symbol sym) {
+	_kindTag = kindTag;
+	_symbol = sym;
+	_nextCell = null;
+	_lastCell = null;
+    } 
     
 
     public final int kind() { return _kindTag; }
@@ -0,0 +1,468 @@
+/* Copyright (C) 2010 Alexandre Riazanov (Alexander Ryazanov)
+ *
+ * The copyright owner licenses this file to You under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package logic.is.power.logic_warehouse;
+
+import java.util.*;
+
+/**
+ * Storage for flatterm cells in parallel arrays, as an alternative
+ * to allocating a {@link Flatterm} object per cell.
+ * <p>
+ * A cell is an int offset into the arrays of kinds
+ * ({@link Term.Kind} constants), symbol ids
+ * ({@link Symbol#numericId()}), next cells and last cells, which
+ * have the same meaning as {@link Flatterm#nextCell()}
+ * and {@link Flatterm#lastCell()}; the absent next cell is
+ * {@link #NoCell}. The symbols themselves are kept in one more
+ * parallel array. Cells are allocated in the end of the arrays by
+ * {@link Assembler}s and are all discarded at once by {@link #reset()},
+ * after which the arrays are reused, so that a steady stream
+ * of temporary terms does not allocate memory.
+ * <p>
+ * The terms can be turned into shared terms with
+ * {@link TermFactory#createSharedTerm(FlattermArena,int)}.
+ * Algorithms working on {@link Flatterm}s, like
+ * {@link Unification} and {@link Matching1}, see the terms through
+ * {@link #flatterm(int)}, which links reusable {@link Flatterm}
+ * objects, one per cell offset, that are not garbage either.
+ */
+public class FlattermArena {
+
+    public static final int NoCell = -1;
+
+
+    public FlattermArena() {
+	_kinds = new int[InitialCapacity];
+	_symbolIds = new int[InitialCapacity];
+	_nextCells = new int[InitialCapacity];
+	_lastCells = new int[InitialCapacity];
+	_symbols = new Symbol[InitialCapacity];
+	_views = new Flatterm[InitialCapacity];
+	_top = 0;
+    }
+
+
+    /** Discards all cells; the terms assembled so far, and
+     *  the objects returned by {@link #flatterm(int)} for them,
+     *  must not be used any more.
+     */
+    public final void reset() {
+	_top = 0;
+    }
+
+    /** Number of cells allocated since the last {@link #reset()}. */
+    public final int size() { return _top; }
+
+    /** Number of cells the arena can hold without growing. */
+    public final int capacity() { return _kinds.length; }
+
+
+    public final int kind(int cell) { return _kinds[cell]; }
+
+    public final int symbolId(int cell) { return _symbolIds[cell]; }
+
+    public final Symbol symbol(int cell) { return _symbols[cell]; }
+
+    public final int nextCell(int cell) { return _nextCells[cell]; }
+
+    public final int lastCell(int cell) { return _lastCells[cell]; }
+
+    /** Cell following the term that starts with <code>cell</code>,
+     *  like {@link Flatterm#after()}.
+     */
+    public final int after(int cell) {
+	return _nextCells[_lastCells[cell]];
+    }
+
+    /** <b>pre:</b> <code>kind(cell) == Term.Kind.Variable ||
+     *     kind(cell) == Term.Kind.AbstractionTerm</code>.
+     */
+    public final Variable variable(int cell) {
+	assert _kinds[cell] == Term.Kind.Variable ||
+	    _kinds[cell] == Term.Kind.AbstractionTerm;
+	return (Variable)_symbols[cell];
+    }
+
+
+    /** Hash code of the whole term that starts with the cell;
+     *  the same as <code>flatterm(cell).hashCode()</code>.
+     */
+    public final int hashCode(int cell) {
+
+	switch (_kinds[cell])
+	    {
+	    case Term.Kind.Variable: // as below
+	    case Term.Kind.IndividualConstant:
+		return _symbols[cell].hashCode();
+
+	    case Term.Kind.AtomicFormula:
+		if (_symbols[cell].arity() == 0)
+		    return _symbols[cell].hashCode();
+		// as below
+	    case Term.Kind.CompoundTerm: // as below
+	    case Term.Kind.ConnectiveApplication:
+		return _symbols[cell].hashCode() * 5 +
+		    hashCodeOfTuple(_nextCells[cell],_symbols[cell].arity());
+
+	    case Term.Kind.QuantifierApplication: // as below
+	    case Term.Kind.AbstractionTerm:
+		return _symbols[cell].hashCode() * 5 +
+		    hashCode(_nextCells[cell]);
+
+	    }; // switch (_kinds[cell])
+
+	assert false;
+	return 0;
+
+    } // hashCode(int cell)
+
+
+    /** Hash code of the tuple of terms of the given arity,
+     *  that starts in the cell, like
+     *  {@link Flatterm#hashCodeOfTuple(int)}.
+     *  @param arity > 0
+     */
+    public final int hashCodeOfTuple(int cell,int arity) {
+	assert arity > 0;
+	if (arity == 1) return hashCode(cell);
+	return hashCode(cell) * 5 + hashCodeOfTuple(after(cell),arity - 1);
+    }
+
+
+    /** {@link Flatterm} view of the term starting with the cell,
+     *  and of everything after it linked via next cells; the view
+     *  objects belong to the arena and are reused for the same
+     *  offsets, so the view becomes invalid after {@link #reset()}
+     *  or a later call for the same cells.
+     */
+    public final Flatterm flatterm(int cell) {
+
+	assert 0 <= cell && cell < _top;
+
+	// Reinitialise all the cells first, so that the links
+	// below point to up-to-date views:
+
+	for (int c = cell; c != NoCell; c = _nextCells[c])
+	    {
+		if (_views[c] == null) _views[c] = new Flatterm();
+		_views[c].reinitialise(_kinds[c],_symbols[c]);
+	    };
+
+	for (int c = cell; c != NoCell; c = _nextCells[c])
+	    {
+		if (_nextCells[c] != NoCell)
+		    _views[c].setNextCell(_views[_nextCells[c]]);
+		_views[c].setLastCell(_views[_lastCells[c]]);
+	    };
+
+	return _views[cell];
+
+    } // flatterm(int cell)
+
+
+
+
+    /** Assembles terms symbol by symbol in the host arena,
+     *  like {@link FlattermAssembler}.
+     */
+    public class Assembler {
+
+	public Assembler() {
+	    _assembledTerm = NoCell;
+	    _last = NoCell;
+	}
+
+	/** Prepares the object for assembling a new term;
+	 *  the cells of the previously assembled terms stay
+	 *  in the arena.
+	 */
+	public final void reset() {
+	    _assembledTerm = NoCell;
+	    _last = NoCell;
+	}
+
+	/** Finalises the assembling; after a call to
+	 *  <code>wrapUp()</code> the assembled term is completely linked
+	 *  and can be accessed via {@link #assembledTerm()}.
+	 *  <b>pre:</b> A whole term must have been submitted and nothing
+	 *  else, so that complete linking is possible.
+	 */
+	public final void wrapUp() {
+	    assert _assembledTerm != NoCell;
+	    link(_assembledTerm);
+	    assert _lastCells[_assembledTerm] == _last;
+	}
+
+	/** First cell of the assembled term. */
+	public final int assembledTerm() {
+	    assert _assembledTerm != NoCell;
+	    assert _lastCells[_assembledTerm] == _last;
+	    return _assembledTerm;
+	}
+
+	public final FlattermArena arena() { return FlattermArena.this; }
+
+
+	//            Low-level functionality:
+
+	public final void pushVar(Variable var) {
+	    push(Term.Kind.Variable,var);
+	}
+
+	public final void pushFunc(Function func) {
+	    push(Term.Kind.CompoundTerm,func);
+	}
+
+	public final void pushConst(IndividualConstant c) {
+	    push(Term.Kind.IndividualConstant,c);
+	}
+
+	public final void pushPred(Predicate pred) {
+	    push(Term.Kind.AtomicFormula,pred);
+	}
+
+	public final void pushConnective(Connective con) {
+	    push(Term.Kind.ConnectiveApplication,con);
+	}
+
+	public final void pushQuant(Quantifier quant) {
+	    push(Term.Kind.QuantifierApplication,quant);
+	}
+
+	public final void pushAbstractionVar(Variable var) {
+	    push(Term.Kind.AbstractionTerm,var);
+	}
+
+	public final void pushSymbol(Symbol sym) {
+
+	    switch (sym.category())
+		{
+		case Symbol.Category.Variable:
+		    pushVar((Variable)sym);
+		    return;
+
+		case Symbol.Category.Function:
+		    pushFunc((Function)sym);
+		    return;
+
+		case Symbol.Category.IndividualConstant:
+		    pushConst((IndividualConstant)sym);
+		    return;
+
+		case Symbol.Category.Predicate:
+		    pushPred((Predicate)sym);
+		    return;
+
+		case Symbol.Category.Connective:
+		    pushConnective((Connective)sym);
+		    return;
+
+		case Symbol.Category.Quantifier:
+		    pushQuant((Quantifier)sym);
+		    return;
+
+		}; // switch (sym.category())
+
+	    assert false;
+
+	} // pushSymbol(Symbol sym)
+
+
+	//        Pushing whole term/formula copies:
+
+	/** Copies the term into the current position in the term
+	 *  being assembled; the copying is done literally, ie,
+	 *  no variable renaming is applied.
+	 */
+	public final void pushTerm(Term term) {
+
+	    switch (term.kind())
+		{
+		case Term.Kind.Variable:
+		    pushVar((Variable)term);
+		    return;
+
+		case Term.Kind.CompoundTerm:
+		    pushFunc(((CompoundTerm)term).function());
+		    pushTerm(((CompoundTerm)term).argument());
+		    return;
+
+		case Term.Kind.IndividualConstant:
+		    pushConst((IndividualConstant)term);
+		    return;
+
+		case Term.Kind.AtomicFormula:
+		    pushPred(((AtomicFormula)term).predicate());
+		    if (((AtomicFormula)term).predicate().arity() != 0)
+			pushTerm(((AtomicFormula)term).argument());
+		    return;
+
+		case Term.Kind.ConnectiveApplication:
+		    pushConnective(((ConnectiveApplication)term).connective());
+		    pushTerm(((ConnectiveApplication)term).argument());
+		    return;
+
+		case Term.Kind.QuantifierApplication:
+		    pushQuant(((QuantifierApplication)term).quantifier());
+		    pushTerm(((QuantifierApplication)term).abstraction());
+		    return;
+
+		case Term.Kind.AbstractionTerm:
+		    pushAbstractionVar(((AbstractionTerm)term).variable());
+		    pushTerm(((AbstractionTerm)term).matrix());
+		    return;
+
+		case Term.Kind.TermPair:
+		    pushTerm(((TermPair)term).first());
+		    pushTerm(((TermPair)term).second());
+		    return;
+
+		} // switch (term.kind())
+
+	    assert false;
+
+	} // pushTerm(Term term)
+
+
+	/** Copies the term starting with the cell; the cells of
+	 *  <code>term</code> are not modified.
+	 */
+	public final void pushCopyOf(Flatterm term) {
+	    for (Flatterm cell = term;
+		 cell != term.after();
+		 cell = cell.nextCell())
+		push(cell.kind(),cell.symbol());
+	}
+
+
+	//              Private methods:
+
+	private void push(int kindTag,Symbol sym) {
+	    int cell = allocate(kindTag,sym);
+	    if (_last == NoCell)
+		{
+		    _assembledTerm = cell;
+		}
+	    else
+		_nextCells[_last] = cell;
+	    _last = cell;
+	}
+
+
+	/** Sets the last cells in all cells of the whole term that
+	 *  starts with the cell.
+	 *  @return the cell following the term
+	 */
+	private int link(int cell) {
+
+	    int arity;
+
+	    switch (_kinds[cell])
+		{
+		case Term.Kind.QuantifierApplication: // as below
+		case Term.Kind.AbstractionTerm:
+		    arity = 1;
+		    break;
+
+		default:
+		    // Variables and constants have 0 arity:
+		    arity = _symbols[cell].arity();
+		};
+
+	    int next = _nextCells[cell];
+	    int lastArg = NoCell;
+
+	    for (int i = 0; i < arity; ++i)
+		{
+		    assert next != NoCell;
+		    lastArg = next;
+		    next = link(next);
+		};
+
+	    _lastCells[cell] =
+		(lastArg == NoCell)? cell : _lastCells[lastArg];
+
+	    return next;
+
+	} // link(int cell)
+
+
+	//              Data:
+
+	private int _assembledTerm;
+
+	private int _last;
+
+    } // class Assembler
+
+
+
+
+    //                   Private methods:
+
+    /** Creates a new unlinked cell. */
+    private int allocate(int kindTag,Symbol sym) {
+
+	if (_top == _kinds.length)
+	    {
+		int newLength = 2 * _top;
+		_kinds = Arrays.copyOf(_kinds,newLength);
+		_symbolIds = Arrays.copyOf(_symbolIds,newLength);
+		_nextCells = Arrays.copyOf(_nextCells,newLength);
+		_lastCells = Arrays.copyOf(_lastCells,newLength);
+		_symbols = Arrays.copyOf(_symbols,newLength);
+		_views = Arrays.copyOf(_views,newLength);
+	    };
+
+	int result = _top;
+	++_top;
+
+	_kinds[result] = kindTag;
+	_symbolIds[result] = sym.numericId();
+	_symbols[result] = sym;
+	_nextCells[result] = NoCell;
+	_lastCells[result] = result;
+
+	return result;
+
+    } // allocate(int kindTag,Symbol sym)
+
+
+
+    //                   Data:
+
+    private static final int InitialCapacity = 256;
+
+
+    private int[] _kinds;
+
+    private int[] _symbolIds;
+
+    private int[] _nextCells;
+
+    private int[] _lastCells;
+
+    private Symbol[] _symbols;
+
+    /** Reusable {@link Flatterm} objects for {@link #flatterm(int)};
+     *  null for the offsets that have not been viewed yet.
+     */
+    private Flatterm[] _views;
+
+    /** Number of allocated cells. */
+    private int _top;
+
+} // class FlattermArena
@@ -36,6 +36,27 @@ public class FlattermAssembler {
 	_last = null;
     }
 
+    /** Same as {@link #reset()}, but the cells of the previously 
+     *  assembled term are kept and reused by the following pushes, 
+     *  so that repeated assembling of terms does not allocate memory 
+     *  once enough cells have been accumulated.
+     *  <b>IMPORTANT:</b> this invalidates the previously assembled 
+     *  term: any {@link Flatterm} obtained from 
+     *  {@link #assembledTerm()} before the call will be silently
+     *  overwritten by the following pushes.
+     *  <b>pre:</b> the previously assembled term, if any, is not 
+     *  referenced anywhere else any more.
+     */
+    public final void recycle() {
+	if (_assembledTerm != null)
+	{
+	    _last.setNextCell(_spareCells);
+	    _spareCells = _assembledTerm;
+	};
+	_assembledTerm = null;
+	_last = null;
+    }
+
     /** Finalises the assembling; after a call to <code>wrapUp()</code>
      *  the assembled term is completely linked and can be accessed
      *  via {@link #assembledTerm()}.
@@ -50,6 +71,13 @@ public class FlattermAssembler {
 	assert _assembledTerm.lastCell() == _last;
     }
       
+    /** The term assembled since the last {@link #reset()} or 
+     *  {@link #recycle()}; it remains valid after a subsequent 
+     *  <code>reset()</code>, but a subsequent <code>recycle()</code> 
+     *  reuses its cells for the following terms, so it must not be
+     *  used after that.
+     *  <b>pre:</b> {@link #wrapUp()} has been called.
+     */
     public final Flatterm assembledTerm() {
 	assert _assembledTerm != null;
 	assert _assembledTerm.lastCell() == _last;
@@ -62,12 +90,12 @@ public class FlattermAssembler {
     public final void pushVar(Variable var) {
 	if (_last == null) 
 	{
-	    _assembledTerm = Flatterm.newVariableCell(var);
+	    _assembledTerm = newCell(Term.Kind.Variable,var);
 	    _last = _assembledTerm;
 	}
 	else
 	{
-	    _last.setNextCell(Flatterm.newVariableCell(var));
+	    _last.setNextCell(newCell(Term.Kind.Variable,var));
 	    _last = _last.nextCell();
 	    
 	};
@@ -75,36 +103,36 @@ public class FlattermAssembler {
       
     public final void pushFunc(Function func) {
 	if (_last == null) {
-	    _assembledTerm = Flatterm.newCompoundTermCell(func);
+	    _assembledTerm = newCell(Term.Kind.CompoundTerm,func);
 	    _last = _assembledTerm;
 	}
 	else
 	{
-	    _last.setNextCell(Flatterm.newCompoundTermCell(func));
+	    _last.setNextCell(newCell(Term.Kind.CompoundTerm,func));
 	    _last = _last.nextCell();
 	};
     } // pushFunc(Function func)
 
     public final void pushConst(IndividualConstant c) {
 	if (_last == null) {
-	    _assembledTerm = Flatterm.newIndividualConstantCell(c);
+	    _assembledTerm = newCell(Term.Kind.IndividualConstant,c);
 	    _last = _assembledTerm;
 	}
 	else
 	{
-	    _last.setNextCell(Flatterm.newIndividualConstantCell(c));
+	    _last.setNextCell(newCell(Term.Kind.IndividualConstant,c));
 	    _last = _last.nextCell();
 	};
     } // pushConst(IndividualConstant c)
 
     public final void pushPred(Predicate pred) {
 	if (_last == null) {
-	    _assembledTerm = Flatterm.newAtomicFormulaCell(pred);
+	    _assembledTerm = newCell(Term.Kind.AtomicFormula,pred);
 	    _last = _assembledTerm;
 	}
 	else
 	{
-	    _last.setNextCell(Flatterm.newAtomicFormulaCell(pred));
+	    _last.setNextCell(newCell(Term.Kind.AtomicFormula,pred));
 	    _last = _last.nextCell();
 	};
 	
@@ -113,12 +141,12 @@ public class FlattermAssembler {
 
     public final void pushConnective(Connective con) {
 	if (_last == null) {
-	    _assembledTerm = Flatterm.newConnectiveApplicationCell(con);
+	    _assembledTerm = newCell(Term.Kind.ConnectiveApplication,con);
 	    _last = _assembledTerm;
 	}
 	else
 	{
-	    _last.setNextCell(Flatterm.newConnectiveApplicationCell(con));
+	    _last.setNextCell(newCell(Term.Kind.ConnectiveApplication,con));
 	    _last = _last.nextCell();
 	};
     } // pushConnective(Connective con)
@@ -126,12 +154,12 @@ public class FlattermAssembler {
 
     public final void pushQuant(Quantifier quant) {
 	if (_last == null) {
-	    _assembledTerm = Flatterm.newQuantifierApplicationCell(quant);
+	    _assembledTerm = newCell(Term.Kind.QuantifierApplication,quant);
 	    _last = _assembledTerm;
 	}
 	else
 	{
-	    _last.setNextCell(Flatterm.newQuantifierApplicationCell(quant));
+	    _last.setNextCell(newCell(Term.Kind.QuantifierApplication,quant));
 	    _last = _last.nextCell();
 	};
     } // pushQuant(Quantifier quant)
@@ -139,12 +167,12 @@ public class FlattermAssembler {
       
     public final void pushAbstractionVar(Variable var) {
 	if (_last == null) {
-	    _assembledTerm = Flatterm.newAbstractionCell(var);
+	    _assembledTerm = newCell(Term.Kind.AbstractionTerm,var);
 	    _last = _assembledTerm;
 	}
 	else
 	{
-	    _last.setNextCell(Flatterm.newAbstractionCell(var));
+	    _last.setNextCell(newCell(Term.Kind.AbstractionTerm,var));
 	    _last = _last.nextCell();
 	};
     } // pushAbstractionVar(Variable var)
@@ -1150,6 +1178,22 @@ public class FlattermAssembler {
     //                   Private methods:
 
 
+    /** Takes a cell from the spare cells, if there are any,
+     *  or creates a new one.
+     */
+    private Flatterm newCell(int kindTag,Symbol sym) {
+	Flatterm result = _spareCells;
+	if (result == null)
+	{
+	    result = new Flatterm();
+	}
+	else
+	    _spareCells = result.nextCell();
+	result.reinitialise(kindTag,sym);
+	return result;
+    } // newCell(int kindTag,Symbol sym)
+
+
     /** Sets last cell pointers in all cell of the whole term that starts
      *  with the specified pointer.
      */
@@ -1263,6 +1307,11 @@ public class FlattermAssembler {
     private Flatterm _assembledTerm;
     
     private Flatterm _last;
+
+    /** Cells left from terms assembled earlier, linked via 
+     *  <code>nextCell()</code>; see {@link #recycle()}.
+     */
+    private Flatterm _spareCells;
     
     
 }; // class FlattermAssembler
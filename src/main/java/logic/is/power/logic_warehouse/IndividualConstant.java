@@ -138,6 +138,12 @@ public class IndividualConstant extends FunctionalSymbol implements Term {
 
     public final int numberOfSymbols() { return 1; }
 
+    public final int weightConstantPart() { return weight(); }
+
+    public final int numberOfVariableOccurrences() { return 0; }
+
+    public final long variableMask() { return 0L; }
+
     public final int numberOfSymbolsAfterSubst1() { return 1; }
 
     /** Counts all nonvariable symbols <code>sym</code>, 
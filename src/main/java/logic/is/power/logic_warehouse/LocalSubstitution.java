@@ -0,0 +1,384 @@
+/* Copyright (C) 2010 Alexandre Riazanov (Alexander Ryazanov)
+ *
+ * The copyright owner licenses this file to You under the Apache License, 
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package logic.is.power.logic_warehouse;
+
+/**
+ * Incremental substitutions with a possibility of backtracking,
+ * that keep variable instantiations in their own binding arrays
+ * rather than in the variable objects; unlike 
+ * {@link logic.is.power.logic_warehouse.Substitution1}, these 
+ * substitutions do not affect the global substitution 1, so that 
+ * several of them can be used on the same terms in parallel threads.
+ * Global variable instantiations are completely ignored by all 
+ * the methods of this class, ie, all terms are taken literally.
+ * A substitution object itself must not be shared by several threads.
+ * Variables are mapped to their binding slots via arrays indexed 
+ * by the variable numbers within their banks, so that neither 
+ * hashing nor boxing is involved.
+ */
+public class LocalSubstitution {
+
+    public LocalSubstitution() {
+	_banks = new Variable.Bank[InitialNumberOfBanks];
+	_bankSlots = new int[InitialNumberOfBanks][];
+	_numberOfBanks = 0;
+	_variables = new Variable[InitialCapacity];
+	_instances = new Flatterm[InitialCapacity];
+	_numberOfSlots = 0;
+	_trail = new int[InitialCapacity];
+	_trailSize = 0;
+    }
+
+    /** Indicates that no variable instantiations are currently registered. */
+    public final boolean empty() { return _trailSize == 0; }
+
+    /** Identifies the current state of the substitution;
+     *  can be used if we later want to backtrack to this state.
+     *  The value becomes invalid and should not be used 
+     *  after any longer backtrack or a call to {@link #uninstantiateAll()}.
+     */
+    public final int savepoint() { return _trailSize; }
+
+    /** Undoes all variable instantiations registered since after
+     *  the savepoint <code>savepoint</code> was made.
+     *  <b>pre:</b> <code>savepoint</code> must be a valid savepoint for 
+     *       this substitution.
+     *  <b>post:</b> <code>savepoint() == savepoint</code>
+     */
+    public final void backtrackTo(int savepoint) {
+	assert _trailSize >= savepoint;
+	while (_trailSize > savepoint)
+	    {
+		--_trailSize;
+		_instances[_trail[_trailSize]] = null;
+	    };
+    }
+
+    /** Cancels all registered instantiations and forgets all
+     *  variables seen so far.
+     */
+    public final void uninstantiateAll() {
+	backtrackTo(0);
+	for (int n = 0; n < _numberOfSlots; ++n)
+	    {
+		_bankSlots[bankNumber(_variables[n].bank())]
+		    [_variables[n].numberInBank()] = 0;
+		_variables[n] = null;
+	    };
+	_numberOfSlots = 0;
+    }
+
+    /** Current instance of <code>var</code>, or null if the variable
+     *  is not instantiated by this substitution; note that
+     *  the instance may contain variables instantiated by this 
+     *  substitution.
+     */
+    public final Flatterm instance(Variable var) {
+	int slot = slot(var);
+	if (slot < 0) return null;
+	return _instances[slot];
+    }
+
+    public final boolean isInstantiated(Variable var) {
+	return instance(var) != null;
+    }
+
+    /** Registers <code>instance</code> as the instance of 
+     *  <code>var</code>.
+     *  <b>pre:</b> <code>!isInstantiated(var)</code>
+     */
+    public final void instantiate(Variable var,Flatterm instance) {
+
+	assert !isInstantiated(var);
+	assert instance != null;
+
+	int slot = slot(var);
+
+	if (slot < 0)
+	    {
+		if (_numberOfSlots == _instances.length)
+		    {
+			Flatterm[] newInstances = 
+			    new Flatterm[2 * _instances.length];
+			System.arraycopy(_instances,0,
+					 newInstances,0,
+					 _numberOfSlots);
+			_instances = newInstances;
+			Variable[] newVariables = 
+			    new Variable[2 * _variables.length];
+			System.arraycopy(_variables,0,
+					 newVariables,0,
+					 _numberOfSlots);
+			_variables = newVariables;
+		    };
+		
+		slot = _numberOfSlots;
+		++_numberOfSlots;
+		_variables[slot] = var;
+		registerSlot(var,slot);
+	    };
+
+	_instances[slot] = instance;
+
+	if (_trailSize == _trail.length)
+	    {
+		int[] newTrail = new int[2 * _trail.length];
+		System.arraycopy(_trail,0,newTrail,0,_trailSize);
+		_trail = newTrail;
+	    };
+
+	_trail[_trailSize] = slot;
+	++_trailSize;
+
+    } // instantiate(Variable var,Flatterm instance)
+
+
+    /** Tries to unify the terms modulo this substitution; if succeeds,
+     *  registers the corresponding variable instantiations; 
+     *  if the unification attempt fails, the substitution remains 
+     *  unchanged.
+     *  <b>pre:</b> neither <code>term1</code>, nor <code>term2</code> 
+     *  contains abstractions or quantifiers.
+     */
+    public final boolean unify(Flatterm term1,Flatterm term2) {
+
+	int savepoint = savepoint();
+
+	if (tryToUnify(term1,term2)) return true;
+
+	backtrackTo(savepoint);
+	
+	return false;
+
+    } // unify(Flatterm term1,Flatterm term2)
+
+
+    /** Same as {@link #unify(Flatterm,Flatterm)} with a variable
+     *  as the first term; formulas can never be assigned 
+     *  to variables.
+     */
+    public final boolean unify(Variable var,Flatterm term) {
+
+	int savepoint = savepoint();
+
+	if (tryToUnify(var,term)) return true;
+
+	backtrackTo(savepoint);
+	
+	return false;
+
+    } // unify(Variable var,Flatterm term)
+
+
+    /** Checks if <code>var</code> occurs in <code>term</code> 
+     *  modulo this substitution.
+     */
+    public final boolean contains(Flatterm term,Variable var) {
+
+	Flatterm end = term.after();
+
+	for (Flatterm cell = term; cell != end; cell = cell.nextCell())
+	    if (cell.isVariable())
+		{
+		    if (cell.variable() == var) return true;
+
+		    Flatterm inst = instance(cell.variable());
+
+		    if (inst != null && contains(inst,var)) return true;
+		};
+	
+	return false;
+
+    } // contains(Flatterm term,Variable var)
+
+
+    public String toString() {
+	String result = "";
+	for (int n = 0; n < _numberOfSlots; ++n)
+	    {
+		Flatterm inst = _instances[n];
+		if (inst != null)
+		    {
+			if (!result.equals("")) result += ", ";
+			result += _variables[n] + " <- " + inst;
+		    };
+	    };
+	return result;
+    }
+
+
+
+    //                     Private methods:
+
+    /** Position of <code>var</code> in <code>_instances</code>,
+     *  or -1 if the variable has not been seen by this substitution.
+     */
+    private int slot(Variable var) {
+	
+	int bank = bankNumber(var.bank());
+
+	if (bank < 0 || var.numberInBank() >= _bankSlots[bank].length) 
+	    return -1;
+	
+	return _bankSlots[bank][var.numberInBank()] - 1;
+
+    } // slot(Variable var)
+
+
+    /** Records <code>slot</code> as the position of <code>var</code>
+     *  in <code>_instances</code>, growing the slot arrays as needed. 
+     */
+    private void registerSlot(Variable var,int slot) {
+
+	int bank = bankNumber(var.bank());
+
+	if (bank < 0)
+	    {
+		if (_numberOfBanks == _banks.length)
+		    {
+			Variable.Bank[] newBanks = 
+			    new Variable.Bank[2 * _banks.length];
+			System.arraycopy(_banks,0,newBanks,0,_numberOfBanks);
+			_banks = newBanks;
+			int[][] newBankSlots = new int[_banks.length][];
+			System.arraycopy(_bankSlots,0,
+					 newBankSlots,0,
+					 _numberOfBanks);
+			_bankSlots = newBankSlots;
+		    };
+		bank = _numberOfBanks;
+		++_numberOfBanks;
+		_banks[bank] = var.bank();
+		_bankSlots[bank] = new int[InitialCapacity];
+	    };
+
+	int[] slots = _bankSlots[bank];
+
+	if (var.numberInBank() >= slots.length)
+	    {
+		int newLength = 2 * slots.length;
+		while (var.numberInBank() >= newLength) newLength *= 2;
+		int[] newSlots = new int[newLength];
+		System.arraycopy(slots,0,newSlots,0,slots.length);
+		slots = newSlots;
+		_bankSlots[bank] = slots;
+	    };
+	
+	slots[var.numberInBank()] = slot + 1;
+
+    } // registerSlot(Variable var,int slot)
+
+
+    /** Position of <code>bank</code> in <code>_banks</code>, or -1. */
+    private int bankNumber(Variable.Bank bank) {
+	for (int n = 0; n < _numberOfBanks; ++n)
+	    if (_banks[n] == bank) return n;
+	return -1;
+    }
+
+
+    /** Does not cancel the instantiations even if it fails. */
+    private boolean tryToUnify(Flatterm term1,Flatterm term2) {
+	
+	if (term1.isVariable()) 
+	    return tryToUnify(term1.variable(),term2);
+
+	if (term2.isVariable()) 
+	    return tryToUnify(term2.variable(),term1);
+	
+	if (term1.kind() != term2.kind() ||
+	    !term1.symbol().equals(term2.symbol()))
+	    return false;
+	
+	Flatterm arg1 = term1.nextCell();
+	Flatterm arg2 = term2.nextCell();
+	for (int n = 0; n < term1.symbol().arity(); ++n)
+	    {
+		if (!tryToUnify(arg1,arg2)) return false;
+		arg1 = arg1.after();
+		arg2 = arg2.after();
+	    };
+
+	return true;
+
+    } // tryToUnify(Flatterm term1,Flatterm term2)
+
+
+    /** Does not cancel the instantiations even if it fails. */
+    private boolean tryToUnify(Variable var,Flatterm term) {
+
+	Flatterm inst = instance(var);
+
+	if (inst != null) return tryToUnify(inst,term);
+
+	if (term.isFormula()) return false;
+
+	if (term.isVariable())
+	    {
+		Variable var1 = term.variable();
+		if (var == var1) return true;
+		
+		Flatterm inst1 = instance(var1);
+		if (inst1 != null) return tryToUnify(var,inst1);
+	    }
+	else if (contains(term,var))
+	    return false;
+
+	instantiate(var,term);
+	return true;
+
+    } // tryToUnify(Variable var,Flatterm term)
+
+
+    
+    //                     Data:
+
+    private static final int InitialCapacity = 32;
+
+    private static final int InitialNumberOfBanks = 4;
+
+    /** Banks of the variables seen by this substitution. */
+    private Variable.Bank[] _banks;
+
+    /** <code>_bankSlots[b][n]</code> is 1 + the position 
+     *  in <code>_instances</code> of the variable number <code>n</code>
+     *  from the bank <code>_banks[b]</code>, or 0 if the variable
+     *  has not been seen by this substitution.
+     */
+    private int[][] _bankSlots;
+
+    private int _numberOfBanks;
+
+    /** Variables seen by this substitution, in the order 
+     *  of their slots.
+     */
+    private Variable[] _variables;
+
+    /** Current instances of the variables; null for uninstantiated
+     *  variables.
+     */
+    private Flatterm[] _instances;
+
+    private int _numberOfSlots;
+
+    /** Slots of the instantiated variables in the order 
+     *  of instantiation. 
+     */
+    private int[] _trail;
+
+    private int _trailSize;
+
+} // class LocalSubstitution
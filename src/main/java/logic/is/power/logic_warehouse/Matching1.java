@@ -51,6 +51,23 @@ public class Matching1 {
 
 
 
+    /** Same as <code>match(arena1.flatterm(term1),arena2.flatterm(term2),subst)</code>:
+     *  the variables get instantiated to the views of the arena cells,
+     *  so the instantiations must be cancelled before the arenas
+     *  are reset.
+     */
+    public 
+	static 
+	boolean match(FlattermArena arena1,
+		      int term1,
+		      FlattermArena arena2,
+		      int term2,
+		      Substitution1 subst) {
+	return match(arena1.flatterm(term1),arena2.flatterm(term2),subst);
+    }
+
+
+
     //                 Private methods:
 
 
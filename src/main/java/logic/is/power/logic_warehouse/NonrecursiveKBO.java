@@ -31,6 +31,24 @@ extends ReductionOrdering {
 
     public final int compare(Term term1,Term term2) {
 
+	// Quick checks with the cached properties of the terms:
+
+	if (!term1.containsVariables() && !term2.containsVariables())
+	    {
+		// Both weights are constants.
+		if (term1.weightConstantPart() > term2.weightConstantPart())
+		    return ComparisonValue.Greater;
+		if (term1.weightConstantPart() < term2.weightConstantPart())
+		    return ComparisonValue.Smaller;
+		return compareLexicographically(term1,term2);
+	    };
+
+	if ((term1.variableMask() & ~term2.variableMask()) != 0 &&
+	    (term2.variableMask() & ~term1.variableMask()) != 0)
+	    // Each term contains a variable that the other one does not, 
+	    // so the weight comparison is Volatile:
+	    return ComparisonValue.Incomparable;
+
 	WeightPolynomial w1 = WeightComputation.computeWeight(term1);
 	WeightPolynomial w2 = WeightComputation.computeWeight(term2);
 
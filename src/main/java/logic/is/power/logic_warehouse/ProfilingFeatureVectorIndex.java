@@ -0,0 +1,617 @@
+/* Copyright (C) 2010 Alexandre Riazanov (Alexander Ryazanov)
+ *
+ * The copyright owner licenses this file to You under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package logic.is.power.logic_warehouse;
+
+import java.util.*;
+
+import logic.is.power.cushion.*;
+
+/** {@link FeatureVectorIndex} that collects statistics on the features
+ *  and can be rebuilt with the features reordered, or with useless
+ *  features dropped, to reduce the number of nodes visited by
+ *  retrievals.
+ *  <p>
+ *  The callers always use the feature vectors in their own order:
+ *  the vectors are rearranged on the fly for the underlying index.
+ *  The index keeps the distributions of the values of all features
+ *  over the indexed vectors. Every {@link #profilingInterval()}-th
+ *  retrieval also records, for every feature, the fraction of
+ *  the indexed vectors that pass the test on this feature alone;
+ *  a feature with a small average fraction prunes much of the trie
+ *  and should come early. {@link #suggestedFeatureOrder()} orders
+ *  the features by the average fraction and leaves out the features
+ *  that have the same value in all indexed vectors;
+ *  {@link #optimise()} rebuilds the index in this order.
+ *  <p>
+ *  A dropped feature is not stored in the underlying index: its only
+ *  value is kept separately and checked once per operation. Inserting
+ *  a vector with a different value of a dropped feature restores
+ *  the feature, which rebuilds the index.
+ *  Rebuilding invalidates the references returned by
+ *  {@link #insert(FeatureVector)} earlier, but the indexed values
+ *  are preserved.
+ */
+public class ProfilingFeatureVectorIndex<IndexedObject> {
+
+    public ProfilingFeatureVectorIndex(int numberOfFeatures) {
+	this(numberOfFeatures,DefaultProfilingInterval);
+    }
+
+    /** @param profilingInterval only every
+     *         <code>profilingInterval</code>-th retrieval is profiled
+     */
+    public ProfilingFeatureVectorIndex(int numberOfFeatures,
+				       int profilingInterval) {
+
+	assert profilingInterval > 0;
+
+	_numberOfFeatures = numberOfFeatures;
+	_profilingInterval = profilingInterval;
+	_features = new int[numberOfFeatures];
+	for (int n = 0; n < numberOfFeatures; ++n)
+	    _features[n] = n;
+	_isDropped = new boolean[numberOfFeatures];
+	_droppedValues = new int[numberOfFeatures];
+	_index = new FeatureVectorIndex<IndexedObject>(numberOfFeatures);
+	_projection = new Projection();
+	_valueCounts = new ArrayList<TreeMap<Integer,Integer>>(numberOfFeatures);
+	for (int n = 0; n < numberOfFeatures; ++n)
+	    _valueCounts.add(new TreeMap<Integer,Integer>());
+	_passRateSums = new double[numberOfFeatures];
+	_numberOfRetrievals = 0;
+	_numberOfProfiledRetrievals = 0;
+    }
+
+
+    /** Inserts the feature vector into the index; returns the reference
+     *  where the indexed value can be placed.
+     *  <b>pre:<b> the feature vector can be already in the index,
+     *             in which case the returned value is still valid
+     */
+    public final Ref<IndexedObject> insert(FeatureVector key) {
+
+	assert key.length() == _numberOfFeatures;
+
+	if (!matchesDroppedFeatures(key)) restoreDroppedFeatures();
+
+	int oldSize = _index.size();
+
+	Ref<IndexedObject> result = _index.insert(_projection.reset(key));
+
+	_projection.clear();
+
+	if (_index.size() != oldSize)
+	    for (int f = 0; f < _numberOfFeatures; ++f)
+		{
+		    Integer count = _valueCounts.get(f).get(key.get(f));
+		    _valueCounts.get(f).put(key.get(f),
+					    (count == null)? 1 : count + 1);
+		};
+
+	return result;
+
+    } // insert(FeatureVector key)
+
+
+
+    /** Tries to reach an indexed object corresponding to the given
+     *  feature vector.
+     *  @return null if the index does not contain this vector
+     */
+    public final Ref<IndexedObject> find(FeatureVector key) {
+
+	if (!matchesDroppedFeatures(key)) return null;
+
+	Ref<IndexedObject> result = _index.find(_projection.reset(key));
+
+	_projection.clear();
+
+	return result;
+
+    } // find(FeatureVector key)
+
+
+
+    /** Tries to remove the feature vector from the index;
+     *  if succedes, the indexed value is returned in
+     *  <code>value</code>.
+     */
+    public final boolean remove(FeatureVector key,
+				Ref<IndexedObject> value) {
+
+	if (!matchesDroppedFeatures(key)) return false;
+
+	boolean result = _index.remove(_projection.reset(key),value);
+
+	_projection.clear();
+
+	if (result)
+	    for (int f = 0; f < _numberOfFeatures; ++f)
+		{
+		    int count = _valueCounts.get(f).get(key.get(f));
+		    if (count == 1)
+			{
+			    _valueCounts.get(f).remove(key.get(f));
+			}
+		    else
+			_valueCounts.get(f).put(key.get(f),count - 1);
+		};
+
+	return result;
+
+    } // remove(FeatureVector key,..)
+
+
+    /** Number of the feature vectors in the index. */
+    public final int size() { return _index.size(); }
+
+
+    /** Approximate number of bytes occupied by the underlying index;
+     *  the statistics are not counted.
+     */
+    public final long estimatedBytes() { return _index.estimatedBytes(); }
+
+
+    public final int profilingInterval() { return _profilingInterval; }
+
+
+    /** Number of different values of the feature in the indexed
+     *  vectors.
+     */
+    public final int numberOfDistinctValues(int feature) {
+	return _valueCounts.get(feature).size();
+    }
+
+
+    /** Average fraction of the indexed vectors passing the test
+     *  on the feature alone, over the profiled retrievals;
+     *  1 if there were none.
+     */
+    public final double passRate(int feature) {
+	if (_numberOfProfiledRetrievals == 0) return 1.0;
+	return _passRateSums[feature] / _numberOfProfiledRetrievals;
+    }
+
+
+    /** Numbers of the features used by the underlying index,
+     *  in the order of the levels; the dropped features are
+     *  not included.
+     */
+    public final int[] featureOrder() {
+	return Arrays.copyOf(_features,_features.length);
+    }
+
+
+    /** The order of features expected to minimise the number
+     *  of nodes visited by retrievals: the features with smaller
+     *  {@link #passRate(int)} come first, and the features having
+     *  the same value in all indexed vectors are left out.
+     *  The ties are broken in favour of the features with more
+     *  distinct values, and then of the smaller feature numbers.
+     *  At least one feature is always kept.
+     */
+    public final int[] suggestedFeatureOrder() {
+
+	ArrayList<Integer> features = new ArrayList<Integer>(_numberOfFeatures);
+
+	for (int f = 0; f < _numberOfFeatures; ++f)
+	    if (!isConstant(f)) features.add(f);
+
+	// The underlying index needs at least one feature:
+	if (features.isEmpty() && _numberOfFeatures != 0) features.add(0);
+
+	Collections.sort(features,
+			 new Comparator<Integer>() {
+			     public int compare(Integer f1,Integer f2) {
+				 int result =
+				     Double.compare(passRate(f1),passRate(f2));
+				 if (result != 0) return result;
+				 result =
+				     numberOfDistinctValues(f2) -
+				     numberOfDistinctValues(f1);
+				 if (result != 0) return result;
+				 return f1 - f2;
+			     }
+			 });
+
+	int[] result = new int[features.size()];
+	for (int n = 0; n < result.length; ++n)
+	    result[n] = features.get(n);
+
+	return result;
+
+    } // suggestedFeatureOrder()
+
+
+    /** Rebuilds the index in the order
+     *  {@link #suggestedFeatureOrder()}.
+     */
+    public final void optimise() {
+	rebuild(suggestedFeatureOrder());
+    }
+
+
+    /** Rebuilds the underlying index with the features in
+     *  the specified order; the features not listed are dropped.
+     *  The collected statistics are kept.
+     *  <b>pre:</b> every feature is listed at most once, and
+     *  every omitted feature has the same value in all indexed
+     *  vectors.
+     */
+    public final void rebuild(int[] features) {
+
+	// Where the features are in the current index:
+
+	int[] oldLevels = new int[_numberOfFeatures];
+	Arrays.fill(oldLevels,-1);
+	for (int n = 0; n < _features.length; ++n)
+	    oldLevels[_features[n]] = n;
+
+	int[] copiedFeatures = new int[features.length];
+	int[] constants = new int[features.length];
+	boolean[] listed = new boolean[_numberOfFeatures];
+
+	for (int n = 0; n < features.length; ++n)
+	    {
+		assert !listed[features[n]];
+		listed[features[n]] = true;
+		copiedFeatures[n] = oldLevels[features[n]];
+		if (copiedFeatures[n] < 0)
+		    {
+			// Dropped now:
+			assert _isDropped[features[n]];
+			constants[n] = _droppedValues[features[n]];
+		    };
+	    };
+
+	FeatureVectorIndex<IndexedObject> newIndex =
+	    new FeatureVectorIndex<IndexedObject>(features.length);
+
+	_index.copyTo(newIndex,copiedFeatures,constants);
+
+	for (int f = 0; f < _numberOfFeatures; ++f)
+	    if (!listed[f] && !_isDropped[f])
+		{
+		    assert numberOfDistinctValues(f) <= 1;
+		    _isDropped[f] = true;
+		    // Any value will do for an empty index:
+		    _droppedValues[f] =
+			(numberOfDistinctValues(f) == 0)?
+			0 : _valueCounts.get(f).firstKey();
+		}
+	    else if (listed[f])
+		_isDropped[f] = false;
+
+	_index = newIndex;
+	_features = Arrays.copyOf(features,features.length);
+
+    } // rebuild(int[] features)
+
+
+
+
+    /** Iteration over all indexed values corresponding
+     *  to feature vectors subsuming a specified vector.
+     */
+    public class Subsuming
+	implements java.util.Iterator<IndexedObject> {
+
+	public Subsuming() {
+	    _projection = new Projection();
+	}
+
+	/** Releases all pointers to external objects. */
+	public final void clear() {
+	    if (_iterator != null) _iterator.clear();
+	    _projection.clear();
+	}
+
+	/** Starts the iteration over all indexed values
+	 *  from the host index, corresponding
+	 *  to feature vectors subsuming <code>key</code>.
+	 */
+	public final void reset(FeatureVector key) {
+
+	    assert key.length() == _numberOfFeatures;
+
+	    profile(key,true);
+
+	    if (_iteratedIndex != _index)
+		{
+		    // The host has been rebuilt:
+		    _iteratedIndex = _index;
+		    _iterator = _index.new Subsuming();
+		};
+
+	    _empty = false;
+
+	    for (int f = 0; f < _numberOfFeatures; ++f)
+		if (_isDropped[f] && _droppedValues[f] > key.get(f))
+		    _empty = true;
+
+	    if (_empty)
+		{
+		    clear();
+		}
+	    else
+		_iterator.reset(_projection.reset(key));
+
+	} // reset(FeatureVector key)
+
+	public final boolean hasNext() {
+	    return !_empty && _iterator.hasNext();
+	}
+
+	public
+	    final
+	    IndexedObject next() throws java.util.NoSuchElementException {
+	    if (_empty) throw new java.util.NoSuchElementException();
+	    return _iterator.next();
+	}
+
+	/** Cannot be used. */
+	public void remove() throws Error {
+	    throw
+		new Error("Forbidden method call: logic_warehouse_je.ProfilingFeatureVectorIndex.Subsuming.remove()");
+	}
+
+
+	//              Data:
+
+	private FeatureVectorIndex<IndexedObject> _iteratedIndex;
+
+	private FeatureVectorIndex<IndexedObject>.Subsuming _iterator;
+
+	private Projection _projection;
+
+	/** True if a dropped feature makes the result empty. */
+	private boolean _empty;
+
+    } // class Subsuming
+
+
+
+
+    /** Iteration over all indexed values corresponding
+     *  to feature vectors subsumed by a specified vector.
+     */
+    public class Subsumed
+	implements java.util.Iterator<IndexedObject> {
+
+	public Subsumed() {
+	    _projection = new Projection();
+	}
+
+	/** Releases all pointers to external objects. */
+	public final void clear() {
+	    if (_iterator != null) _iterator.clear();
+	    _projection.clear();
+	}
+
+	/** Starts the iteration over all indexed values
+	 *  from the host index, corresponding
+	 *  to feature vectors subsumed by <code>key</code>.
+	 */
+	public final void reset(FeatureVector key) {
+
+	    assert key.length() == _numberOfFeatures;
+
+	    profile(key,false);
+
+	    if (_iteratedIndex != _index)
+		{
+		    // The host has been rebuilt:
+		    _iteratedIndex = _index;
+		    _iterator = _index.new Subsumed();
+		};
+
+	    _empty = false;
+
+	    for (int f = 0; f < _numberOfFeatures; ++f)
+		if (_isDropped[f] && _droppedValues[f] < key.get(f))
+		    _empty = true;
+
+	    if (_empty)
+		{
+		    clear();
+		}
+	    else
+		_iterator.reset(_projection.reset(key));
+
+	} // reset(FeatureVector key)
+
+	public final boolean hasNext() {
+	    return !_empty && _iterator.hasNext();
+	}
+
+	public
+	    final
+	    IndexedObject next() throws java.util.NoSuchElementException {
+	    if (_empty) throw new java.util.NoSuchElementException();
+	    return _iterator.next();
+	}
+
+	/** Cannot be used. */
+	public void remove() throws Error {
+	    throw
+		new Error("Forbidden method call: logic_warehouse_je.ProfilingFeatureVectorIndex.Subsumed.remove()");
+	}
+
+
+	//              Data:
+
+	private FeatureVectorIndex<IndexedObject> _iteratedIndex;
+
+	private FeatureVectorIndex<IndexedObject>.Subsumed _iterator;
+
+	private Projection _projection;
+
+	/** True if a dropped feature makes the result empty. */
+	private boolean _empty;
+
+    } // class Subsumed
+
+
+
+
+    //
+    //                 Private methods:
+    //
+
+
+    /** View of a vector of the callers as a vector
+     *  for the underlying index.
+     */
+    private class Projection implements FeatureVector {
+
+	/** Makes this a view of <code>key</code> in the current
+	 *  order of the features.
+	 *  @return this
+	 */
+	public final Projection reset(FeatureVector key) {
+	    _key = key;
+	    _order = _features;
+	    return this;
+	}
+
+	public final void clear() { _key = null; }
+
+	public final int length() { return _order.length; }
+
+	public final int get(int n) { return _key.get(_order[n]); }
+
+	private FeatureVector _key;
+
+	private int[] _order;
+
+    } // class Projection
+
+
+    private boolean isConstant(int feature) {
+	return numberOfDistinctValues(feature) == 1;
+    }
+
+
+    private boolean matchesDroppedFeatures(FeatureVector key) {
+	for (int f = 0; f < _numberOfFeatures; ++f)
+	    if (_isDropped[f] && _droppedValues[f] != key.get(f))
+		return false;
+	return true;
+    }
+
+
+    /** Rebuilds the index with the dropped features added
+     *  after the current ones.
+     */
+    private void restoreDroppedFeatures() {
+
+	int[] features = Arrays.copyOf(_features,_numberOfFeatures);
+	int n = _features.length;
+
+	for (int f = 0; f < _numberOfFeatures; ++f)
+	    if (_isDropped[f])
+		{
+		    features[n] = f;
+		    ++n;
+		};
+
+	assert n == _numberOfFeatures;
+
+	rebuild(features);
+
+    } // restoreDroppedFeatures()
+
+
+    /** Records the pass rates for the retrieval with
+     *  <code>key</code> if it is one of the profiled ones.
+     *  @param subsuming true if vectors subsuming <code>key</code>
+     *         are retrieved, false if subsumed ones
+     */
+    private void profile(FeatureVector key,boolean subsuming) {
+
+	++_numberOfRetrievals;
+
+	if (_numberOfRetrievals % _profilingInterval != 0 ||
+	    _index.size() == 0)
+	    return;
+
+	++_numberOfProfiledRetrievals;
+
+	for (int f = 0; f < _numberOfFeatures; ++f)
+	    {
+		SortedMap<Integer,Integer> passing = _valueCounts.get(f);
+
+		if (!subsuming)
+		    {
+			passing = passing.tailMap(key.get(f));
+		    }
+		else if (key.get(f) != Integer.MAX_VALUE)
+		    passing = passing.headMap(key.get(f) + 1);
+
+		long passed = 0;
+		for (Integer count : passing.values())
+		    passed += count;
+
+		_passRateSums[f] += ((double)passed) / _index.size();
+	    };
+
+    } // profile(FeatureVector key,boolean subsuming)
+
+
+
+
+    //
+    //                 Data:
+    //
+
+    private static final int DefaultProfilingInterval = 16;
+
+
+    private final int _numberOfFeatures;
+
+    private final int _profilingInterval;
+
+    /** Feature n of the underlying index is feature
+     *  <code>_features[n]</code> of the callers' vectors.
+     */
+    private int[] _features;
+
+    /** Indexed by the callers' feature numbers. */
+    private boolean[] _isDropped;
+
+    /** <code>_droppedValues[f]</code> is the only value
+     *  of the dropped feature f.
+     */
+    private int[] _droppedValues;
+
+    private FeatureVectorIndex<IndexedObject> _index;
+
+    /** Used by insert(..), find(..) and remove(..). */
+    private Projection _projection;
+
+    /** <code>_valueCounts.get(f)</code> maps the values of feature f
+     *  to the numbers of indexed vectors having them.
+     */
+    private ArrayList<TreeMap<Integer,Integer>> _valueCounts;
+
+    /** Sums of the pass rates over the profiled retrievals. */
+    private double[] _passRateSums;
+
+    private long _numberOfRetrievals;
+
+    private long _numberOfProfiledRetrievals;
+
+} // class ProfilingFeatureVectorIndex<IndexedObject>
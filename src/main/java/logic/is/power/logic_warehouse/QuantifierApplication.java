@@ -168,6 +168,18 @@ public final class QuantifierApplication extends Formula {
 	return 1 + abstraction().numberOfSymbolsAfterSubst1();
     }
 
+    public final int weightConstantPart() {
+	return 1 + abstraction().weightConstantPart();
+    }
+
+    public final int numberOfVariableOccurrences() {
+	return abstraction().numberOfVariableOccurrences();
+    }
+
+    public final long variableMask() {
+	return abstraction().variableMask();
+    }
+
     /** Counts all nonvariable symbols <code>sym</code>, 
      *  including logical symbols, but excluding pair constructors
      *  and abstraction operators, such that 
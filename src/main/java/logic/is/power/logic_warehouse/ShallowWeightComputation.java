@@ -73,6 +73,12 @@ public class ShallowWeightComputation {
 		w.add((Variable)term);
 		break;
 	    case Term.Kind.CompoundTerm:       
+		if (!term.containsVariables() && term.depth() <= depthLimit)
+		    {
+			// No symbols are ignored and the weight is cached:
+			w.add(term.weightConstantPart());
+			break;
+		    };
 		w.add(((CompoundTerm)term).function().weight());
 		if (depthLimit > 0)
 		    addWeight(((CompoundTerm)term).argument(),depthLimit - 1,w);
@@ -81,6 +87,12 @@ public class ShallowWeightComputation {
 		w.add(((IndividualConstant)term).weight());
 		break;
 	    case Term.Kind.AtomicFormula: 
+		if (!term.containsVariables() && term.depth() <= depthLimit)
+		    {
+			// as above
+			w.add(term.weightConstantPart());
+			break;
+		    };
 		w.add(((AtomicFormula)term).predicate().weight());
 		if (((AtomicFormula)term).argument() != null &&
 		    depthLimit > 0)
@@ -110,6 +122,12 @@ public class ShallowWeightComputation {
 			      w);
 		break;  
 	    case Term.Kind.TermPair:
+		if (!term.containsVariables() && term.depth() <= depthLimit)
+		    {
+			// as above
+			w.add(term.weightConstantPart());
+			break;
+		    };
 		// We don't change the depth here:
 		addWeight(((TermPair)term).first(),depthLimit,w);
 		addWeight(((TermPair)term).second(),depthLimit,w);
@@ -36,13 +36,21 @@ public abstract class SignatureSymbol extends Symbol {
 	    category == Category.Predicate;
 	_weight = 1;
 	_priority = 0;
+	_used = false;
     }
 
     /** Sets the weight of the symbol; the weight has no fixed 
      *  meaning - it can be used differently for different purposes.
-     *  <b>pre:</b> <code>w > 0</code>. 
+     *  Compound terms and atomic formulas remember the weights of 
+     *  their symbols (see {@link Term#weightConstantPart()}), so 
+     *  the weight must be set before any terms with the symbol 
+     *  are created.
+     *  <b>pre:</b> <code>w > 0</code>, and no compound terms, 
+     *  pairs or atomic formulas with the symbol have been created. 
      */
     public final void setWeight(int w) { 
+	assert w > 0;
+	assert !_used;
 	_weight = w; 
     }
 
@@ -66,6 +74,17 @@ public abstract class SignatureSymbol extends Symbol {
     public final int priority() { return _priority; }
 
 
+    /** Records that a term remembering the weight of the symbol
+     *  has been created. Only called in assertions, so that
+     *  creating terms costs nothing extra when they are disabled.
+     *  @return true
+     */
+    final boolean markUsed() { 
+	_used = true;
+	return true;
+    }
+
+
     /** The weight of the symbol; the weight has no fixed 
      *  meaning - it can be used differently for different purposes;
      *  should be > 0; default = 1.     
@@ -74,4 +93,7 @@ public abstract class SignatureSymbol extends Symbol {
 
     private int _priority;
 
+    /** Set by {@link #markUsed()} when assertions are enabled. */
+    private boolean _used;
+
 }; // class SignatureSymbol
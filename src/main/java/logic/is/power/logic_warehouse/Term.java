@@ -557,6 +557,26 @@ public interface Term extends Iterable<Term> {
      */
     public int numberOfSymbols();
 
+    /** Sums the weights of all nonvariable symbols, ie, computes 
+     *  the constant part of the weight polynomial 
+     *  (see {@link logic.is.power.logic_warehouse.WeightComputation});
+     *  logic symbols and abstraction operators have weight 1, 
+     *  pair constructors have weight 0.
+     */
+    public int weightConstantPart();
+
+    /** Counts all occurrences of variables, free or quantified;
+     *  this is the sum of all coefficients in the weight polynomial.
+     */
+    public int numberOfVariableOccurrences();
+
+    /** Summary of the variables, free or quantified, occurring 
+     *  in the term: the union of {@link Variable#maskBit()} for 
+     *  all such variables. If <code>(variableMask() & var.maskBit()) == 0</code>,
+     *  then <code>var</code> does not occur in the term.
+     */
+    public long variableMask();
+
 
     /** Counts all symbols in the instance of <code>this</code>
      *  under global substitution 1, including logic symbols and variables;
@@ -15,29 +15,124 @@
 
 package logic.is.power.logic_warehouse;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+import java.util.concurrent.locks.ReentrantLock;
 
-import java.util.LinkedList;
 
-import java.lang.reflect.Array;
 
 /**
  * Factory for agressively shared terms; converts 
  * {@link logic.is.power.logic_warehouse.Flatterm}
  * representation into {@link logic.is.power.logic_warehouse.Term}.
+ * <p>
+ * The shared terms are kept in hash table segments selected by 
+ * the hash codes of the terms. A thread-safe factory has many segments,
+ * each with its own lock, so that threads sharing different terms
+ * rarely wait for each other. A lock is only held while a segment 
+ * is searched or extended, never while the subterms of a new term 
+ * are being shared, so the threads cannot deadlock. If two threads
+ * create equal terms at the same time, the one that comes second 
+ * to the segment gets the term stored by the first one, so equal 
+ * terms are always represented by the same object.
+ * <p>
+ * By default, the shared terms are never forgotten. A factory with 
+ * weak sharing only keeps weak references to the shared terms, so 
+ * the terms that are no longer used anywhere else, eg, the terms 
+ * of deleted clauses, are reclaimed by the garbage collector, 
+ * and their entries are removed from the table when new terms 
+ * are shared or {@link #purge()} is called.
  */
 public class TermFactory {
 
+    /** Creates a factory that can be used by one thread at a time. */
     public TermFactory() {
-	_hashtable = 
-	    (LinkedList<Term>[])Array.newInstance(LinkedList.class,
-						  HashtableSize);
-	// This hack is a workaround for the problem with
-	// generic array initialisation in Java.
-	// The following syntax causes an error:
-	//_hashtable = new LinkedList<Term>[HashtableSize];
+	this(false);
+    }
 
+    /** @param threadSafe if true, the factory can be used by any number 
+     *         of threads simultaneously
+     */
+    public TermFactory(boolean threadSafe) {
+	this(threadSafe,false);
     }
 
+    /** @param threadSafe if true, the factory can be used by any number 
+     *         of threads simultaneously
+     *  @param weakSharing if true, the shared terms that are not 
+     *         referenced from outside the factory can be garbage collected
+     */
+    public TermFactory(boolean threadSafe,boolean weakSharing) {
+
+	_threadSafe = threadSafe;
+	_weakSharing = weakSharing;
+
+	int numberOfSegments = threadSafe? NumberOfStripes : 1;
+
+	_segments = new Segment[numberOfSegments];
+	for (int n = 0; n < numberOfSegments; ++n)
+	    _segments[n] = 
+		new Segment(InitialTableCapacity / numberOfSegments,weakSharing);
+
+    } // TermFactory(boolean threadSafe,boolean weakSharing)
+
+
+    public final boolean isThreadSafe() { return _threadSafe; }
+
+    public final boolean hasWeakSharing() { return _weakSharing; }
+
+
+    /** Removes the entries of the garbage collected terms from the table;
+     *  this is also done regularly when new terms are shared.
+     *  Has no effect without weak sharing.
+     */
+    public final void purge() {
+
+	if (!_weakSharing) return;
+
+	for (Segment segment : _segments)
+	    {
+		if (_threadSafe) segment.lock.lock();
+		try
+		    {
+			segment.purge();
+		    }
+		finally
+		    {
+			if (_threadSafe) segment.lock.unlock();
+		    };
+	    };
+
+    } // purge()
+
+
+    /** Number of the entries in the table; without weak sharing, 
+     *  this is the number of the shared terms, otherwise it may include 
+     *  the garbage collected terms that have not been purged yet.
+     */
+    public final int numberOfEntries() {
+
+	int result = 0;
+
+	for (Segment segment : _segments)
+	    {
+		if (_threadSafe) segment.lock.lock();
+		try
+		    {
+			result += segment.numberOfTerms;
+		    }
+		finally
+		    {
+			if (_threadSafe) segment.lock.unlock();
+		    };
+	    };
+
+	return result;
+
+    } // numberOfEntries()
+
     /** Returns the current statically accessible object (possibly null). */ 
     public static TermFactory current() { return _current; }
 
@@ -72,26 +167,13 @@ public class TermFactory {
 
 	// More complex terms require look up in the hashtable
 
-	int normalisedHashCode =
-	    normaliseHashCode(flatterm.hashCode());
+	int hashCode = flatterm.hashCode();
 
+	Term storedTerm = find(flatterm,hashCode);
 
-	LinkedList<Term> bucket = _hashtable[normalisedHashCode];
-
-	if (bucket != null) 
-	{
-	    for (Term storedTerm : bucket)
-	    {
-		if (storedTerm.equals(flatterm))
-		    // the required term structure already exists
-		    return storedTerm;
-	    };
-	}
-	else
-	{
-	    bucket = new LinkedList<Term>();
-	    _hashtable[normalisedHashCode] = bucket;
-	};
+	if (storedTerm != null)
+	    // the required term structure already exists
+	    return storedTerm;
    
     
 	// The bucket does not contain the required term. 
@@ -152,7 +234,7 @@ public class TermFactory {
 	}; // switch (flatterm->kind())
   
   
-	bucket.addFirst(term);
+	term = share(term,hashCode);
     
 	assert term.equals(flatterm);
 
@@ -175,31 +257,13 @@ public class TermFactory {
 		
 	if (arity == 1) return createSharedTerm(flatterms);
     
-	int normalisedHashCode =
-	    normaliseHashCode(flatterms.hashCodeOfTuple(arity));
+	int hashCode = flatterms.hashCodeOfTuple(arity);
 
-	LinkedList<Term> bucket = _hashtable[normalisedHashCode];
+	Term storedTerm = find(flatterms,arity,hashCode);
 
-	if (bucket != null) 
-	{
-	    for (Term storedTerm : bucket) 
-	    {
-		if (storedTerm.isPair() &&
-                    ((TermPair)storedTerm).dimension() == arity &&
-		    ((TermPair)storedTerm).equals(flatterms))
-		    // the required term structure already exists
-		    {
-			assert ((TermPair)storedTerm).dimension() == arity;
-			return storedTerm;
-		    };
-	    };
-	}
-	else
-	{
-	    bucket = new LinkedList<Term>();
-	    _hashtable[normalisedHashCode] = bucket;
-	    
-	};
+	if (storedTerm != null)
+	    // the required term structure already exists
+	    return storedTerm;
 
 	// The bucket does not contain the required term. 
 	// New term structure has to be creater.
@@ -209,16 +273,121 @@ public class TermFactory {
 						       arity - 1));
  
   
-	bucket.addFirst(term);
-    
 	assert term.dimension() == arity;
 
-	return term;
+	return share(term,hashCode);
 
     } // createSharedTuple(Flatterm flatterms,int arity)
     
 
 
+    /** Same as <code>createSharedTerm(arena.flatterm(cell))</code>,
+     *  but reads the arena cells directly.
+     */
+    public final Term createSharedTerm(FlattermArena arena,int cell) {
+
+	// Two special cases that don't require look up in the hashtable
+
+	if (arena.kind(cell) == Term.Kind.Variable ||
+	    arena.kind(cell) == Term.Kind.IndividualConstant)
+	    return (Term)arena.symbol(cell);
+
+	int hashCode = arena.hashCode(cell);
+
+	Term storedTerm = find(arena,cell,hashCode);
+
+	if (storedTerm != null)
+	    // the required term structure already exists
+	    return storedTerm;
+
+	// The bucket does not contain the required term.
+	// New term structure has to be created.
+
+	Symbol sym = arena.symbol(cell);
+	int argument = arena.nextCell(cell);
+	Term term = null;
+
+	switch (arena.kind(cell))
+	    {
+	    case Term.Kind.CompoundTerm:
+		term =
+		    new CompoundTerm((Function)sym,
+				     createSharedTuple(arena,argument,sym.arity()));
+		break;
+
+	    case Term.Kind.AtomicFormula:
+		term =
+		    new AtomicFormula((Predicate)sym,
+				      (sym.arity() == 0)?
+				      null
+				      :
+				      createSharedTuple(arena,argument,sym.arity()));
+		break;
+
+	    case Term.Kind.ConnectiveApplication:
+		term =
+		    new ConnectiveApplication((Connective)sym,
+					      createSharedTuple(arena,
+								argument,
+								sym.arity()));
+		break;
+
+	    case Term.Kind.QuantifierApplication:
+		term =
+		    new QuantifierApplication((Quantifier)sym,
+					      createSharedTerm(arena,argument));
+		break;
+
+	    case Term.Kind.AbstractionTerm:
+		term =
+		    new AbstractionTerm((Variable)sym,
+					createSharedTerm(arena,argument));
+		break;
+
+	    default:
+		assert false;
+
+	    }; // switch (arena.kind(cell))
+
+	term = share(term,hashCode);
+
+	assert equals(term,arena,cell);
+
+	return term;
+
+    } // createSharedTerm(FlattermArena arena,int cell)
+
+
+    /** Same as <code>createSharedTuple(arena.flatterm(cell),arity)</code>,
+     *  but reads the arena cells directly.
+     *  <b>pre:</b> <code>arity > 0</code>
+     */
+    public final Term createSharedTuple(FlattermArena arena,
+					int cell,
+					int arity) {
+
+	assert arity > 0;
+
+	if (arity == 1) return createSharedTerm(arena,cell);
+
+	int hashCode = arena.hashCodeOfTuple(cell,arity);
+
+	Term storedTerm = find(arena,cell,arity,hashCode);
+
+	if (storedTerm != null)
+	    // the required term structure already exists
+	    return storedTerm;
+
+	TermPair term =
+	    new TermPair(createSharedTerm(arena,cell),
+			 createSharedTuple(arena,arena.after(cell),arity - 1));
+
+	return share(term,hashCode);
+
+    } // createSharedTuple(FlattermArena arena,..)
+
+
+
     /** Argument may be null if <code>pred.arity() == 0</code>. */
     public final AtomicFormula createSharedAtomicFormula(Predicate pred,
 							 Term argument) {
@@ -331,46 +500,528 @@ public class TermFactory {
 
 
 
-    private static int normaliseHashCode(int hashCode) {
-	
-	int normalisedHashCode = hashCode;
+    private Term findOrShare(Term term) {
+
+	int hashCode = term.hashCode();
+
+	Term storedTerm = find(term,hashCode);
+
+	if (storedTerm != null)
+	    // the required term structure already exists
+	    return storedTerm;
+
+	return share(term,hashCode);
+
+    } // findOrShare(Term term)
+
+
+    //          Operations on the segments:
+    //
+    // Every search locks the segment in a thread-safe factory, 
+    // because a concurrent insertion may move the terms.
 
-	if (normalisedHashCode < 0)
-	    normalisedHashCode = -1 * normalisedHashCode;
-	 
-	return normalisedHashCode % HashtableSize;
+
+    /** Segment where the terms with the hash code are kept. */
+    private Segment segment(int hashCode) {
+	return _segments[((hashCode * 0x85EBCA6B) >>> 16) & 
+			 (_segments.length - 1)];
     }
 
+    private Term find(Flatterm flatterm,int hashCode) {
 
+	Segment segment = segment(hashCode);
 
-    private Term findOrShare(Term term) {
+	if (_threadSafe) segment.lock.lock();
 
-	int normalisedHashCode = normaliseHashCode(term.hashCode());
-	 
-	LinkedList<Term> bucket = _hashtable[normalisedHashCode];
+	try
+	    {
+		for (int slot = segment.firstSlot(hashCode);
+		     segment.isOccupied(slot);
+		     slot = segment.nextSlot(slot))
+		    if (segment.hashCodes[slot] == hashCode)
+			{
+			    Term storedTerm = segment.term(slot);
+			    if (storedTerm != null &&
+				storedTerm.equals(flatterm))
+				return storedTerm;
+			};
+		return null;
+	    }
+	finally
+	    {
+		if (_threadSafe) segment.lock.unlock();
+	    }
+
+    } // find(Flatterm flatterm,int hashCode)
 
 
-	if (bucket != null) 
+    /** Looks for the tuple of the given arity starting with
+     *  <code>flatterms</code>.
+     */
+    private Term find(Flatterm flatterms,int arity,int hashCode) {
+
+	Segment segment = segment(hashCode);
+
+	if (_threadSafe) segment.lock.lock();
+
+	try
 	    {
-		for (Term storedTerm : bucket)
-		    {
-			if (storedTerm.equals(term))
-			    // the required term structure already exists
-			    return storedTerm;
-		    };
+		for (int slot = segment.firstSlot(hashCode);
+		     segment.isOccupied(slot);
+		     slot = segment.nextSlot(slot))
+		    if (segment.hashCodes[slot] == hashCode)
+			{
+			    Term storedTerm = segment.term(slot);
+			    if (storedTerm != null &&
+				storedTerm.isPair() &&
+				((TermPair)storedTerm).dimension() == arity &&
+				((TermPair)storedTerm).equals(flatterms))
+				return storedTerm;
+			};
+		return null;
+	    }
+	finally
+	    {
+		if (_threadSafe) segment.lock.unlock();
+	    }
+
+    } // find(Flatterm flatterms,int arity,int hashCode)
+
+
+    private Term find(FlattermArena arena,int cell,int hashCode) {
+
+	Segment segment = segment(hashCode);
+
+	if (_threadSafe) segment.lock.lock();
+
+	try
+	    {
+		for (int slot = segment.firstSlot(hashCode);
+		     segment.isOccupied(slot);
+		     slot = segment.nextSlot(slot))
+		    if (segment.hashCodes[slot] == hashCode)
+			{
+			    Term storedTerm = segment.term(slot);
+			    if (storedTerm != null &&
+				equals(storedTerm,arena,cell))
+				return storedTerm;
+			};
+		return null;
+	    }
+	finally
+	    {
+		if (_threadSafe) segment.lock.unlock();
+	    }
+
+    } // find(FlattermArena arena,int cell,int hashCode)
+
+
+    /** Looks for the tuple of the given arity starting with
+     *  the arena cell.
+     */
+    private Term find(FlattermArena arena,int cell,int arity,int hashCode) {
+
+	Segment segment = segment(hashCode);
+
+	if (_threadSafe) segment.lock.lock();
+
+	try
+	    {
+		for (int slot = segment.firstSlot(hashCode);
+		     segment.isOccupied(slot);
+		     slot = segment.nextSlot(slot))
+		    if (segment.hashCodes[slot] == hashCode)
+			{
+			    Term storedTerm = segment.term(slot);
+			    if (storedTerm != null &&
+				storedTerm.isPair() &&
+				((TermPair)storedTerm).dimension() == arity &&
+				equals(storedTerm,arena,cell,arity))
+				return storedTerm;
+			};
+		return null;
+	    }
+	finally
+	    {
+		if (_threadSafe) segment.lock.unlock();
+	    }
+
+    } // find(FlattermArena arena,int cell,int arity,int hashCode)
+
+
+    private Term find(Term term,int hashCode) {
+
+	Segment segment = segment(hashCode);
+
+	if (_threadSafe) segment.lock.lock();
+
+	try
+	    {
+		for (int slot = segment.firstSlot(hashCode);
+		     segment.isOccupied(slot);
+		     slot = segment.nextSlot(slot))
+		    if (segment.hashCodes[slot] == hashCode)
+			{
+			    Term storedTerm = segment.term(slot);
+			    if (storedTerm != null &&
+				storedTerm.equals(term))
+				return storedTerm;
+			};
+		return null;
 	    }
-	else
+	finally
 	    {
-		bucket = new LinkedList<Term>();
-		_hashtable[normalisedHashCode] = bucket;
+		if (_threadSafe) segment.lock.unlock();
+	    }
+
+    } // find(Term term,int hashCode)
+
+
+    /** Stores the new term, unless another thread has stored 
+     *  an equal term since it was looked for.
+     *  <b>pre:</b> <code>hashCode == term.hashCode()</code>, and
+     *  the subterms of <code>term</code> are shared.
+     *  @return the stored term equal to <code>term</code>
+     */
+    private Term share(Term term,int hashCode) {
+
+	Segment segment = segment(hashCode);
+
+	if (!_threadSafe)
+	    {
+		segment.store(term,hashCode);
+		return term;
 	    };
-	
-  
-	bucket.addFirst(term);
-	
-	return term;
 
-    } // findOrShare(Term term)
+	segment.lock.lock();
+
+	try
+	    {
+		for (int slot = segment.firstSlot(hashCode);
+		     segment.isOccupied(slot);
+		     slot = segment.nextSlot(slot))
+		    if (segment.hashCodes[slot] == hashCode)
+			{
+			    Term storedTerm = segment.term(slot);
+			    if (storedTerm != null &&
+				storedTerm.equals(term))
+				// Shared by another thread meanwhile:
+				return storedTerm;
+			};
+
+		segment.store(term,hashCode);
+		return term;
+	    }
+	finally
+	    {
+		segment.lock.unlock();
+	    }
+
+    } // share(Term term,int hashCode)
+
+
+
+    /** Open-addressing hash table of shared terms with linear
+     *  probing; the lock is only used by thread-safe factories. 
+     *  With weak sharing, the table keeps weak references to the terms,
+     *  and the entries of the collected terms are removed. 
+     */
+    private static class Segment {
+
+	/** @param capacity must be a power of 2 */
+	public Segment(int capacity,boolean weakSharing) {
+	    if (weakSharing)
+		{
+		    references = new WeakTermReference[capacity];
+		    referenceQueue = new ReferenceQueue<Term>();
+		}
+	    else
+		terms = new Term[capacity];
+	    hashCodes = new int[capacity];
+	    numberOfTerms = 0;
+	    slotShift = 32 - Integer.numberOfTrailingZeros(capacity);
+	}
+
+
+	/** Slot where the search for a term with the hash code starts;
+	 *  the hash codes are scrambled because the structural hash codes
+	 *  of similar terms are close to each other.
+	 */
+	public final int firstSlot(int hashCode) {
+	    return (hashCode * 0x9E3779B9) >>> slotShift;
+	}
+
+	/** Slot following <code>slot</code> in a search. */
+	public final int nextSlot(int slot) {
+	    return (slot + 1) & (hashCodes.length - 1);
+	}
+
+	/** False for the free slots, which terminate searches; 
+	 *  the slots of the collected, but not yet purged, terms 
+	 *  are occupied.
+	 */
+	public final boolean isOccupied(int slot) {
+	    if (terms != null) return terms[slot] != null;
+	    return references[slot] != null;
+	}
+
+	/** Term in the occupied slot, or null if it has been
+	 *  garbage collected.
+	 */
+	public final Term term(int slot) {
+	    if (terms != null) return terms[slot];
+	    return references[slot].get();
+	}
+
+
+	/** Adds the term to the table.
+	 *  <b>pre:</b> <code>hashCode == term.hashCode()</code>, and
+	 *  the table does not contain an equal term.
+	 */
+	public final void store(Term term,int hashCode) {
+
+	    if (terms == null) purge();
+
+	    // The table is at most half full:
+	    if (2 * (numberOfTerms + 1) > hashCodes.length) grow();
+
+	    int slot = firstSlot(hashCode);
+	    while (isOccupied(slot)) slot = nextSlot(slot);
+
+	    if (terms != null)
+		{
+		    terms[slot] = term;
+		}
+	    else
+		references[slot] = 
+		    new WeakTermReference(term,hashCode,referenceQueue);
+	    hashCodes[slot] = hashCode;
+	    ++numberOfTerms;
+
+	} // store(Term term,int hashCode)
+
+
+	/** Removes the entries of the terms collected so far. */
+	public final void purge() {
+
+	    for (Reference<? extends Term> reference = 
+		     referenceQueue.poll();
+		 reference != null;
+		 reference = referenceQueue.poll())
+		{
+		    // The entry may be gone already if the table 
+		    // has been rebuilt.
+
+		    int hashCode = ((WeakTermReference)reference).hashCode;
+
+		    for (int slot = firstSlot(hashCode);
+			 references[slot] != null;
+			 slot = nextSlot(slot))
+			if (references[slot] == reference)
+			    {
+				remove(slot);
+				break;
+			    };
+		};
+
+	} // purge()
+
+
+	/** Frees the slot, shifting the following entries backwards, 
+	 *  so that no search is broken by the free slot.
+	 */
+	private void remove(int slot) {
+
+	    int free = slot;
+
+	    for (int next = nextSlot(free); 
+		 references[next] != null; 
+		 next = nextSlot(next))
+		{
+		    int home = firstSlot(hashCodes[next]);
+
+		    // The entry can only be moved to the free slot
+		    // if its search starts cyclically outside (free,next]: 
+		    if (free < next? 
+			free < home && home <= next :
+			free < home || home <= next)
+			continue;
+
+		    references[free] = references[next];
+		    hashCodes[free] = hashCodes[next];
+		    free = next;
+		};
+
+	    references[free] = null;
+	    --numberOfTerms;
+
+	} // remove(int slot)
+
+
+	/** Doubles the table; the entries of the collected terms 
+	 *  are dropped.
+	 */
+	private void grow() {
+
+	    Term[] oldTerms = terms;
+	    WeakTermReference[] oldReferences = references;
+	    int[] oldHashCodes = hashCodes;
+	    int oldCapacity = hashCodes.length;
+
+	    hashCodes = new int[2 * oldCapacity];
+	    if (oldTerms != null)
+		{
+		    terms = new Term[hashCodes.length];
+		}
+	    else
+		references = new WeakTermReference[hashCodes.length];
+	    --slotShift;
+	    numberOfTerms = 0;
+
+	    for (int n = 0; n < oldCapacity; ++n)
+		if (oldTerms != null? 
+		    oldTerms[n] != null : 
+		    oldReferences[n] != null && oldReferences[n].get() != null)
+		    {
+			int slot = firstSlot(oldHashCodes[n]);
+			while (isOccupied(slot)) slot = nextSlot(slot);
+			if (oldTerms != null)
+			    {
+				terms[slot] = oldTerms[n];
+			    }
+			else
+			    references[slot] = oldReferences[n];
+			hashCodes[slot] = oldHashCodes[n];
+			++numberOfTerms;
+		    };
+
+	} // grow()
+
+
+	/** Null for free slots; null with weak sharing. */
+	public Term[] terms;
+
+	/** Null for free slots; used instead of <code>terms</code>
+	 *  with weak sharing. 
+	 */
+	public WeakTermReference[] references;
+
+	/** Receives the references to the collected terms;
+	 *  only with weak sharing.
+	 */
+	public ReferenceQueue<Term> referenceQueue;
+
+	/** <code>hashCodes[n]</code> is the hash code
+	 *  of the term in slot <code>n</code>.
+	 */
+	public int[] hashCodes;
+
+	/** Number of occupied slots. */
+	public int numberOfTerms;
+
+	/** <code>32 - log2(hashCodes.length)</code>. */
+	public int slotShift;
+
+	/** Guards all of the above in a thread-safe factory. */
+	public final ReentrantLock lock = new ReentrantLock();
+
+    } // class Segment
+
+
+
+    /** Weak reference to a shared term, remembering the hash code 
+     *  so that its entry can be found after the term is collected.
+     */
+    private static class WeakTermReference extends WeakReference<Term> {
+
+	public WeakTermReference(Term term,
+				 int hashCode,
+				 ReferenceQueue<Term> queue) {
+	    super(term,queue);
+	    this.hashCode = hashCode;
+	}
+
+	public final int hashCode;
+
+    } // class WeakTermReference
+
+
+
+    /** Checks if the shared term is the same as the term starting
+     *  with the arena cell; the subterms of a shared term are shared,
+     *  so variables and constants are compared as objects.
+     */
+    private static boolean equals(Term term,FlattermArena arena,int cell) {
+
+	if (term.kind() != arena.kind(cell)) return false;
+
+	Symbol sym = arena.symbol(cell);
+	int argument = arena.nextCell(cell);
+
+	switch (arena.kind(cell))
+	    {
+	    case Term.Kind.Variable: // as below
+	    case Term.Kind.IndividualConstant:
+		return term == sym;
+
+	    case Term.Kind.CompoundTerm:
+		return ((CompoundTerm)term).function() == sym &&
+		    equals(((CompoundTerm)term).argument(),
+			   arena,
+			   argument,
+			   sym.arity());
+
+	    case Term.Kind.AtomicFormula:
+		return ((AtomicFormula)term).predicate() == sym &&
+		    (sym.arity() == 0 ||
+		     equals(((AtomicFormula)term).argument(),
+			    arena,
+			    argument,
+			    sym.arity()));
+
+	    case Term.Kind.ConnectiveApplication:
+		return ((ConnectiveApplication)term).connective() == sym &&
+		    equals(((ConnectiveApplication)term).argument(),
+			   arena,
+			   argument,
+			   sym.arity());
+
+	    case Term.Kind.QuantifierApplication:
+		return ((QuantifierApplication)term).quantifier() == sym &&
+		    equals(((QuantifierApplication)term).abstraction(),
+			   arena,
+			   argument);
+
+	    case Term.Kind.AbstractionTerm:
+		return ((AbstractionTerm)term).variable() == sym &&
+		    equals(((AbstractionTerm)term).matrix(),arena,argument);
+
+	    }; // switch (arena.kind(cell))
+
+	assert false;
+	return false;
+
+    } // equals(Term term,FlattermArena arena,int cell)
+
+
+    /** Checks if the shared term is the same as the tuple of
+     *  the given arity starting with the arena cell.
+     *  <b>pre:</b> <code>arity > 0</code>
+     */
+    private static boolean equals(Term term,
+				  FlattermArena arena,
+				  int cell,
+				  int arity) {
+
+	assert arity > 0;
+
+	if (arity == 1) return equals(term,arena,cell);
+
+	return term.isPair() &&
+	    equals(((TermPair)term).first(),arena,cell) &&
+	    equals(((TermPair)term).second(),arena,arena.after(cell),arity - 1);
+
+    } // equals(Term term,FlattermArena arena,int cell,int arity)
 
 
 
@@ -378,8 +1029,18 @@ public class TermFactory {
     
     private static TermFactory _current = null;
     
-    private static int HashtableSize = 131072;
+    /** Total initial capacity of the segments; must be a power of 2. */
+    private static final int InitialTableCapacity = 1024;
+
+    /** Number of segments in a thread-safe factory; must be 
+     *  a power of 2 not greater than <code>InitialTableCapacity</code>.
+     */
+    private static final int NumberOfStripes = 64;
+
+    private final boolean _threadSafe;
+
+    private final boolean _weakSharing;
 
-    private final LinkedList<Term>[] _hashtable;
+    private final Segment[] _segments;
 
 }; // class TermFactory
@@ -23,8 +23,22 @@ public final class TermPair implements Term {
 
     /** <b>pre:</b> <code>!first.isPair()</code>. */
     public TermPair(Term first,Term second) {
+	assert first.kind() != Term.Kind.IndividualConstant ||
+	    ((IndividualConstant)first).markUsed();
+	assert second.kind() != Term.Kind.IndividualConstant ||
+	    ((IndividualConstant)second).markUsed();
 	_first = first;
 	_second = second;
+	_numberOfSymbols = first.numberOfSymbols() + second.numberOfSymbols();
+	_depth = Math.max(first.depth(),second.depth());
+	_weightConstantPart = 
+	    first.weightConstantPart() + second.weightConstantPart();
+	_numberOfVariableOccurrences = 
+	    first.numberOfVariableOccurrences() + 
+	    second.numberOfVariableOccurrences();
+	_containsVariables = 
+	    first.containsVariables() || second.containsVariables();
+	_variableMask = first.variableMask() | second.variableMask();
     }
 
     public final int hashCode() {
@@ -99,10 +113,11 @@ public final class TermPair implements Term {
 	boolean 
 	containsVariableAsProperSubterm(Variable var) {
 	return 
-	    _first == (Term)var ||
-	    _second == (Term)var ||
-	    _first.containsVariableAsProperSubterm(var) ||
-	    _second.containsVariableAsProperSubterm(var);
+	    (_variableMask & var.maskBit()) != 0 &&
+	    (_first == (Term)var ||
+	     _second == (Term)var ||
+	     _first.containsVariableAsProperSubterm(var) ||
+	     _second.containsVariableAsProperSubterm(var));
 	    
     }
 
@@ -181,13 +196,13 @@ public final class TermPair implements Term {
     } 
 
     public final boolean containsFreeVariables() {
-	return _first.containsFreeVariables() ||
-	    _second.containsFreeVariables();
+	return _numberOfVariableOccurrences != 0 &&
+	    (_first.containsFreeVariables() ||
+	     _second.containsFreeVariables());
     }
 
     public final boolean containsVariables() {
-	return _first.containsVariables() ||
-	    _second.containsVariables();
+	return _containsVariables;
     }
 
     public 
@@ -199,14 +214,18 @@ public final class TermPair implements Term {
     
 
 
-    public final int depth() {
-	return Math.max(_first.depth(),_second.depth());
-    }
+    public final int depth() { return _depth; }
+
+    public final int numberOfSymbols() { return _numberOfSymbols; }
+
+    public final int weightConstantPart() { return _weightConstantPart; }
 
-    public final int numberOfSymbols() {
-	return _first.numberOfSymbols() + _second.numberOfSymbols();
+    public final int numberOfVariableOccurrences() { 
+	return _numberOfVariableOccurrences; 
     }
 
+    public final long variableMask() { return _variableMask; }
+
     public final int numberOfSymbolsAfterSubst1() {
 	return _first.numberOfSymbolsAfterSubst1() + 
 	    _second.numberOfSymbolsAfterSubst1();
@@ -290,4 +309,22 @@ public final class TermPair implements Term {
 
     private final Term _second;
 
+    // The following are computed once since the pair is immutable:
+
+    private final int _numberOfSymbols;
+
+    private final int _depth;
+
+    /** Weights of the symbols are taken when the pair is created. */
+    private final int _weightConstantPart;
+
+    private final int _numberOfVariableOccurrences;
+
+    /** May be true when <code>_numberOfVariableOccurrences == 0</code>
+     *  because the binders count as variables.
+     */
+    private final boolean _containsVariables;
+
+    private final long _variableMask;
+
 }; // class TermPair
@@ -48,6 +48,21 @@ public class Unification {
 
 
 
+    /** Same as <code>unify(arena1.flatterm(term1),arena2.flatterm(term2),subst)</code>:
+     *  the variables get instantiated to the views of the arena cells,
+     *  so the instantiations must be cancelled before the arenas
+     *  are reset.
+     */
+    public static boolean unify(FlattermArena arena1,
+				int term1,
+				FlattermArena arena2,
+				int term2,
+				Substitution1 subst) {
+	return unify(arena1.flatterm(term1),arena2.flatterm(term2),subst);
+    }
+
+
+
     /** Tries to unify the terms; if succeeds, makes a savepoint in 
      *  <code>subst</code> and registers the corresponding variable 
      *  instantiation in <code>subst</code>; if the unification attemt 
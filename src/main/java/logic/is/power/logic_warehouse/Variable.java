@@ -270,6 +270,12 @@ public class Variable extends Symbol implements Term {
 
     public final int numberOfSymbols() { return 1; }
 
+    public final int weightConstantPart() { return 0; }
+
+    public final int numberOfVariableOccurrences() { return 1; }
+
+    public final long variableMask() { return maskBit(); }
+
     public final int numberOfSymbolsAfterSubst1() { 
 	if (isInstantiated1()) 
 	    return instance1().numberOfSymbolsAfterSubst1();
@@ -299,6 +305,12 @@ public class Variable extends Symbol implements Term {
 
     //                Variable-specific methods:
 
+    /** Bit representing the variable in 
+     *  {@link logic.is.power.logic_warehouse.Term#variableMask()};
+     *  different variables may share the bit.
+     */
+    public final long maskBit() { return 1L << (hashCode() & 63); }
+
 
 
     public final Bank bank() { return _bank; }
@@ -456,6 +468,12 @@ public class Variable extends Symbol implements Term {
 
     //               Package access methods:
 
+    /** Uniquely identifies this variable among other variables from
+     *  the same bank; variables are numbered densely from 0 in 
+     *  the order of their creation in the bank.
+     */
+    final int numberInBank() { return _numberInBank; }
+
     Variable(Bank bank,int numberInBank) {
 	super(Symbol.Category.Variable);
 	_name = "X" + bank.id() + "_" + numberInBank;
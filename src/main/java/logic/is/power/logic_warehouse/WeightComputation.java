@@ -37,6 +37,8 @@ public class WeightComputation {
 	static void addWeight(Term term,WeightPolynomial w) {
 
 	// Can be optimised by using recursion instead of Term.LeanIterator.
+	// Ground subterms are skipped since their weights are cached;
+	// they are not affected by the substitutions either.
 
 	Term.LeanIterator iter = new Term.LeanIterator(term);
 	
@@ -50,13 +52,27 @@ public class WeightComputation {
 			w.add((Variable)subterm);
 			break;
 		    case Term.Kind.CompoundTerm:       
-			w.add(((CompoundTerm)subterm).function().weight());
+			if (!subterm.containsVariables())
+			    {
+				// The weight is cached in the term:
+				w.add(subterm.weightConstantPart());
+				iter.skipSubtermRemainder();
+			    }
+			else
+			    w.add(((CompoundTerm)subterm).function().weight());
 			break;
 		    case Term.Kind.IndividualConstant:
 			w.add(((IndividualConstant)subterm).weight());
 			break;
 		    case Term.Kind.AtomicFormula: 
-			w.add(((AtomicFormula)subterm).predicate().weight());
+			if (!subterm.containsVariables())
+			    {
+				// as above
+				w.add(subterm.weightConstantPart());
+				iter.skipSubtermRemainder();
+			    }
+			else
+			    w.add(((AtomicFormula)subterm).predicate().weight());
 			break;   
 		    case Term.Kind.ConnectiveApplication:
 			w.add(1);
@@ -157,6 +173,8 @@ public class WeightComputation {
 	void addWeightModuloSubst2(Term term,WeightPolynomial w) {
 
 	// Can be optimised by using recursion instead of Term.LeanIterator.
+	// Ground subterms are skipped since their weights are cached;
+	// they are not affected by the substitutions either.
 
 	Term.LeanIterator iter = new Term.LeanIterator(term);
 	
@@ -175,13 +193,27 @@ public class WeightComputation {
 			    w.add((Variable)subterm);
 			break;
 		    case Term.Kind.CompoundTerm:       
-			w.add(((CompoundTerm)subterm).function().weight());
+			if (!subterm.containsVariables())
+			    {
+				// The weight is cached in the term:
+				w.add(subterm.weightConstantPart());
+				iter.skipSubtermRemainder();
+			    }
+			else
+			    w.add(((CompoundTerm)subterm).function().weight());
 			break;
 		    case Term.Kind.IndividualConstant:
 			w.add(((IndividualConstant)subterm).weight());
 			break;
 		    case Term.Kind.AtomicFormula: 
-			w.add(((AtomicFormula)subterm).predicate().weight());
+			if (!subterm.containsVariables())
+			    {
+				// as above
+				w.add(subterm.weightConstantPart());
+				iter.skipSubtermRemainder();
+			    }
+			else
+			    w.add(((AtomicFormula)subterm).predicate().weight());
 			break;   
 		    case Term.Kind.ConnectiveApplication:
 			w.add(1);
@@ -211,6 +243,8 @@ public class WeightComputation {
 	void addWeightModuloSubst3(Term term,WeightPolynomial w) {
 
 	// Can be optimised by using recursion instead of Term.LeanIterator.
+	// Ground subterms are skipped since their weights are cached;
+	// they are not affected by the substitutions either.
 
 	Term.LeanIterator iter = new Term.LeanIterator(term);
 	
@@ -229,13 +263,27 @@ public class WeightComputation {
 			    w.add((Variable)subterm);
 			break;
 		    case Term.Kind.CompoundTerm:       
-			w.add(((CompoundTerm)subterm).function().weight());
+			if (!subterm.containsVariables())
+			    {
+				// The weight is cached in the term:
+				w.add(subterm.weightConstantPart());
+				iter.skipSubtermRemainder();
+			    }
+			else
+			    w.add(((CompoundTerm)subterm).function().weight());
 			break;
 		    case Term.Kind.IndividualConstant:
 			w.add(((IndividualConstant)subterm).weight());
 			break;
 		    case Term.Kind.AtomicFormula: 
-			w.add(((AtomicFormula)subterm).predicate().weight());
+			if (!subterm.containsVariables())
+			    {
+				// as above
+				w.add(subterm.weightConstantPart());
+				iter.skipSubtermRemainder();
+			    }
+			else
+			    w.add(((AtomicFormula)subterm).predicate().weight());
 			break;   
 		    case Term.Kind.ConnectiveApplication:
 			w.add(1);
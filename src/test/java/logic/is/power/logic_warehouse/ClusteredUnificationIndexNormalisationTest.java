@@ -0,0 +1,104 @@
+/* Copyright (C) 2010 Alexandre Riazanov (Alexander Ryazanov)
+ *
+ * The copyright owner licenses this file to You under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package logic.is.power.logic_warehouse;
+
+import java.util.ArrayList;
+
+import java.util.BitSet;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Checks the perfect discrimination mode of
+ * {@link ClusteredUnificationIndex}: canonical variables and
+ * normalisation of the terms passed to the maintenance methods.
+ */
+public class ClusteredUnificationIndexNormalisationTest extends TestCase {
+
+    protected void setUp() {
+	Signature sig =
+	    new Signature("=","!=",true,
+			  new ArrayList<String>(),"$true",
+			  new ArrayList<String>(),"$false",
+			  new ArrayList<String>());
+	Signature.makeCurrent(sig);
+	_f = sig.representationForFunction("f",2);
+	_a = sig.representationForConstant("a");
+	Variable.Bank bank = new Variable.Bank();
+	_x = bank.reserveVariable();
+	_y = bank.reserveVariable();
+	_index = new ClusteredUnificationIndex<Integer>(true);
+	_cluster = new BitSet();
+	_cluster.set(1);
+    }
+
+
+    public void testCanonicalVariables() {
+
+	// Out of order, so that several variables are added at once:
+	Variable third = _index.canonicalVariable(2);
+	Variable first = _index.canonicalVariable(0);
+	Variable second = _index.canonicalVariable(1);
+
+	assertTrue(first != second && second != third && first != third);
+	assertTrue(_index.canonicalVariable(2) == third);
+
+	// Normalisation of a term with one more variable
+	// must not disturb the canonical variables:
+	_index.insert(f(_x,f(_y,_a)),_cluster,Integer.valueOf(1));
+
+	assertTrue(_index.canonicalVariable(0) == first);
+	assertTrue(_index.canonicalVariable(1) == second);
+	assertTrue(_index.canonicalVariable(2) == third);
+
+    } // testCanonicalVariables()
+
+
+    public void testVariants() {
+
+	_index.insert(f(_x,f(_y,_x)),_cluster,Integer.valueOf(1));
+	_index.insert(f(_y,f(_x,_y)),_cluster,Integer.valueOf(2));
+
+	Term canonical =
+	    f(_index.canonicalVariable(0),
+	      f(_index.canonicalVariable(1),_index.canonicalVariable(0)));
+
+	assertEquals(2,_index.count(canonical,_cluster));
+	assertEquals(2,_index.count(f(_y,f(_x,_y)),_cluster));
+	assertEquals(0,_index.count(f(_x,f(_x,_y)),_cluster));
+
+    } // testVariants()
+
+
+    private Term f(Term arg1,Term arg2) {
+	return new CompoundTerm(_f,new TermPair(arg1,arg2));
+    }
+
+
+    private Function _f;
+
+    private IndividualConstant _a;
+
+    private Variable _x;
+
+    private Variable _y;
+
+    private ClusteredUnificationIndex<Integer> _index;
+
+    private BitSet _cluster;
+
+} // class ClusteredUnificationIndexNormalisationTest
@@ -0,0 +1,97 @@
+/* Copyright (C) 2010 Alexandre Riazanov (Alexander Ryazanov)
+ *
+ * The copyright owner licenses this file to You under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package logic.is.power.logic_warehouse;
+
+import java.util.ArrayList;
+
+import java.util.BitSet;
+
+import junit.framework.TestCase;
+
+import logic.is.power.cushion.UnaryPredicateObject;
+
+
+/**
+ * Checks {@link ClusteredUnificationIndex#relocate(Term,BitSet,BitSet,UnaryPredicateObject)}
+ * on indexed variables.
+ */
+public class ClusteredUnificationIndexRelocateTest extends TestCase {
+
+    protected void setUp() {
+	Signature sig =
+	    new Signature("=","!=",true,
+			  new ArrayList<String>(),"$true",
+			  new ArrayList<String>(),"$false",
+			  new ArrayList<String>());
+	Signature.makeCurrent(sig);
+	_variable = new Variable.Bank().reserveVariable();
+	_index = new ClusteredUnificationIndex<Integer>();
+	_cluster = new BitSet();
+	_cluster.set(1);
+	_otherCluster = new BitSet();
+	_otherCluster.set(2);
+	_index.insert(_variable,_cluster,Integer.valueOf(1));
+	_index.insert(_variable,_cluster,Integer.valueOf(2));
+    }
+
+    /** The source and destination buckets coincide here. */
+    public void testVariableIntoSameCluster() {
+
+	_index.relocate(_variable,_cluster,_cluster,AllObjects);
+
+	assertEquals(2,_index.count(_variable,_cluster));
+	assertEquals(0,_index.count(_variable,_otherCluster));
+
+    } // testVariableIntoSameCluster()
+
+
+    public void testVariableIntoOtherCluster() {
+
+	_index.relocate(_variable,_cluster,_otherCluster,ObjectOne);
+
+	assertEquals(1,_index.count(_variable,_cluster));
+	assertEquals(1,_index.count(_variable,_otherCluster));
+
+	_index.relocate(_variable,_cluster,_otherCluster,AllObjects);
+
+	assertEquals(0,_index.count(_variable,_cluster));
+	assertEquals(2,_index.count(_variable,_otherCluster));
+
+    } // testVariableIntoOtherCluster()
+
+
+    private static final UnaryPredicateObject<Integer> AllObjects =
+	new UnaryPredicateObject<Integer>() {
+	    public boolean evaluate(Integer object) { return true; }
+	};
+
+    private static final UnaryPredicateObject<Integer> ObjectOne =
+	new UnaryPredicateObject<Integer>() {
+	    public boolean evaluate(Integer object) {
+		return object.intValue() == 1;
+	    }
+	};
+
+
+    private Variable _variable;
+
+    private ClusteredUnificationIndex<Integer> _index;
+
+    private BitSet _cluster;
+
+    private BitSet _otherCluster;
+
+} // class ClusteredUnificationIndexRelocateTest
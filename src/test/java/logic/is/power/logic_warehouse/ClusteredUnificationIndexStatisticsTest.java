@@ -0,0 +1,87 @@
+/* Copyright (C) 2010 Alexandre Riazanov (Alexander Ryazanov)
+ *
+ * The copyright owner licenses this file to You under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package logic.is.power.logic_warehouse;
+
+import java.util.ArrayList;
+
+import java.util.BitSet;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Checks {@link ClusteredUnificationIndex#statistics()} on
+ * index trees deeper than the initial capacity of the per-level
+ * arrays.
+ */
+public class ClusteredUnificationIndexStatisticsTest extends TestCase {
+
+    public void testDeepTerm() {
+
+	Signature sig =
+	    new Signature("=","!=",true,
+			  new ArrayList<String>(),"$true",
+			  new ArrayList<String>(),"$false",
+			  new ArrayList<String>());
+	Signature.makeCurrent(sig);
+	Function f = sig.representationForFunction("f",1);
+	Function g = sig.representationForFunction("g",1);
+	Predicate p = sig.representationForPredicate("p",1);
+	IndividualConstant c = sig.representationForConstant("c");
+
+	TermFactory factory = new TermFactory();
+	FlattermAssembler assembler = new FlattermAssembler();
+	ClusteredUnificationIndex<Integer> index =
+	    new ClusteredUnificationIndex<Integer>();
+	BitSet cluster = new BitSet();
+	cluster.set(3);
+
+	// p(f(f(...f(c)...))) and p(f(f(...g(c)...))), so that
+	// there is a chain of two symbols at the deepest level:
+
+	for (int n = 0; n < 2; ++n)
+	    {
+		assembler.reset();
+		assembler.pushPred(p);
+		for (int depth = 1; depth < Depth; ++depth)
+		    assembler.pushFunc(f);
+		assembler.pushFunc((n == 0)? f : g);
+		assembler.pushConst(c);
+		assembler.wrapUp();
+		index.insert(factory.createSharedTerm(assembler.assembledTerm()),
+			     cluster,
+			     Integer.valueOf(n));
+	    };
+
+	ClusteredUnificationIndex.Statistics stat = index.statistics();
+
+	assertEquals(1,stat.numberOfTrees());
+	assertEquals(2,stat.numberOfObjects());
+	// p, the Depth function symbols and c:
+	assertEquals(Depth + 2,stat.numberOfLevels());
+	assertEquals(1,stat.numberOfChains(0));
+	assertEquals(2,stat.maxChainLength(Depth));
+	assertEquals(2,stat.numberOfChains(Depth + 1));
+	assertEquals(1,stat.maxChainLength(Depth + 1));
+	assertNotNull(stat.toString());
+
+    } // testDeepTerm()
+
+
+    /** Well above the initial 16 levels. */
+    private static final int Depth = 40;
+
+} // class ClusteredUnificationIndexStatisticsTest
@@ -0,0 +1,187 @@
+/* Copyright (C) 2010 Alexandre Riazanov (Alexander Ryazanov)
+ *
+ * The copyright owner licenses this file to You under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package logic.is.power.logic_warehouse;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Checks that the values of {@link Term#containsVariables()} cached
+ * in {@link CompoundTerm}, {@link TermPair} and {@link AtomicFormula}
+ * agree with the values computed by recursion over the subterms,
+ * in particular when binders do not bind any variable occurrences.
+ */
+public class TermContainsVariablesTest extends TestCase {
+
+    public void testQuantifiedFormulas() {
+
+	Signature sig =
+	    new Signature("=","!=",true,
+			  new ArrayList<String>(),"$true",
+			  new ArrayList<String>(),"$false",
+			  new ArrayList<String>());
+	Signature.makeCurrent(sig);
+	Function f = sig.representationForFunction("f",1);
+	Predicate p = sig.representationForPredicate("p",1);
+	Predicate q = sig.representationForPredicate("q",0);
+	IndividualConstant a = sig.representationForConstant("a");
+	Variable.Bank bank = new Variable.Bank();
+	Variable x = bank.reserveVariable();
+	Variable y = bank.reserveVariable();
+
+	Term qAtom = new AtomicFormula(q,null);
+	Term pa = new AtomicFormula(p,new CompoundTerm(f,a));
+	Term px = new AtomicFormula(p,new CompoundTerm(f,x));
+
+	// !X.q, with no occurrences of X:
+	Term vacuous =
+	    new QuantifierApplication(Quantifier.getForAll(),
+				      new AbstractionTerm(x,qAtom));
+	// ?Y.!X.p(f(a)):
+	Term doublyVacuous =
+	    new QuantifierApplication(Quantifier.getExist(),
+				      new AbstractionTerm(y,
+							  new AbstractionTerm(x,pa)));
+	// !X.p(f(X)):
+	Term bound =
+	    new QuantifierApplication(Quantifier.getForAll(),
+				      new AbstractionTerm(x,px));
+
+	Term[] formulas = new Term[] {
+	    qAtom,
+	    pa,
+	    px,
+	    vacuous,
+	    doublyVacuous,
+	    bound,
+	    conjunction(pa,vacuous),
+	    conjunction(vacuous,pa),
+	    conjunction(pa,qAtom),
+	    conjunction(doublyVacuous,conjunction(pa,bound)),
+	    new ConnectiveApplication(Connective.getNot(),vacuous)
+	};
+
+	for (Term formula : formulas)
+	    checkSubterms(formula);
+
+	// The pairs below contain no variable occurrences,
+	// but still contain variables:
+
+	TermPair pair = new TermPair(pa,vacuous);
+	assertEquals(0,pair.numberOfVariableOccurrences());
+	assertTrue(pair.containsVariables());
+
+	pair = new TermPair(vacuous,pa);
+	assertEquals(0,pair.numberOfVariableOccurrences());
+	assertTrue(pair.containsVariables());
+
+	assertFalse(new TermPair(pa,qAtom).containsVariables());
+
+    } // testQuantifiedFormulas()
+
+
+    //
+    //          Private methods:
+    //
+
+    private static Term conjunction(Term formula1,Term formula2) {
+	return new ConnectiveApplication(Connective.getAnd(),
+					 new TermPair(formula1,formula2));
+    }
+
+    /** Compares the cached and recursive values for the term
+     *  and all its subterms.
+     */
+    private static void checkSubterms(Term term) {
+
+	assertEquals(term.toString(),
+		     recursiveContainsVariables(term),
+		     term.containsVariables());
+
+	switch (term.kind())
+	    {
+	    case Term.Kind.CompoundTerm:
+		checkSubterms(((CompoundTerm)term).argument());
+		break;
+
+	    case Term.Kind.AtomicFormula:
+		if (((AtomicFormula)term).argument() != null)
+		    checkSubterms(((AtomicFormula)term).argument());
+		break;
+
+	    case Term.Kind.ConnectiveApplication:
+		checkSubterms(((ConnectiveApplication)term).argument());
+		break;
+
+	    case Term.Kind.QuantifierApplication:
+		checkSubterms(((QuantifierApplication)term).abstraction());
+		break;
+
+	    case Term.Kind.AbstractionTerm:
+		checkSubterms(((AbstractionTerm)term).matrix());
+		break;
+
+	    case Term.Kind.TermPair:
+		checkSubterms(((TermPair)term).first());
+		checkSubterms(((TermPair)term).second());
+		break;
+
+	    default:
+		break;
+	    };
+
+    } // checkSubterms(Term term)
+
+
+    /** Computes <code>term.containsVariables()</code> without
+     *  using the cached values; binders count as variables.
+     */
+    private static boolean recursiveContainsVariables(Term term) {
+
+	switch (term.kind())
+	    {
+	    case Term.Kind.Variable: return true;
+
+	    case Term.Kind.IndividualConstant: return false;
+
+	    case Term.Kind.CompoundTerm:
+		return recursiveContainsVariables(((CompoundTerm)term).argument());
+
+	    case Term.Kind.AtomicFormula:
+		return ((AtomicFormula)term).argument() != null &&
+		    recursiveContainsVariables(((AtomicFormula)term).argument());
+
+	    case Term.Kind.ConnectiveApplication:
+		return
+		    recursiveContainsVariables(((ConnectiveApplication)term).argument());
+
+	    case Term.Kind.QuantifierApplication: // as below
+	    case Term.Kind.AbstractionTerm:
+		return true;
+
+	    case Term.Kind.TermPair:
+		return recursiveContainsVariables(((TermPair)term).first()) ||
+		    recursiveContainsVariables(((TermPair)term).second());
+	    };
+
+	fail("Unexpected kind of term: " + term.kind());
+	return false;
+
+    } // recursiveContainsVariables(Term term)
+
+} // class TermContainsVariablesTest